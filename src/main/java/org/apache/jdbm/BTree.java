@@ -17,9 +17,13 @@
 package org.apache.jdbm;
 
 import java.io.*;
+import java.lang.reflect.Field;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -63,7 +67,12 @@ class BTree<K, V> {
     /**
      * Default node size (number of entries per node)
      */
-    public static final int DEFAULT_SIZE = 32; //TODO test optimal size, it has serious impact on sequencial write and read
+    public static final int DEFAULT_SIZE = 32;
+
+    /**
+     * Largest supported node size
+     */
+    public static final int MAX_SIZE = 1024;
 
 
     /**
@@ -103,6 +112,75 @@ class BTree<K, V> {
     /** if false map contains only keys, used for set*/
     boolean hasValues = true;
 
+    /**
+     * Number of entries per node. Large nodes are faster for sequential scans,
+     * small nodes are cheaper to update. Must be even, it is fixed when tree is created.
+     */
+    int nodeSize = DEFAULT_SIZE;
+
+    /**
+     * If true, lookups traverse tree without taking read lock and are validated against {@link #version}.
+     * Readers then do not wait for writers, unless they keep failing validation.
+     */
+    boolean optimisticReads = false;
+
+    /** Keys are any objects, nodes store them in Object[] */
+    static final int KEYS_OBJECT = 0;
+    /** Keys are Longs, nodes store them in primitive array, see {@link BTreeNode#_longKeys} */
+    static final int KEYS_LONG = 1;
+    /** Keys are Strings, nodes store them in compact form, see {@link BTreeNode#_keyBytes} */
+    static final int KEYS_STRING = 2;
+    /** Keys are byte[] ordered as unsigned bytes, nodes store them in compact form, see {@link BTreeNode#_keyBytes} */
+    static final int KEYS_BYTE_ARRAY = 3;
+
+    /**
+     * How nodes store keys, one of KEYS_* constants.
+     * Tree with other than {@link #KEYS_OBJECT} can not have comparator or key serializer.
+     */
+    int keyType = KEYS_OBJECT;
+
+    /** flags of {@link SerializationHeader#BTREE_OPTIONS} record, followed by key type */
+    private static final int OPTION_OPTIMISTIC_READS = 1;
+    private static final int OPTION_KEY_TYPE_SHIFT = 1;
+
+    /**
+     * Incremented by writer before and after each modification, so it is odd while tree is being modified.
+     * Optimistic reader which sees the same even version before and after traversal, has consistent result.
+     * It is only modified with {@link #VERSION} updater, its CAS is full fence,
+     * so version is incremented before writer modifies any node. See {@link #validate(int)}.
+     */
+    private transient volatile int version;
+
+    @SuppressWarnings("unchecked")
+    private static final AtomicIntegerFieldUpdater<BTree> VERSION =
+            AtomicIntegerFieldUpdater.newUpdater(BTree.class, "version");
+
+    /**
+     * Used for load fence in {@link #validate(int)}, same as <code>StampedLock.validate()</code> does.
+     * Null if JVM does not have <code>Unsafe.loadFence()</code> (before Java 8),
+     * optimistic reads then always take read lock.
+     */
+    private static final sun.misc.Unsafe UNSAFE;
+
+    static{
+        sun.misc.Unsafe unsafe = null;
+        try{
+            Field f = sun.misc.Unsafe.class.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            unsafe = (sun.misc.Unsafe) f.get(null);
+            unsafe.loadFence();
+        }catch(Throwable e){
+            //fence not available on this JVM
+            unsafe = null;
+        }
+        UNSAFE = unsafe;
+    }
+
+    /**
+     * Number of optimistic attempts before reader falls back to read lock
+     */
+    static final int OPTIMISTIC_RETRIES = 4;
+
     /**
      * The number of structural modifications to the tree for fail fast iterators. This value is just for runtime, it is not persisted
      */
@@ -154,12 +232,17 @@ class BTree<K, V> {
     }
 
 
+    /**
+     * Dedicated cache region for nodes of this tree, null if nodes use shared cache
+     */
+    transient CacheRegion cacheRegion;
+
     /**
      * Listeners which are notified about changes in records
      */
     protected RecordListener[] recordListeners = new RecordListener[0];
 
-    final protected ReadWriteLock lock = new ReentrantReadWriteLock();
+    final protected ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
 
     /**
      * No-argument constructor used by serialization.
@@ -190,11 +273,71 @@ class BTree<K, V> {
                                                     Serializer<V> valueSerializer,
                                                     boolean hasValues)
             throws IOException {
+        return createInstance(db, comparator, keySerializer, valueSerializer, hasValues, DEFAULT_SIZE);
+    }
+
+
+    /**
+     * Create a new persistent BTree with given number of entries per node
+     */
+    public static <K, V> BTree<K, V> createInstance(DBAbstract db,
+                                                    Comparator<K> comparator,
+                                                    Serializer<K> keySerializer,
+                                                    Serializer<V> valueSerializer,
+                                                    boolean hasValues,
+                                                    int nodeSize)
+            throws IOException {
+        return createInstance(db, comparator, keySerializer, valueSerializer, hasValues, nodeSize, false);
+    }
+
+
+    /**
+     * Create a new persistent BTree with given number of entries per node
+     * and optionally with lookups which do not take read lock
+     */
+    public static <K, V> BTree<K, V> createInstance(DBAbstract db,
+                                                    Comparator<K> comparator,
+                                                    Serializer<K> keySerializer,
+                                                    Serializer<V> valueSerializer,
+                                                    boolean hasValues,
+                                                    int nodeSize,
+                                                    boolean optimisticReads)
+            throws IOException {
+        return createInstance(db, comparator, keySerializer, valueSerializer, hasValues, nodeSize, optimisticReads, KEYS_OBJECT);
+    }
+
+
+    /**
+     * Create a new persistent BTree, optionally with keys stored in primitive or compact form
+     *
+     * @param keyType one of KEYS_* constants
+     */
+    public static <K, V> BTree<K, V> createInstance(DBAbstract db,
+                                                    Comparator<K> comparator,
+                                                    Serializer<K> keySerializer,
+                                                    Serializer<V> valueSerializer,
+                                                    boolean hasValues,
+                                                    int nodeSize,
+                                                    boolean optimisticReads,
+                                                    int keyType)
+            throws IOException {
         BTree<K, V> btree;
 
         if (db == null) {
             throw new IllegalArgumentException("Argument 'db' is null");
         }
+        if (nodeSize < 4 || nodeSize > MAX_SIZE || nodeSize % 2 != 0) {
+            throw new IllegalArgumentException("Node size must be even number between 4 and " + MAX_SIZE + ": " + nodeSize);
+        }
+        if (keyType < KEYS_OBJECT || keyType > KEYS_BYTE_ARRAY) {
+            throw new IllegalArgumentException("Unknown key type: " + keyType);
+        }
+        if (keyType != KEYS_OBJECT && (comparator != null || keySerializer != null)) {
+            throw new IllegalArgumentException("Tree with primitive or compact keys can not have comparator or key serializer");
+        }
+        if (keyType == KEYS_BYTE_ARRAY) {
+            comparator = (Comparator<K>) Utils.BYTE_ARRAY_COMPARATOR;
+        }
 
         btree = new BTree<K, V>();
         btree._db = db;
@@ -202,6 +345,9 @@ class BTree<K, V> {
         btree.keySerializer = keySerializer;
         btree.valueSerializer = valueSerializer;
         btree.hasValues = hasValues;
+        btree.nodeSize = nodeSize;
+        btree.optimisticReads = optimisticReads;
+        btree.keyType = keyType;
         btree._recid = db.insert(btree, btree.getRecordManager().defaultSerializer(),false);
 
         return btree;
@@ -259,6 +405,7 @@ class BTree<K, V> {
         }
         try {
             lock.writeLock().lock();
+            VERSION.incrementAndGet(this);
             BTreeNode<K, V> rootNode = getRoot();
 
             if (rootNode == null) {
@@ -315,6 +462,38 @@ class BTree<K, V> {
                 return ret;
             }
         } finally {
+            VERSION.incrementAndGet(this);
+            lock.writeLock().unlock();
+        }
+    }
+
+
+    /**
+     * Fills empty BTree with entries sorted by key. Nodes are built bottom-up and each is written only once.
+     *
+     * @param entries entries in ascending key order, without duplicate keys
+     * @throws IllegalStateException    if tree is not empty
+     * @throws IllegalArgumentException if keys are not sorted, contain duplicates or nulls
+     */
+    void bulkLoad(Iterator<? extends Map.Entry<K, V>> entries)
+            throws IOException {
+        try {
+            lock.writeLock().lock();
+            VERSION.incrementAndGet(this);
+            if (_root != 0) {
+                throw new IllegalStateException("BTree is not empty");
+            }
+            BTreeBulkLoader<K, V> loader = new BTreeBulkLoader<K, V>(this);
+            loader.load(entries);
+            if (loader.count == 0)
+                return;
+            _root = loader.root;
+            _height = loader.height;
+            _entries = loader.count;
+            modCount++;
+            _db.update(_recid, this);
+        } finally {
+            VERSION.incrementAndGet(this);
             lock.writeLock().unlock();
         }
     }
@@ -334,6 +513,7 @@ class BTree<K, V> {
         }
         try {
             lock.writeLock().lock();
+            VERSION.incrementAndGet(this);
             BTreeNode<K, V> rootNode = getRoot();
             if (rootNode == null) {
                 return null;
@@ -364,6 +544,7 @@ class BTree<K, V> {
                     l.recordRemoved(key, remove._value);
             return remove._value;
         } finally {
+            VERSION.incrementAndGet(this);
             lock.writeLock().unlock();
         }
     }
@@ -375,25 +556,115 @@ class BTree<K, V> {
      * @param key Lookup key.
      * @return Value associated with the key, or null if not found.
      */
-    public V get(K key)
+    public V get(final K key)
             throws IOException {
         if (key == null) {
             throw new IllegalArgumentException("Argument 'key' is null");
         }
+        //compact keys are encoded only once, not on each node
+        final byte[] encoded = hasCompactKeys() ? _nodeSerializer.encodeKey(key) : null;
+        return read(new Read<V>() {
+            V read() throws IOException {
+                BTreeNode<K, V> rootNode = getRoot();
+                if (rootNode == null) {
+                    return null;
+                }
+                if (encoded != null)
+                    return rootNode.findValue(_height, encoded);
+                return rootNode.findValue(_height, key);
+            }
+        });
+    }
+
+
+    /**
+     * Find the value associated with the given primitive key.
+     * If tree has {@link #KEYS_LONG} keys, key is not boxed.
+     *
+     * @param key Lookup key.
+     * @return Value associated with the key, or null if not found.
+     */
+    @SuppressWarnings("unchecked")
+    public V get(final long key)
+            throws IOException {
+        if (keyType != KEYS_LONG)
+            return get((K) Long.valueOf(key));
+        if (optimisticReads) {
+            return read(new Read<V>() {
+                V read() throws IOException {
+                    BTreeNode<K, V> rootNode = getRoot();
+                    return rootNode == null ? null : rootNode.findValue(_height, key);
+                }
+            });
+        }
         try {
             lock.readLock().lock();
             BTreeNode<K, V> rootNode = getRoot();
-            if (rootNode == null) {
-                return null;
-            }
+            return rootNode == null ? null : rootNode.findValue(_height, key);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+
+    /**
+     * Lookup executed by {@link #read(Read)}
+     */
+    private abstract static class Read<A> {
+        abstract A read() throws IOException;
+    }
+
 
-            return rootNode.findValue(_height, key);
+    /**
+     * Executes lookup under read lock. If tree uses optimistic reads, lookup is first tried without lock
+     * and its result is used only if no writer modified tree meanwhile. Any exception thrown while
+     * writer was active is caused by inconsistent state, and lookup is retried.
+     */
+    private <A> A read(Read<A> read) throws IOException {
+        if (optimisticReads && UNSAFE != null) {
+            for (int i = 0; i < OPTIMISTIC_RETRIES; i++) {
+                final int v = version;
+                if ((v & 1) != 0) {
+                    // writer is active
+                    Thread.yield();
+                    continue;
+                }
+                try {
+                    A ret = read.read();
+                    if (validate(v))
+                        return ret;
+                } catch (IOException e) {
+                    if (validate(v)) throw e;
+                } catch (RuntimeException e) {
+                    if (validate(v)) throw e;
+                } catch (IOError e) {
+                    // IOException wrapped by store, other errors are never retried
+                    if (validate(v)) throw e;
+                }
+            }
+        }
+        try {
+            lock.readLock().lock();
+            return read.read();
         } finally {
             lock.readLock().unlock();
         }
     }
 
 
+    /**
+     * Returns true if no writer modified tree since reader saw version <code>v</code>.
+     * <p/>
+     * Plain volatile read of version is not enough, reads done by traversal could be reordered after it.
+     * Load fence keeps them before second read of version. Validation does not write,
+     * so concurrent readers do not contend on cache line with version.
+     */
+    private boolean validate(int v) {
+        UNSAFE.loadFence();
+        return v == version;
+    }
+
+
     /**
      * Find the value associated with the given key, or the entry immediately
      * following this key in the ordered BTree.
@@ -435,16 +706,15 @@ class BTree<K, V> {
     @SuppressWarnings("unchecked")
     public BTreeTupleBrowser<K, V> browse()
             throws IOException {
-        try {
-            lock.readLock().lock();
-            BTreeNode<K, V> rootNode = getRoot();
-            if (rootNode == null) {
-                return EMPTY_BROWSER;
+        return read(new Read<BTreeTupleBrowser<K, V>>() {
+            BTreeTupleBrowser<K, V> read() throws IOException {
+                BTreeNode<K, V> rootNode = getRoot();
+                if (rootNode == null) {
+                    return EMPTY_BROWSER;
+                }
+                return rootNode.findFirst();
             }
-            return rootNode.findFirst();
-        } finally {
-            lock.readLock().unlock();
-        }
+        });
     }
 
 
@@ -463,17 +733,15 @@ class BTree<K, V> {
     @SuppressWarnings("unchecked")
     public BTreeTupleBrowser<K, V> browse(final K key, final boolean inclusive)
             throws IOException {
-        try {
-            lock.readLock().lock();
-            BTreeNode<K, V> rootNode = getRoot();
-            if (rootNode == null) {
-                return EMPTY_BROWSER;
+        return read(new Read<BTreeTupleBrowser<K, V>>() {
+            BTreeTupleBrowser<K, V> read() throws IOException {
+                BTreeNode<K, V> rootNode = getRoot();
+                if (rootNode == null) {
+                    return EMPTY_BROWSER;
+                }
+                return rootNode.find(_height, key, inclusive);
             }
-            BTreeTupleBrowser<K, V> browser = rootNode.find(_height, key, inclusive);
-            return browser;
-        } finally {
-            lock.readLock().unlock();
-        }
+        });
     }
 
 
@@ -485,6 +753,30 @@ class BTree<K, V> {
     }
 
 
+    /**
+     * Fetches node of this tree.
+     * If tree has {@link CachePolicy#pinnedInnerNodes()} policy, inner nodes are kept in cache region,
+     * leaf nodes go through shared cache.
+     */
+    BTreeNode<K, V> fetchNode(long recid) throws IOException {
+        final CacheRegion region = cacheRegion;
+        final boolean pinInner = region != null && !region.holdsAllRecords();
+        if (pinInner) {
+            final BTreeNode<K, V> node = (BTreeNode<K, V>) region.get(recid);
+            if (node != null)
+                return node;
+        }
+        final BTreeNode<K, V> node = _db.fetch(recid, _nodeSerializer);
+        if (node == null)
+            return null;
+        node._recid = recid;
+        node._btree = this;
+        //optimistic reader could pin node which was replaced meanwhile, so only pin under lock
+        if (pinInner && !node._isLeaf && (!optimisticReads || lock.getReadHoldCount() > 0 || lock.isWriteLockedByCurrentThread()))
+            region.put(recid, node);
+        return node;
+    }
+
     /**
      * Return the root BTreeNode, or null if it doesn't exist.
      */
@@ -493,43 +785,69 @@ class BTree<K, V> {
         if (_root == 0) {
             return null;
         }
-        BTreeNode<K, V> root = _db.fetch(_root, _nodeSerializer);
-        if (root != null) {
-            root._recid = _root;
-            root._btree = this;
-        }
-        return root;
+        return fetchNode(_root);
     }
 
 
-    static BTree readExternal(DataInput in, Serialization ser)
+    /**
+     * @param hasOptions true if tree was written with {@link SerializationHeader#BTREE_OPTIONS} header
+     */
+    static BTree readExternal(DataInput in, Serialization ser, boolean hasOptions)
             throws IOException, ClassNotFoundException {
         BTree tree = new BTree();
         tree._db = ser.db;
+        if (hasOptions) {
+            tree.nodeSize = LongPacker.unpackInt(in);
+            final int flags = in.readUnsignedByte();
+            tree.optimisticReads = (flags & OPTION_OPTIMISTIC_READS) != 0;
+            tree.keyType = flags >>> OPTION_KEY_TYPE_SHIFT;
+        }
         tree._height = in.readInt();
         tree._recid = in.readLong();
         tree._root = in.readLong();
         tree._entries = in.readLong();
         tree.hasValues = in.readBoolean();
         tree._comparator = (Comparator) ser.deserialize(in);
+        if (tree.keyType == KEYS_BYTE_ARRAY)
+            tree._comparator = Utils.BYTE_ARRAY_COMPARATOR;
         tree.keySerializer = (Serializer) ser.deserialize(in);
         tree.valueSerializer = (Serializer) ser.deserialize(in);
         return tree;
     }
 
 
+    /**
+     * Trees with default options are written in original format, so header
+     * must be {@link SerializationHeader#BTREE_OPTIONS} if {@link #hasCustomOptions()}
+     */
     public void writeExternal(DataOutput out)
             throws IOException {
+        if (hasCustomOptions()) {
+            LongPacker.packInt(out, nodeSize);
+            out.write((optimisticReads ? OPTION_OPTIMISTIC_READS : 0) | keyType << OPTION_KEY_TYPE_SHIFT);
+        }
         out.writeInt(_height);
         out.writeLong(_recid);
         out.writeLong(_root);
         out.writeLong(_entries);
         out.writeBoolean(hasValues);
-        _db.defaultSerializer().serialize(out, _comparator);
+        //byte[] comparator is implied by key type
+        _db.defaultSerializer().serialize(out, keyType == KEYS_BYTE_ARRAY ? null : _comparator);
         _db.defaultSerializer().serialize(out, keySerializer);
         _db.defaultSerializer().serialize(out, valueSerializer);
     }
 
+    /**
+     * Return true if nodes store keys in compact binary comparable form
+     */
+    boolean hasCompactKeys() {
+        return keyType == KEYS_STRING || keyType == KEYS_BYTE_ARRAY;
+    }
+
+    boolean hasCustomOptions() {
+        return nodeSize != DEFAULT_SIZE || optimisticReads || keyType != KEYS_OBJECT;
+    }
+
     /**
      * Copyes tree from one db to other, defragmenting it allong the way
      * @param recid
@@ -617,12 +935,14 @@ class BTree<K, V> {
             throws IOException {
         try {
             lock.writeLock().lock();
+            VERSION.incrementAndGet(this);
             BTreeNode<K, V> rootNode = getRoot();
             if (rootNode != null)
                 rootNode.delete();
             _entries = 0;
             modCount++;
         } finally {
+            VERSION.incrementAndGet(this);
             lock.writeLock().unlock();
         }
     }
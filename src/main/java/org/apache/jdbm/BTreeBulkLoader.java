@@ -0,0 +1,230 @@
+/*******************************************************************************
+ * Copyright 2010 Cees De Groot, Alex Boisvert, Jan Kotek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.apache.jdbm;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds BTree bottom-up from entries sorted by key.
+ * <p/>
+ * Leaves are filled completely one after other, and each finished node adds
+ * its largest key into node on level above. Every node is written exactly once.
+ * Last node on each level is balanced with its left neighbour,
+ * so all nodes except root are at least half full, as BTreeNode expects.
+ * <p/>
+ * Recid of each node is preallocated when node is started, so leaf can
+ * be written with recid of next leaf.
+ *
+ * @author Jan Kotek
+ */
+final class BTreeBulkLoader<K, V> {
+
+    private final BTree<K, V> tree;
+    private final int size;
+    private final int half;
+
+    /** levels of tree being built, leaves are at index zero */
+    private final List<Level> levels = new ArrayList<Level>();
+
+    long root;
+    int height;
+    long count;
+
+    BTreeBulkLoader(BTree<K, V> tree) {
+        this.tree = tree;
+        this.size = tree.nodeSize;
+        this.half = size / 2;
+    }
+
+    /**
+     * Consumes all entries and writes nodes. Results are in {@link #root}, {@link #height} and {@link #count}.
+     *
+     * @throws IllegalArgumentException if keys are not sorted, contain duplicates or nulls
+     */
+    void load(Iterator<? extends Map.Entry<K, V>> entries) throws IOException {
+        K last = null;
+        while (entries.hasNext()) {
+            Map.Entry<K, V> e = entries.next();
+            K key = e.getKey();
+            V value = e.getValue();
+            if (key == null)
+                throw new IllegalArgumentException("Key is null");
+            if (value == null)
+                throw new IllegalArgumentException("Value is null");
+            if (last != null && compare(last, key) >= 0)
+                throw new IllegalArgumentException("Keys are not sorted or contain duplicates: " + last + ", " + key);
+            level(0).add(key, value, 0);
+            last = key;
+            count++;
+        }
+
+        if (count == 0)
+            return;
+
+        // rightmost leaf ends with 'infinite' null key, same as tree created by inserts
+        level(0).add(null, null, 0);
+
+        for (int i = 0; i < levels.size(); i++) {
+            BTreeNode<K, V> node = levels.get(i).finish();
+            if (node != null) {
+                root = node._recid;
+                height = i + 1;
+            }
+        }
+    }
+
+    private Level level(int index) {
+        if (index == levels.size())
+            levels.add(new Level(index == 0));
+        return levels.get(index);
+    }
+
+    @SuppressWarnings("unchecked")
+    private int compare(K k1, K k2) {
+        if (tree._comparator == null)
+            return ((Comparable) k1).compareTo(k2);
+        return tree._comparator.compare(k1, k2);
+    }
+
+
+    /**
+     * Nodes being filled on one level of tree. Entries are appended from index zero
+     * and moved to end of arrays when node is written. Keys are collected in separate arrays
+     * and copied into node when it is written, so long keys can be stored as primitives.
+     */
+    private final class Level {
+
+        final boolean leaf;
+        final int index;
+
+        /** full node, kept unwritten in case last node needs to borrow entries */
+        BTreeNode<K, V> prev;
+        BTreeNode<K, V> cur;
+        K[] prevKeys;
+        K[] curKeys;
+        int curCount;
+        int written;
+
+        Level(boolean leaf) {
+            this.leaf = leaf;
+            this.index = levels.size();
+        }
+
+        @SuppressWarnings("unchecked")
+        void add(K key, V value, long child) throws IOException {
+            if (cur == null) {
+                cur = newNode(0);
+                curKeys = (K[]) new Object[size];
+            } else if (curCount == size) {
+                if (prev != null)
+                    write(prev, prevKeys, size, cur._recid);
+                K[] keys = prevKeys != null ? prevKeys : (K[]) new Object[size];
+                prev = cur;
+                prevKeys = curKeys;
+                cur = newNode(prev._recid);
+                curKeys = keys;
+                curCount = 0;
+            }
+            curKeys[curCount] = key;
+            if (leaf)
+                cur._values[curCount] = value;
+            else
+                cur._children[curCount] = child;
+            curCount++;
+        }
+
+        /**
+         * Writes remaining nodes. Returns node if it is the only node on this level and so it is root,
+         * otherwise returns null.
+         */
+        BTreeNode<K, V> finish() throws IOException {
+            if (prev == null && written == 0) {
+                store(cur, curKeys, curCount, 0);
+                return cur;
+            }
+            int prevCount = size;
+            if (curCount < half) {
+                // borrow entries from left neighbour
+                int steal = half - curCount;
+                prevCount -= steal;
+                System.arraycopy(curKeys, 0, curKeys, steal, curCount);
+                System.arraycopy(prevKeys, prevCount, curKeys, 0, steal);
+                if (leaf) {
+                    System.arraycopy(cur._values, 0, cur._values, steal, curCount);
+                    System.arraycopy(prev._values, prevCount, cur._values, 0, steal);
+                } else {
+                    System.arraycopy(cur._children, 0, cur._children, steal, curCount);
+                    System.arraycopy(prev._children, prevCount, cur._children, 0, steal);
+                }
+                curCount += steal;
+            }
+            write(prev, prevKeys, prevCount, cur._recid);
+            write(cur, curKeys, curCount, 0);
+            return null;
+        }
+
+        private BTreeNode<K, V> newNode(long previous) throws IOException {
+            BTreeNode<K, V> node = new BTreeNode<K, V>();
+            node._btree = tree;
+            node._isLeaf = leaf;
+            node.newKeys();
+            if (leaf) {
+                node._values = new Object[size];
+                node._previous = previous;
+            } else {
+                node._children = new long[size];
+            }
+            node._recid = tree._db.insert(DBStore.PREALOCATE_OBJ, null, true);
+            return node;
+        }
+
+        /**
+         * Writes node and adds it to level above
+         */
+        private void write(BTreeNode<K, V> node, K[] keys, int count, long next) throws IOException {
+            store(node, keys, count, next);
+            level(index + 1).add(node.getLargestKey(), null, node._recid);
+        }
+
+        /**
+         * Moves entries to end of node and writes it
+         */
+        private void store(BTreeNode<K, V> node, K[] keys, int count, long next) throws IOException {
+            final int first = size - count;
+            for (int i = 0; i < count; i++)
+                node.setKey(first + i, keys[i]);
+            if (leaf) {
+                System.arraycopy(node._values, 0, node._values, first, count);
+                for (int i = 0; i < first; i++)
+                    node._values[i] = null;
+                node._next = next;
+            } else {
+                System.arraycopy(node._children, 0, node._children, first, count);
+                for (int i = 0; i < first; i++)
+                    node._children[i] = 0;
+            }
+            node._first = first;
+            node.compactKeys();
+            tree._db.update(node._recid, node, node);
+            written++;
+        }
+    }
+
+}
@@ -18,6 +18,7 @@
 package org.apache.jdbm;
 
 import java.io.*;
+import java.util.Arrays;
 import java.util.ConcurrentModificationException;
 import java.util.List;
 
@@ -41,7 +42,7 @@ import java.util.List;
  * @author Jan Kotek
  */
 final class BTreeNode<K, V>
-        implements Serializer<BTreeNode<K, V>> {
+        implements Serializer<BTreeNode<K, V>>, CacheRegion.Owner {
 
     private static final boolean DEBUG = false;
 
@@ -51,6 +52,10 @@ final class BTreeNode<K, V>
      */
     transient BTree<K, V> _btree;
 
+    public CacheRegion getCacheRegion() {
+        return _btree == null ? null : _btree.cacheRegion;
+    }
+
 
     /**
      * This BTreeNode's record ID in the DB.
@@ -70,6 +75,48 @@ final class BTreeNode<K, V>
     protected K[] _keys;
 
 
+    /**
+     * Keys of children nodes if tree has primitive long keys, {@link #_keys} is null in that case
+     */
+    protected long[] _longKeys;
+
+
+    /**
+     * Keys of children nodes if tree has String or byte[] keys, {@link #_keys} is null in that case.
+     * Keys are binary comparable (see {@link #encodeKey(Object)}), common prefix of all keys
+     * is stored once at start of array and is followed by remaining bytes of each key.
+     */
+    protected byte[] _keyBytes;
+
+
+    /**
+     * Start of remaining bytes of each key in {@link #_keyBytes}. Key at index <code>i</code>
+     * ends where key <code>i+1</code> starts, last item is end of all keys.
+     * Unused positions are -1, as {@link #_first} may change before keys are modified.
+     */
+    protected int[] _keyOffsets;
+
+
+    /**
+     * Length of common prefix at start of {@link #_keyBytes}
+     */
+    protected int _keyPrefix;
+
+
+    /**
+     * Encoded keys while node is being modified, {@link #_keyBytes} is null in that case.
+     * Keys are compacted again before node is written.
+     */
+    protected byte[][] _expandedKeys;
+
+
+    /**
+     * True if last of {@link #_longKeys} or {@link #_keyBytes} is the 'infinite' null key.
+     * Null key can only be at last position.
+     */
+    protected boolean _lastKeyNull;
+
+
     /**
      * Values associated with keys.  (Only valid if leaf node)
      */
@@ -85,7 +132,7 @@ final class BTreeNode<K, V>
     /**
      * Index of first used item at the node
      */
-    protected byte _first;
+    protected int _first;
 
 
     /**
@@ -124,15 +171,16 @@ final class BTreeNode<K, V>
 
         _isLeaf = false;
 
-        _first = BTree.DEFAULT_SIZE - 2;
+        _first = _btree.nodeSize - 2;
 
-        _keys = (K[]) new Object[BTree.DEFAULT_SIZE];
-        _keys[BTree.DEFAULT_SIZE - 2] = overflow.getLargestKey();
-        _keys[BTree.DEFAULT_SIZE - 1] = root.getLargestKey();
+        newKeys();
+        copyKeys(overflow, _btree.nodeSize - 1, this, _btree.nodeSize - 2, 1);
+        copyKeys(root, _btree.nodeSize - 1, this, _btree.nodeSize - 1, 1);
+        compactKeys();
 
-        _children = new long[BTree.DEFAULT_SIZE];
-        _children[BTree.DEFAULT_SIZE - 2] = overflow._recid;
-        _children[BTree.DEFAULT_SIZE - 1] = root._recid;
+        _children = new long[_btree.nodeSize];
+        _children[_btree.nodeSize - 2] = overflow._recid;
+        _children[_btree.nodeSize - 1] = root._recid;
 
         _recid = _btree._db.insert(this, this,false);
     }
@@ -148,15 +196,16 @@ final class BTreeNode<K, V>
 
         _isLeaf = true;
 
-        _first = BTree.DEFAULT_SIZE - 2;
+        _first = _btree.nodeSize - 2;
 
-        _keys = (K[]) new Object[BTree.DEFAULT_SIZE];
-        _keys[BTree.DEFAULT_SIZE - 2] = key;
-        _keys[BTree.DEFAULT_SIZE - 1] = null;  // I am the root BTreeNode for now
+        newKeys();
+        setKey(_btree.nodeSize - 2, key);
+        setKey(_btree.nodeSize - 1, null);  // I am the root BTreeNode for now
 
-        _values = new Object[BTree.DEFAULT_SIZE];
-        _values[BTree.DEFAULT_SIZE - 2] = value;
-        _values[BTree.DEFAULT_SIZE - 1] = null;  // I am the root BTreeNode for now
+        _values = new Object[_btree.nodeSize];
+        _values[_btree.nodeSize - 2] = value;
+        _values[_btree.nodeSize - 1] = null;  // I am the root BTreeNode for now
+        compactKeys();
 
         _recid = _btree._db.insert(this, this,false);
     }
@@ -172,17 +221,19 @@ final class BTreeNode<K, V>
         _isLeaf = isLeaf;
 
         // node will initially be half-full
-        _first = BTree.DEFAULT_SIZE / 2;
+        _first = _btree.nodeSize / 2;
 
-        _keys = (K[]) new Object[BTree.DEFAULT_SIZE];
+        newKeys();
         if (isLeaf) {
-            _values = new Object[BTree.DEFAULT_SIZE];
+            _values = new Object[_btree.nodeSize];
         } else {
-            _children = new long[BTree.DEFAULT_SIZE];
+            _children = new long[_btree.nodeSize];
         }
 
         try{
-            _recid = _btree._db.insert(this, this,false);
+            //only reserve recid, node is written by update once it is filled.
+            //Empty node can not be serialized if it has long keys
+            _recid = _btree._db.insert(DBStore.PREALOCATE_OBJ, null, true);
         }catch(IOException e ){
             throw new IOError(e);
         }
@@ -194,7 +245,209 @@ final class BTreeNode<K, V>
      * greatest possible key.
      */
     K getLargestKey() {
-        return _keys[BTree.DEFAULT_SIZE - 1];
+        return key(_btree.nodeSize - 1);
+    }
+
+
+    /**
+     * Allocates empty keys array, primitive or expanded if tree has long or compact keys
+     */
+    @SuppressWarnings("unchecked")
+    void newKeys() {
+        if (_btree.keyType == BTree.KEYS_LONG)
+            _longKeys = new long[_btree.nodeSize];
+        else if (_btree.hasCompactKeys())
+            _expandedKeys = new byte[_btree.nodeSize][];
+        else
+            _keys = (K[]) new Object[_btree.nodeSize];
+    }
+
+
+    /**
+     * Returns key at given index, long keys are boxed and compact keys decoded.
+     */
+    @SuppressWarnings("unchecked")
+    K key(int index) {
+        if (_keys != null)
+            return _keys[index];
+        if (isNullKey(index))
+            return null;
+        if (_longKeys != null)
+            return (K) Long.valueOf(_longKeys[index]);
+        return decodeKey(encodedKey(index));
+    }
+
+
+    /**
+     * Return true if key at given index is null, which is the 'infinite' key or unused position.
+     * Unused positions of long and compact keys are not tracked and are never read.
+     */
+    boolean isNullKey(int index) {
+        if (_keys != null)
+            return _keys[index] == null;
+        if (_longKeys != null)
+            return _lastKeyNull && index == _longKeys.length - 1;
+        if (_expandedKeys != null)
+            return _expandedKeys[index] == null;
+        return _lastKeyNull && index == _keyOffsets.length - 2;
+    }
+
+
+    /**
+     * Set key at given index, long key is unboxed, compact keys are expanded until node is written.
+     */
+    void setKey(int index, K key) {
+        if (_keys != null) {
+            _keys[index] = key;
+        } else if (_longKeys != null) {
+            if (index == _longKeys.length - 1)
+                _lastKeyNull = key == null;
+            _longKeys[index] = key == null ? 0L : ((Long) key).longValue();
+        } else {
+            expandKeys();
+            _expandedKeys[index] = key == null ? null : encodeKey(key);
+        }
+    }
+
+
+    /**
+     * Encodes String or byte[] key, so encoded keys can be compared as unsigned bytes in the same order as keys.
+     * Each String char is encoded as in UTF-8, surrogates are encoded separately, which preserves
+     * {@link String#compareTo(String)} order. Byte array is used as it is.
+     */
+    byte[] encodeKey(K key) {
+        if (_btree.keyType == BTree.KEYS_BYTE_ARRAY)
+            return (byte[]) key;
+        final String str = (String) key;
+        final int len = str.length();
+        int size = 0;
+        for (int i = 0; i < len; i++) {
+            final char c = str.charAt(i);
+            size += c < 0x80 ? 1 : (c < 0x800 ? 2 : 3);
+        }
+        final byte[] ret = new byte[size];
+        int pos = 0;
+        for (int i = 0; i < len; i++) {
+            final char c = str.charAt(i);
+            if (c < 0x80) {
+                ret[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                ret[pos++] = (byte) (0xC0 | c >> 6);
+                ret[pos++] = (byte) (0x80 | c & 0x3F);
+            } else {
+                ret[pos++] = (byte) (0xE0 | c >> 12);
+                ret[pos++] = (byte) (0x80 | c >> 6 & 0x3F);
+                ret[pos++] = (byte) (0x80 | c & 0x3F);
+            }
+        }
+        return ret;
+    }
+
+
+    /**
+     * Reverse of {@link #encodeKey(Object)}
+     */
+    @SuppressWarnings("unchecked")
+    private K decodeKey(byte[] b) {
+        if (_btree.keyType == BTree.KEYS_BYTE_ARRAY)
+            return (K) b;
+        final char[] chars = new char[b.length];
+        int len = 0;
+        for (int pos = 0; pos < b.length; ) {
+            final int c = b[pos++] & 0xFF;
+            if (c < 0x80) {
+                chars[len++] = (char) c;
+            } else if (c < 0xE0) {
+                chars[len++] = (char) ((c & 0x1F) << 6 | b[pos++] & 0x3F);
+            } else {
+                chars[len++] = (char) ((c & 0x0F) << 12 | (b[pos++] & 0x3F) << 6 | b[pos++] & 0x3F);
+            }
+        }
+        return (K) new String(chars, 0, len);
+    }
+
+
+    /**
+     * Returns encoded compact key at given index, null for null key
+     */
+    private byte[] encodedKey(int index) {
+        if (_expandedKeys != null)
+            return _expandedKeys[index];
+        if (isNullKey(index))
+            return null;
+        final int start = _keyOffsets[index];
+        final byte[] ret = new byte[_keyPrefix + _keyOffsets[index + 1] - start];
+        System.arraycopy(_keyBytes, 0, ret, 0, _keyPrefix);
+        System.arraycopy(_keyBytes, start, ret, _keyPrefix, ret.length - _keyPrefix);
+        return ret;
+    }
+
+
+    /**
+     * Converts compact keys into array of encoded keys, so they can be modified.
+     */
+    private void expandKeys() {
+        if (_expandedKeys != null)
+            return;
+        final byte[][] keys = new byte[_keyOffsets.length - 1][];
+        for (int i = 0; i < keys.length; i++) {
+            if (_keyOffsets[i] != -1)
+                keys[i] = encodedKey(i);
+        }
+        _expandedKeys = keys;
+        _keyBytes = null;
+        _keyOffsets = null;
+    }
+
+
+    /**
+     * Converts keys expanded by modification back into compact form. Does nothing if keys are not expanded.
+     */
+    void compactKeys() {
+        final byte[][] keys = _expandedKeys;
+        if (keys == null)
+            return;
+        final int last = keys.length - 1;
+        final boolean lastNull = keys[last] == null;
+        final int end = lastNull ? last : last + 1;
+        for (int i = _first; i < end; i++) {
+            if (keys[i] == null)
+                throw new InternalError("null key can only be at last position");
+        }
+
+        // keys are sorted, so prefix common to first and last key is common to all keys
+        int prefix = 0;
+        int size = 0;
+        if (end > _first) {
+            final byte[] firstKey = keys[_first];
+            final byte[] lastKey = keys[end - 1];
+            final int max = Math.min(firstKey.length, lastKey.length);
+            while (prefix < max && firstKey[prefix] == lastKey[prefix])
+                prefix++;
+            size = prefix;
+            for (int i = _first; i < end; i++)
+                size += keys[i].length - prefix;
+        }
+
+        final byte[] bytes = new byte[size];
+        final int[] offsets = new int[keys.length + 1];
+        Arrays.fill(offsets, 0, _first, -1);
+        if (end > _first)
+            System.arraycopy(keys[_first], 0, bytes, 0, prefix);
+        int pos = prefix;
+        for (int i = _first; i < end; i++) {
+            offsets[i] = pos;
+            System.arraycopy(keys[i], prefix, bytes, pos, keys[i].length - prefix);
+            pos += keys[i].length - prefix;
+        }
+        for (int i = end; i < offsets.length; i++)
+            offsets[i] = pos;
+
+        _keyBytes = bytes;
+        _keyOffsets = offsets;
+        _keyPrefix = prefix;
+        _lastKeyNull = lastNull;
+        _expandedKeys = null;
     }
 
 
@@ -228,7 +481,7 @@ final class BTreeNode<K, V>
      */
     BTree.BTreeTupleBrowser<K, V> find(int height, final K key, final boolean inclusive)
             throws IOException {
-        byte index = findChildren(key,inclusive);
+        int index = findChildren(key,inclusive);
 
         height -= 1;
 
@@ -253,16 +506,15 @@ final class BTreeNode<K, V>
      */
     V findValue(int height, K key)
             throws IOException {
-        byte index = findChildren(key,true);
+        int index = findChildren(key,true);
 
         height -= 1;
 
         if (height == 0) {
 
-            K key2 = _keys[index];
 //          // get returns the matching key or the next ordered key, so we must
 //          // check if we have an exact match
-            if (key2 == null || compare(key, key2) != 0)
+            if (compareKey(index, key) != 0)
                 return null;
 
             // leaf node
@@ -279,6 +531,64 @@ final class BTreeNode<K, V>
         }
     }
 
+    /**
+     * Find value associated with the given key, tree must have compact keys.
+     * Key is already encoded and is compared without decoding keys in nodes.
+     *
+     * @param height Height of the current BTreeNode (zero is leaf node)
+     * @param key    The key encoded by {@link #encodeKey(Object)}
+     */
+    V findValue(int height, byte[] key)
+            throws IOException {
+        int index = findChildren(key, true);
+
+        height -= 1;
+
+        if (height == 0) {
+            if (compareKey(index, key) != 0)
+                return null;
+
+            // leaf node
+            if (_values[index] instanceof BTreeLazyRecord)
+                return ((BTreeLazyRecord<V>) _values[index]).get();
+            else
+                return (V) _values[index];
+        } else {
+            // non-leaf node
+            BTreeNode<K, V> child = loadNode(_children[index]);
+            return child.findValue(height, key);
+        }
+    }
+
+    /**
+     * Find value associated with the given key, tree must have long keys.
+     * Key is not boxed and compared as primitive.
+     *
+     * @param height Height of the current BTreeNode (zero is leaf node)
+     * @param key    The key
+     */
+    V findValue(int height, long key)
+            throws IOException {
+        int index = findChildren(key, true);
+
+        height -= 1;
+
+        if (height == 0) {
+            if (compareKey(index, key) != 0)
+                return null;
+
+            // leaf node
+            if (_values[index] instanceof BTreeLazyRecord)
+                return ((BTreeLazyRecord<V>) _values[index]).get();
+            else
+                return (V) _values[index];
+        } else {
+            // non-leaf node
+            BTreeNode<K, V> child = loadNode(_children[index]);
+            return child.findValue(height, key);
+        }
+    }
+
     /**
      * Find first entry and return a browser positioned before it.
      *
@@ -304,7 +614,7 @@ final class BTreeNode<K, V>
                 BTreeNode<K, V> nextNode = loadNode(_next);
                 if (nextNode._previous == _recid) { // this consistency check can be removed in production code
                     nextNode._previous = _previous;
-                    _btree._db.update(nextNode._recid, nextNode, nextNode);
+                    update(nextNode);
                 } else {
                     throw new Error("Inconsistent data in BTree");
                 }
@@ -313,14 +623,14 @@ final class BTreeNode<K, V>
                 BTreeNode<K, V> previousNode = loadNode(_previous);
                 if (previousNode._next != _recid) { // this consistency check can be removed in production code
                     previousNode._next = _next;
-                    _btree._db.update(previousNode._recid, previousNode, previousNode);
+                    update(previousNode);
                 } else {
                     throw new Error("Inconsistent data in BTree");
                 }
             }
         } else {
             int left = _first;
-            int right = BTree.DEFAULT_SIZE - 1;
+            int right = _btree.nodeSize - 1;
 
             for (int i = left; i <= right; i++) {
                 BTreeNode<K, V> childNode = loadNode(_children[i]);
@@ -349,7 +659,7 @@ final class BTreeNode<K, V>
         InsertResult<K, V> result;
         long overflow;
 
-        final byte index = findChildren(key,true);
+        final int index = findChildren(key,true);
 
         height -= 1;
         if (height == 0) {
@@ -366,7 +676,7 @@ final class BTreeNode<K, V>
                 System.out.println("BTreeNode.insert() Insert on leaf node key=" + key
                         + " value=" + value + " index=" + index);
             }
-            if (compare(_keys[index], key) == 0) {
+            if (compareKey(index, key) == 0) {
                 // key already exists
                 if (DEBUG) {
                     System.out.println("BTreeNode.insert() Key already exists.");
@@ -381,7 +691,7 @@ final class BTreeNode<K, V>
                     if (isLazyRecord)
                         ((BTreeLazyRecord) _values[index]).delete();
                     _values[index] = value;
-                    _btree._db.update(_recid, this, this);
+                    update(this);
                 }
                 // return the existing key
                 return result;
@@ -409,7 +719,7 @@ final class BTreeNode<K, V>
             overflow = result._overflow._recid;
 
             // update child's largest key
-            _keys[index] = child.getLargestKey();
+            setLargestKey(index, child);
 
             // clean result so we can reuse it
             result._overflow = null;
@@ -422,12 +732,12 @@ final class BTreeNode<K, V>
             } else {
                 insertChild(this, index - 1, key, overflow);
             }
-            _btree._db.update(_recid, this, this);
+            update(this);
             return result;
         }
 
         // node is full, we must divide the node
-        final byte half = BTree.DEFAULT_SIZE >> 1;
+        final int half = _btree.nodeSize >> 1;
         BTreeNode<K, V> newNode = new BTreeNode<K, V>(_btree, _isLeaf);
         if (index < half) {
             // move lower-half of entries to overflow node, including new entry
@@ -477,14 +787,14 @@ final class BTreeNode<K, V>
             if (_previous != 0) {
                 BTreeNode<K, V> previous = loadNode(_previous);
                 previous._next = newNode._recid;
-                _btree._db.update(_previous, previous, this);
+                update(previous);
 
             }
             _previous = newNode._recid;
         }
 
-        _btree._db.update(_recid, this, this);
-        _btree._db.update(newNode._recid, newNode, this);
+        update(this);
+        update(newNode);
 
         result._overflow = newNode;
         return result;
@@ -502,13 +812,13 @@ final class BTreeNode<K, V>
             throws IOException {
         RemoveResult<K, V> result;
 
-        int half = BTree.DEFAULT_SIZE / 2;
-        byte index = findChildren(key,true);
+        int half = _btree.nodeSize / 2;
+        int index = findChildren(key,true);
 
         height -= 1;
         if (height == 0) {
             // remove leaf entry
-            if (compare(_keys[index], key) != 0) {
+            if (compareKey(index, key) != 0) {
                 throw new IllegalArgumentException("Key not found: " + key);
             }
             result = new RemoveResult<K, V>();
@@ -523,7 +833,7 @@ final class BTreeNode<K, V>
             removeEntry(this, index);
 
             // update this node
-            _btree._db.update(_recid, this, this);
+            update(this);
 
         } else {
             // recurse into Btree to remove entry on a children node
@@ -531,8 +841,8 @@ final class BTreeNode<K, V>
             result = child.remove(height, key);
 
             // update children
-            _keys[index] = child.getLargestKey();
-            _btree._db.update(_recid, this, this);
+            setLargestKey(index, child);
+            update(this);
 
             if (result._underflow) {
                 // underflow occured
@@ -565,14 +875,14 @@ final class BTreeNode<K, V>
                         }
 
                         // update child's largest key
-                        _keys[index] = child.getLargestKey();
+                        setLargestKey(index, child);
 
                         // no change in previous/next node
 
                         // update nodes
-                        _btree._db.update(_recid, this, this);
-                        _btree._db.update(brother._recid, brother, this);
-                        _btree._db.update(child._recid, child, this);
+                        update(this);
+                        update(brother);
+                        update(child);
 
                     } else {
                         // move all entries from node "child" to "brother"
@@ -586,7 +896,7 @@ final class BTreeNode<K, V>
                         } else {
                             copyChildren(child, half + 1, brother, 1, half - 1);
                         }
-                        _btree._db.update(brother._recid, brother, this);
+                        update(brother);
 
 
                         // remove "child" from current node
@@ -598,18 +908,18 @@ final class BTreeNode<K, V>
                             setChild(this, _first, null, -1);
                         }
                         _first += 1;
-                        _btree._db.update(_recid, this, this);
+                        update(this);
 
                         // re-link previous and next nodes
                         if (child._previous != 0) {
                             BTreeNode<K, V> prev = loadNode(child._previous);
                             prev._next = child._next;
-                            _btree._db.update(prev._recid, prev, this);
+                            update(prev);
                         }
                         if (child._next != 0) {
                             BTreeNode<K, V> next = loadNode(child._next);
                             next._previous = child._previous;
-                            _btree._db.update(next._recid, next, this);
+                            update(next);
 
                         }
 
@@ -646,14 +956,14 @@ final class BTreeNode<K, V>
                         }
 
                         // update brother's largest key
-                        _keys[index - 1] = brother.getLargestKey();
+                        setLargestKey(index - 1, brother);
 
                         // no change in previous/next node
 
                         // update nodes
-                        _btree._db.update(_recid, this, this);
-                        _btree._db.update(brother._recid, brother, this);
-                        _btree._db.update(child._recid, child, this);
+                        update(this);
+                        update(brother);
+                        update(child);
 
                     } else {
                         // move all entries from node "brother" to "child"
@@ -667,7 +977,7 @@ final class BTreeNode<K, V>
                         } else {
                             copyChildren(brother, half, child, 1, half);
                         }
-                        _btree._db.update(child._recid, child, this);
+                        update(child);
 
                         // remove "brother" from current node
                         if (_isLeaf) {
@@ -678,18 +988,18 @@ final class BTreeNode<K, V>
                             setChild(this, _first, null, -1);
                         }
                         _first += 1;
-                        _btree._db.update(_recid, this, this);
+                        update(this);
 
                         // re-link previous and next nodes
                         if (brother._previous != 0) {
                             BTreeNode<K, V> prev = loadNode(brother._previous);
                             prev._next = brother._next;
-                            _btree._db.update(prev._recid, prev, this);
+                            update(prev);
                         }
                         if (brother._next != 0) {
                             BTreeNode<K, V> next = loadNode(brother._next);
                             next._previous = brother._previous;
-                            _btree._db.update(next._recid, next, this);
+                            update(next);
                         }
 
                         // delete "brother" node
@@ -712,22 +1022,94 @@ final class BTreeNode<K, V>
      *
      * @return index of first children with equal or greater key.
      */
-    private byte findChildren(final K key, final boolean inclusive) {
+    private int findChildren(final K key, final boolean inclusive) {
+        if (_keys == null && key != null) {
+            if (_longKeys != null)
+                return findChildren(((Long) key).longValue(), inclusive);
+            return findChildren(encodeKey(key), inclusive);
+        }
+
+        int left = _first;
+        int right = _btree.nodeSize - 1;
+        int middle;
+        final int D = inclusive?0:1;
+
+        // binary search
+        while (true) {
+            middle = (left + right) / 2;
+            if (compareKey(middle, key) < D) {
+                left = middle + 1;
+            } else {
+                right = middle;
+            }
+            if (left >= right) {
+                return right;
+            }
+        }
+    }
+
+
+    /**
+     * Same as {@link #findChildren(Object, boolean)}, but does binary search on compact keys.
+     * Common prefix is compared only once, binary search then compares remaining bytes.
+     */
+    private int findChildren(final byte[] key, final boolean inclusive) {
+        int left = _first;
+        int right = _btree.nodeSize - 1;
+        int middle;
+        final int D = inclusive?0:1;
+
+        final byte[] bytes = _keyBytes;
+        final int prefix = _keyPrefix;
+        if (bytes != null) {
+            final int c = Utils.compareBytes(bytes, 0, prefix, key, 0, Math.min(prefix, key.length));
+            if (c > 0)
+                return left;  // all keys in node are greater
+            if (c < 0)
+                return right; // all keys in node are smaller
+        }
+
+        // binary search
+        while (true) {
+            middle = (left + right) / 2;
+            final int c;
+            if (bytes == null)
+                c = compareKey(middle, key);
+            else if (isNullKey(middle))
+                c = 1;
+            else
+                c = Utils.compareBytes(bytes, _keyOffsets[middle], _keyOffsets[middle + 1], key, prefix, key.length);
+            if (c < D) {
+                left = middle + 1;
+            } else {
+                right = middle;
+            }
+            if (left >= right) {
+                return right;
+            }
+        }
+    }
+
+
+    /**
+     * Same as {@link #findChildren(Object, boolean)}, but does binary search on primitive long keys.
+     */
+    private int findChildren(final long key, final boolean inclusive) {
         int left = _first;
-        int right = BTree.DEFAULT_SIZE - 1;
+        int right = _btree.nodeSize - 1;
         int middle;
         final int D = inclusive?0:1;
 
         // binary search
         while (true) {
             middle = (left + right) / 2;
-            if (compare(_keys[middle], key) < D) {
+            if (compareKey(middle, key) < D) {
                 left = middle + 1;
             } else {
                 right = middle;
             }
             if (left >= right) {
-                return (byte) right;
+                return right;
             }
         }
     }
@@ -738,16 +1120,15 @@ final class BTreeNode<K, V>
      */
     private static <K, V> void insertEntry(BTreeNode<K, V> node, int index,
                                            K key, V value) {
-        K[] keys = node._keys;
         Object[] values = node._values;
         int start = node._first;
         int count = index - node._first + 1;
 
         // shift entries to the left
-        System.arraycopy(keys, start, keys, start - 1, count);
+        copyKeys(node, start, node, start - 1, count);
         System.arraycopy(values, start, values, start - 1, count);
         node._first -= 1;
-        keys[index] = key;
+        node.setKey(index, key);
         values[index] = value;
     }
 
@@ -757,16 +1138,15 @@ final class BTreeNode<K, V>
      */
     private static <K, V> void insertChild(BTreeNode<K, V> node, int index,
                                            K key, long child) {
-        K[] keys = node._keys;
         long[] children = node._children;
         int start = node._first;
         int count = index - node._first + 1;
 
         // shift entries to the left
-        System.arraycopy(keys, start, keys, start - 1, count);
+        copyKeys(node, start, node, start - 1, count);
         System.arraycopy(children, start, children, start - 1, count);
         node._first -= 1;
-        keys[index] = key;
+        node.setKey(index, key);
         children[index] = child;
     }
 
@@ -774,13 +1154,12 @@ final class BTreeNode<K, V>
      * Remove entry at given position.
      */
     private static <K, V> void removeEntry(BTreeNode<K, V> node, int index) {
-        K[] keys = node._keys;
         Object[] values = node._values;
         int start = node._first;
         int count = index - node._first;
 
-        System.arraycopy(keys, start, keys, start + 1, count);
-        keys[start] = null;
+        copyKeys(node, start, node, start + 1, count);
+        node.setKey(start, null);
         System.arraycopy(values, start, values, start + 1, count);
         values[start] = null;
         node._first++;
@@ -791,7 +1170,7 @@ final class BTreeNode<K, V>
      * Set the entry at the given index.
      */
     private static <K, V> void setEntry(BTreeNode<K, V> node, int index, K key, V value) {
-        node._keys[index] = key;
+        node.setKey(index, key);
         node._values[index] = value;
     }
 
@@ -800,7 +1179,7 @@ final class BTreeNode<K, V>
      * Set the child BTreeNode recid at the given index.
      */
     private static <K, V> void setChild(BTreeNode<K, V> node, int index, K key, long recid) {
-        node._keys[index] = key;
+        node.setKey(index, key);
         node._children[index] = recid;
     }
 
@@ -810,7 +1189,7 @@ final class BTreeNode<K, V>
      */
     private static <K, V> void copyEntries(BTreeNode<K, V> source, int indexSource,
                                            BTreeNode<K, V> dest, int indexDest, int count) {
-        System.arraycopy(source._keys, indexSource, dest._keys, indexDest, count);
+        copyKeys(source, indexSource, dest, indexDest, count);
         System.arraycopy(source._values, indexSource, dest._values, indexDest, count);
     }
 
@@ -820,20 +1199,98 @@ final class BTreeNode<K, V>
      */
     private static <K, V> void copyChildren(BTreeNode<K, V> source, int indexSource,
                                             BTreeNode<K, V> dest, int indexDest, int count) {
-        System.arraycopy(source._keys, indexSource, dest._keys, indexDest, count);
+        copyKeys(source, indexSource, dest, indexDest, count);
         System.arraycopy(source._children, indexSource, dest._children, indexDest, count);
     }
 
 
+    /**
+     * Copy keys between two nodes of the same tree, long keys are not boxed.
+     */
+    static <K, V> void copyKeys(BTreeNode<K, V> source, int indexSource,
+                                BTreeNode<K, V> dest, int indexDest, int count) {
+        if (source._keys != null) {
+            System.arraycopy(source._keys, indexSource, dest._keys, indexDest, count);
+            return;
+        }
+        if (source._longKeys == null) {
+            //compact keys, source is not expanded if it is not modified
+            dest.expandKeys();
+            if (source._expandedKeys != null) {
+                System.arraycopy(source._expandedKeys, indexSource, dest._expandedKeys, indexDest, count);
+            } else {
+                for (int i = 0; i < count; i++)
+                    dest._expandedKeys[indexDest + i] = source.encodedKey(indexSource + i);
+            }
+            return;
+        }
+        final int last = source._longKeys.length - 1;
+        final boolean copyNull = source._lastKeyNull && indexSource + count - 1 == last;
+        System.arraycopy(source._longKeys, indexSource, dest._longKeys, indexDest, count);
+        if (indexDest + count - 1 == last)
+            dest._lastKeyNull = copyNull;
+        else if (copyNull)
+            throw new InternalError("null key can only be at last position");
+    }
+
+
+    /**
+     * Set key at given index to largest key of given child node
+     */
+    private void setLargestKey(int index, BTreeNode<K, V> child) {
+        copyKeys(child, _btree.nodeSize - 1, this, index, 1);
+    }
+
+
+    /**
+     * Writes modified node, compact keys are compacted first
+     */
+    private void update(BTreeNode<K, V> node) throws IOException {
+        node.compactKeys();
+        _btree._db.update(node._recid, node, this);
+    }
+
+
     /**
      * Load the node at the given recid.
      */
     private BTreeNode<K, V> loadNode(long recid)
             throws IOException {
-        BTreeNode<K, V> child = _btree._db.fetch(recid, this);
-        child._recid = recid;
-        child._btree = _btree;
-        return child;
+        return _btree.fetchNode(recid);
+    }
+
+
+    /**
+     * Compares key at given index with given key, same as <code>compare(key(index), key)</code>
+     */
+    private int compareKey(final int index, final K key) {
+        if (_keys != null)
+            return compare(_keys[index], key);
+        if (key == null)
+            return isNullKey(index) ? 1 : -1;
+        if (_longKeys != null)
+            return compareKey(index, ((Long) key).longValue());
+        return compareKey(index, encodeKey(key));
+    }
+
+
+    private int compareKey(final int index, final byte[] key) {
+        if (isNullKey(index))
+            return 1;
+        if (_expandedKeys != null)
+            return Utils.compareBytes(_expandedKeys[index], 0, _expandedKeys[index].length, key, 0, key.length);
+        final int c = Utils.compareBytes(_keyBytes, 0, _keyPrefix, key, 0, Math.min(_keyPrefix, key.length));
+        if (c != 0)
+            return c;
+        return Utils.compareBytes(_keyBytes, _keyOffsets[index], _keyOffsets[index + 1], key, _keyPrefix, key.length);
+    }
+
+
+    private int compareKey(final int index, final long key) {
+        if (isNullKey(index))
+            return 1;
+        final long key2 = _longKeys[index];
+        return key2 < key ? -1 : (key2 == key ? 0 : 1);
     }
 
 
@@ -864,11 +1321,11 @@ final class BTreeNode<K, V>
         }
         System.out.println(prefix + "-------------------------------------- BTreeNode recid=" + _recid);
         System.out.println(prefix + "first=" + _first);
-        for (int i = 0; i < BTree.DEFAULT_SIZE; i++) {
+        for (int i = 0; i < _btree.nodeSize; i++) {
             if (_isLeaf) {
-                System.out.println(prefix + "BTreeNode [" + i + "] " + _keys[i] + " " + _values[i]);
+                System.out.println(prefix + "BTreeNode [" + i + "] " + key(i) + " " + _values[i]);
             } else {
-                System.out.println(prefix + "BTreeNode [" + i + "] " + _keys[i] + " " + _children[i]);
+                System.out.println(prefix + "BTreeNode [" + i + "] " + key(i) + " " + _children[i]);
             }
         }
         System.out.println(prefix + "--------------------------------------");
@@ -884,8 +1341,8 @@ final class BTreeNode<K, V>
         height -= 1;
         level += 1;
         if (height > 0) {
-            for (byte i = _first; i < BTree.DEFAULT_SIZE; i++) {
-                if (_keys[i] == null) break;
+            for (int i = _first; i < _btree.nodeSize; i++) {
+                if (isNullKey(i)) break;
                 BTreeNode<K, V> child = loadNode(_children[i]);
                 child.dump(level);
                 child.dumpRecursive(height, level);
@@ -921,11 +1378,11 @@ final class BTreeNode<K, V>
         }
 
 
-        node._first = ois.readByte();
+        node._first = LongPacker.unpackInt(ois);
 
         if (!node._isLeaf) {
-            node._children = new long[BTree.DEFAULT_SIZE];
-            for (int i = node._first; i < BTree.DEFAULT_SIZE; i++) {
+            node._children = new long[_btree.nodeSize];
+            for (int i = node._first; i < _btree.nodeSize; i++) {
                 node._children[i] = LongPacker.unpackLong(ois);
             }
         }
@@ -935,7 +1392,12 @@ final class BTreeNode<K, V>
 
         try {
 
-            node._keys = readKeys(ois, node._first);
+            if (_btree.keyType == BTree.KEYS_LONG)
+                readLongKeys(ois, node);
+            else if (_btree.hasCompactKeys())
+                readCompactKeys(ois, node);
+            else
+                node._keys = readKeys(ois, node._first);
 
         } catch (ClassNotFoundException except) {
             throw new IOException(except.getMessage());
@@ -976,15 +1438,20 @@ final class BTreeNode<K, V>
             LongPacker.packLong(oos, node._next);
         }
 
-        oos.write(node._first);
+        LongPacker.packInt(oos, node._first);
 
         if (!node._isLeaf) {
-            for (int i = node._first; i < BTree.DEFAULT_SIZE; i++) {
+            for (int i = node._first; i < _btree.nodeSize; i++) {
                 LongPacker.packLong(oos, node._children[i]);
             }
         }
 
-        writeKeys(oos, node._keys, node._first);
+        if (node._keys != null)
+            writeKeys(oos, node._keys, node._first);
+        else if (node._longKeys != null)
+            writeLongKeys(oos, node);
+        else
+            writeCompactKeys(oos, node);
 
         if (node._isLeaf && _btree.hasValues()) {
             writeValues(oos, node);
@@ -993,10 +1460,10 @@ final class BTreeNode<K, V>
 
 
     private void readValues(DataInputOutput ois, BTreeNode<K, V> node) throws IOException, ClassNotFoundException {
-        node._values = new Object[BTree.DEFAULT_SIZE];
+        node._values = new Object[_btree.nodeSize];
         if(_btree.hasValues()){
             Serializer<V> serializer = _btree.valueSerializer != null ? _btree.valueSerializer : (Serializer<V>) _btree.getRecordManager().defaultSerializer();
-            for (int i = node._first; i < BTree.DEFAULT_SIZE; i++) {
+            for (int i = node._first; i < _btree.nodeSize; i++) {
                 int header = ois.readUnsignedByte();
                 if (header == BTreeLazyRecord.NULL) {
                     node._values[i] = null;
@@ -1009,8 +1476,8 @@ final class BTreeNode<K, V>
             }
         }else{
             //create fake values
-            for (int i = node._first; i < BTree.DEFAULT_SIZE; i++) {
-                if(node._keys[i]!=null)
+            for (int i = node._first; i < _btree.nodeSize; i++) {
+                if(!node.isNullKey(i))
                     node._values[i] = Utils.EMPTY_STRING;
             }
         }
@@ -1022,7 +1489,7 @@ final class BTreeNode<K, V>
 
         DataInputOutput output = null;
         Serializer serializer = _btree.valueSerializer != null ? _btree.valueSerializer : _btree.getRecordManager().defaultSerializer();
-        for (int i = node._first; i < BTree.DEFAULT_SIZE; i++) {
+        for (int i = node._first; i < _btree.nodeSize; i++) {
             if (node._values[i] instanceof BTreeLazyRecord) {
                 oos.write(BTreeLazyRecord.LAZY_RECORD);
                 LongPacker.packLong(oos, ((BTreeLazyRecord) node._values[i]).recid);
@@ -1059,11 +1526,16 @@ final class BTreeNode<K, V>
     private static final int ALL_LONGS_NEGATIVE = 4 << 5;
     private static final int ALL_STRINGS = 5 << 5;
     private static final int ALL_OTHER = 6 << 5;
+    private static final int ALL_ENCODED = 7 << 5;
 
 
     private K[] readKeys(DataInput ois, final int firstUse) throws IOException, ClassNotFoundException {
-        Object[] ret = new Object[BTree.DEFAULT_SIZE];
-        final int type = ois.readUnsignedByte();
+        return readKeys(ois, firstUse, ois.readUnsignedByte());
+    }
+
+
+    private K[] readKeys(DataInput ois, final int firstUse, final int type) throws IOException, ClassNotFoundException {
+        Object[] ret = new Object[_btree.nodeSize];
         if (type == ALL_NULL) {
             return (K[]) ret;
         } else if (type == ALL_INTEGERS || type == ALL_INTEGERS_NEGATIVE) {
@@ -1071,7 +1543,7 @@ final class BTreeNode<K, V>
             if (type == ALL_INTEGERS_NEGATIVE)
                 first = -first;
             ret[firstUse] = Integer.valueOf((int) first);
-            for (int i = firstUse + 1; i < BTree.DEFAULT_SIZE; i++) {
+            for (int i = firstUse + 1; i < _btree.nodeSize; i++) {
 //				ret[i] = Serialization.readObject(ois);
                 long v = LongPacker.unpackLong(ois);
                 if (v == 0) continue; //null
@@ -1086,7 +1558,7 @@ final class BTreeNode<K, V>
                 first = -first;
 
             ret[firstUse] = Long.valueOf(first);
-            for (int i = firstUse + 1; i < BTree.DEFAULT_SIZE; i++) {
+            for (int i = firstUse + 1; i < _btree.nodeSize; i++) {
                 //ret[i] = Serialization.readObject(ois);
                 long v = LongPacker.unpackLong(ois);
                 if (v == 0) continue; //null
@@ -1097,7 +1569,7 @@ final class BTreeNode<K, V>
             return (K[]) ret;
         } else if (type == ALL_STRINGS) {
             byte[] previous = null;
-            for (int i = firstUse; i < BTree.DEFAULT_SIZE; i++) {
+            for (int i = firstUse; i < _btree.nodeSize; i++) {
                 byte[] b = leadingValuePackRead(ois, previous, 0);
                 if (b == null) continue;
                 ret[i] = new String(b,Serialization.UTF8);
@@ -1109,7 +1581,7 @@ final class BTreeNode<K, V>
 
             //TODO why this block is here?
             if (_btree.keySerializer == null || _btree.keySerializer == _btree.getRecordManager().defaultSerializer()) {
-                for (int i = firstUse; i < BTree.DEFAULT_SIZE; i++) {
+                for (int i = firstUse; i < _btree.nodeSize; i++) {
                     ret[i] = _btree.getRecordManager().defaultSerializer().deserialize(ois);
                 }
                 return (K[]) ret;
@@ -1119,7 +1591,7 @@ final class BTreeNode<K, V>
             Serializer ser = _btree.keySerializer != null ? _btree.keySerializer : _btree.getRecordManager().defaultSerializer();
             DataInputOutput in2 = null;
             byte[] previous = null;
-            for (int i = firstUse; i < BTree.DEFAULT_SIZE; i++) {
+            for (int i = firstUse; i < _btree.nodeSize; i++) {
                 byte[] b = leadingValuePackRead(ois, previous, 0);
                 if (b == null) continue;
                 if (in2 == null) {
@@ -1140,12 +1612,12 @@ final class BTreeNode<K, V>
 
     @SuppressWarnings("unchecked")
     private void writeKeys(DataOutput oos, K[] keys, final int firstUse) throws IOException {
-        if (keys.length != BTree.DEFAULT_SIZE)
+        if (keys.length != _btree.nodeSize)
             throw new IllegalArgumentException("wrong keys size");
 
         //check if all items on key are null
         boolean allNull = true;
-        for (int i = firstUse; i < BTree.DEFAULT_SIZE; i++) {
+        for (int i = firstUse; i < _btree.nodeSize; i++) {
             if (keys[i] != null) {
                 allNull = false;
                 break;
@@ -1162,14 +1634,14 @@ final class BTreeNode<K, V>
         if ((_btree._comparator == Utils.COMPARABLE_COMPARATOR || _btree._comparator == null) &&
                 (_btree.keySerializer == null || _btree.keySerializer == _btree.getRecordManager().defaultSerializer())) {
             boolean allInteger = true;
-            for (int i = firstUse; i < BTree.DEFAULT_SIZE; i++) {
+            for (int i = firstUse; i < _btree.nodeSize; i++) {
                 if (keys[i] != null && keys[i].getClass() != Integer.class) {
                     allInteger = false;
                     break;
                 }
             }
             boolean allLong = true;
-            for (int i = firstUse; i < BTree.DEFAULT_SIZE; i++) {
+            for (int i = firstUse; i < _btree.nodeSize; i++) {
                 if (keys[i] != null && (keys[i].getClass() != Long.class ||
                         //special case to exclude Long.MIN_VALUE from conversion, causes problems to LongPacker
                         ((Long) keys[i]).longValue() == Long.MIN_VALUE)
@@ -1183,7 +1655,7 @@ final class BTreeNode<K, V>
                 //check that diff between MIN and MAX fits into PACKED_LONG
                 long max = Long.MIN_VALUE;
                 long min = Long.MAX_VALUE;
-                for (int i = firstUse; i < BTree.DEFAULT_SIZE; i++) {
+                for (int i = firstUse; i < _btree.nodeSize; i++) {
                     if (keys[i] == null) continue;
                     long v = (Long) keys[i];
                     if (v > max) max = v;
@@ -1217,7 +1689,7 @@ final class BTreeNode<K, V>
                 //write first
                 LongPacker.packLong(oos, Math.abs(first));
                 //write others
-                for (int i = firstUse + 1; i < BTree.DEFAULT_SIZE; i++) {
+                for (int i = firstUse + 1; i < _btree.nodeSize; i++) {
 //					Serialization.writeObject(oos, keys[i]);
                     if (keys[i] == null)
                         LongPacker.packLong(oos, 0);
@@ -1232,7 +1704,7 @@ final class BTreeNode<K, V>
             } else {
                 //another special case for Strings
                 boolean allString = true;
-                for (int i = firstUse; i < BTree.DEFAULT_SIZE; i++) {
+                for (int i = firstUse; i < _btree.nodeSize; i++) {
                     if (keys[i] != null && (keys[i].getClass() != String.class)
                             ) {
                         allString = false;
@@ -1242,7 +1714,7 @@ final class BTreeNode<K, V>
                 if (allString) {
                     oos.write(ALL_STRINGS);
                     byte[] previous = null;
-                    for (int i = firstUse; i < BTree.DEFAULT_SIZE; i++) {
+                    for (int i = firstUse; i < _btree.nodeSize; i++) {
                         if (keys[i] == null) {
                             leadingValuePackWrite(oos, null, previous, 0);
                         } else {
@@ -1261,7 +1733,7 @@ final class BTreeNode<K, V>
          */
         oos.write(ALL_OTHER);
         if (_btree.keySerializer == null || _btree.keySerializer == _btree.getRecordManager().defaultSerializer()) {
-            for (int i = firstUse; i < BTree.DEFAULT_SIZE; i++) {
+            for (int i = firstUse; i < _btree.nodeSize; i++) {
                 _btree.getRecordManager().defaultSerializer().serialize(oos, keys[i]);
             }
             return;
@@ -1274,7 +1746,7 @@ final class BTreeNode<K, V>
 
 
         DataInputOutput out3 = new DataInputOutput();
-        for (int i = firstUse; i < BTree.DEFAULT_SIZE; i++) {
+        for (int i = firstUse; i < _btree.nodeSize; i++) {
             if (keys[i] == null) {
                 leadingValuePackWrite(oos, null, previous, 0);
             } else {
@@ -1289,6 +1761,164 @@ final class BTreeNode<K, V>
 
     }
 
+    /**
+     * Reads keys of tree with long keys directly into primitive array.
+     * Format is the same as for boxed Long keys.
+     */
+    private void readLongKeys(DataInput ois, BTreeNode<K, V> node) throws IOException, ClassNotFoundException {
+        final int last = _btree.nodeSize - 1;
+        final long[] keys = new long[_btree.nodeSize];
+        node._longKeys = keys;
+        final int type = ois.readUnsignedByte();
+        if (type == ALL_NULL) {
+            node._lastKeyNull = true;
+        } else if (type == ALL_LONGS || type == ALL_LONGS_NEGATIVE) {
+            long first = LongPacker.unpackLong(ois);
+            if (type == ALL_LONGS_NEGATIVE)
+                first = -first;
+            keys[node._first] = first;
+            for (int i = node._first + 1; i <= last; i++) {
+                long v = LongPacker.unpackLong(ois);
+                if (v == 0) { //null
+                    if (i != last)
+                        throw new InternalError("null key can only be at last position");
+                    node._lastKeyNull = true;
+                    continue;
+                }
+                v = v + first;
+                keys[i] = v;
+                first = v;
+            }
+        } else {
+            //keys which can not be packed, such as Long.MIN_VALUE
+            K[] keys2 = readKeys(ois, node._first, type);
+            for (int i = node._first; i <= last; i++)
+                node.setKey(i, keys2[i]);
+        }
+    }
+
+
+    /**
+     * Writes primitive long keys without boxing, in the same format as boxed Long keys.
+     */
+    private void writeLongKeys(DataOutput oos, BTreeNode<K, V> node) throws IOException {
+        final int firstUse = node._first;
+        final long[] keys = node._longKeys;
+        // keys are sorted, last is the 'infinite' null key
+        final int end = node._lastKeyNull ? _btree.nodeSize - 1 : _btree.nodeSize;
+        if (end == firstUse) {
+            oos.write(ALL_NULL);
+            return;
+        }
+        final long min = keys[firstUse];
+        final long max = keys[end - 1];
+        //Long.MIN_VALUE causes problems to LongPacker, also diff between MIN and MAX must fit into PACKED_LONG
+        if (min == Long.MIN_VALUE || (double) max - (double) min > ((double) Long.MAX_VALUE) / 2) {
+            Object[] keys2 = new Object[_btree.nodeSize];
+            for (int i = firstUse; i < _btree.nodeSize; i++)
+                keys2[i] = node.key(i);
+            writeKeys(oos, (K[]) keys2, firstUse);
+            return;
+        }
+
+        long first = min;
+        if (first > 0) oos.write(ALL_LONGS);
+        else oos.write(ALL_LONGS_NEGATIVE);
+        LongPacker.packLong(oos, Math.abs(first));
+        for (int i = firstUse + 1; i < end; i++) {
+            long v = keys[i];
+            if (v <= first) throw new InternalError("not ordered");
+            LongPacker.packLong(oos, v - first);
+            first = v;
+        }
+        if (end != _btree.nodeSize)
+            LongPacker.packLong(oos, 0);
+    }
+
+
+    /**
+     * Reads compact keys directly into single array, keys are not decoded.
+     * Format is common prefix followed by remaining bytes of keys, each compressed against previous one
+     * same way as {@link #leadingValuePackWrite(DataOutput, byte[], byte[], int)}.
+     */
+    private void readCompactKeys(DataInput ois, BTreeNode<K, V> node) throws IOException {
+        final int type = ois.readUnsignedByte();
+        if (type != ALL_ENCODED)
+            throw new InternalError("unknown BTreeNode header type: " + type);
+        final int last = _btree.nodeSize - 1;
+        final int prefix = LongPacker.unpackInt(ois);
+        final int[] offsets = new int[_btree.nodeSize + 1];
+        Arrays.fill(offsets, 0, node._first, -1);
+        byte[] bytes = new byte[Math.max(64, prefix * 2)];
+        ois.readFully(bytes, 0, prefix);
+        int pos = prefix;
+        int previous = -1;
+        for (int i = node._first; i <= last; i++) {
+            offsets[i] = pos;
+            final int len = LongPacker.unpackInt(ois) - 1;  // 0 indicates null
+            if (len == -1) {
+                if (i != last)
+                    throw new InternalError("null key can only be at last position");
+                node._lastKeyNull = true;
+                continue;
+            }
+            final int common = LongPacker.unpackInt(ois);
+            if (pos + len > bytes.length)
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, pos + len));
+            if (common > 0)
+                System.arraycopy(bytes, previous, bytes, pos, common);
+            ois.readFully(bytes, pos + common, len - common);
+            previous = pos;
+            pos += len;
+        }
+        offsets[last + 1] = pos;
+        node._keyBytes = bytes.length == pos ? bytes : Arrays.copyOf(bytes, pos);
+        node._keyOffsets = offsets;
+        node._keyPrefix = prefix;
+    }
+
+
+    /**
+     * Writes compact keys without decoding them
+     */
+    private void writeCompactKeys(DataOutput oos, BTreeNode<K, V> node) throws IOException {
+        oos.write(ALL_ENCODED);
+        final int last = _btree.nodeSize - 1;
+        BTreeNode<K, V> src = node;
+        if (node._keyBytes == null) {
+            // node is being modified, compact its copy
+            src = new BTreeNode<K, V>();
+            src._first = node._first;
+            src._expandedKeys = node._expandedKeys.clone();
+            src.compactKeys();
+        }
+        final byte[] bytes = src._keyBytes;
+        final int[] offsets = src._keyOffsets;
+        final int prefix = src._keyPrefix;
+        LongPacker.packInt(oos, prefix);
+        oos.write(bytes, 0, prefix);
+        int previous = -1;
+        for (int i = node._first; i <= last; i++) {
+            final int start = offsets[i];
+            final int len = offsets[i + 1] - start;
+            if (i == last && src._lastKeyNull) {
+                LongPacker.packInt(oos, 0);
+                continue;
+            }
+            int common = 0;
+            if (previous != -1) {
+                final int max = Math.min(len, offsets[previous + 1] - offsets[previous]);
+                while (common < max && bytes[offsets[previous] + common] == bytes[start + common])
+                    common++;
+            }
+            LongPacker.packInt(oos, len + 1);
+            LongPacker.packInt(oos, common);
+            oos.write(bytes, start + common, len - common);
+            previous = i;
+        }
+    }
+
+
     public void defrag(DBStore r1, DBStore r2) throws IOException {
         if (_children != null)
             for (long child : _children) {
@@ -1354,7 +1984,7 @@ final class BTreeNode<K, V>
          * Current index in the node.  The index positionned on the next
          * tuple to return.
          */
-        private byte _index;
+        private int _index;
 
 
         private int expectedModCount;
@@ -1366,7 +1996,7 @@ final class BTreeNode<K, V>
          * @param node  Current node
          * @param index Position of the next tuple to return.
          */
-        Browser(BTreeNode<K, V> node, byte index) {
+        Browser(BTreeNode<K, V> node, int index) {
             _node = node;
             _index = index;
             expectedModCount = node._btree.modCount;
@@ -1381,8 +2011,8 @@ final class BTreeNode<K, V>
                 return false;
             }
 
-            if (_index < BTree.DEFAULT_SIZE) {
-                if (_node._keys[_index] == null) {
+            if (_index < _node._btree.nodeSize) {
+                if (_node.isNullKey(_index)) {
                     // reached end of the tree.
                     return false;
                 }
@@ -1391,7 +2021,7 @@ final class BTreeNode<K, V>
                 _node = _node.loadNode(_node._next);
                 _index = _node._first;
             }
-            tuple.key = _node._keys[_index];
+            tuple.key = _node.key(_index);
             if (_node._values[_index] instanceof BTreeLazyRecord)
                 tuple.value = ((BTreeLazyRecord<V>) _node._values[_index]).get();
             else
@@ -1414,14 +2044,14 @@ final class BTreeNode<K, V>
 
                 if (_node._previous != 0) {
                     _node = _node.loadNode(_node._previous);
-                    _index = BTree.DEFAULT_SIZE;
+                    _index = _node._btree.nodeSize;
                 } else {
                     // reached beginning of the tree
                     return false;
                 }
             }
             _index--;
-            tuple.key = _node._keys[_index];
+            tuple.key = _node.key(_index);
             if (_node._values[_index] instanceof BTreeLazyRecord)
                 tuple.value = ((BTreeLazyRecord<V>) _node._values[_index]).get();
             else
@@ -1468,7 +2098,7 @@ final class BTreeNode<K, V>
             throws IOException {
         height -= 1;
         if (height > 0) {
-            for (byte i = _first; i < BTree.DEFAULT_SIZE; i++) {
+            for (int i = _first; i < _btree.nodeSize; i++) {
                 if (_children[i] == 0) continue;
 
                 BTreeNode child = loadNode(_children[i]);
@@ -1543,7 +2173,7 @@ final class BTreeNode<K, V>
 
 
     BTreeNode<K, V> loadLastChildNode() throws IOException {
-        return loadNode(_children[BTree.DEFAULT_SIZE - 1]);
+        return loadNode(_children[_btree.nodeSize - 1]);
     }
 
 
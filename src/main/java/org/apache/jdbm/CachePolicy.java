@@ -0,0 +1,131 @@
+/*******************************************************************************
+ * Copyright 2010 Cees De Groot, Alex Boisvert, Jan Kotek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.apache.jdbm;
+
+/**
+ * Cache policy of single named collection, see
+ * {@link TreeMapOptions#cachePolicy(CachePolicy)}
+ * and {@link DB#createHashMap(String, Serializer, Serializer, CachePolicy)}.
+ * <p/>
+ * By default all collections share instance cache configured in {@link DBMaker}.
+ * Collection with its own policy has dedicated cache region, so it does not compete with other collections.
+ * Policy is persisted in store and restored when collection is loaded again.
+ * Dedicated regions require instance cache, they are ignored if cache is disabled.
+ */
+public final class CachePolicy {
+
+    static final byte SHARED = 0;
+    static final byte NONE = 1;
+    static final byte PINNED = 2;
+    static final byte LRU = 3;
+    static final byte INNER_NODES = 4;
+
+    private static final CachePolicy SHARED_POLICY = new CachePolicy(SHARED, 0);
+    private static final CachePolicy NONE_POLICY = new CachePolicy(NONE, 0);
+    private static final CachePolicy PINNED_POLICY = new CachePolicy(PINNED, 0);
+    private static final CachePolicy INNER_NODES_POLICY = new CachePolicy(INNER_NODES, 0);
+
+    final byte type;
+    /** maximal number of records in LRU region */
+    final int maxRecords;
+
+    private CachePolicy(byte type, int maxRecords) {
+        this.type = type;
+        this.maxRecords = maxRecords;
+    }
+
+    /**
+     * Collection uses instance cache shared with other collections, this is default.
+     */
+    public static CachePolicy shared() {
+        return SHARED_POLICY;
+    }
+
+    /**
+     * Collection records are never cached, useful for large collections which are rarely read.
+     */
+    public static CachePolicy noCache() {
+        return NONE_POLICY;
+    }
+
+    /**
+     * Collection records are never evicted from cache until it is cleared or transaction is rolled back.
+     * Use only for small hot collections, whole collection may end up on heap.
+     */
+    public static CachePolicy pinned() {
+        return PINNED_POLICY;
+    }
+
+    /**
+     * Inner nodes of TreeMap are never evicted from cache, leaf nodes use shared cache.
+     * Inner nodes are small part of tree, so point lookup needs at most one read of leaf node.
+     * This policy is only supported by TreeMap.
+     */
+    public static CachePolicy pinnedInnerNodes() {
+        return INNER_NODES_POLICY;
+    }
+
+    /**
+     * Collection has dedicated cache region which keeps most recently used records.
+     *
+     * @param maxRecords maximal number of records in region
+     */
+    public static CachePolicy lru(int maxRecords) {
+        if (maxRecords <= 0)
+            throw new IllegalArgumentException("Cache size must be positive");
+        return new CachePolicy(LRU, maxRecords);
+    }
+
+    /** encodes policy into single long, so it can be stored in policy directory */
+    long encode() {
+        return ((long) maxRecords << 8) | type;
+    }
+
+    static CachePolicy decode(long value) {
+        final byte type = (byte) (value & 0xFF);
+        switch (type) {
+            case SHARED: return SHARED_POLICY;
+            case NONE: return NONE_POLICY;
+            case PINNED: return PINNED_POLICY;
+            case LRU: return new CachePolicy(LRU, (int) (value >>> 8));
+            case INNER_NODES: return INNER_NODES_POLICY;
+            default: throw new InternalError("Unknown cache policy: " + type);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof CachePolicy)) return false;
+        final CachePolicy p = (CachePolicy) o;
+        return type == p.type && maxRecords == p.maxRecords;
+    }
+
+    @Override
+    public int hashCode() {
+        return type * 31 + maxRecords;
+    }
+
+    @Override
+    public String toString() {
+        switch (type) {
+            case SHARED: return "CachePolicy.shared()";
+            case NONE: return "CachePolicy.noCache()";
+            case PINNED: return "CachePolicy.pinned()";
+            case INNER_NODES: return "CachePolicy.pinnedInnerNodes()";
+            default: return "CachePolicy.lru(" + maxRecords + ")";
+        }
+    }
+}
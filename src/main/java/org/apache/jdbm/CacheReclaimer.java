@@ -0,0 +1,212 @@
+/*******************************************************************************
+ * Copyright 2010 Cees De Groot, Alex Boisvert, Jan Kotek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package org.apache.jdbm;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Single background thread shared by all open {@link DBCacheRef} instances.
+ * <p/>
+ * It removes entries whose soft or weak references were cleared by GC,
+ * all reference caches enqueue their entries into single shared queue.
+ * <p/>
+ * It also reclaims cache entries when heap is low. Usage threshold is set on heap memory pools,
+ * JVM sends notification when pool is still above threshold after GC.
+ * Each cache then releases fraction of its entries proportional to how far usage is above threshold,
+ * so cache shrinks gradually rather than being cleared at once.
+ * If JVM does not support collection usage thresholds, heap usage is checked periodically instead.
+ *
+ * @author Jan Kotek
+ */
+final class CacheReclaimer implements Runnable {
+
+    private static final boolean debug = false;
+
+    /** heap usage (0 to 1) after GC above which caches are reclaimed */
+    static final double USAGE_THRESHOLD = 0.75;
+
+    /** minimal fraction of entries released from each cache when heap is above threshold */
+    static final double MIN_RECLAIM_FRACTION = 0.1;
+
+    /** how often thread checks for memory notification, in milliseconds */
+    static final long CHECK_INTERVAL = 1000;
+
+    /** how often heap usage is polled if thresholds are not supported */
+    static final int POLL_EVERY_CHECKS = 10;
+
+    /** queue shared by all reference caches */
+    static final ReferenceQueue<Object> QUEUE = new ReferenceQueue<Object>();
+
+    /** registered caches, weakly referenced so cache which was not closed can still be GCed */
+    private static final List<WeakReference<DBCacheRef>> caches = new ArrayList<WeakReference<DBCacheRef>>();
+
+    private static Thread thread = null;
+
+    /** true if notification was received since last check */
+    private static volatile boolean notified = false;
+
+    /** heap pools with collection usage threshold, empty if not supported */
+    private static final List<MemoryPoolMXBean> pools = new ArrayList<MemoryPoolMXBean>();
+
+    static {
+        try {
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() != MemoryType.HEAP || !pool.isCollectionUsageThresholdSupported())
+                    continue;
+                final long max = pool.getUsage().getMax();
+                if (max <= 0)
+                    continue;
+                //do not override threshold set by application
+                if (pool.getCollectionUsageThreshold() == 0)
+                    pool.setCollectionUsageThreshold((long) (max * USAGE_THRESHOLD));
+                pools.add(pool);
+            }
+            if (!pools.isEmpty()) {
+                ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).addNotificationListener(new NotificationListener() {
+                    public void handleNotification(Notification notification, Object handback) {
+                        if (MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(notification.getType()))
+                            notified = true;
+                    }
+                }, null, null);
+            }
+        } catch (Throwable e) {
+            //management is not available, fall back to polling
+            pools.clear();
+        }
+    }
+
+    static synchronized void register(DBCacheRef cache) {
+        caches.add(new WeakReference<DBCacheRef>(cache));
+        if (thread == null) {
+            thread = new Thread(new CacheReclaimer(), "JDBM Cache Reclaimer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    static synchronized void unregister(DBCacheRef cache) {
+        for (Iterator<WeakReference<DBCacheRef>> i = caches.iterator(); i.hasNext(); ) {
+            final DBCacheRef c = i.next().get();
+            if (c == null || c == cache)
+                i.remove();
+        }
+    }
+
+    /** returns live caches, removes GCed caches and stops thread if there are none */
+    private static synchronized List<DBCacheRef> liveCaches() {
+        final List<DBCacheRef> ret = new ArrayList<DBCacheRef>();
+        for (Iterator<WeakReference<DBCacheRef>> i = caches.iterator(); i.hasNext(); ) {
+            final DBCacheRef c = i.next().get();
+            if (c == null)
+                i.remove();
+            else
+                ret.add(c);
+        }
+        if (ret.isEmpty())
+            thread = null;
+        return ret;
+    }
+
+    /**
+     * Returns heap usage after last GC, value between 0 and 1.
+     * If thresholds are not supported, current usage from Runtime is returned.
+     */
+    static double heapUsage() {
+        double usage = 0;
+        if (!pools.isEmpty()) {
+            for (MemoryPoolMXBean pool : pools) {
+                final MemoryUsage u = pool.getCollectionUsage();
+                if (u != null && u.getMax() > 0)
+                    usage = Math.max(usage, 1D * u.getUsed() / u.getMax());
+            }
+            return usage;
+        }
+        final Runtime r = Runtime.getRuntime();
+        final long max = r.maxMemory();
+        if (max == Long.MAX_VALUE)
+            return 0;
+        //free refers to total not max, heap may still grow to max
+        final double free = r.freeMemory() + (max - r.totalMemory());
+        return 1 - free / max;
+    }
+
+    /**
+     * Returns fraction of cache entries which should be released for given heap usage.
+     */
+    static double reclaimFraction(double usage) {
+        if (usage < USAGE_THRESHOLD)
+            return 0;
+        final double fraction = (usage - USAGE_THRESHOLD) / (1 - USAGE_THRESHOLD);
+        return Math.min(1, Math.max(MIN_RECLAIM_FRACTION, fraction));
+    }
+
+    public void run() {
+        int checks = 0;
+        while (true) try {
+            //collect cleared references, timeout is used to periodically check memory
+            DBCacheRef.ReferenceCacheEntry e = (DBCacheRef.ReferenceCacheEntry) QUEUE.remove(CHECK_INTERVAL);
+            int counter = 0;
+            while (e != null) {
+                e.removeFromCache();
+                e = (DBCacheRef.ReferenceCacheEntry) QUEUE.poll();
+                counter++;
+            }
+            if (debug && counter > 0)
+                System.err.println("DBCache: " + counter + " objects released from ref cache.");
+
+            final List<DBCacheRef> live = liveCaches();
+            if (live.isEmpty())
+                return;
+
+            checks++;
+            final boolean poll = pools.isEmpty() && checks % POLL_EVERY_CHECKS == 0;
+            if (!notified && !poll)
+                continue;
+            notified = false;
+
+            final double fraction = reclaimFraction(heapUsage());
+            if (debug)
+                System.err.println("DBCache: heap usage " + heapUsage() + ", reclaiming " + fraction);
+            if (fraction > 0) {
+                for (DBCacheRef c : live)
+                    c.reclaim(fraction);
+            }
+        } catch (InterruptedException e) {
+            synchronized (CacheReclaimer.class) {
+                thread = null;
+            }
+            return;
+        } catch (Throwable e) {
+            //this thread must keep spinning,
+            //otherwise cleared references would not be removed
+            e.printStackTrace();
+        }
+    }
+
+}
@@ -0,0 +1,88 @@
+/*******************************************************************************
+ * Copyright 2010 Cees De Groot, Alex Boisvert, Jan Kotek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.apache.jdbm;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Dedicated instance cache of single collection, created according to its {@link CachePolicy}.
+ * Records are routed into region by serializer, which implements {@link Owner}.
+ * Region only holds clean records, dirty records stay in cache dirties until commit.
+ */
+final class CacheRegion {
+
+    /**
+     * Serializer of collection records, which knows cache region of its collection.
+     */
+    interface Owner {
+        /** returns cache region or null if records use shared cache */
+        CacheRegion getCacheRegion();
+    }
+
+    final CachePolicy policy;
+
+    private final Map<Long, Object> records;
+
+    CacheRegion(final CachePolicy policy) {
+        this.policy = policy;
+        if (policy.type == CachePolicy.LRU) {
+            //access ordered map, so least recently used record is evicted first
+            records = new LinkedHashMap<Long, Object>(16, 0.75f, true) {
+                protected boolean removeEldestEntry(Map.Entry<Long, Object> eldest) {
+                    return size() > policy.maxRecords;
+                }
+            };
+        } else if (policy.type == CachePolicy.PINNED || policy.type == CachePolicy.INNER_NODES) {
+            //pinned region never evicts
+            records = new HashMap<Long, Object>();
+        } else {
+            records = null;
+        }
+    }
+
+    /**
+     * Returns false if region holds only part of collection records (inner nodes),
+     * other records are fetched through shared cache and collection puts records into region itself.
+     */
+    boolean holdsAllRecords() {
+        return policy.type != CachePolicy.INNER_NODES;
+    }
+
+    synchronized Object get(long recid) {
+        return records == null ? null : records.get(recid);
+    }
+
+    synchronized void put(long recid, Object obj) {
+        if (records != null && obj != null)
+            records.put(recid, obj);
+    }
+
+    synchronized void remove(long recid) {
+        if (records != null)
+            records.remove(recid);
+    }
+
+    synchronized void clear() {
+        if (records != null)
+            records.clear();
+    }
+
+    synchronized int size() {
+        return records == null ? 0 : records.size();
+    }
+}
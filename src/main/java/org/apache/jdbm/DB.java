@@ -69,6 +69,31 @@ public interface DB {
      */
     String calculateStatistics();
 
+    /**
+     * Returns snapshot of runtime metrics, such as cache hits, page reads and writes or commit latency.
+     * Unlike {@link #calculateStatistics()} this method is cheap and can be called frequently.
+     * Counters are cumulative since DB was opened.
+     * <p/>
+     * Metric names are:
+     * <ul>
+     *   <li>{@code store.fetches, store.inserts, store.updates, store.deletes} operations which reached store (cache misses)</li>
+     *   <li>{@code commit.count, commit.totalMicros} number of commits and their total duration</li>
+     *   <li>{@code commit.le.<N>us} number of commits which took at most N microseconds</li>
+     *   <li>{@code page.reads, page.writes} pages read from and written into storage</li>
+     *   <li>{@code page.dirty} pages modified in current transaction</li>
+     *   <li>{@code log.bytesWritten} bytes written into transaction log</li>
+     *   <li>{@code freelist.physical.inTransaction, freelist.logical.inTransaction} free slots
+     *       released in current transaction, which are not in free lists yet</li>
+     *   <li>{@code cache.hits, cache.misses, cache.evictions, cache.size, cache.dirty} instance cache, if enabled</li>
+     *   <li>{@code pageCache.hits, pageCache.misses, pageCache.evictions, pageCache.pages} page cache, if enabled</li>
+     *   <li>{@code recordCache.hits, recordCache.misses, recordCache.evictions, recordCache.records, recordCache.bytes}
+     *       record cache, if enabled</li>
+     * </ul>
+     *
+     * @return unmodifiable map of metric names and values
+     */
+    Map<String,Long> getMetrics();
+
 
     /**
      * Copy database content into ZIP file
@@ -112,6 +137,21 @@ public interface DB {
      */
     <K, V> ConcurrentMap<K, V> createHashMap(String name, Serializer<K> keySerializer, Serializer<V> valueSerializer);
 
+    /**
+     * Creates Hash Map which persists data into DB and uses given cache policy.
+     * Policy is stored in DB and used again when map is loaded by {@link #getHashMap(String)}.
+     *
+     * @param <K>             Key type
+     * @param <V>             Value type
+     * @param name            record name
+     * @param keySerializer   serializer to be used for Keys, leave null to use default serializer
+     * @param valueSerializer serializer to be used for Values
+     * @param cachePolicy     cache policy for records of this map
+     * @return
+     */
+    <K, V> ConcurrentMap<K, V> createHashMap(String name, Serializer<K> keySerializer, Serializer<V> valueSerializer,
+                                             CachePolicy cachePolicy);
+
     <K> Set<K> createHashSet(String name);
 
     <K> Set<K> getHashSet(String name);
@@ -144,18 +184,151 @@ public interface DB {
     <K, V> ConcurrentNavigableMap<K, V> createTreeMap(String name,
                                          Comparator<K> keyComparator, Serializer<K> keySerializer, Serializer<V> valueSerializer);
 
+    /**
+     * Creates TreeMap which persists data into DB with given options,
+     * such as serializers, cache policy, node size or optimistic reads.
+     *
+     * @param <K>     Key type
+     * @param <V>     Value type
+     * @param name    record name
+     * @param options options of new map
+     * @return
+     */
+    <K, V> ConcurrentNavigableMap<K, V> createTreeMap(String name, TreeMapOptions<K, V> options);
+
+    /**
+     * Creates TreeMap with <code>Long</code> keys. Tree nodes keep keys in primitive arrays,
+     * so keys are not boxed in memory and are compared without comparator.
+     * Returned map has methods with primitive key, lookups with primitive key do not allocate.
+     *
+     * @param <V>  Value type
+     * @param name record name
+     * @return
+     */
+    <V> LongNavigableMap<V> createTreeMapLong(String name);
+
+    /**
+     * Creates TreeMap with <code>Long</code> keys and given options, see {@link #createTreeMapLong(String)}.
+     * Options can not have key comparator or key serializer.
+     *
+     * @param <V>     Value type
+     * @param name    record name
+     * @param options options of new map
+     * @return
+     */
+    <V> LongNavigableMap<V> createTreeMapLong(String name, TreeMapOptions<Long, V> options);
+
+    /**
+     * Returns TreeMap created by {@link #createTreeMapLong(String)}
+     *
+     * @throws ClassCastException if TreeMap does not have long keys
+     */
+    <V> LongNavigableMap<V> getTreeMapLong(String name);
+
+    /**
+     * Creates TreeMap with <code>String</code> keys. Tree nodes keep keys in compact form:
+     * single byte array with common prefix of keys in node stored only once.
+     * Keys are encoded so they can be compared as bytes, lookups do not create String instances.
+     * This uses less memory for cached nodes and speeds up lookups on long keys with common prefixes.
+     *
+     * @param <V>  Value type
+     * @param name record name
+     * @return
+     */
+    <V> ConcurrentNavigableMap<String, V> createTreeMapString(String name);
+
+    /**
+     * Creates TreeMap with <code>String</code> keys and given options, see {@link #createTreeMapString(String)}.
+     * Options can not have key comparator or key serializer.
+     *
+     * @param <V>     Value type
+     * @param name    record name
+     * @param options options of new map
+     * @return
+     */
+    <V> ConcurrentNavigableMap<String, V> createTreeMapString(String name, TreeMapOptions<String, V> options);
+
+    /**
+     * Creates TreeMap with <code>byte[]</code> keys ordered as unsigned bytes. Tree nodes keep keys
+     * in compact form, see {@link #createTreeMapString(String)}.
+     *
+     * @param <V>  Value type
+     * @param name record name
+     * @return
+     */
+    <V> ConcurrentNavigableMap<byte[], V> createTreeMapByteArray(String name);
+
+    /**
+     * Creates TreeMap with <code>byte[]</code> keys and given options, see {@link #createTreeMapByteArray(String)}.
+     * Options can not have key comparator or key serializer.
+     *
+     * @param <V>     Value type
+     * @param name    record name
+     * @param options options of new map
+     * @return
+     */
+    <V> ConcurrentNavigableMap<byte[], V> createTreeMapByteArray(String name, TreeMapOptions<byte[], V> options);
+
+    /**
+     * Creates TreeMap and fills it with given entries. Tree is built bottom-up from full nodes and each node
+     * is written only once, which is much faster than inserting entries one by one.
+     * <p/>
+     * Entries which are not presorted are sorted first. Entries which do not fit into memory are sorted
+     * in chunks stored in temporary files. Last value is used if key occurs multiple times.
+     *
+     * @param <K>       Key type
+     * @param <V>       Value type
+     * @param name      record name
+     * @param entries   entries to fill map with
+     * @param presorted true if entries are in ascending key order without duplicate keys
+     * @return
+     */
+    <K extends Comparable, V> ConcurrentNavigableMap<K, V> bulkLoadTreeMap(String name,
+                                         Iterator<? extends Map.Entry<K, V>> entries, boolean presorted);
+
+    /**
+     * Creates TreeMap with given options and fills it with given entries,
+     * see {@link #bulkLoadTreeMap(String, Iterator, boolean)}.
+     *
+     * @param <K>       Key type
+     * @param <V>       Value type
+     * @param name      record name
+     * @param entries   entries to fill map with
+     * @param presorted true if entries are in ascending key order without duplicate keys
+     * @param options   options of new map
+     * @return
+     */
+    <K, V> ConcurrentNavigableMap<K, V> bulkLoadTreeMap(String name,
+                                         Iterator<? extends Map.Entry<K, V>> entries, boolean presorted,
+                                         TreeMapOptions<K, V> options);
+
     <K> NavigableSet<K> getTreeSet(String name);
 
     <K> NavigableSet<K> createTreeSet(String name);
 
     <K> NavigableSet<K> createTreeSet(String name, Comparator<K> keyComparator, Serializer<K> keySerializer);
 
+    /**
+     * Creates TreeSet which persists data into DB, with given number of entries per tree node.
+     *
+     * @param nodeSize number of entries per node, even number between 4 and 1024, default is 32
+     */
+    <K> NavigableSet<K> createTreeSet(String name, Comparator<K> keyComparator, Serializer<K> keySerializer, int nodeSize);
+
     <K> List<K> createLinkedList(String name);
 
     <K> List<K> createLinkedList(String name, Serializer<K> serializer);
 
     <K> List<K> getLinkedList(String name);
 
+    /**
+     * Returns cache policy of named collection
+     *
+     * @param name of collection
+     * @return cache policy, {@link CachePolicy#shared()} if collection has no policy or does not exist
+     */
+    CachePolicy getCachePolicy(String name);
+
     /** returns unmodifiable map which contains all collection names and collections thenselfs*/
     Map<String,Object> getCollections();
 
@@ -23,6 +23,7 @@ import java.lang.ref.WeakReference;
 import java.util.*;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * An abstract class implementing most of DB.
@@ -49,6 +50,12 @@ abstract class DBAbstract implements DB {
      */
     static final byte SERIAL_CLASS_INFO_RECID_ROOT = 2;
 
+    /**
+     * Reserved slot for directory of collection cache policies, it maps collection name to encoded {@link CachePolicy}.
+     * Only collections with policy other than shared have entry.
+     */
+    static final byte CACHE_POLICY_DIRECTORY_ROOT = 3;
+
     /** to prevent double instances of the same collection, we use weak value map
      *
      * //TODO what to do when there is rollback?
@@ -56,6 +63,13 @@ abstract class DBAbstract implements DB {
      */
     final private Map<String,WeakReference<Object>> collections = new HashMap<String,WeakReference<Object>>();
 
+    /**
+     * Guards store and cache state. Fetches take read lock and may run in parallel,
+     * any modification (insert, update, delete, commit, collection management) takes write lock.
+     * Read lock can not be upgraded, so code running under read lock must never modify store.
+     */
+    final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
 
 
     /**
@@ -124,77 +138,101 @@ abstract class DBAbstract implements DB {
     }
 
 
-    synchronized public <A> A fetch(long recid) throws IOException {
+    public <A> A fetch(long recid) throws IOException {
         return (A) fetch(recid, defaultSerializer());
     }
 
-    synchronized public <K, V> ConcurrentMap<K, V> getHashMap(String name) {
-        Object o = getCollectionInstance(name);
-        if(o!=null)
-            return (ConcurrentMap<K, V>) o;
-
-        try {
-            long recid = getNamedObject(name);
-            if(recid == 0) return null;
-
-            HTree tree = fetch(recid);
-            tree.setPersistenceContext(this);
-            if(!tree.hasValues()){
-                throw new ClassCastException("HashSet is not HashMap");
+    public <K, V> ConcurrentMap<K, V> getHashMap(String name) {
+        lock.writeLock().lock();
+        try{
+            Object o = getCollectionInstance(name);
+            if(o!=null)
+                return (ConcurrentMap<K, V>) o;
+
+            try {
+                long recid = getNamedObject(name);
+                if(recid == 0) return null;
+
+                HTree tree = fetch(recid);
+                tree.setPersistenceContext(this);
+                if(!tree.hasValues()){
+                    throw new ClassCastException("HashSet is not HashMap");
+                }
+                tree.cacheRegion = cacheRegion(name, getCachePolicy(name));
+                collections.put(name,new WeakReference<Object>(tree));
+                return tree;
+            } catch (IOException e) {
+                throw new IOError(e);
             }
-            collections.put(name,new WeakReference<Object>(tree));
-            return tree;
-        } catch (IOException e) {
-            throw new IOError(e);
+        }finally {
+            lock.writeLock().unlock();
         }
     }
 
-    synchronized public <K, V> ConcurrentMap<K, V> createHashMap(String name) {
+    public <K, V> ConcurrentMap<K, V> createHashMap(String name) {
         return createHashMap(name, null, null);
     }
 
 
-    public synchronized <K, V> ConcurrentMap<K, V> createHashMap(String name, Serializer<K> keySerializer, Serializer<V> valueSerializer) {
+    public <K, V> ConcurrentMap<K, V> createHashMap(String name, Serializer<K> keySerializer, Serializer<V> valueSerializer) {
+        return createHashMap(name, keySerializer, valueSerializer, CachePolicy.shared());
+    }
+
+    public <K, V> ConcurrentMap<K, V> createHashMap(String name, Serializer<K> keySerializer, Serializer<V> valueSerializer,
+                                                    CachePolicy cachePolicy) {
+        lock.writeLock().lock();
         try {
             assertNameNotExist(name);
 
+            if(cachePolicy.type == CachePolicy.INNER_NODES)
+                throw new IllegalArgumentException("HashMap does not support cache policy: "+cachePolicy);
             HTree<K, V> tree = new HTree(this, keySerializer, valueSerializer,true);
             long recid = insert(tree);
             setNamedObject(name, recid);
+            setCachePolicy(name, cachePolicy);
+            tree.cacheRegion = cacheRegion(name, cachePolicy);
             collections.put(name,new WeakReference<Object>(tree));
             return tree;
         } catch (IOException e) {
             throw new IOError(e);
+        }finally {
+            lock.writeLock().unlock();
         }
     }
 
-    public synchronized <K> Set<K> getHashSet(String name) {
-        Object o = getCollectionInstance(name);
-        if(o!=null)
-            return (Set<K>) o;
-
-        try {
-            long recid = getNamedObject(name);
-            if(recid == 0) return null;
-
-            HTree tree = fetch(recid);
-            tree.setPersistenceContext(this);
-            if(tree.hasValues()){
-                throw new ClassCastException("HashMap is not HashSet");
+    public <K> Set<K> getHashSet(String name) {
+        lock.writeLock().lock();
+        try{
+            Object o = getCollectionInstance(name);
+            if(o!=null)
+                return (Set<K>) o;
+
+            try {
+                long recid = getNamedObject(name);
+                if(recid == 0) return null;
+
+                HTree tree = fetch(recid);
+                tree.setPersistenceContext(this);
+                if(tree.hasValues()){
+                    throw new ClassCastException("HashMap is not HashSet");
+                }
+                Set<K> ret  =  new HTreeSet(tree);
+                collections.put(name,new WeakReference<Object>(ret));
+                return ret;
+            } catch (IOException e) {
+                throw new IOError(e);
             }
-            Set<K> ret  =  new HTreeSet(tree);
-            collections.put(name,new WeakReference<Object>(ret));
-            return ret;
-        } catch (IOException e) {
-            throw new IOError(e);
+        }finally {
+            lock.writeLock().unlock();
         }
     }
 
-    public synchronized <K> Set<K> createHashSet(String name) {
+    public <K> Set<K> createHashSet(String name) {
         return createHashSet(name, null);
     }
 
-    public synchronized <K> Set<K> createHashSet(String name, Serializer<K> keySerializer) {
+    public <K> Set<K> createHashSet(String name, Serializer<K> keySerializer) {
+        lock.writeLock().lock();
         try {
             assertNameNotExist(name);
 
@@ -207,81 +245,188 @@ abstract class DBAbstract implements DB {
             return ret;
         } catch (IOException e) {
             throw new IOError(e);
+        }finally {
+            lock.writeLock().unlock();
         }
     }
 
-    synchronized public <K, V> ConcurrentNavigableMap<K, V> getTreeMap(String name) {
-        Object o = getCollectionInstance(name);
-        if(o!=null)
-            return (ConcurrentNavigableMap<K, V> ) o;
-
-        try {
-            long recid = getNamedObject(name);
-            if(recid == 0) return null;
-
-            BTree t =  BTree.<K, V>load(this, recid);
-            if(!t.hasValues())
-                throw new ClassCastException("TreeSet is not TreeMap");
-            ConcurrentNavigableMap<K,V> ret = new BTreeMap<K, V>(t,false); //TODO put readonly flag here
-            collections.put(name,new WeakReference<Object>(ret));
-            return ret;
-        } catch (IOException e) {
-            throw new IOError(e);
+    public <K, V> ConcurrentNavigableMap<K, V> getTreeMap(String name) {
+        lock.writeLock().lock();
+        try{
+            Object o = getCollectionInstance(name);
+            if(o!=null)
+                return (ConcurrentNavigableMap<K, V> ) o;
+
+            try {
+                long recid = getNamedObject(name);
+                if(recid == 0) return null;
+
+                BTree t =  BTree.<K, V>load(this, recid);
+                if(!t.hasValues())
+                    throw new ClassCastException("TreeSet is not TreeMap");
+                t.cacheRegion = cacheRegion(name, getCachePolicy(name));
+                ConcurrentNavigableMap<K,V> ret = t.keyType == BTree.KEYS_LONG ? new LongBTreeMap(t, false) :
+                        new BTreeMap<K, V>(t,false); //TODO put readonly flag here
+                collections.put(name,new WeakReference<Object>(ret));
+                return ret;
+            } catch (IOException e) {
+                throw new IOError(e);
+            }
+        }finally {
+            lock.writeLock().unlock();
         }
     }
 
-    synchronized public <K extends Comparable, V> ConcurrentNavigableMap<K, V> createTreeMap(String name) {
+    public <K extends Comparable, V> ConcurrentNavigableMap<K, V> createTreeMap(String name) {
         return createTreeMap(name, null, null, null);
     }
 
 
-    public synchronized <K, V> ConcurrentNavigableMap<K, V> createTreeMap(String name,
-                                                                          Comparator<K> keyComparator,
-                                                                          Serializer<K> keySerializer,
-                                                                          Serializer<V> valueSerializer) {
+    public <K, V> ConcurrentNavigableMap<K, V> createTreeMap(String name,
+                                                             Comparator<K> keyComparator,
+                                                             Serializer<K> keySerializer,
+                                                             Serializer<V> valueSerializer) {
+        return createTreeMap(name, new TreeMapOptions<K, V>().keyComparator(keyComparator)
+                .keySerializer(keySerializer).valueSerializer(valueSerializer));
+    }
+
+    public <K, V> ConcurrentNavigableMap<K, V> createTreeMap(String name, TreeMapOptions<K, V> options) {
+        return createTreeMap(name, options, BTree.KEYS_OBJECT);
+    }
+
+    public <V> LongNavigableMap<V> createTreeMapLong(String name) {
+        return createTreeMapLong(name, new TreeMapOptions<Long, V>());
+    }
+
+    public <V> LongNavigableMap<V> createTreeMapLong(String name, TreeMapOptions<Long, V> options) {
+        return (LongNavigableMap<V>) createTreeMap(name, options, BTree.KEYS_LONG);
+    }
+
+    public <V> LongNavigableMap<V> getTreeMapLong(String name) {
+        Object ret = getTreeMap(name);
+        if (ret != null && !(ret instanceof LongNavigableMap))
+            throw new ClassCastException("TreeMap does not have long keys");
+        return (LongNavigableMap<V>) ret;
+    }
+
+    public <V> ConcurrentNavigableMap<String, V> createTreeMapString(String name) {
+        return createTreeMapString(name, new TreeMapOptions<String, V>());
+    }
+
+    public <V> ConcurrentNavigableMap<String, V> createTreeMapString(String name, TreeMapOptions<String, V> options) {
+        return createTreeMap(name, options, BTree.KEYS_STRING);
+    }
+
+    public <V> ConcurrentNavigableMap<byte[], V> createTreeMapByteArray(String name) {
+        return createTreeMapByteArray(name, new TreeMapOptions<byte[], V>());
+    }
+
+    public <V> ConcurrentNavigableMap<byte[], V> createTreeMapByteArray(String name, TreeMapOptions<byte[], V> options) {
+        return createTreeMap(name, options, BTree.KEYS_BYTE_ARRAY);
+    }
+
+    private <K, V> ConcurrentNavigableMap<K, V> createTreeMap(String name, TreeMapOptions<K, V> options, int keyType) {
+        lock.writeLock().lock();
         try {
             assertNameNotExist(name);
-            BTree<K, V> tree = BTree.createInstance(this, keyComparator, keySerializer, valueSerializer,true);
-            setNamedObject(name, tree.getRecid());
-            ConcurrentNavigableMap<K,V> ret = new BTreeMap<K, V>(tree,false); //TODO put readonly flag here
+            BTree<K, V> tree = createTree(name, options, keyType);
+            ConcurrentNavigableMap<K,V> ret = keyType == BTree.KEYS_LONG ? new LongBTreeMap(tree, false) :
+                    new BTreeMap<K, V>(tree,false); //TODO put readonly flag here
             collections.put(name,new WeakReference<Object>(ret));
             return ret;
         } catch (IOException e) {
             throw new IOError(e);
+        }finally {
+            lock.writeLock().unlock();
         }
     }
 
+    /**
+     * Creates empty tree with given options and binds it to name with its cache policy
+     */
+    private <K, V> BTree<K, V> createTree(String name, TreeMapOptions<K, V> options, int keyType) throws IOException {
+        BTree<K, V> tree = BTree.createInstance(this, options.keyComparator, options.keySerializer,
+                options.valueSerializer, true, options.nodeSize, options.optimisticReads, keyType);
+        setNamedObject(name, tree.getRecid());
+        setCachePolicy(name, options.cachePolicy);
+        tree.cacheRegion = cacheRegion(name, options.cachePolicy);
+        return tree;
+    }
 
-    public synchronized <K> NavigableSet<K> getTreeSet(String name) {
-        Object o = getCollectionInstance(name);
-        if(o!=null)
-            return (NavigableSet<K> ) o;
 
-        try {
-            long recid = getNamedObject(name);
-            if(recid == 0) return null;
+    public <K extends Comparable, V> ConcurrentNavigableMap<K, V> bulkLoadTreeMap(String name,
+                                                                                Iterator<? extends Map.Entry<K, V>> entries,
+                                                                                boolean presorted) {
+        return bulkLoadTreeMap(name, entries, presorted, new TreeMapOptions<K, V>());
+    }
 
-            BTree t =  BTree.<K, Object>load(this, recid);
-            if(t.hasValues())
-                throw new ClassCastException("TreeMap is not TreeSet");
-            BTreeSet<K> ret =  new BTreeSet<K>(new BTreeMap(t,false));
-            collections.put(name,new WeakReference<Object>(ret));
+    public <K, V> ConcurrentNavigableMap<K, V> bulkLoadTreeMap(String name,
+                                                             Iterator<? extends Map.Entry<K, V>> entries,
+                                                             boolean presorted,
+                                                             TreeMapOptions<K, V> options) {
+        lock.writeLock().lock();
+        try {
+            assertNameNotExist(name);
+            if (!presorted) {
+                entries = new ExternalSort<K, V>(entries, options.keyComparator,
+                        options.keySerializer != null ? options.keySerializer : (Serializer<K>) defaultSerializer(),
+                        options.valueSerializer != null ? options.valueSerializer : (Serializer<V>) defaultSerializer(),
+                        ExternalSort.CHUNK_SIZE);
+            }
+            BTree<K, V> tree = createTree(name, options, BTree.KEYS_OBJECT);
+            tree.bulkLoad(entries);
+            ConcurrentNavigableMap<K, V> ret = new BTreeMap<K, V>(tree, false);
+            collections.put(name, new WeakReference<Object>(ret));
             return ret;
-
         } catch (IOException e) {
             throw new IOError(e);
+        } finally {
+            lock.writeLock().unlock();
         }
     }
 
-    public synchronized <K> NavigableSet<K> createTreeSet(String name) {
+
+    public <K> NavigableSet<K> getTreeSet(String name) {
+        lock.writeLock().lock();
+        try{
+            Object o = getCollectionInstance(name);
+            if(o!=null)
+                return (NavigableSet<K> ) o;
+
+            try {
+                long recid = getNamedObject(name);
+                if(recid == 0) return null;
+
+                BTree t =  BTree.<K, Object>load(this, recid);
+                if(t.hasValues())
+                    throw new ClassCastException("TreeMap is not TreeSet");
+                BTreeSet<K> ret =  new BTreeSet<K>(new BTreeMap(t,false));
+                collections.put(name,new WeakReference<Object>(ret));
+                return ret;
+
+            } catch (IOException e) {
+                throw new IOError(e);
+            }
+        }finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public <K> NavigableSet<K> createTreeSet(String name) {
         return createTreeSet(name, null, null);
     }
 
 
-    public synchronized <K> NavigableSet<K> createTreeSet(String name, Comparator<K> keyComparator, Serializer<K> keySerializer) {
+    public <K> NavigableSet<K> createTreeSet(String name, Comparator<K> keyComparator, Serializer<K> keySerializer) {
+        return createTreeSet(name, keyComparator, keySerializer, BTree.DEFAULT_SIZE);
+    }
+
+
+    public <K> NavigableSet<K> createTreeSet(String name, Comparator<K> keyComparator, Serializer<K> keySerializer, int nodeSize) {
+        lock.writeLock().lock();
         try {
             assertNameNotExist(name);
-            BTree<K, Object> tree = BTree.createInstance(this, keyComparator, keySerializer, null,false);
+            BTree<K, Object> tree = BTree.createInstance(this, keyComparator, keySerializer, null,false, nodeSize);
             setNamedObject(name, tree.getRecid());
             BTreeSet<K> ret =  new BTreeSet<K>(new BTreeMap(tree,false));
             collections.put(name,new WeakReference<Object>(ret));
@@ -289,16 +434,18 @@ abstract class DBAbstract implements DB {
 
         } catch (IOException e) {
             throw new IOError(e);
+        }finally {
+            lock.writeLock().unlock();
         }
-
     }
 
 
-    synchronized public <K> List<K> createLinkedList(String name) {
+    public <K> List<K> createLinkedList(String name) {
         return createLinkedList(name, null);
     }
 
-    synchronized public <K> List<K> createLinkedList(String name, Serializer<K> serializer) {
+    public <K> List<K> createLinkedList(String name, Serializer<K> serializer) {
+        lock.writeLock().lock();
         try {
             assertNameNotExist(name);
 
@@ -313,27 +460,34 @@ abstract class DBAbstract implements DB {
             return list;
         } catch (IOException e) {
             throw new IOError(e);
+        }finally {
+            lock.writeLock().unlock();
         }
     }
 
-    synchronized public <K> List<K> getLinkedList(String name) {
-        Object o = getCollectionInstance(name);
-        if(o!=null)
-            return (List<K> ) o;
-
-        try {
-            long recid = getNamedObject(name);
-            if(recid == 0) return null;
-            LinkedList2<K> list = (LinkedList2<K>) fetch(recid);
-            list.setPersistenceContext(this);
-            collections.put(name,new WeakReference<Object>(list));
-            return list;
-        } catch (IOException e) {
-            throw new IOError(e);
+    public <K> List<K> getLinkedList(String name) {
+        lock.writeLock().lock();
+        try{
+            Object o = getCollectionInstance(name);
+            if(o!=null)
+                return (List<K> ) o;
+
+            try {
+                long recid = getNamedObject(name);
+                if(recid == 0) return null;
+                LinkedList2<K> list = (LinkedList2<K>) fetch(recid);
+                list.setPersistenceContext(this);
+                collections.put(name,new WeakReference<Object>(list));
+                return list;
+            } catch (IOException e) {
+                throw new IOError(e);
+            }
+        }finally {
+            lock.writeLock().unlock();
         }
     }
 
-    private synchronized  Object getCollectionInstance(String name){
+    private Object getCollectionInstance(String name){
         WeakReference ref = collections.get(name);
         if(ref==null)return null;
         Object o = ref.get();
@@ -356,16 +510,21 @@ abstract class DBAbstract implements DB {
      * doesn't exist.
      * Named objects are used to store Map views and other well known objects.
      */
-    synchronized protected long getNamedObject(String name) throws IOException{
-        long nameDirectory_recid = getRoot(NAME_DIRECTORY_ROOT);
-        if(nameDirectory_recid == 0){
-            return 0;
+    protected long getNamedObject(String name) throws IOException{
+        lock.readLock().lock();
+        try{
+            long nameDirectory_recid = getRoot(NAME_DIRECTORY_ROOT);
+            if(nameDirectory_recid == 0){
+                return 0;
+            }
+            HTree<String,Long> m = fetch(nameDirectory_recid);
+            Long res = m.get(name);
+            if(res == null)
+                return 0;
+            return res;
+        }finally {
+            lock.readLock().unlock();
         }
-        HTree<String,Long> m = fetch(nameDirectory_recid);
-        Long res = m.get(name);
-        if(res == null)
-            return 0;
-        return res;
     }
 
 
@@ -373,25 +532,80 @@ abstract class DBAbstract implements DB {
      * Set the record id of a named object.
      * Named objects are used to store Map views and other well known objects.
      */
-    synchronized protected void setNamedObject(String name, long recid) throws IOException{
-        long nameDirectory_recid = getRoot(NAME_DIRECTORY_ROOT);
-        HTree<String,Long> m = null;
-        if(nameDirectory_recid == 0){
-            //does not exists, create it
-            m = new HTree<String, Long>(this,null,null,true);
-            nameDirectory_recid = insert(m);
-            setRoot(NAME_DIRECTORY_ROOT,nameDirectory_recid);
-        }else{
-            //fetch it
-            m = fetch(nameDirectory_recid);
+    protected void setNamedObject(String name, long recid) throws IOException{
+        lock.writeLock().lock();
+        try{
+            long nameDirectory_recid = getRoot(NAME_DIRECTORY_ROOT);
+            HTree<String,Long> m = null;
+            if(nameDirectory_recid == 0){
+                //does not exists, create it
+                m = new HTree<String, Long>(this,null,null,true);
+                nameDirectory_recid = insert(m);
+                setRoot(NAME_DIRECTORY_ROOT,nameDirectory_recid);
+            }else{
+                //fetch it
+                m = fetch(nameDirectory_recid);
+            }
+            m.put(name,recid);
+        }finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+
+
+
+    public CachePolicy getCachePolicy(String name){
+        lock.readLock().lock();
+        try{
+            final long dirRecid = getRoot(CACHE_POLICY_DIRECTORY_ROOT);
+            if(dirRecid == 0)
+                return CachePolicy.shared();
+            final HTree<String,Long> dir = fetch(dirRecid);
+            final Long policy = dir.get(name);
+            return policy == null ? CachePolicy.shared() : CachePolicy.decode(policy);
+        }catch(IOException e){
+            throw new IOError(e);
+        }finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Persists cache policy of named collection, shared policy is stored as missing entry.
+     */
+    private void setCachePolicy(String name, CachePolicy policy) throws IOException {
+        if(policy == null)
+            throw new NullPointerException("cachePolicy");
+        long dirRecid = getRoot(CACHE_POLICY_DIRECTORY_ROOT);
+        if(dirRecid == 0){
+            if(policy.type == CachePolicy.SHARED)
+                return;
+            dirRecid = insert(new HTree<String, Long>(this,null,null,true));
+            setRoot(CACHE_POLICY_DIRECTORY_ROOT, dirRecid);
         }
-        m.put(name,recid);
+        final HTree<String,Long> dir = fetch(dirRecid);
+        if(policy.type == CachePolicy.SHARED)
+            dir.remove(name);
+        else
+            dir.put(name, policy.encode());
     }
 
+    /**
+     * Returns cache region for records of named collection, or null if collection uses shared cache.
+     * Store without instance cache has no regions.
+     */
+    CacheRegion cacheRegion(String name, CachePolicy policy){
+        return null;
+    }
 
+    /** called when collection is deleted, so its cache region can be discarded */
+    void removeCacheRegion(String name){
+    }
 
 
-    synchronized public Map<String,Object> getCollections(){
+    public Map<String,Object> getCollections(){
+        lock.writeLock().lock();
         try{
             Map<String,Object> ret = new LinkedHashMap<String, Object>();
             long nameDirectory_recid = getRoot(NAME_DIRECTORY_ROOT);
@@ -419,12 +633,14 @@ abstract class DBAbstract implements DB {
             return Collections.unmodifiableMap(ret);
         }catch(IOException e){
             throw new IOError(e);
+        }finally {
+            lock.writeLock().unlock();
         }
-
     }
 
 
-    synchronized public void deleteCollection(String name){
+    public void deleteCollection(String name){
+        lock.writeLock().lock();
         try{
             long nameDirectory_recid = getRoot(NAME_DIRECTORY_ROOT);
             if(nameDirectory_recid==0)
@@ -453,14 +669,17 @@ abstract class DBAbstract implements DB {
             }
             delete(recid);
             collections.remove(name);
+            setCachePolicy(name, CachePolicy.shared());
+            removeCacheRegion(name);
 
 
             dir.remove(name);
 
         }catch(IOException e){
             throw new IOError(e);
+        }finally {
+            lock.writeLock().unlock();
         }
-
     }
 
 
@@ -479,22 +698,30 @@ abstract class DBAbstract implements DB {
         }
     };
 
-    public synchronized Serializer defaultSerializer() {
+    public Serializer defaultSerializer() {
 
         try{
             long serialClassInfoRecid = getRoot(SERIAL_CLASS_INFO_RECID_ROOT);
             if (serialClassInfoRecid == 0) {
-                //allocate new recid 
-                serialClassInfoRecid = insert(null,Utils.NULL_SERIALIZER,false);
-                //and insert new serializer
-                Serialization ser = new Serialization(this,serialClassInfoRecid,new ArrayList<SerialClassInfo.ClassInfo>());
-
-                update(serialClassInfoRecid,ser, defaultSerializationSerializer);
-                setRoot(SERIAL_CLASS_INFO_RECID_ROOT, serialClassInfoRecid);
-                return ser;
-            }else{
-                return fetch(serialClassInfoRecid,defaultSerializationSerializer);
+                lock.writeLock().lock();
+                try{
+                    //check again, other thread may have created it meanwhile
+                    serialClassInfoRecid = getRoot(SERIAL_CLASS_INFO_RECID_ROOT);
+                    if(serialClassInfoRecid == 0){
+                        //allocate new recid
+                        serialClassInfoRecid = insert(null,Utils.NULL_SERIALIZER,false);
+                        //and insert new serializer
+                        Serialization ser = new Serialization(this,serialClassInfoRecid,new ArrayList<SerialClassInfo.ClassInfo>());
+
+                        update(serialClassInfoRecid,ser, defaultSerializationSerializer);
+                        setRoot(SERIAL_CLASS_INFO_RECID_ROOT, serialClassInfoRecid);
+                        return ser;
+                    }
+                }finally {
+                    lock.writeLock().unlock();
+                }
             }
+            return fetch(serialClassInfoRecid,defaultSerializationSerializer);
 
         } catch (IOException e) {
             throw new IOError(e);
@@ -511,7 +738,7 @@ abstract class DBAbstract implements DB {
     protected abstract long getRoot(byte root);
 
 
-    synchronized public long collectionSize(Object collection){
+    public long collectionSize(Object collection){
         if(collection instanceof BTreeMap){
             BTreeMap t = (BTreeMap) collection;
             if(t.fromKey!=null|| t.toKey!=null) throw new IllegalArgumentException("collectionSize does not work on BTree submap");
@@ -565,7 +792,8 @@ abstract class DBAbstract implements DB {
 
     }
 
-    synchronized public void   rollback() {
+    public void   rollback() {
+        lock.writeLock().lock();
         try {
         for(WeakReference<Object> o:collections.values()){
             Object c =  o.get();
@@ -584,7 +812,8 @@ abstract class DBAbstract implements DB {
         }
         } catch (IOException e) {
             throw new IOError(e);
+        }finally {
+            lock.writeLock().unlock();
         }
-
     }
 }
@@ -3,8 +3,12 @@ package org.apache.jdbm;
 import javax.crypto.Cipher;
 import java.io.IOError;
 import java.io.IOException;
+import java.lang.ref.WeakReference;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Abstract class with common cache functionality
@@ -18,6 +22,7 @@ abstract class DBCache extends DBStore{
     static final byte WEAK = 3;
     static final byte SOFT = 4;
     static final byte HARD = 5;
+    static final byte TINY_LFU = 6;
 
     static final class DirtyCacheEntry {
         long _recid; //TODO recid is already part of _hashDirties, so this field could be removed to save memory
@@ -31,7 +36,36 @@ abstract class DBCache extends DBStore{
      */
     final protected LongHashMap<DirtyCacheEntry> _hashDirties = new LongHashMap<DirtyCacheEntry>();
 
-    private Serializer cachedDefaultSerializer = null;
+    /** if true, recids of hot records are saved on close, so cache can be warmed up after restart */
+    private boolean cacheWarmup = false;
+
+    /** dedicated cache regions of named collections, guarded by write lock */
+    private final Map<String, CacheRegion> regions = new HashMap<String, CacheRegion>();
+
+    /** instance cache statistics, dirty records returned from fetch are counted as hits */
+    final StripedCounter cacheHits = new StripedCounter();
+    final StripedCounter cacheMisses = new StripedCounter();
+    final StripedCounter cacheEvictions = new StripedCounter();
+
+    private volatile Serializer cachedDefaultSerializer = null;
+
+    /** maximal number of dirty records with write behind, 0 if write behind is disabled */
+    private volatile int writeBehindLimit = 0;
+
+    /** background thread which writes dirty records, null if write behind is disabled */
+    private Thread writeBehindThread;
+
+    /** set on close, background thread exits when it sees it. Thread is never interrupted, it may do NIO */
+    private volatile boolean writeBehindStopped = false;
+
+    /** failure of background thread, rethrown from next update or commit */
+    private volatile Throwable writeBehindFailure = null;
+
+    /** notified when background thread should write dirty records */
+    private final Object writeBehindSignal = new Object();
+
+    /** maximal number of dirty records written by background thread while it holds lock */
+    static final int WRITE_BEHIND_BATCH = 256;
 
 
     /**
@@ -40,74 +74,396 @@ abstract class DBCache extends DBStore{
      */
     public DBCache(String filename, boolean readonly, boolean transactionDisabled,
                       Cipher cipherIn, Cipher cipherOut, boolean useRandomAccessFile,
-                     boolean deleteFilesAfterClose,boolean lockingDisabled){
+                     boolean deleteFilesAfterClose,boolean lockingDisabled, long groupCommitWait,
+                     boolean backgroundCheckpoint, int pageShift, int segmentShift, long pageCacheSize){
 
         super(filename, readonly, transactionDisabled,
                 cipherIn, cipherOut, useRandomAccessFile,
-                deleteFilesAfterClose,lockingDisabled);
+                deleteFilesAfterClose,lockingDisabled, groupCommitWait, backgroundCheckpoint, pageShift, segmentShift, pageCacheSize);
 
     }
 
 
     @Override
-    public synchronized  Serializer defaultSerializer(){
-        if(cachedDefaultSerializer==null)
-            cachedDefaultSerializer = super.defaultSerializer();
-        return cachedDefaultSerializer;
+    public Serializer defaultSerializer(){
+        Serializer ser = cachedDefaultSerializer;
+        if(ser!=null)
+            return ser;
+
+        if(lock.getReadHoldCount()>0 && !lock.isWriteLockedByCurrentThread()){
+            //read lock can not be upgraded, so return instance without caching it
+            return super.defaultSerializer();
+        }
+
+        lock.writeLock().lock();
+        try{
+            if(cachedDefaultSerializer==null)
+                cachedDefaultSerializer = super.defaultSerializer();
+            return cachedDefaultSerializer;
+        }finally {
+            lock.writeLock().unlock();
+        }
     }
 
     @Override
     boolean needsAutoCommit() {
+        final int limit = writeBehindLimit;
+        if(limit>0 && _hashDirties.size() >= limit/2){
+            //wake up background thread, writer only blocks if dirty records reach limit
+            synchronized (writeBehindSignal){
+                writeBehindSignal.notify();
+            }
+        }
         return super.needsAutoCommit()||
-                (transactionsDisabled &&  !commitInProgress && _hashDirties.size() > NUM_OF_DIRTY_RECORDS_BEFORE_AUTOCOMIT);
+                (transactionsDisabled &&  !commitInProgress &&
+                        _hashDirties.size() > (limit>0 ? limit : NUM_OF_DIRTY_RECORDS_BEFORE_AUTOCOMIT));
+    }
+
+    /**
+     * Enables write behind. Dirty records are serialized and written into store by background thread,
+     * so they do not accumulate until commit. Writer is blocked by synchronous commit
+     * only if number of dirty records reaches limit.
+     * Write behind is only possible if transactions are disabled, updates can not be rolled back.
+     *
+     * @param maxDirtyRecords maximal number of dirty records kept in memory
+     */
+    void enableWriteBehind(int maxDirtyRecords){
+        if(!transactionsDisabled)
+            throw new IllegalStateException("Write behind requires disabled transactions");
+        if(maxDirtyRecords<=1)
+            throw new IllegalArgumentException("Dirty records limit is too small: "+maxDirtyRecords);
+        writeBehindLimit = maxDirtyRecords;
+        writeBehindThread = new Thread(new WriteBehindRunnable(this, writeBehindSignal), "JDBM Write Behind");
+        writeBehindThread.setDaemon(true);
+        writeBehindThread.start();
+    }
+
+    /**
+     * Writes batch of dirty records into store, called from write behind thread.
+     *
+     * @return true if there are more dirty records to write
+     */
+    boolean writeBehind(){
+        //close() joins this thread while it holds write lock, so do not block on lock forever
+        try{
+            while(!lock.writeLock().tryLock(100, TimeUnit.MILLISECONDS)){
+                if(writeBehindStopped)
+                    return false;
+            }
+        }catch (InterruptedException e){
+            return false;
+        }
+        try{
+            if(writeBehindStopped || isClosed())
+                return false;
+            //background thread writes until low watermark, so it does not wake up on each update
+            final int lowWatermark = writeBehindLimit/4;
+            if(_hashDirties.size() <= lowWatermark)
+                return false;
+
+            final int count = Math.min(WRITE_BEHIND_BATCH, _hashDirties.size() - lowWatermark);
+            final DirtyCacheEntry[] vals = new DirtyCacheEntry[count];
+            final Iterator<DirtyCacheEntry> iter = _hashDirties.valuesIterator();
+            for(int i = 0;i<vals.length;i++){
+                vals[i] = iter.next();
+            }
+            java.util.Arrays.sort(vals,DIRTY_COMPARATOR);
+
+            //no nested auto commit, it would write all dirty records
+            commitInProgress = true;
+            try{
+                for(DirtyCacheEntry entry:vals){
+                    super.update(entry._recid, entry._obj, entry._serializer);
+                    _hashDirties.remove(entry._recid);
+                }
+            }finally {
+                commitInProgress = false;
+            }
+
+            //write pages if too many are dirty
+            if(super.needsAutoCommit())
+                super.commit();
+
+            return _hashDirties.size() > lowWatermark;
+        } catch (IOException e) {
+            throw new IOError(e);
+        }finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Rethrows failure of write behind thread. Background thread stops after failure,
+     * so dirty records are then written synchronously once they reach limit.
+     */
+    final void checkWriteBehindFailure(){
+        final Throwable e = writeBehindFailure;
+        if(e == null)
+            return;
+        writeBehindFailure = null;
+        if(e instanceof Error)
+            throw (Error) e;
+        if(e instanceof RuntimeException)
+            throw (RuntimeException) e;
+        throw new IOError(e);
+    }
+
+    /** stops write behind thread and waits until it finishes, may be called while holding write lock */
+    private void stopWriteBehind(){
+        final Thread t = writeBehindThread;
+        if(t == null)
+            return;
+        writeBehindStopped = true;
+        synchronized (writeBehindSignal){
+            writeBehindSignal.notifyAll();
+        }
+        boolean interrupted = false;
+        while(t.isAlive()){
+            try{
+                t.join();
+            }catch (InterruptedException e){
+                interrupted = true;
+            }
+        }
+        if(interrupted)
+            Thread.currentThread().interrupt();
+        writeBehindThread = null;
+    }
+
+    @Override
+    public void close() {
+        stopWriteBehind();
+        if(cacheWarmup && !isClosed()){
+            final long[] recids = hotRecids();
+            if(recids!=null)
+                writeWarmupFile(recids);
+        }
+        super.close();
+    }
+
+    /**
+     * Enables cache warmup. Recids of hot records are saved into side file on close
+     * and records saved by previous session are preloaded now.
+     *
+     * @return number of preloaded records
+     */
+    int enableCacheWarmup(){
+        cacheWarmup = true;
+        final long[] recids = readWarmupFile();
+        return recids == null ? 0 : preloadRecords(recids);
+    }
+
+    /**
+     * Returns recids of records in instance cache, most recently used first.
+     * Returns null if cache does not keep usage order, in that case warmup file is not written.
+     */
+    long[] hotRecids(){
+        return null;
+    }
+
+    /**
+     * Runs in separate thread and writes dirty records.
+     * Runnable auto exits when DB is GCed or closed.
+     */
+    static final class WriteBehindRunnable implements Runnable {
+
+        private final WeakReference<DBCache> db2;
+        private final Object signal;
+
+        WriteBehindRunnable(DBCache db, Object signal) {
+            this.db2 = new WeakReference<DBCache>(db);
+            this.signal = signal;
+        }
+
+        public void run() {
+            while (true) try {
+                synchronized (signal){
+                    DBCache db = db2.get();
+                    if(db == null || db.writeBehindStopped)
+                        return;
+                    db = null;
+                    //timeout is to keep periodically checking if db was GCed
+                    signal.wait(1000);
+                }
+                boolean more = true;
+                while(more){
+                    final DBCache db = db2.get();
+                    if(db == null || db.writeBehindStopped || db.isClosed())
+                        return;
+                    try{
+                        more = db.writeBehind();
+                    }catch (Throwable e){
+                        //retrying would most likely fail again, so report failure to writers and exit
+                        db.writeBehindFailure = e;
+                        return;
+                    }
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
     }
 
 
 
-    public synchronized <A> long insert(final A obj, final Serializer<A> serializer, final boolean disableCache)
+    public <A> long insert(final A obj, final Serializer<A> serializer, final boolean disableCache)
             throws IOException {
-        checkNotClosed();
+        lock.writeLock().lock();
+        try{
+            checkNotClosed();
+            checkWriteBehindFailure();
+
+            if(super.needsAutoCommit())
+                commit();
 
-        if(super.needsAutoCommit())
-            commit();
+            if(disableCache)
+                return super.insert(obj, serializer, disableCache);
 
-        if(disableCache)
-            return super.insert(obj, serializer, disableCache);
 
+            //prealocate recid so we have something to return
+            final long recid = super.insert(PREALOCATE_OBJ, null, disableCache);
 
-        //prealocate recid so we have something to return
-        final long recid = super.insert(PREALOCATE_OBJ, null, disableCache);
+//            super.update(recid, obj,serializer);
 
-//        super.update(recid, obj,serializer);
+//            return super.insert(obj,serializer,disableCache);
 
-//        return super.insert(obj,serializer,disableCache);
+            //and create new dirty record for future update
+            final DirtyCacheEntry e = new DirtyCacheEntry();
+            e._recid = recid;
+            e._obj = obj;
+            e._serializer = serializer;
+            _hashDirties.put(recid,e);
 
-        //and create new dirty record for future update
-        final DirtyCacheEntry e = new DirtyCacheEntry();
-        e._recid = recid;
-        e._obj = obj;
-        e._serializer = serializer;
-        _hashDirties.put(recid,e);
+            if(writeBehindLimit>0 && needsAutoCommit())
+                commit();
 
-        return recid;
+            return recid;
+        }finally {
+            lock.writeLock().unlock();
+        }
     }
 
 
 
-    public synchronized void commit() {
+    public void commit() {
+        final long start = System.nanoTime();
+        final boolean nested;
+        final PageFile committer = enterCommit();
         try{
-            commitInProgress = true;
-            updateCacheEntries();
-            super.commit();
+            lock.writeLock().lock();
+            try{
+                checkWriteBehindFailure();
+                nested = commitInProgress;
+                commitInProgress = true;
+                updateCacheEntries();
+                super.commit();
+            }finally {
+                commitInProgress = false;
+                lock.writeLock().unlock();
+            }
+            awaitDurable(committer);
+        }finally {
+            exitCommit(committer);
+        }
+        if(!nested)
+            commitLatency.record(System.nanoTime() - start);
+    }
+
+    @Override
+    void collectMetrics(Map<String, Long> metrics) {
+        super.collectMetrics(metrics);
+        metrics.put("cache.hits", cacheHits.get());
+        metrics.put("cache.misses", cacheMisses.get());
+        metrics.put("cache.evictions", cacheEvictions.get());
+        metrics.put("cache.size", (long) cacheSize());
+        metrics.put("cache.dirty", (long) _hashDirties.size());
+    }
+
+    /** returns number of records in instance cache */
+    abstract int cacheSize();
+
+    @Override
+    CacheRegion cacheRegion(String name, CachePolicy policy) {
+        if (policy.type == CachePolicy.SHARED) {
+            regions.remove(name);
+            return null;
+        }
+        //keep region if collection is loaded again, so cached records survive GC of collection instance
+        CacheRegion region = regions.get(name);
+        if (region == null || !region.policy.equals(policy)) {
+            region = new CacheRegion(policy);
+            regions.put(name, region);
+        }
+        return region;
+    }
+
+    @Override
+    void removeCacheRegion(String name) {
+        regions.remove(name);
+    }
+
+    /**
+     * Returns cache region of collection which owns records handled by given serializer,
+     * or null if records use shared cache.
+     */
+    static CacheRegion regionOf(Serializer serializer) {
+        return serializer instanceof CacheRegion.Owner ? ((CacheRegion.Owner) serializer).getCacheRegion() : null;
+    }
+
+    /**
+     * Fetches record of collection which has dedicated cache region, shared cache is bypassed.
+     */
+    <A> A fetchFromRegion(long recid, Serializer<A> serializer, CacheRegion region) throws IOException {
+        final Object cached = region.get(recid);
+        if (cached != null) {
+            cacheHits.increment();
+            return (A) cached;
+        }
+
+        //cache miss, read lock makes sure that no write happens between store fetch and region put
+        lock.readLock().lock();
+        try{
+            checkNotClosed();
+            final DirtyCacheEntry dirty = _hashDirties.get(recid);
+            if(dirty!=null){
+                cacheHits.increment();
+                return (A) dirty._obj;
+            }
+            cacheMisses.increment();
+            final A value = super.fetch(recid, serializer);
+            region.put(recid, value);
+            return value;
+        }finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** removes deleted record from all cache regions, region which owns record is not known */
+    void removeFromRegions(long recid) {
+        for (CacheRegion region : regions.values())
+            region.remove(recid);
+    }
+
+    void clearRegions() {
+        lock.writeLock().lock();
+        try{
+            for (CacheRegion region : regions.values())
+                region.clear();
         }finally {
-            commitInProgress = false;
+            lock.writeLock().unlock();
         }
     }
 
-    public synchronized  void rollback(){
-        cachedDefaultSerializer = null;
-        _hashDirties.clear();
-        super.rollback();
+    public void rollback(){
+        lock.writeLock().lock();
+        try{
+            cachedDefaultSerializer = null;
+            _hashDirties.clear();
+            clearRegions();
+            super.rollback();
+        }finally {
+            lock.writeLock().unlock();
+        }
     }
 
     
@@ -123,6 +479,7 @@ abstract class DBCache extends DBStore{
      * Update all dirty cache objects to the underlying DB.
      */
     protected void updateCacheEntries() {
+        lock.writeLock().lock();
         try {
             synchronized(_hashDirties){
 
@@ -153,6 +510,8 @@ abstract class DBCache extends DBStore{
             }
         } catch (IOException e) {
             throw new IOError(e);
+        }finally {
+            lock.writeLock().unlock();
         }
 
     }
@@ -18,6 +18,7 @@ package org.apache.jdbm;
 
 import javax.crypto.Cipher;
 import java.io.IOException;
+import java.util.Arrays;
 
 /**
  * A DB wrapping and caching another DB.
@@ -37,9 +38,10 @@ class DBCacheMRU
 
 
     /**
-     * Cached object hashtable
+     * Cached object hashtable. It is never null, cache hits are served without store lock
+     * and may come after close.
      */
-    protected LongHashMap<CacheEntry> _hash;
+    protected final LongHashMap<CacheEntry> _hash;
 
 
 
@@ -48,6 +50,22 @@ class DBCacheMRU
      */
     protected int _max;
 
+    /**
+     * Maximum total weight of objects in the cache, 0 if cache is limited by number of objects.
+     * Weight of object is estimated from its serialized size.
+     */
+    protected long _maxWeight;
+
+    /**
+     * Total weight of objects currently in the cache.
+     */
+    protected long _weight;
+
+    /**
+     * Estimated memory overhead of single cache entry and deserialized object, added to serialized size.
+     */
+    static final int ENTRY_OVERHEAD = 64;
+
 
 
     /**
@@ -69,19 +87,27 @@ class DBCacheMRU
      */
     public DBCacheMRU(String filename, boolean readonly, boolean transactionDisabled,
                       Cipher cipherIn, Cipher cipherOut, boolean useRandomAccessFile,
-                     boolean deleteFilesAfterClose, int cacheMaxRecords, boolean lockingDisabled)  {
+                     boolean deleteFilesAfterClose, int cacheMaxRecords, long cacheMaxWeight, boolean lockingDisabled, long groupCommitWait,
+                     boolean backgroundCheckpoint, int pageShift, int segmentShift, long pageCacheSize)  {
         super(filename, readonly, transactionDisabled,
             cipherIn, cipherOut, useRandomAccessFile,
-            deleteFilesAfterClose,lockingDisabled);
-
-        _hash = new LongHashMap<CacheEntry>(cacheMaxRecords);
-        _max = cacheMaxRecords;
+            deleteFilesAfterClose,lockingDisabled, groupCommitWait, backgroundCheckpoint, pageShift, segmentShift, pageCacheSize);
+
+        _maxWeight = cacheMaxWeight;
+        if(cacheMaxWeight>0){
+            //cache is limited by weight, number of records is not known in advance
+            _hash = new LongHashMap<CacheEntry>();
+            _max = Integer.MAX_VALUE;
+        }else{
+            _hash = new LongHashMap<CacheEntry>(cacheMaxRecords);
+            _max = cacheMaxRecords;
+        }
 
     }
 
 
 
-    public synchronized <A> A fetch(long recid, Serializer<A> serializer, boolean disableCache) throws IOException {
+    public <A> A fetch(long recid, Serializer<A> serializer, boolean disableCache) throws IOException {
 
         if (disableCache)
             return super.fetch(recid, serializer, disableCache);
@@ -90,114 +116,185 @@ class DBCacheMRU
     }
 
 
-    public synchronized void delete(long recid)
+    public void delete(long recid)
             throws IOException {
-        checkNotClosed();
-
-        super.delete(recid);
-        synchronized (_hash){
-            CacheEntry entry = _hash.get(recid);
-            if (entry != null) {
-                removeEntry(entry);
-                _hash.remove(entry._recid);
+        lock.writeLock().lock();
+        try{
+            checkNotClosed();
+
+            super.delete(recid);
+            removeFromRegions(recid);
+            synchronized (_hash){
+                CacheEntry entry = _hash.get(recid);
+                if (entry != null) {
+                    removeEntry(entry);
+                    _hash.remove(entry._recid);
+                    _weight -= entry._weight;
+                }
+                _hashDirties.remove(recid);
             }
-            _hashDirties.remove(recid);
+
+            if(super.needsAutoCommit())
+                commit();
+        }finally {
+            lock.writeLock().unlock();
         }
+    }
 
-        if(super.needsAutoCommit())
-            commit();
+    public <A> void update(final long recid, final A obj, final Serializer<A> serializer) throws IOException {
+        lock.writeLock().lock();
+        try{
+            checkNotClosed();
+            checkWriteBehindFailure();
 
-    }
+            final CacheRegion region = regionOf(serializer);
+            if (region != null)
+                region.remove(recid);
 
-    public synchronized <A> void update(final long recid, final A obj, final Serializer<A> serializer) throws IOException {
-        checkNotClosed();
+            synchronized (_hash){
 
-        synchronized (_hash){
+                //remove entry if it already exists
+                CacheEntry entry = cacheGet(recid);
+                if (entry != null) {
+                    _hash.remove(recid);
+                    removeEntry(entry);
+                    _weight -= entry._weight;
+                }
 
-            //remove entry if it already exists
-            CacheEntry entry = cacheGet(recid);
-            if (entry != null) {
-                _hash.remove(recid);
-                removeEntry(entry);
-            }
+                //check if entry is in dirties, in this case just update its object
+                DirtyCacheEntry e = _hashDirties.get(recid);
+                if(e!=null){
+                    if(recid!=e._recid) throw new Error();
+                    e._obj = obj;
+                    e._serializer = serializer;
+                    return;
+                }
 
-            //check if entry is in dirties, in this case just update its object
-            DirtyCacheEntry e = _hashDirties.get(recid);
-            if(e!=null){
-                if(recid!=e._recid) throw new Error();
+                //create new dirty entry
+                e = new DirtyCacheEntry();
+                e._recid = recid;
                 e._obj = obj;
                 e._serializer = serializer;
-                return;
+                _hashDirties.put(recid,e);
             }
-            
-            //create new dirty entry
-            e = new DirtyCacheEntry();
-            e._recid = recid;
-            e._obj = obj;
-            e._serializer = serializer;
-            _hashDirties.put(recid,e);
-        }
-
-        if(super.needsAutoCommit())
-            commit();
 
+            if(super.needsAutoCommit())
+                commit();
+        }finally {
+            lock.writeLock().unlock();
+        }
     }
 
 
-    public synchronized <A> A fetch(long recid, Serializer<A> serializer)
+    public <A> A fetch(long recid, Serializer<A> serializer)
             throws IOException {
 
         checkNotClosed();
 
-        final CacheEntry entry = cacheGet(recid);
+        final CacheRegion region = regionOf(serializer);
+        if (region != null && region.holdsAllRecords())
+            return fetchFromRegion(recid, serializer, region);
+
+        //cache hit does not need store lock
+        CacheEntry entry = cacheGet(recid);
         if (entry != null) {
+            cacheHits.increment();
             return (A) entry._obj;
         }
 
-        //check dirties
-        final DirtyCacheEntry entry2 = _hashDirties.get(recid);
-        if(entry2!=null){
-            return (A) entry2._obj;
-        }
-
-
+        //cache miss, read lock makes sure that no write happens between store fetch and cache put
+        lock.readLock().lock();
+        try{
+            checkNotClosed();
+            entry = cacheGet(recid);
+            if (entry != null) {
+                cacheHits.increment();
+                return (A) entry._obj;
+            }
 
-        A value = super.fetch(recid, serializer);
+            //check dirties
+            final DirtyCacheEntry entry2 = _hashDirties.get(recid);
+            if(entry2!=null){
+                cacheHits.increment();
+                return (A) entry2._obj;
+            }
+            cacheMisses.increment();
+
+            final A value;
+            int weight = 0;
+            if(_maxWeight>0){
+                final int[] size = new int[1];
+                value = super.fetch(recid, serializer, size);
+                weight = size[0] + ENTRY_OVERHEAD;
+            }else{
+                value = super.fetch(recid, serializer);
+            }
 
-        if(super.needsAutoCommit())
-            commit();
+            //put record into MRU cache
+            cachePut(recid, value, weight);
 
+            return value;
+        }finally {
+            lock.readLock().unlock();
+        }
+    }
 
-        //put record into MRU cache
-        cachePut(recid, value);
 
-        return value;
+    @Override
+    long[] hotRecids() {
+        synchronized (_hash){
+            final long[] ret = new long[_hash.size()];
+            int i = 0;
+            for (CacheEntry e = _last; e != null && i < ret.length; e = e._previous)
+                ret[i++] = e._recid;
+            return i == ret.length ? ret : Arrays.copyOf(ret, i);
+        }
     }
 
+    int cacheSize() {
+        synchronized (_hash){
+            return _hash.size();
+        }
+    }
 
-    public synchronized void close() {
 
-        if(isClosed())
-            return;
+    public void close() {
+        lock.writeLock().lock();
+        try{
+            if(isClosed())
+                return;
 
-        updateCacheEntries();
-        super.close();
-        _hash = null;
+            updateCacheEntries();
+            super.close();
+            synchronized (_hash){
+                _hash.clear();
+                _first = null;
+                _last = null;
+                _weight = 0;
+            }
+        }finally {
+            lock.writeLock().unlock();
+        }
     }
 
 
 
-    public synchronized void rollback() {
+    public void rollback() {
+        lock.writeLock().lock();
+        try{
+            // discard all cache entries since we don't know which entries
+            // where part of the transaction
+            synchronized (_hash){
+                _hash.clear();
+                _first = null;
+                _last = null;
+                _weight = 0;
+            }
 
-        // discard all cache entries since we don't know which entries
-        // where part of the transaction
-        synchronized (_hash){
-            _hash.clear();
-            _first = null;
-            _last = null;
+            super.rollback();
+        }finally {
+            lock.writeLock().unlock();
         }
-
-        super.rollback();
     }
 
 
@@ -220,21 +317,33 @@ class DBCacheMRU
     /**
      * Place an object in the cache.
      *
+     * @param weight estimated memory used by object, ignored if cache is not limited by weight
      * @throws IOException
      */
-    protected void cachePut(final long recid, final Object value) throws IOException {
+    protected void cachePut(final long recid, final Object value, int weight) throws IOException {
         synchronized (_hash){
             CacheEntry entry = _hash.get(recid);
             if (entry != null) {
                 entry._obj = value;
+                _weight += weight - entry._weight;
+                entry._weight = weight;
                 //touch entry
                 if (_last != entry) {
                     removeEntry(entry);
                     addEntry(entry);
                 }
             } else {
-
-                if (_hash.size() >= _max) {
+                if (_maxWeight > 0) {
+                    //object bigger than whole cache is not cached
+                    if (weight > _maxWeight)
+                        return;
+                    //release least recently used objects until there is space for new one
+                    while (_weight + weight > _maxWeight)
+                        purgeEntry();
+                    entry = new CacheEntry(recid, value);
+                    entry._weight = weight;
+                    _weight += weight;
+                } else if (_hash.size() >= _max) {
                     // purge and recycle entry
                     entry = purgeEntry();
                     entry._recid = recid;
@@ -300,9 +409,12 @@ class DBCacheMRU
             if (entry == null)
                 return new CacheEntry(-1, null);
 
+            cacheEvictions.increment();
             removeEntry(entry);
             _hash.remove(entry._recid);
+            _weight -= entry._weight;
             entry._obj = null;
+            entry._weight = 0;
             return entry;
         }
     }
@@ -315,6 +427,8 @@ class DBCacheMRU
 
         protected long _recid;
         protected Object _obj;
+        /** estimated memory used by object, only used if cache is limited by weight */
+        protected int _weight;
 
 
         protected CacheEntry _previous;
@@ -335,14 +449,20 @@ class DBCacheMRU
 
         // discard all cache entries since we don't know which entries
         // where part of the transaction
-        synchronized (_hash){
-            _hash.clear();
-            _first = null;
-            _last = null;
+        lock.writeLock().lock();
+        try{
+            synchronized (_hash){
+                _hash.clear();
+                _first = null;
+                _last = null;
+                _weight = 0;
+            }
+            clearRegions();
 
             //clear dirties
             updateCacheEntries();
-
+        }finally {
+            lock.writeLock().unlock();
         }
     }
 
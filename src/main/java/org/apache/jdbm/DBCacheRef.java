@@ -22,7 +22,6 @@ import java.lang.ref.ReferenceQueue;
 import java.lang.ref.SoftReference;
 import java.lang.ref.WeakReference;
 import java.util.Iterator;
-import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A DB wrapping and caching another DB.
@@ -45,28 +44,15 @@ public class DBCacheRef
     /**
      * If Soft Cache is enabled, this contains softly referenced clean entries.
      * If entry became dirty, it is moved to _hash with limited size.
-     * This map is accessed from SoftCache Disposer thread, so all access must be
-     * synchronized
+     * This map is accessed from {@link CacheReclaimer} thread, so all access must be
+     * synchronized. It is never null, cache hits are served without store lock and may come after close.
      */
-    protected LongHashMap _softHash;
+    protected final LongHashMap _softHash;
 
     /**
-     * Reference queue used to collect Soft Cache entries
+     * Reference queue used to collect Soft Cache entries, it is shared by all caches
      */
-    protected ReferenceQueue<ReferenceCacheEntry> _refQueue;
-
-
-
-    /**
-     * Thread in which Soft Cache references are disposed
-     */
-    protected Thread _softRefThread;
-
-    protected static AtomicInteger threadCounter = new AtomicInteger(0);
-
-
-    /** counter which counts number of insert since last 'action'*/
-    protected int insertCounter = 0;
+    protected ReferenceQueue<Object> _refQueue;
 
     private final boolean _autoClearReferenceCacheOnLowMem;
     private final byte _cacheType;
@@ -79,11 +65,12 @@ public class DBCacheRef
     public DBCacheRef(String filename, boolean readonly, boolean transactionDisabled,
                       Cipher cipherIn, Cipher cipherOut, boolean useRandomAccessFile,
                       boolean deleteFilesAfterClose,
-                      byte cacheType, boolean cacheAutoClearOnLowMem, boolean lockingDisabled) {
+                      byte cacheType, boolean cacheAutoClearOnLowMem, boolean lockingDisabled, long groupCommitWait,
+                      boolean backgroundCheckpoint, int pageShift, int segmentShift, long pageCacheSize) {
 
         super(filename, readonly, transactionDisabled,
                 cipherIn, cipherOut, useRandomAccessFile,
-                deleteFilesAfterClose, lockingDisabled);
+                deleteFilesAfterClose, lockingDisabled, groupCommitWait, backgroundCheckpoint, pageShift, segmentShift, pageCacheSize);
 
 
         this._cacheType = cacheType;
@@ -91,44 +78,36 @@ public class DBCacheRef
 
 
         _softHash = new LongHashMap<ReferenceCacheEntry>();
-        _refQueue = new ReferenceQueue<ReferenceCacheEntry>();
-        _softRefThread = new Thread(
-                    new SoftRunnable(this, _refQueue),
-                    "JDBM Soft Cache Disposer " + (threadCounter.incrementAndGet()));
-        _softRefThread.setDaemon(true);
-        _softRefThread.start();
+        _refQueue = CacheReclaimer.QUEUE;
+        CacheReclaimer.register(this);
 
     }
 
 
-    void clearCacheIfLowOnMem() {
-
-        insertCounter = 0;
-
+    /**
+     * Releases given fraction of cache entries, called by {@link CacheReclaimer} when heap is low.
+     * Dirty entries are not in this cache, so they are never released.
+     */
+    void reclaim(double fraction) {
         if(!_autoClearReferenceCacheOnLowMem)
             return;
 
-        Runtime r = Runtime.getRuntime();
-        long max = r.maxMemory();
-        if(max == Long.MAX_VALUE)
-            return;
-
-        double free = r.freeMemory();
-        double total = r.totalMemory();
-        //We believe that free refers to total not max.
-        //Increasing heap size to max would increase to max
-        free = free + (max-total);
-
-        if(debug)
-            System.err.println("DBCache: freemem = " +free + " = "+(free/max)+"%");
-
-        if(free<1e7 || free*4 <max)
-            clearCache();
-
-
+        final LongHashMap softHash = _softHash;
+        synchronized (softHash) {
+            int toRelease = (int) Math.ceil(softHash.size() * fraction);
+            if(debug)
+                System.err.println("DBCache: releasing "+toRelease+" of "+softHash.size()+" entries");
+            for(Iterator iter = softHash.valuesIterator(); toRelease>0 && iter.hasNext(); toRelease--){
+                Object e = iter.next();
+                if(e instanceof ReferenceCacheEntry)
+                    ((ReferenceCacheEntry)e).clear();
+                iter.remove();
+                cacheEvictions.increment();
+            }
+        }
     }
 
-    public synchronized <A> A fetch(long recid, Serializer<A> serializer, boolean disableCache) throws IOException {
+    public <A> A fetch(long recid, Serializer<A> serializer, boolean disableCache) throws IOException {
 
         if (disableCache)
             return super.fetch(recid, serializer, disableCache);
@@ -137,127 +116,165 @@ public class DBCacheRef
     }
 
 
-    public synchronized void delete(long recid)
+    public void delete(long recid)
             throws IOException {
-        checkNotClosed();
-
-        super.delete(recid);
-        synchronized (_hashDirties){
-            _hashDirties.remove(recid);
-        }
-        synchronized (_softHash) {
-            Object e = _softHash.remove(recid);
-            if (e != null && e instanceof ReferenceCacheEntry) {
-                ((ReferenceCacheEntry)e).clear();
+        lock.writeLock().lock();
+        try{
+            checkNotClosed();
+
+            super.delete(recid);
+            removeFromRegions(recid);
+            synchronized (_hashDirties){
+                _hashDirties.remove(recid);
+            }
+            synchronized (_softHash) {
+                Object e = _softHash.remove(recid);
+                if (e != null && e instanceof ReferenceCacheEntry) {
+                    ((ReferenceCacheEntry)e).clear();
+                }
             }
-        }
-
-        if(needsAutoCommit())
-            commit();
 
+            if(needsAutoCommit())
+                commit();
+        }finally {
+            lock.writeLock().unlock();
+        }
     }
 
-    public synchronized <A> void update(final long recid, A obj, Serializer<A> serializer) throws IOException {
-        checkNotClosed();
-
-
-        synchronized (_softHash) {
-            //soft cache can not contain dirty objects
-            Object e = _softHash.remove(recid);
-            if (e != null && e instanceof ReferenceCacheEntry) {
-                ((ReferenceCacheEntry)e).clear();
+    public <A> void update(final long recid, A obj, Serializer<A> serializer) throws IOException {
+        lock.writeLock().lock();
+        try{
+            checkNotClosed();
+            checkWriteBehindFailure();
+
+            final CacheRegion region = regionOf(serializer);
+            if (region != null)
+                region.remove(recid);
+
+            synchronized (_softHash) {
+                //soft cache can not contain dirty objects
+                Object e = _softHash.remove(recid);
+                if (e != null && e instanceof ReferenceCacheEntry) {
+                    ((ReferenceCacheEntry)e).clear();
+                }
+            }
+            synchronized (_hashDirties){
+                //put into dirty cache
+                final DirtyCacheEntry e = new DirtyCacheEntry();
+                e._recid = recid;
+                e._obj = obj;
+                e._serializer = serializer;
+                _hashDirties.put(recid,e);
             }
-        }
-        synchronized (_hashDirties){
-            //put into dirty cache
-            final DirtyCacheEntry e = new DirtyCacheEntry();
-            e._recid = recid;
-            e._obj = obj;
-            e._serializer = serializer;
-            _hashDirties.put(recid,e);
-        }
-
-        if(needsAutoCommit())
-            commit();
 
+            if(needsAutoCommit())
+                commit();
+        }finally {
+            lock.writeLock().unlock();
+        }
     }
 
 
-    public synchronized <A> A fetch(long recid, Serializer<A> serializer)
+    public <A> A fetch(long recid, Serializer<A> serializer)
             throws IOException {
         checkNotClosed();
 
-        synchronized (_softHash) {
-            Object e = _softHash.get(recid);
-            if (e != null) {
+        final CacheRegion region = regionOf(serializer);
+        if (region != null && region.holdsAllRecords())
+            return fetchFromRegion(recid, serializer, region);
 
-                if(e instanceof ReferenceCacheEntry)
-                    e = ((ReferenceCacheEntry)e).get();
-                if (e != null) {
-                    return (A) e;
-                }
-            }
+        //cache hit does not need store lock
+        Object e = cacheGet(recid);
+        if (e != null) {
+            cacheHits.increment();
+            return (A) e;
         }
 
+        //cache miss, read lock makes sure that no write happens between store fetch and cache put
+        lock.readLock().lock();
+        try{
+            checkNotClosed();
 
-        synchronized (_hashDirties){
             DirtyCacheEntry e2 = _hashDirties.get(recid);
             if(e2!=null){
+                cacheHits.increment();
                 return (A) e2._obj;
             }
-        }
-
-
+            cacheMisses.increment();
 
+            A value = super.fetch(recid, serializer);
 
-        A value = super.fetch(recid, serializer);
+            synchronized (_softHash) {
 
-        if(needsAutoCommit())
-            commit();
+                if (_cacheType == SOFT)
+                    _softHash.put(recid, new SoftCacheEntry(recid, value, _refQueue, _softHash));
+                else if (_cacheType == WEAK)
+                    _softHash.put(recid, new WeakCacheEntry(recid, value, _refQueue, _softHash));
+                else
+                    _softHash.put(recid,value);
+            }
 
-           synchronized (_softHash) {
+            return value;
+        }finally {
+            lock.readLock().unlock();
+        }
+    }
 
-                    if (_cacheType == SOFT)
-                        _softHash.put(recid, new SoftCacheEntry(recid, value, _refQueue));
-                    else if (_cacheType == WEAK)
-                        _softHash.put(recid, new WeakCacheEntry(recid, value, _refQueue));
-                    else
-                        _softHash.put(recid,value);
-           }
+    private Object cacheGet(long recid){
+        synchronized (_softHash) {
+            Object e = _softHash.get(recid);
+            if(e instanceof ReferenceCacheEntry)
+                e = ((ReferenceCacheEntry)e).get();
+            return e;
+        }
+    }
 
 
-        return value;
+    int cacheSize() {
+        synchronized (_softHash) {
+            return _softHash.size();
+        }
     }
 
 
-    public synchronized void close() {
-        checkNotClosed();
+    public void close() {
+        lock.writeLock().lock();
+        try{
+            checkNotClosed();
 
-        updateCacheEntries();
-        super.close();
-        _softHash = null;
-        _softRefThread.interrupt();
+            updateCacheEntries();
+            super.close();
+            CacheReclaimer.unregister(this);
+            clearSoftHash();
+        }finally {
+            lock.writeLock().unlock();
+        }
     }
 
 
 
 
-    public synchronized void rollback() {
-        checkNotClosed();
+    public void rollback() {
+        lock.writeLock().lock();
+        try{
+            checkNotClosed();
 
 
-        // discard all cache entries since we don't know which entries
-        // where part of the transaction
-        synchronized (_softHash) {
-            Iterator<ReferenceCacheEntry> iter = _softHash.valuesIterator();
-            while (iter.hasNext()) {
-                ReferenceCacheEntry e = iter.next();
-                e.clear();
+            // discard all cache entries since we don't know which entries
+            // where part of the transaction
+            synchronized (_softHash) {
+                Iterator<ReferenceCacheEntry> iter = _softHash.valuesIterator();
+                while (iter.hasNext()) {
+                    ReferenceCacheEntry e = iter.next();
+                    e.clear();
+                }
+                _softHash.clear();
             }
-            _softHash.clear();
-        }
 
-        super.rollback();
+            super.rollback();
+        }finally {
+            lock.writeLock().unlock();
+        }
     }
 
 
@@ -284,94 +301,57 @@ public class DBCacheRef
         void clear();
 
         Object get();
+
+        /** removes this entry from cache after its reference was cleared by GC */
+        void removeFromCache();
     }
 
     @SuppressWarnings("unchecked")
     static final class SoftCacheEntry extends SoftReference implements ReferenceCacheEntry {
         protected final long _recid;
+        /** cache map this entry belongs to, not the DB itself, so closed DB can be GCed */
+        protected final LongHashMap _owner;
 
         public long getRecid() {
             return _recid;
         }
 
-        SoftCacheEntry(long recid, Object obj, ReferenceQueue queue) {
+        SoftCacheEntry(long recid, Object obj, ReferenceQueue queue, LongHashMap owner) {
             super(obj, queue);
             _recid = recid;
+            _owner = owner;
+        }
+
+        public void removeFromCache() {
+            synchronized (_owner) {
+                //entry may be replaced by newer one meanwhile
+                if (_owner.get(_recid) == this)
+                    _owner.remove(_recid);
+            }
         }
     }
 
     @SuppressWarnings("unchecked")
     static final class WeakCacheEntry extends WeakReference implements ReferenceCacheEntry {
         protected final long _recid;
+        /** cache map this entry belongs to, not the DB itself, so closed DB can be GCed */
+        protected final LongHashMap _owner;
 
         public long getRecid() {
             return _recid;
         }
 
-        WeakCacheEntry(long recid, Object obj, ReferenceQueue queue) {
+        WeakCacheEntry(long recid, Object obj, ReferenceQueue queue, LongHashMap owner) {
             super(obj, queue);
             _recid = recid;
+            _owner = owner;
         }
 
-
-    }
-
-
-    /**
-     * Runs in separate thread and cleans SoftCache.
-     * Runnable auto exists when CacheRecordManager is GCed
-     *
-     * @author Jan Kotek
-     */
-    static final class SoftRunnable implements Runnable {
-
-        private ReferenceQueue<ReferenceCacheEntry> entryQueue;
-        private WeakReference<DBCacheRef> db2;
-
-        public SoftRunnable(DBCacheRef db,
-                            ReferenceQueue<ReferenceCacheEntry> entryQueue) {
-            this.db2 = new WeakReference<DBCacheRef>(db);
-            this.entryQueue = entryQueue;
-        }
-
-        public void run() {
-            while (true) try {
-
-                //collect next item from cache,
-                //limit 10000 ms is to keep periodically checking if db was GCed
-                ReferenceCacheEntry e = (ReferenceCacheEntry) entryQueue.remove(10000);
-
-                //check if  db was GCed, cancel in that case
-                DBCacheRef db = db2.get();
-                if (db == null)
-                    return;
-
-                if (e != null) {
-
-                    synchronized (db._softHash) {
-                        int counter = 0;
-                        while (e != null) {
-                            db._softHash.remove(e.getRecid());
-                            e = (SoftCacheEntry) entryQueue.poll();
-                            if(debug)
-                                counter++;
-                        }
-                        if(debug)
-                            System.err.println("DBCache: "+counter+" objects released from ref cache.");
-                    }
-                }else{
-                    //check memory consumption every 10 seconds
-                    db.clearCacheIfLowOnMem();
-
-                }
-
-
-            } catch (InterruptedException e) {
-                return;
-            } catch (Throwable e) {
-                //this thread must keep spinning,
-                //otherwise SoftCacheEntries would not be disposed
-                e.printStackTrace();
+        public void removeFromCache() {
+            synchronized (_owner) {
+                //entry may be replaced by newer one meanwhile
+                if (_owner.get(_recid) == this)
+                    _owner.remove(_recid);
             }
         }
 
@@ -383,6 +363,12 @@ public class DBCacheRef
             System.err.println("DBCache: Clear cache");
 
 
+        clearSoftHash();
+        clearRegions();
+
+    }
+
+    private void clearSoftHash(){
         synchronized (_softHash) {
             if(_cacheType!=HARD){
                 Iterator<ReferenceCacheEntry> iter = _softHash.valuesIterator();
@@ -393,7 +379,6 @@ public class DBCacheRef
             }
             _softHash.clear();
         }
-
     }
 
 
@@ -0,0 +1,528 @@
+/*******************************************************************************
+ * Copyright 2010 Cees De Groot, Alex Boisvert, Jan Kotek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package org.apache.jdbm;
+
+import javax.crypto.Cipher;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * A DB with scan resistant instance cache of limited size.
+ * <p/>
+ * Cache uses W-TinyLFU policy. New records enter small LRU window.
+ * Record evicted from window competes with eviction victim of main cache,
+ * the one which was accessed more frequently stays. Access frequency is estimated by
+ * {@link FrequencySketch}. Main cache is segmented LRU, records accessed at least twice
+ * are moved from probation into protected segment.
+ * Single iteration over large collection only touches window and probation segment,
+ * so frequently used records stay in cache.
+ * <p/>
+ * Cache is split into stripes by recid, each stripe has its own lock and sketch,
+ * so concurrent readers do not contend on single lock.
+ *
+ * @author Jan Kotek
+ */
+class DBCacheTinyLfu
+        extends DBCache {
+
+    /** number of stripes, must be power of two */
+    static final int STRIPES = 16;
+
+    /** window takes 1% of cache */
+    static final int WINDOW_PERCENT = 1;
+    /** protected segment takes 80% of main cache */
+    static final int PROTECTED_PERCENT = 80;
+
+    /** cache stripes, it is never null, cache hits are served without store lock and may come after close */
+    protected final Stripe[] _stripes;
+
+
+    /**
+     * Construct a CacheRecordManager wrapping another DB and
+     * using a W-TinyLFU cache policy.
+     */
+    public DBCacheTinyLfu(String filename, boolean readonly, boolean transactionDisabled,
+                          Cipher cipherIn, Cipher cipherOut, boolean useRandomAccessFile,
+                          boolean deleteFilesAfterClose, int cacheMaxRecords, boolean lockingDisabled, long groupCommitWait,
+                          boolean backgroundCheckpoint, int pageShift, int segmentShift, long pageCacheSize)  {
+        super(filename, readonly, transactionDisabled,
+                cipherIn, cipherOut, useRandomAccessFile,
+                deleteFilesAfterClose,lockingDisabled, groupCommitWait, backgroundCheckpoint, pageShift, segmentShift, pageCacheSize);
+
+        //small caches are not striped, so eviction stays accurate
+        final int stripes = cacheMaxRecords >= STRIPES * 100 ? STRIPES : 1;
+        _stripes = new Stripe[stripes];
+        for (int i = 0; i < stripes; i++) {
+            //distribute remainder, so total capacity is exactly cacheMaxRecords
+            final int capacity = cacheMaxRecords / stripes + (i < cacheMaxRecords % stripes ? 1 : 0);
+            _stripes[i] = new Stripe(capacity);
+        }
+    }
+
+    protected Stripe stripe(long recid) {
+        int h = (int) (recid ^ (recid >>> 32));
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return _stripes[h & (_stripes.length - 1)];
+    }
+
+
+    public <A> A fetch(long recid, Serializer<A> serializer, boolean disableCache) throws IOException {
+
+        if (disableCache)
+            return super.fetch(recid, serializer, disableCache);
+        else
+            return fetch(recid, serializer);
+    }
+
+
+    public void delete(long recid)
+            throws IOException {
+        lock.writeLock().lock();
+        try{
+            checkNotClosed();
+
+            super.delete(recid);
+            removeFromRegions(recid);
+            stripe(recid).remove(recid);
+            _hashDirties.remove(recid);
+
+            if(super.needsAutoCommit())
+                commit();
+        }finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public <A> void update(final long recid, final A obj, final Serializer<A> serializer) throws IOException {
+        lock.writeLock().lock();
+        try{
+            checkNotClosed();
+            checkWriteBehindFailure();
+
+            final CacheRegion region = regionOf(serializer);
+            if (region != null)
+                region.remove(recid);
+
+            //remove entry if it already exists
+            stripe(recid).remove(recid);
+
+            //check if entry is in dirties, in this case just update its object
+            DirtyCacheEntry e = _hashDirties.get(recid);
+            if(e!=null){
+                if(recid!=e._recid) throw new Error();
+                e._obj = obj;
+                e._serializer = serializer;
+                return;
+            }
+
+            //create new dirty entry
+            e = new DirtyCacheEntry();
+            e._recid = recid;
+            e._obj = obj;
+            e._serializer = serializer;
+            _hashDirties.put(recid,e);
+
+            if(super.needsAutoCommit())
+                commit();
+        }finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+
+    public <A> A fetch(long recid, Serializer<A> serializer)
+            throws IOException {
+
+        checkNotClosed();
+
+        final CacheRegion region = regionOf(serializer);
+        if (region != null && region.holdsAllRecords())
+            return fetchFromRegion(recid, serializer, region);
+
+        //cache hit does not need store lock
+        final Stripe stripe = stripe(recid);
+        Node node = stripe.get(recid);
+        if (node != null) {
+            cacheHits.increment();
+            return (A) node._obj;
+        }
+
+        //cache miss, read lock makes sure that no write happens between store fetch and cache put
+        lock.readLock().lock();
+        try{
+            checkNotClosed();
+            //access was already recorded by first lookup, do not count it twice
+            node = stripe.getRecorded(recid);
+            if (node != null) {
+                cacheHits.increment();
+                return (A) node._obj;
+            }
+
+            //check dirties
+            final DirtyCacheEntry entry2 = _hashDirties.get(recid);
+            if(entry2!=null){
+                cacheHits.increment();
+                return (A) entry2._obj;
+            }
+            cacheMisses.increment();
+
+            A value = super.fetch(recid, serializer);
+
+            //put record into cache
+            stripe.put(recid, value);
+
+            return value;
+        }finally {
+            lock.readLock().unlock();
+        }
+    }
+
+
+    int cacheSize() {
+        int size = 0;
+        for (Stripe s : _stripes)
+            size += s.size();
+        return size;
+    }
+
+    @Override
+    void collectMetrics(Map<String, Long> metrics) {
+        super.collectMetrics(metrics);
+        long evictions = 0;
+        for (Stripe s : _stripes)
+            evictions += s.evictions();
+        //evictions are counted by stripes
+        metrics.put("cache.evictions", evictions);
+    }
+
+
+    public void close() {
+        lock.writeLock().lock();
+        try{
+            if(isClosed())
+                return;
+
+            updateCacheEntries();
+            super.close();
+            for (Stripe s : _stripes)
+                s.clear();
+        }finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+
+
+    public void rollback() {
+        lock.writeLock().lock();
+        try{
+            // discard all cache entries since we don't know which entries
+            // where part of the transaction
+            for (Stripe s : _stripes)
+                s.clear();
+
+            super.rollback();
+        }finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+
+    public void clearCache() {
+        // discard all cache entries since we don't know which entries
+        // where part of the transaction
+        lock.writeLock().lock();
+        try{
+            for (Stripe s : _stripes)
+                s.clear();
+            clearRegions();
+
+            //clear dirties
+            updateCacheEntries();
+        }finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+
+    static final byte WINDOW = 0;
+    static final byte PROBATION = 1;
+    static final byte PROTECTED = 2;
+
+    static final class Node {
+
+        protected long _recid;
+        protected Object _obj;
+        /** segment this node is in */
+        protected byte _queue;
+
+        protected Node _previous;
+        protected Node _next;
+
+        Node(long recid, Object obj) {
+            _recid = recid;
+            _obj = obj;
+        }
+    }
+
+    /**
+     * Doubly linked list with sentinel, head is least recently used.
+     */
+    static final class Queue {
+        final Node sentinel = new Node(-1, null);
+        int size = 0;
+
+        Queue() {
+            sentinel._previous = sentinel;
+            sentinel._next = sentinel;
+        }
+
+        void addLast(Node node) {
+            node._previous = sentinel._previous;
+            node._next = sentinel;
+            sentinel._previous._next = node;
+            sentinel._previous = node;
+            size++;
+        }
+
+        void remove(Node node) {
+            node._previous._next = node._next;
+            node._next._previous = node._previous;
+            node._previous = null;
+            node._next = null;
+            size--;
+        }
+
+        void moveToLast(Node node) {
+            remove(node);
+            addLast(node);
+        }
+
+        /** returns least recently used node or null if empty */
+        Node first() {
+            return sentinel._next == sentinel ? null : sentinel._next;
+        }
+
+        void clear() {
+            sentinel._previous = sentinel;
+            sentinel._next = sentinel;
+            size = 0;
+        }
+    }
+
+    /**
+     * Independent W-TinyLFU cache for part of recids.
+     */
+    static final class Stripe {
+
+        final LongHashMap<Node> map;
+        final FrequencySketch sketch;
+
+        final Queue window = new Queue();
+        final Queue probation = new Queue();
+        final Queue protect = new Queue();
+
+        final int windowMax;
+        final int mainMax;
+        final int protectedMax;
+
+        /** number of records evicted from this stripe */
+        private long evictions = 0;
+
+        Stripe(int capacity) {
+            map = new LongHashMap<Node>(capacity);
+            sketch = new FrequencySketch(capacity);
+            windowMax = Math.max(1, capacity * WINDOW_PERCENT / 100);
+            mainMax = Math.max(0, capacity - windowMax);
+            protectedMax = mainMax * PROTECTED_PERCENT / 100;
+        }
+
+        /**
+         * Returns cached node and records access. Access is recorded also on miss,
+         * so sketch knows how often record is requested.
+         */
+        synchronized Node get(long recid) {
+            sketch.increment(recid);
+            return getRecorded(recid);
+        }
+
+        /**
+         * Returns cached node, access must be already recorded in sketch by {@link #get(long)}.
+         */
+        synchronized Node getRecorded(long recid) {
+            final Node node = map.get(recid);
+            if (node != null)
+                onHit(node);
+            return node;
+        }
+
+        private void onHit(Node node) {
+            if (node._queue == WINDOW) {
+                window.moveToLast(node);
+            } else if (node._queue == PROBATION) {
+                //second access, promote into protected segment
+                probation.remove(node);
+                node._queue = PROTECTED;
+                protect.addLast(node);
+                if (protect.size > protectedMax) {
+                    //demote least recently used protected node
+                    final Node demoted = protect.first();
+                    protect.remove(demoted);
+                    demoted._queue = PROBATION;
+                    probation.addLast(demoted);
+                }
+            } else {
+                protect.moveToLast(node);
+            }
+        }
+
+        synchronized void put(long recid, Object value) {
+            Node node = map.get(recid);
+            if (node != null) {
+                node._obj = value;
+                onHit(node);
+                return;
+            }
+            node = new Node(recid, value);
+            node._queue = WINDOW;
+            window.addLast(node);
+            map.put(recid, node);
+            if (window.size <= windowMax)
+                return;
+
+            //move candidate from window into main cache
+            final Node candidate = window.first();
+            window.remove(candidate);
+            candidate._queue = PROBATION;
+            probation.addLast(candidate);
+            if (probation.size + protect.size <= mainMax)
+                return;
+
+            //main cache is full, candidate competes with victim
+            Node victim = probation.first();
+            if (victim == candidate || victim == null)
+                victim = protect.first();
+            if (victim != null && victim != candidate &&
+                    sketch.frequency(candidate._recid) > sketch.frequency(victim._recid)) {
+                evict(victim);
+            } else {
+                evict(candidate);
+            }
+        }
+
+        private void evict(Node node) {
+            if (node._queue == PROTECTED)
+                protect.remove(node);
+            else
+                probation.remove(node);
+            map.remove(node._recid);
+            node._obj = null;
+            evictions++;
+        }
+
+        synchronized long evictions() {
+            return evictions;
+        }
+
+        synchronized void remove(long recid) {
+            final Node node = map.remove(recid);
+            if (node == null)
+                return;
+            if (node._queue == WINDOW)
+                window.remove(node);
+            else if (node._queue == PROBATION)
+                probation.remove(node);
+            else
+                protect.remove(node);
+        }
+
+        synchronized void clear() {
+            map.clear();
+            window.clear();
+            probation.clear();
+            protect.clear();
+        }
+
+        synchronized int size() {
+            return map.size();
+        }
+    }
+
+    /**
+     * Count-Min sketch with 4-bit counters, estimates how often recid was accessed.
+     * Counters are halved after number of increments reaches ten times cache size,
+     * so old popularity fades away.
+     */
+    static final class FrequencySketch {
+
+        static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+        static final long RESET_MASK = 0x7777777777777777L;
+
+        /** each long holds sixteen 4-bit counters */
+        final long[] table;
+        final int tableMask;
+        final int sampleSize;
+        int additions = 0;
+
+        FrequencySketch(int capacity) {
+            int size = 1;
+            while (size < capacity && size < (1 << 30))
+                size <<= 1;
+            table = new long[size];
+            tableMask = size - 1;
+            sampleSize = Math.max(capacity, 16) * 10;
+        }
+
+        private static long hash(long recid, int depth) {
+            long h = (recid + SEEDS[depth]) * SEEDS[depth];
+            return h ^ (h >>> 31);
+        }
+
+        int frequency(long recid) {
+            int min = 15;
+            for (int i = 0; i < 4; i++) {
+                final long h = hash(recid, i);
+                final int counter = (int) ((table[(int) (h >>> 32) & tableMask] >>> ((h & 15) << 2)) & 15);
+                min = Math.min(min, counter);
+            }
+            return min;
+        }
+
+        void increment(long recid) {
+            boolean added = false;
+            for (int i = 0; i < 4; i++) {
+                final long h = hash(recid, i);
+                final int index = (int) (h >>> 32) & tableMask;
+                final int shift = (int) (h & 15) << 2;
+                if (((table[index] >>> shift) & 15) != 15) {
+                    table[index] += 1L << shift;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize)
+                reset();
+        }
+
+        private void reset() {
+            for (int i = 0; i < table.length; i++)
+                table[i] = (table[i] >>> 1) & RESET_MASK;
+            additions /= 2;
+        }
+    }
+
+}
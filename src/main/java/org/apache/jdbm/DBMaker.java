@@ -30,8 +30,15 @@ import java.security.spec.KeySpec;
  */
 public class DBMaker {
 
+    /**
+     * Size of record cache which is enabled by {@link #enableCacheWarmup()} if record cache is not enabled explicitly.
+     */
+    public static final long WARMUP_RECORD_CACHE_SIZE = 16 << 20;
+
     private byte cacheType = DBCacheRef.MRU;
     private int mruCacheSize = 2048;
+    private long mruCacheMaxWeight = 0;
+    private int tinyLfuCacheSize = 2048;
 
     private String location = null;
 
@@ -44,6 +51,15 @@ public class DBMaker {
     private boolean autoClearRefCacheOnLowMem = true;
     private  boolean closeOnJVMExit = false;
     private  boolean deleteFilesAfterCloseFlag = false;
+    private long groupCommitWait = -1;
+    private boolean backgroundCheckpoint = false;
+    private int pageShift = Storage.PAGE_SIZE_SHIFT;
+    private int segmentShift = StorageDiskMapped.SEGMENT_SIZE_SHIFT;
+    private long pageCacheSize = 0;
+    private int writeBehindMaxDirty = 0;
+    private long recordCacheSize = 0;
+    private boolean jmxEnabled = false;
+    private boolean cacheWarmup = false;
 
 
     private DBMaker(){}
@@ -150,15 +166,53 @@ public class DBMaker {
         if (cacheSize < 0) throw new IllegalArgumentException("Cache size is smaller than zero");
         cacheType = DBCacheRef.MRU;
         mruCacheSize = cacheSize;
+        mruCacheMaxWeight = 0;
+        return this;
+    }
+
+    /**
+     * Limits 'Most Recently Used' cache by memory rather than by number of instances.
+     * Small instances (such as tree nodes) and large instances do not count the same,
+     * so heap usage of cache is more predictable.
+     * <p/>
+     * Memory used by instance is estimated from its serialized size plus constant overhead.
+     * Deserialized objects are usually larger than their serialized form, so real heap usage
+     * may be several times bigger than this limit.
+     *
+     * @param maxBytes estimated memory which instances in cache may use
+     * @return this builder
+     */
+    public DBMaker setMRUCacheMemoryLimit(long maxBytes) {
+        if (maxBytes <= 0) throw new IllegalArgumentException("Cache memory limit must be positive");
+        cacheType = DBCacheRef.MRU;
+        mruCacheMaxWeight = maxBytes;
+        return this;
+    }
+
+    /**
+     * Use scan resistant cache with limited size.
+     * Unlike MRU cache, single iteration over large collection does not evict frequently used instances.
+     * New instance is admitted into cache only if it is accessed more often than instance it would replace.
+     * Cache is split into independently locked stripes, so it scales with concurrent readers.
+     * This cache is not cleared by GC.
+     *
+     * @param cacheSize number of instances which will be kept in cache.
+     * @return this builder
+     */
+    public DBMaker enableTinyLfuCache(int cacheSize) {
+        if (cacheSize <= 0) throw new IllegalArgumentException("Cache size must be positive");
+        cacheType = DBCacheRef.TINY_LFU;
+        tinyLfuCacheSize = cacheSize;
         return this;
     }
 
     /**
      * If reference (soft,weak or hard) cache is enabled,
      * GC may not release references fast enough (or not at all in case of hard cache).
-     * So JDBM periodically checks amount of free heap memory.
-     * If free memory is less than 25% or 10MB,
-     * JDBM completely clears its reference cache to prevent possible memory issues.
+     * So JDBM watches heap usage after garbage collection.
+     * If more than 75% of heap is still used, JDBM releases part of its reference cache,
+     * the more heap is used the more entries are released.
+     * Single background thread serves all open databases.
      * <p>
      * Calling this method disables auto cache clearing when mem is low.
      * And of course it can cause some out of memory exceptions.
@@ -232,6 +286,24 @@ public class DBMaker {
         this.disableTransactions = true;
         return this;
     }
+
+    /**
+     * Enables write behind. Updated records are normally kept in instance cache until commit,
+     * and all of them are serialized and written at once by thread which commits.
+     * With write behind, background thread serializes dirty records and writes them into store incrementally.
+     * Thread which updates records is only blocked when number of dirty records reaches given limit.
+     * This gives flatter memory usage and shorter commits for bulk updates.
+     * <p/>
+     * Has effect only if transactions are disabled and instance cache is enabled.
+     *
+     * @param maxDirtyRecords maximal number of dirty records kept in memory
+     * @return this builder
+     */
+    public DBMaker enableWriteBehind(int maxDirtyRecords){
+        if(maxDirtyRecords<=1) throw new IllegalArgumentException("Dirty records limit is too small");
+        this.writeBehindMaxDirty = maxDirtyRecords;
+        return this;
+    }
     
     /**
      * Disable file system based locking (for file systems that do not support it).
@@ -255,6 +327,10 @@ public class DBMaker {
      * But this may behave strangely on some platforms.
      * Safe alternative is to use old RandomAccessFile rather then mapped ByteBuffer.
      * There is typically slower (pages needs to be copyed into memory on every write).
+     * <p/>
+     * Files are accessed with positional reads and writes on FileChannel, which are safe for concurrent readers,
+     * and consecutive dirty pages are written together. It does not use virtual memory,
+     * so it is good option for 32-bit JVMs and environments with limited address space.
      *
      * @return this builder
      */
@@ -264,6 +340,158 @@ public class DBMaker {
     }
 
 
+    /**
+     * Enables group commit. By default each commit writes transaction into log and syncs it to disk,
+     * so number of commits per second is limited by disk sync latency.
+     * With group commit concurrent commits are written into log together and share single sync.
+     * <p/>
+     * Thread which commits first waits for other concurrent commits, at most given time, then it writes and syncs all of them.
+     * Single committer does not wait.
+     * Each commit is still durable when {@link DB#commit()} returns.
+     * Use zero wait to only group commits which come while previous sync is in progress.
+     * <p/>
+     * Has no effect if transactions are disabled.
+     *
+     * @param maxWaitMicros how long to wait for other commits, in microseconds
+     * @return this builder
+     */
+    public DBMaker enableGroupCommit(int maxWaitMicros){
+        if(maxWaitMicros<0) throw new IllegalArgumentException("Wait can not be negative");
+        this.groupCommitWait = maxWaitMicros * 1000L;
+        return this;
+    }
+
+    /**
+     * Enables background checkpoint. By default committed pages are written from transaction log
+     * into data file by thread which commits, this causes latency spikes on some commits.
+     * With background checkpoint log is split into segments. Full segment is written into data file
+     * by background thread, while commits continue into new segment.
+     * Pages which are not written into data file yet are kept in memory.
+     * <p/>
+     * Has no effect if transactions are disabled.
+     *
+     * @return this builder
+     */
+    public DBMaker enableBackgroundCheckpoint(){
+        this.backgroundCheckpoint = true;
+        return this;
+    }
+
+    /**
+     * Sets page size used when new store is created. Default page size is 4KB.
+     * Bigger pages make fetches of large records faster, as record is split into less pages,
+     * but each modification writes more data into transaction log.
+     * <p/>
+     * Page size is recorded in file header, existing store is always opened with its original page size
+     * and this option is ignored.
+     *
+     * @param pageSize page size in bytes, power of two between 4KB and 16KB
+     * @return this builder
+     */
+    public DBMaker setPageSize(int pageSize){
+        int shift = Storage.PAGE_SIZE_SHIFT;
+        while((1<<shift)<pageSize && shift<Storage.PAGE_SIZE_SHIFT_MAX)
+            shift++;
+        if((1<<shift)!=pageSize)
+            throw new IllegalArgumentException("Page size must be power of two between "+
+                    Storage.PAGE_SIZE+" and "+(1<<Storage.PAGE_SIZE_SHIFT_MAX)+", but was "+pageSize);
+        this.pageShift = shift;
+        return this;
+    }
+
+    /**
+     * Sets size of segment files used when new store is created. Store is split into
+     * multiple files, default size of single file is 1GB. Very large stores should use bigger segments,
+     * so they do not end up with thousands of files.
+     * <p/>
+     * Memory mapped file is mapped in regions, which grow with file up to 1GB.
+     * Existing regions are never remapped, so segment size is not limited by maximal size of mapped buffer.
+     * <p/>
+     * Segment size is recorded in file header, existing store is always opened with its original segment size
+     * and this option is ignored.
+     *
+     * @param segmentSize segment size in bytes, power of two between 1MB and 256TB
+     * @return this builder
+     */
+    public DBMaker setSegmentSize(long segmentSize){
+        int shift = StorageDiskMapped.SEGMENT_SIZE_SHIFT_MIN;
+        while((1L<<shift)<segmentSize && shift<StorageDiskMapped.SEGMENT_SIZE_SHIFT_MAX)
+            shift++;
+        if((1L<<shift)!=segmentSize)
+            throw new IllegalArgumentException("Segment size must be power of two between "+
+                    (1L<<StorageDiskMapped.SEGMENT_SIZE_SHIFT_MIN)+" and "+(1L<<StorageDiskMapped.SEGMENT_SIZE_SHIFT_MAX)+
+                    ", but was "+segmentSize);
+        this.segmentShift = shift;
+        return this;
+    }
+
+    /**
+     * Enables page cache. Pages read from file are kept in off-heap memory outside of Java heap,
+     * so page is not read from file and decrypted again on next access.
+     * It is second cache tier below instance cache, instance cache holds deserialized records,
+     * page cache holds raw pages.
+     * <p/>
+     * Page cache is useful with {@link #useRandomAccessFile()} or with encryption.
+     * It is not used for unencrypted memory mapped files, whose pages are already in memory,
+     * and for in-memory store.
+     *
+     * @param sizeInBytes maximal memory used by page cache, it must hold at least one page
+     * @return this builder
+     */
+    public DBMaker enablePageCache(long sizeInBytes){
+        if(sizeInBytes<(1<<Storage.PAGE_SIZE_SHIFT_MAX))
+            throw new IllegalArgumentException("Page cache is too small: "+sizeInBytes);
+        this.pageCacheSize = sizeInBytes;
+        return this;
+    }
+
+    /**
+     * Enables cache of serialized records. It is second cache tier below instance cache.
+     * Records are kept in serialized form, which is usually several times smaller than deserialized objects,
+     * so the same heap holds more records. Record is only deserialized on cache hit,
+     * it is not read from pages again.
+     * <p/>
+     * It helps when instance cache is disabled, too small, or bypassed
+     * (for example large BTree values which are loaded lazily).
+     *
+     * @param sizeInBytes maximal size of cached records
+     * @return this builder
+     */
+    public DBMaker enableRecordCache(long sizeInBytes){
+        if(sizeInBytes<=0) throw new IllegalArgumentException("Record cache size must be positive");
+        this.recordCacheSize = sizeInBytes;
+        return this;
+    }
+
+    /**
+     * Enables cache warmup after restart. On close recids of records in MRU cache are saved into side file,
+     * those records are preloaded when DB is opened again. Preload reads records in order of their physical location
+     * using several threads.
+     * <p/>
+     * Records are preloaded into record cache. If it is not enabled by {@link #enableRecordCache(long)},
+     * record cache of {@link #WARMUP_RECORD_CACHE_SIZE} bytes is enabled. Instance cache is filled on first access,
+     * as deserialization of collection nodes needs collection instance.
+     * Warmup is only supported by MRU cache, {@link #make()} fails with other cache types.
+     *
+     * @return this builder
+     */
+    public DBMaker enableCacheWarmup(){
+        this.cacheWarmup = true;
+        return this;
+    }
+
+    /**
+     * Registers metrics returned by {@link DB#getMetrics()} into platform MBean server,
+     * under name {@code org.apache.jdbm:type=DB,name="file name"}.
+     * MBean is unregistered when DB is closed.
+     *
+     * @return this builder
+     */
+    public DBMaker enableJmx(){
+        this.jmxEnabled = true;
+        return this;
+    }
+
     /**
      * Registers shutdown hook and close database on JVM exit, if it was not already closed; 
      * 
@@ -315,9 +543,9 @@ public class DBMaker {
             cipherOut.init(Cipher.DECRYPT_MODE, secret, params);
 
             //sanity check, try with page size
-            byte[] data = new byte[Storage.PAGE_SIZE];
+            byte[] data = new byte[1<<pageShift];
             byte[] encData = cipherIn.doFinal(data);
-            if (encData.length != Storage.PAGE_SIZE)
+            if (encData.length != data.length)
                 throw new Error("Page size changed after encryption, make sure you use '/NoPadding'");
             byte[] data2 = cipherOut.doFinal(encData);
             for (int i = 0; i < data.length; i++) {
@@ -328,19 +556,43 @@ public class DBMaker {
             throw new IOError(e);
         }
 
+        if(cacheWarmup && cacheType != DBCacheRef.MRU)
+            throw new IllegalArgumentException("Cache warmup is only supported by MRU cache");
+
         DBAbstract db = null;
 
 
         if (cacheType == DBCacheRef.MRU){
-          db = new DBCacheMRU(location, readonly, disableTransactions, cipherIn, cipherOut,useRandomAccessFile,deleteFilesAfterCloseFlag, mruCacheSize,lockingDisabled);
+          db = new DBCacheMRU(location, readonly, disableTransactions, cipherIn, cipherOut,useRandomAccessFile,deleteFilesAfterCloseFlag, mruCacheSize,mruCacheMaxWeight,lockingDisabled,groupCommitWait,backgroundCheckpoint,pageShift,segmentShift,pageCacheSize);
+        }else if (cacheType == DBCacheRef.TINY_LFU){
+            db = new DBCacheTinyLfu(location, readonly, disableTransactions, cipherIn, cipherOut,useRandomAccessFile,deleteFilesAfterCloseFlag, tinyLfuCacheSize,lockingDisabled,groupCommitWait,backgroundCheckpoint,pageShift,segmentShift,pageCacheSize);
         }else if( cacheType == DBCacheRef.SOFT || cacheType == DBCacheRef.HARD || cacheType == DBCacheRef.WEAK) {
-            db = new DBCacheRef(location, readonly, disableTransactions, cipherIn, cipherOut,useRandomAccessFile,deleteFilesAfterCloseFlag, cacheType,autoClearRefCacheOnLowMem,lockingDisabled);
+            db = new DBCacheRef(location, readonly, disableTransactions, cipherIn, cipherOut,useRandomAccessFile,deleteFilesAfterCloseFlag, cacheType,autoClearRefCacheOnLowMem,lockingDisabled,groupCommitWait,backgroundCheckpoint,pageShift,segmentShift,pageCacheSize);
         } else if (cacheType == DBCacheRef.NONE) {
-            db = new DBStore(location, readonly, disableTransactions, cipherIn, cipherOut,useRandomAccessFile,deleteFilesAfterCloseFlag,lockingDisabled);
+            db = new DBStore(location, readonly, disableTransactions, cipherIn, cipherOut,useRandomAccessFile,deleteFilesAfterCloseFlag,lockingDisabled,groupCommitWait,backgroundCheckpoint,pageShift,segmentShift,pageCacheSize);
         } else {
             throw new IllegalArgumentException("Unknown cache type: " + cacheType);
         }
         
+        if(recordCacheSize>0){
+            ((DBStore) db).enableRecordCache(recordCacheSize);
+        }else if(cacheWarmup){
+            //preloaded records are kept in record cache, instance cache can not deserialize them without collection
+            ((DBStore) db).enableRecordCache(WARMUP_RECORD_CACHE_SIZE);
+        }
+
+        if(writeBehindMaxDirty>0 && disableTransactions && !readonly && db instanceof DBCache){
+            ((DBCache) db).enableWriteBehind(writeBehindMaxDirty);
+        }
+
+        if(cacheWarmup && db instanceof DBCache){
+            ((DBCache) db).enableCacheWarmup();
+        }
+
+        if(jmxEnabled){
+            ((DBStore) db).registerMBean();
+        }
+
         if(closeOnJVMExit){
             db.addShutdownHook();
         }
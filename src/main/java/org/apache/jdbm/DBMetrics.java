@@ -0,0 +1,71 @@
+/*******************************************************************************
+ * Copyright 2010 Cees De Groot, Alex Boisvert, Jan Kotek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.apache.jdbm;
+
+import javax.management.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Exposes {@link DB#getMetrics()} as read only MBean attributes, one attribute per metric.
+ */
+final class DBMetrics implements DynamicMBean {
+
+    private final DB db;
+
+    DBMetrics(DB db) {
+        this.db = db;
+    }
+
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        final Long value = db.getMetrics().get(attribute);
+        if (value == null)
+            throw new AttributeNotFoundException("Unknown metric: " + attribute);
+        return value;
+    }
+
+    public AttributeList getAttributes(String[] attributes) {
+        final Map<String, Long> metrics = db.getMetrics();
+        final AttributeList ret = new AttributeList();
+        for (String name : attributes) {
+            final Long value = metrics.get(name);
+            if (value != null)
+                ret.add(new Attribute(name, value));
+        }
+        return ret;
+    }
+
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read only: " + attribute.getName());
+    }
+
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    public MBeanInfo getMBeanInfo() {
+        final List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+        for (String name : db.getMetrics().keySet())
+            attributes.add(new MBeanAttributeInfo(name, Long.class.getName(), name, true, false, false));
+        return new MBeanInfo(getClass().getName(), "JDBM metrics",
+                attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, null, null);
+    }
+}
@@ -18,7 +18,10 @@ package org.apache.jdbm;
 
 
 import javax.crypto.Cipher;
+import javax.management.JMException;
+import javax.management.ObjectName;
 import java.io.*;
+import java.lang.management.ManagementFactory;
 import java.util.*;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
@@ -31,8 +34,9 @@ import java.util.zip.ZipOutputStream;
  * back to them. Data blocks can be as long as you wish, and may have
  * lengths different from the original when updating.
  * <p/>
- * Operations are synchronized, so that only one of them will happen
- * concurrently even if you hammer away from multiple threads. Operations
+ * Fetches may run concurrently from multiple threads, modifications are
+ * serialized by write lock, so only one of them will happen at a time
+ * even if you hammer away from multiple threads. Operations
  * are made atomic by keeping a transaction log which is recovered after
  * a crash, so the operations specified by this interface all have ACID
  * properties.
@@ -94,6 +98,33 @@ class DBStore
     private Cipher cipherIn;
     private boolean useRandomAccessFile;
     private boolean lockingDisabled;
+    /** group commit wait in nanoseconds, -1 if group commit is disabled */
+    private long groupCommitWait;
+    private boolean backgroundCheckpoint;
+    /** page size shift used if new store is created */
+    private int pageShift;
+    /** segment file size shift used if new store is created */
+    private int segmentShift;
+    /** size of off-heap page cache in bytes, 0 if disabled */
+    private long pageCacheSize;
+
+    /** cache of serialized records, null if disabled */
+    private volatile RecordCache recordCache = null;
+
+    /** number of operations which reached store, cache hits are not counted */
+    final StripedCounter fetchCount = new StripedCounter();
+    final StripedCounter insertCount = new StripedCounter();
+    final StripedCounter updateCount = new StripedCounter();
+    final StripedCounter deleteCount = new StripedCounter();
+    /** latency of commits, nested commits (for example auto commit from cache) are not recorded */
+    final LatencyHistogram commitLatency = new LatencyHistogram();
+
+    /** name under which metrics are registered in JMX, null if not registered */
+    private ObjectName mbeanName = null;
+
+    /** recid compression depends on number of translations per page, so it is calculated when file is opened */
+    private int compressRecidPageShift;
+    private long compressRecidOffsetMask;
 
     void checkCanWrite() {
         if (readonly)
@@ -123,14 +154,17 @@ class DBStore
 
 
 
-    private final DataInputOutput buffer = new DataInputOutput();
-    private boolean bufferInUse = false;
+    /**
+     * Reusable serialization buffer, one per thread. Buffer is taken out while in use,
+     * so nested calls (for example from serializer) get new instance.
+     */
+    private final ThreadLocal<DataInputOutput> buffers = new ThreadLocal<DataInputOutput>();
 
 
     private final String _filename;
 
     public DBStore(String filename, boolean readonly, boolean transactionDisabled, boolean lockingDisabled) throws IOException {
-        this(filename, readonly, transactionDisabled, null, null, false,false,false);
+        this(filename, readonly, transactionDisabled, null, null, false,false,false,-1,false,Storage.PAGE_SIZE_SHIFT,StorageDiskMapped.SEGMENT_SIZE_SHIFT,0);
     }
 
 
@@ -142,7 +176,8 @@ class DBStore
      */
     public DBStore(String filename, boolean readonly, boolean transactionDisabled,
                    Cipher cipherIn, Cipher cipherOut, boolean useRandomAccessFile,
-                   boolean deleteFilesAfterClose, boolean lockingDisabled){
+                   boolean deleteFilesAfterClose, boolean lockingDisabled, long groupCommitWait,
+                   boolean backgroundCheckpoint, int pageShift, int segmentShift, long pageCacheSize){
         _filename = filename;
         this.readonly = readonly;
         this.transactionsDisabled = transactionDisabled;
@@ -151,18 +186,31 @@ class DBStore
         this.useRandomAccessFile = useRandomAccessFile;
         this.deleteFilesAfterClose = deleteFilesAfterClose;
         this.lockingDisabled = lockingDisabled;
+        this.groupCommitWait = groupCommitWait;
+        this.backgroundCheckpoint = backgroundCheckpoint;
+        this.pageShift = pageShift;
+        this.segmentShift = segmentShift;
+        this.pageCacheSize = pageCacheSize;
         reopen();
     }
 
 
     private void reopen()  {
         try{
-        _file = new PageFile(_filename, readonly, transactionsDisabled, cipherIn, cipherOut,useRandomAccessFile,lockingDisabled);
+        if(recordCache!=null)
+            recordCache.clear();
+        _file = new PageFile(_filename, readonly, transactionsDisabled, cipherIn, cipherOut,useRandomAccessFile,lockingDisabled,groupCommitWait,backgroundCheckpoint,pageShift,segmentShift,pageCacheSize);
         _pageman = new PageManager(_file);
         _physMgr = new PhysicalRowIdManager(_file, _pageman);
 
         _logicMgr = new LogicalRowIdManager(_file, _pageman);
 
+        int shift = 1;
+        while((1<<shift) <_logicMgr.ELEMS_PER_PAGE )
+            shift++;
+        compressRecidPageShift = shift;
+        compressRecidOffsetMask = 0xFFFFFFFFFFFFFFFFL >>> (64- compressRecidPageShift);
+
         long versionNumber = getRoot(STORE_VERSION_NUMBER_ROOT);
         if (versionNumber > STORE_FORMAT_VERSION)
             throw new IOException("Unsupported version of store. Please update JDBM. Minimal supported ver:" + STORE_FORMAT_VERSION + ", store ver:" + versionNumber);
@@ -179,14 +227,18 @@ class DBStore
      *
      * @throws IOException when one of the underlying I/O operations fails.
      */
-    public synchronized void close() {
-        checkNotClosed();
+    public void close() {
+        lock.writeLock().lock();
         try {
+            checkNotClosed();
             super.close();
+            unregisterMBean();
             _pageman.close();
             _file.close();
             if(deleteFilesAfterClose)
                 _file.storage.deleteAllFiles();
+            if(deleteFilesAfterClose && _filename != null)
+                new File(_filename + WARMUP_FILE_EXTENSION).delete();
             
             _pageman = null;
 
@@ -195,39 +247,138 @@ class DBStore
 
         } catch (IOException e) {
             throw new IOError(e);
+        }finally {
+            lock.writeLock().unlock();
         }
     }
 
-    public boolean isClosed() {
-        return _pageman==null;
+    /**
+     * Enables cache of serialized records.
+     *
+     * @param maxSize maximal size of cached records in bytes
+     */
+    void enableRecordCache(long maxSize){
+        recordCache = new RecordCache(maxSize);
     }
 
+    RecordCache getRecordCache(){
+        return recordCache;
+    }
 
-    public synchronized <A> long insert(final A obj, final Serializer<A> serializer, final boolean disableCache)
-            throws IOException {
-        checkNotClosed();
-        checkCanWrite();
+    /**
+     * Registers metrics of this store into platform MBean server.
+     */
+    void registerMBean(){
+        final String name = _filename != null ? _filename : "memory@" + System.identityHashCode(this);
+        try {
+            final ObjectName objectName = new ObjectName("org.apache.jdbm:type=DB,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new DBMetrics(this), objectName);
+            mbeanName = objectName;
+        } catch (JMException e) {
+            throw new IllegalStateException("Could not register MBean", e);
+        }
+    }
 
-        if (needsAutoCommit()) {
-            commit();
+    private void unregisterMBean(){
+        if(mbeanName == null)
+            return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+        } catch (JMException e) {
+            //already unregistered, ignore
         }
+        mbeanName = null;
+    }
 
+    public Map<String, Long> getMetrics() {
+        lock.readLock().lock();
+        try {
+            checkNotClosed();
+            final Map<String, Long> metrics = new TreeMap<String, Long>();
+            collectMetrics(metrics);
+            return Collections.unmodifiableMap(metrics);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
 
-        if (bufferInUse) {
-            //current reusable buffer is in use, have to fallback into creating new instances
-            DataInputOutput buffer2 = new DataInputOutput();
-            return insert2(obj, serializer, buffer2);
+    /**
+     * Puts current values of metrics into map, subclasses add metrics of their caches.
+     * Called with read lock held.
+     */
+    void collectMetrics(Map<String, Long> metrics) {
+        metrics.put("store.fetches", fetchCount.get());
+        metrics.put("store.inserts", insertCount.get());
+        metrics.put("store.updates", updateCount.get());
+        metrics.put("store.deletes", deleteCount.get());
+        commitLatency.collect("commit", metrics);
+
+        metrics.put("page.reads", _file.pageReads.get());
+        metrics.put("page.writes", _file.pageWrites.get());
+        metrics.put("page.dirty", (long) _file.getDirtyPageCount());
+        metrics.put("log.bytesWritten", _file.txnMgr != null ? _file.txnMgr.logBytes.get() : 0L);
+        metrics.put("freelist.physical.inTransaction", (long) _physMgr.freeman.getFreeInTransactionCount());
+        metrics.put("freelist.logical.inTransaction", (long) _logicMgr.getFreeInTransactionCount());
+
+        final PageCache pageCache = _file.pageCache;
+        if (pageCache != null) {
+            metrics.put("pageCache.hits", pageCache.getHitCount());
+            metrics.put("pageCache.misses", pageCache.getMissCount());
+            metrics.put("pageCache.evictions", pageCache.getEvictionCount());
+            metrics.put("pageCache.pages", (long) pageCache.size());
+        }
+        final RecordCache recordCache = this.recordCache;
+        if (recordCache != null) {
+            metrics.put("recordCache.hits", recordCache.getHitCount());
+            metrics.put("recordCache.misses", recordCache.getMissCount());
+            metrics.put("recordCache.evictions", recordCache.getEvictionCount());
+            metrics.put("recordCache.records", (long) recordCache.getCount());
+            metrics.put("recordCache.bytes", recordCache.getSize());
         }
+    }
 
+    /**
+     * Returns page size of this store, it is chosen when store is created and recorded in file header.
+     */
+    int getPageSize(){
+        return _file.pageSize;
+    }
+
+    public boolean isClosed() {
+        return _pageman==null;
+    }
+
+
+    public <A> long insert(final A obj, final Serializer<A> serializer, final boolean disableCache)
+            throws IOException {
+        lock.writeLock().lock();
+        final DataInputOutput buf = takeBuffer();
         try {
+            checkNotClosed();
+            checkCanWrite();
+
+            if (needsAutoCommit()) {
+                commit();
+            }
 
-            bufferInUse = true;
-            return insert2(obj, serializer, buffer);
+            insertCount.increment();
+            return insert2(obj, serializer, buf);
         } finally {
-            bufferInUse = false;
+            buffers.set(buf);
+            lock.writeLock().unlock();
         }
+    }
 
-
+    /**
+     * Takes current thread reusable buffer, or creates new one if buffer is already in use.
+     * Buffer must be returned with {@code buffers.set(buf)}
+     */
+    private DataInputOutput takeBuffer(){
+        final DataInputOutput buf = buffers.get();
+        if(buf == null)
+            return new DataInputOutput();
+        buffers.set(null);
+        return buf;
     }
 
     boolean needsAutoCommit() {
@@ -255,6 +406,8 @@ class DBStore
             physRowId = _physMgr.insert(buf.getBuf(), 0, buf.getPos());
         }
         final long recid = _logicMgr.insert(physRowId);
+        if(recordCache!=null)
+            recordCache.remove(recid);
 
         if (DEBUG) {
             System.out.println("BaseRecordManager.insert() recid " + recid + " length " + buf.getPos());
@@ -264,59 +417,62 @@ class DBStore
     }
 
 
-    public synchronized void delete(long logRowId)
+    public void delete(long logRowId)
             throws IOException {
+        lock.writeLock().lock();
+        try {
+            checkNotClosed();
+            checkCanWrite();
+            if (logRowId <= 0) {
+                throw new IllegalArgumentException("Argument 'recid' is invalid: "
+                        + logRowId);
+            }
 
-        checkNotClosed();
-        checkCanWrite();
-        if (logRowId <= 0) {
-            throw new IllegalArgumentException("Argument 'recid' is invalid: "
-                    + logRowId);
-        }
-
-        if (needsAutoCommit()) {
-            commit();
-        }
+            if (needsAutoCommit()) {
+                commit();
+            }
 
-        if (DEBUG) {
-            System.out.println("BaseRecordManager.delete() recid " + logRowId);
-        }
+            if (DEBUG) {
+                System.out.println("BaseRecordManager.delete() recid " + logRowId);
+            }
 
-        logRowId =  decompressRecid(logRowId);
+            deleteCount.increment();
+            logRowId =  decompressRecid(logRowId);
 
-        long physRowId = _logicMgr.fetch(logRowId);
-        _logicMgr.delete(logRowId);
-        if(physRowId!=PREALOCATE_PHYS_RECID){
-            _physMgr.free(physRowId);
+            long physRowId = _logicMgr.fetch(logRowId);
+            _logicMgr.delete(logRowId);
+            if(recordCache!=null)
+                recordCache.remove(logRowId);
+            if(physRowId!=PREALOCATE_PHYS_RECID){
+                _physMgr.free(physRowId);
+            }
+        } finally {
+            lock.writeLock().unlock();
         }
     }
 
 
-    public synchronized <A> void update(long recid, A obj, Serializer<A> serializer)
+    public <A> void update(long recid, A obj, Serializer<A> serializer)
             throws IOException {
-        checkNotClosed();
-        checkCanWrite();
-        if (recid <= 0) {
-            throw new IllegalArgumentException("Argument 'recid' is invalid: "
-                    + recid);
-        }
-
-        if (needsAutoCommit()) {
-            commit();
-        }
+        lock.writeLock().lock();
+        final DataInputOutput buf = takeBuffer();
+        try {
+            checkNotClosed();
+            checkCanWrite();
+            if (recid <= 0) {
+                throw new IllegalArgumentException("Argument 'recid' is invalid: "
+                        + recid);
+            }
 
-        if (bufferInUse) {
-            //current reusable buffer is in use, have to create new instances
-            DataInputOutput buffer2 = new DataInputOutput();
-            update2(recid, obj, serializer, buffer2);
-            return;
-        }
+            if (needsAutoCommit()) {
+                commit();
+            }
 
-        try {
-            bufferInUse = true;
-            update2(recid, obj, serializer, buffer);
+            updateCount.increment();
+            update2(recid, obj, serializer, buf);
         } finally {
-            bufferInUse = false;
+            buffers.set(buf);
+            lock.writeLock().unlock();
         }
     }
 
@@ -344,42 +500,65 @@ class DBStore
             _physMgr.insert(buf.getBuf(),0,buf.getPos());
 
         _logicMgr.update(logRecid, newRecid);
+        if(recordCache!=null)
+            recordCache.remove(logRecid);
 
     }
 
 
-    public synchronized <A> A fetch(final long recid, final Serializer<A> serializer)
+    public <A> A fetch(final long recid, final Serializer<A> serializer)
             throws IOException {
+        return fetch(recid, serializer, (int[]) null);
+    }
 
-        checkNotClosed();
-        if (recid <= 0) {
-            throw new IllegalArgumentException("Argument 'recid' is invalid: "  + recid);
-        }
-
-        if (bufferInUse) {
-            //current reusable buffer is in use, have to create new instances
-            DataInputOutput buffer2 = new DataInputOutput();
-            return fetch2(recid, serializer, buffer2);
-        }
+    /**
+     * Fetches record and stores its serialized size into 'size[0]' if 'size' is not null.
+     * Used by cache to estimate how much memory record takes.
+     */
+    <A> A fetch(final long recid, final Serializer<A> serializer, final int[] size)
+            throws IOException {
+        lock.readLock().lock();
+        final DataInputOutput buf = takeBuffer();
         try {
-            bufferInUse = true;
-            return fetch2(recid, serializer, buffer);
+            checkNotClosed();
+            if (recid <= 0) {
+                throw new IllegalArgumentException("Argument 'recid' is invalid: "  + recid);
+            }
+
+            fetchCount.increment();
+            return fetch2(recid, serializer, buf, size);
         } finally {
-            bufferInUse = false;
+            buffers.set(buf);
+            lock.readLock().unlock();
         }
     }
 
-    public synchronized <A> A fetch(long recid, Serializer<A> serializer, boolean disableCache) throws IOException {
+    public <A> A fetch(long recid, Serializer<A> serializer, boolean disableCache) throws IOException {
         //we dont have any cache, so can ignore disableCache parameter
         return fetch(recid, serializer);
     }
 
 
-    private <A> A fetch2(long recid, final Serializer<A> serializer, final DataInputOutput buf)
+    private <A> A fetch2(long recid, final Serializer<A> serializer, final DataInputOutput buf, final int[] size)
             throws IOException {
 
         recid =  decompressRecid(recid);
 
+        final RecordCache recordCache = this.recordCache;
+        if(recordCache!=null){
+            final byte[] cached = recordCache.get(recid);
+            if(cached!=null){
+                if (size != null)
+                    size[0] = cached.length;
+                //cached array is shared, so it is not passed into reusable buffer
+                try {
+                    return serializer.deserialize(new DataInputOutput(cached));
+                } catch (ClassNotFoundException e) {
+                    throw new IOError(e);
+                }
+            }
+        }
+
         buf.reset();
         long physLocation = _logicMgr.fetch(recid);
         if (physLocation == 0) {
@@ -391,6 +570,10 @@ class DBStore
         }
 
         _physMgr.fetch(buf, physLocation);
+        if (size != null)
+            size[0] = buf.getPos();
+        if (recordCache != null)
+            recordCache.put(recid, buf.getBuf(), buf.getPos());
 
         if (DEBUG) {
             System.out.println("BaseRecordManager.fetch() recid " + recid + " length " + buf.getPos());
@@ -405,6 +588,12 @@ class DBStore
 
     byte[] fetchRaw(long recid) throws IOException {
         recid =  decompressRecid(recid);
+        final RecordCache recordCache = this.recordCache;
+        if(recordCache!=null){
+            final byte[] cached = recordCache.get(recid);
+            if(cached!=null)
+                return cached.clone();
+        }
         long physLocation = _logicMgr.fetch(recid);
         if (physLocation == 0) {
             //throw new IOException("Record not found, recid: "+recid);
@@ -416,57 +605,125 @@ class DBStore
     }
 
 
-    public synchronized long getRoot(final byte id){
-        checkNotClosed();
+    public long getRoot(final byte id){
+        lock.readLock().lock();
+        try {
+            checkNotClosed();
 
-        return _pageman.getFileHeader().fileHeaderGetRoot(id);
+            return _pageman.getFileHeader().fileHeaderGetRoot(id);
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
 
-    public synchronized void setRoot(final byte id, final long rowid){
-        checkNotClosed();
-        checkCanWrite();
+    public void setRoot(final byte id, final long rowid){
+        lock.writeLock().lock();
+        try {
+            checkNotClosed();
+            checkCanWrite();
 
-        _pageman.getFileHeader().fileHeaderSetRoot(id, rowid);
+            _pageman.getFileHeader().fileHeaderSetRoot(id, rowid);
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
 
 
 
-    public synchronized void commit() {
-        try {
-            commitInProgress = true;
-            checkNotClosed();
-            checkCanWrite();
-            /** flush free phys rows into pages*/
-            _physMgr.commit();
-            _logicMgr.commit();
+    public void commit() {
+        final long start = System.nanoTime();
+        final boolean nested;
+        final PageFile committer = enterCommit();
+        try{
+            lock.writeLock().lock();
+            try {
+                nested = commitInProgress;
+                commitInProgress = true;
+                checkNotClosed();
+                checkCanWrite();
+                /** flush free phys rows into pages*/
+                _physMgr.commit();
+                _logicMgr.commit();
+
+                /**commit pages */
+                _pageman.commit();
+
+
+            } catch (IOException e) {
+                throw new IOError(e);
+            }finally {
+                commitInProgress= false;
+                lock.writeLock().unlock();
+            }
+            awaitDurable(committer);
+        }finally {
+            exitCommit(committer);
+        }
+        if(!nested)
+            commitLatency.record(System.nanoTime() - start);
+    }
 
-            /**commit pages */
-            _pageman.commit();
+    /**
+     * Registers outermost commit for group commit, so leader knows how many committers to wait for.
+     * Must be called before DB lock is taken, {@link #exitCommit(PageFile)} must follow in finally block.
+     *
+     * @return file to pass into {@link #awaitDurable(PageFile)}, null if commit is nested
+     */
+    protected PageFile enterCommit(){
+        if(lock.isWriteLockedByCurrentThread())
+            return null;
+        final PageFile file = _file;
+        if(file!=null)
+            file.enterCommit();
+        return file;
+    }
 
+    /**
+     * Unregisters committer registered by {@link #enterCommit()}.
+     */
+    protected void exitCommit(PageFile committer){
+        if(committer!=null)
+            committer.exitCommit();
+    }
 
+    /**
+     * With group commit, transaction is durable only after this method returns.
+     * Sync is done outside of DB lock, so other threads can commit meanwhile and share single sync.
+     * Does nothing if called from nested commit, outermost commit waits after lock is released.
+     *
+     * @param committer file returned by {@link #enterCommit()}
+     */
+    protected void awaitDurable(PageFile committer){
+        if(committer == null || _file == null)
+            return;
+        try {
+            committer.awaitDurable();
         } catch (IOException e) {
             throw new IOError(e);
-        }finally {
-            commitInProgress= false;
         }
     }
 
 
-    public synchronized void rollback() {
+    public void rollback() {
         if (transactionsDisabled)
             throw new IllegalAccessError("Transactions are disabled, can not rollback");
 
+        lock.writeLock().lock();
         try {
             checkNotClosed();
             _physMgr.rollback();
             _logicMgr.rollback();
             _pageman.rollback();
+            if(recordCache!=null)
+                recordCache.clear();
 
             super.rollback();
         } catch (IOException e) {
             throw new IOError(e);
+        }finally {
+            lock.writeLock().unlock();
         }
 
     }
@@ -553,7 +810,7 @@ class DBStore
 
 
 
-    public synchronized void clearCache() {
+    public void clearCache() {
         //no cache
     }
 
@@ -573,10 +830,10 @@ class DBStore
 
     }
 
-    public synchronized String calculateStatistics() {
-        checkNotClosed();
-
+    public String calculateStatistics() {
+        lock.writeLock().lock();
         try {
+            checkNotClosed();
 
             final StringBuilder b = new StringBuilder();
 
@@ -587,20 +844,20 @@ class DBStore
                 long total = 0;
                 long pages = statisticsCountPages(Magic.USED_PAGE);
                 total += pages;
-                b.append("  " + pages + " used pages with size " + Utils.formatSpaceUsage(pages * Storage.PAGE_SIZE) + "\n");
+                b.append("  " + pages + " used pages with size " + Utils.formatSpaceUsage(pages * _file.pageSize) + "\n");
                 pages = statisticsCountPages(Magic.TRANSLATION_PAGE);
                 total += pages;
-                b.append("  " + pages + " record translation pages with size " + Utils.formatSpaceUsage(pages * Storage.PAGE_SIZE) + "\n");
+                b.append("  " + pages + " record translation pages with size " + Utils.formatSpaceUsage(pages * _file.pageSize) + "\n");
                 pages = statisticsCountPages(Magic.FREE_PAGE);
                 total += pages;
-                b.append("  " + pages + " free (unused) pages with size " + Utils.formatSpaceUsage(pages * Storage.PAGE_SIZE) + "\n");
+                b.append("  " + pages + " free (unused) pages with size " + Utils.formatSpaceUsage(pages * _file.pageSize) + "\n");
                 pages = statisticsCountPages(Magic.FREEPHYSIDS_PAGE);
                 total += pages;
-                b.append("  " + pages + " free (phys) pages with size " + Utils.formatSpaceUsage(pages * Storage.PAGE_SIZE) + "\n");
+                b.append("  " + pages + " free (phys) pages with size " + Utils.formatSpaceUsage(pages * _file.pageSize) + "\n");
                 pages = statisticsCountPages(Magic.FREELOGIDS_PAGE);
                 total += pages;
-                b.append("  " + pages + " free (logical) pages with size " + Utils.formatSpaceUsage(pages * Storage.PAGE_SIZE) + "\n");
-                b.append("  Total number of pages is " + total + " with size " + Utils.formatSpaceUsage(total * Storage.PAGE_SIZE) + "\n");
+                b.append("  " + pages + " free (logical) pages with size " + Utils.formatSpaceUsage(pages * _file.pageSize) + "\n");
+                b.append("  Total number of pages is " + total + " with size " + Utils.formatSpaceUsage(total * _file.pageSize) + "\n");
 
             }
             {
@@ -636,8 +893,8 @@ class DBStore
                         recordCount++;
 
                         //get size
-                        PageIo page = _file.get(physLoc>>> Storage.PAGE_SIZE_SHIFT);
-                        final short physOffset =(short) (physLoc & Storage.OFFSET_MASK);
+                        PageIo page = _file.get(physLoc>>> _file.pageShift);
+                        final short physOffset =(short) (physLoc & _file.offsetMask);
                         int availSize = RecordHeader.getAvailableSize(page, physOffset);
                         int currentSize = RecordHeader.getCurrentSize(page, physOffset);
                         _file.release(page);
@@ -658,22 +915,34 @@ class DBStore
                 b.append("  Space wasted in record fragmentation is " + Utils.formatSpaceUsage(totalAvailDiff) + "\n");
                 b.append("  Maximal space wasted in single record fragmentation is " + Utils.formatSpaceUsage(maximalAvailSizeDiff) + "\n");
             }
+            if(recordCache!=null){
+                b.append("RECORD CACHE:\n");
+                b.append("  " + recordCache.getCount() + " cached records with size " + Utils.formatSpaceUsage(recordCache.getSize()) + "\n");
+                b.append("  " + recordCache.getHitCount() + " hits and " + recordCache.getMissCount() + " misses\n");
+            }
+            if(_file.pageCache!=null){
+                b.append("PAGE CACHE:\n");
+                b.append("  " + _file.pageCache.size() + " cached pages with size " + Utils.formatSpaceUsage(_file.pageCache.size() * _file.pageSize) + "\n");
+                b.append("  " + _file.pageCache.getHitCount() + " hits and " + _file.pageCache.getMissCount() + " misses\n");
+            }
 
             return b.toString();
         } catch (IOException e) {
             throw new IOError(e);
+        }finally {
+            lock.writeLock().unlock();
         }
     }
 
-    public synchronized void defrag(boolean sortCollections) {
-
+    public void defrag(boolean sortCollections) {
+        lock.writeLock().lock();
         try {
             checkNotClosed();
             checkCanWrite();
             commit();
             final String filename2 = _filename + "_defrag" + System.currentTimeMillis();
             final String filename1 = _filename;
-            DBStore db2 = new DBStore(filename2, false, true, cipherIn, cipherOut, false,false,false);
+            DBStore db2 = new DBStore(filename2, false, true, cipherIn, cipherOut, false,false,false,-1,false,_file.pageShift,_file.segmentShift,0);
 
             //recreate logical file with original page layout
             {
@@ -739,7 +1008,7 @@ class DBStore
                         throw new Error();
 
                     //write to new file
-                    final long logicalRowId =  ((-pageid) << Storage.PAGE_SIZE_SHIFT) + (long) pos;
+                    final long logicalRowId =  ((-pageid) << _file.pageShift) + (long) pos;
 
                     //read from logical location in second db,
                     //check if record was already inserted as part of collections
@@ -835,8 +1104,160 @@ class DBStore
             reopen();
         } catch (IOException e) {
             throw new IOError(e);
+        }finally {
+            lock.writeLock().unlock();
+        }
+
+    }
+
+    /** extension of side file with recids of hot records, used for cache warmup */
+    static final String WARMUP_FILE_EXTENSION = ".w";
+
+    private static final int WARMUP_FILE_HEADER = 0x4A57524D;
+
+    /** maximal number of threads which preload records */
+    static final int WARMUP_THREADS = 4;
+
+    /**
+     * Writes recids of hot records into side file, so they can be preloaded after restart.
+     * Does nothing for memory or read-only store.
+     */
+    void writeWarmupFile(long[] recids) {
+        if (_filename == null || readonly || deleteFilesAfterClose)
+            return;
+        try {
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(_filename + WARMUP_FILE_EXTENSION)));
+            try {
+                out.writeInt(WARMUP_FILE_HEADER);
+                out.writeInt(recids.length);
+                for (long recid : recids)
+                    out.writeLong(recid);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            throw new IOError(e);
         }
+    }
 
+    /**
+     * Reads recids written by {@link #writeWarmupFile(long[])}, returns null if file does not exist or is not valid.
+     */
+    long[] readWarmupFile() {
+        if (_filename == null)
+            return null;
+        final File f = new File(_filename + WARMUP_FILE_EXTENSION);
+        if (!f.exists())
+            return null;
+        try {
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+            try {
+                if (in.readInt() != WARMUP_FILE_HEADER)
+                    return null;
+                final long[] recids = new long[in.readInt()];
+                for (int i = 0; i < recids.length; i++)
+                    recids[i] = in.readLong();
+                return recids;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            //warmup is only optimization, broken file is ignored
+            return null;
+        }
+    }
+
+    /**
+     * Reads records in order of their physical location, so disk reads are mostly sequential.
+     * Sorted records are split into continuous ranges which are read by parallel threads.
+     * Records are put into record cache if it is enabled, otherwise only OS and page cache is warmed.
+     * Worker threads are always finished before read lock is released, even if caller is interrupted.
+     *
+     * @return number of records which were read
+     */
+    int preloadRecords(long[] recids) {
+        lock.readLock().lock();
+        try {
+            checkNotClosed();
+            //pairs of physical location and logical recid
+            final List<long[]> locations = new ArrayList<long[]>(recids.length);
+            for (long recid : recids) {
+                if (recid <= 0)
+                    continue;
+                final long logRecid = decompressRecid(recid);
+                final long physLocation = _logicMgr.fetch(logRecid);
+                if (physLocation != 0 && physLocation != PREALOCATE_PHYS_RECID)
+                    locations.add(new long[]{physLocation, logRecid});
+            }
+            Collections.sort(locations, new Comparator<long[]>() {
+                public int compare(long[] o1, long[] o2) {
+                    return o1[0] < o2[0] ? -1 : (o1[0] == o2[0] ? 0 : 1);
+                }
+            });
+
+            //store is not modified while read lock is held, so worker threads can read without taking lock
+            final int threadCount = Math.max(1, Math.min(WARMUP_THREADS, locations.size() / 1000));
+            final int chunk = (locations.size() + threadCount - 1) / threadCount;
+            final Thread[] threads = new Thread[threadCount];
+            final IOException[] error = new IOException[1];
+            //set if caller was interrupted, workers stop early
+            final boolean[] stop = new boolean[1];
+            for (int t = 0; t < threadCount; t++) {
+                final List<long[]> range = locations.subList(
+                        Math.min(locations.size(), t * chunk), Math.min(locations.size(), (t + 1) * chunk));
+                threads[t] = new Thread("JDBM Cache Warmup") {
+                    public void run() {
+                        final DataInputOutput buf = new DataInputOutput();
+                        try {
+                            for (long[] loc : range) {
+                                synchronized (stop) {
+                                    if (stop[0])
+                                        return;
+                                }
+                                buf.reset();
+                                _physMgr.fetch(buf, loc[0]);
+                                final RecordCache recordCache = DBStore.this.recordCache;
+                                if (recordCache != null)
+                                    recordCache.put(loc[1], buf.getBuf(), buf.getPos());
+                            }
+                        } catch (IOException e) {
+                            synchronized (error) {
+                                error[0] = e;
+                            }
+                        }
+                    }
+                };
+                threads[t].start();
+            }
+            //workers read store without lock, so read lock must not be released until they finish
+            boolean interrupted = false;
+            for (Thread t : threads) {
+                while (t.isAlive()) {
+                    try {
+                        t.join();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                        synchronized (stop) {
+                            stop[0] = true;
+                        }
+                    }
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while preloading records");
+            }
+            synchronized (error) {
+                if (error[0] != null)
+                    throw error[0];
+            }
+            return locations.size();
+        } catch (IOException e) {
+            throw new IOError(e);
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
     /**
@@ -855,6 +1276,8 @@ class DBStore
 
         long physLoc = _physMgr.insert(data, 0, data.length);
         _logicMgr.forceInsert(logicalRowId, physLoc);
+        if(recordCache!=null)
+            recordCache.remove(logicalRowId);
     }
 
 
@@ -887,40 +1310,28 @@ class DBStore
     }
 
 
-    private  static int COMPRESS_RECID_PAGE_SHIFT = Integer.MIN_VALUE;
-    static{
-        int shift = 1;
-        while((1<<shift) <LogicalRowIdManager.ELEMS_PER_PAGE )
-        shift++;
-        COMPRESS_RECID_PAGE_SHIFT = shift;
-    }
-
-
-    private final static long COMPRESS_RECID_OFFSET_MASK =  0xFFFFFFFFFFFFFFFFL >>> (64- COMPRESS_RECID_PAGE_SHIFT);
-
-
     /**
      * Compress recid from physical form (block - offset) to (block - slot).
      * This way resulting number is smaller and can be easier packed with LongPacker
      */
-    static long compressRecid(final long recid) {
-        final long page = recid>>> Storage.PAGE_SIZE_SHIFT;
-        short offset =  (short) (recid & Storage.OFFSET_MASK);
+    long compressRecid(final long recid) {
+        final long page = recid>>> _file.pageShift;
+        short offset =  (short) (recid & _file.offsetMask);
 
         offset = (short) (offset - Magic.PAGE_HEADER_SIZE);
         if (offset % Magic.PhysicalRowId_SIZE != 0)
             throw new InternalError("recid not dividable "+Magic.PhysicalRowId_SIZE);
         long slot = offset / Magic.PhysicalRowId_SIZE;
 
-        return (page << COMPRESS_RECID_PAGE_SHIFT) + slot;
+        return (page << compressRecidPageShift) + slot;
 
     }
 
-    static long decompressRecid(final long recid) {
+    long decompressRecid(final long recid) {
 
-        final long page = recid >>> COMPRESS_RECID_PAGE_SHIFT;
-        final short offset = (short) ((recid & COMPRESS_RECID_OFFSET_MASK) * Magic.PhysicalRowId_SIZE + Magic.PAGE_HEADER_SIZE);
-        return  (page << Storage.PAGE_SIZE_SHIFT) + (long) offset;
+        final long page = recid >>> compressRecidPageShift;
+        final short offset = (short) ((recid & compressRecidOffsetMask) * Magic.PhysicalRowId_SIZE + Magic.PAGE_HEADER_SIZE);
+        return  (page << _file.pageShift) + (long) offset;
     }
 
 
@@ -234,11 +234,17 @@ class DataInputOutput implements DataInput, DataOutput, ObjectInput, ObjectOutpu
         Serialization.serializeString(this, s);
     }
 
-    /** helper method to write data directly from PageIo*/
+    /** helper method to write data directly from PageIo.
+     * Buffer position is not modified, page may be shared by other readers*/
     public void writeFromByteBuffer(ByteBuffer b, int offset, int length) {
         ensureAvail(length);
-        b.position(offset);
-        b.get(buf,pos,length);
+        if(b.hasArray()){
+            System.arraycopy(b.array(), b.arrayOffset()+offset, buf, pos, length);
+        }else{
+            b = b.duplicate();
+            b.position(offset);
+            b.get(buf,pos,length);
+        }
         pos+=length;
     }
 
@@ -0,0 +1,324 @@
+/*******************************************************************************
+ * Copyright 2010 Cees De Groot, Alex Boisvert, Jan Kotek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.apache.jdbm;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Sorts map entries by key, using temporary files if entries do not fit into memory.
+ * <p/>
+ * Entries are read in chunks, each chunk is sorted and written into temporary file.
+ * Files are merged in passes, each pass merges at most {@link #MERGE_RUNS} files into one,
+ * so number of open files stays bounded. Last pass is done lazily as returned iterator advances.
+ * Files are opened when merge reaches them and deleted once they are consumed.
+ * If key occurs multiple times, only its last value is returned, same as with {@link Map#put(Object, Object)}.
+ *
+ * @author Jan Kotek
+ */
+final class ExternalSort<K, V> implements Iterator<Map.Entry<K, V>> {
+
+    /**
+     * Default number of entries sorted in memory
+     */
+    static final int CHUNK_SIZE = 1 << 18;
+
+    /**
+     * Default maximal number of runs merged at once, each file run has open file while it is merged
+     */
+    static final int MERGE_RUNS = 64;
+
+    private final Comparator<K> comparator;
+    private final Serializer<K> keySerializer;
+    private final Serializer<V> valueSerializer;
+
+    /** merges last pass of runs */
+    private final Merge merge;
+
+    private Map.Entry<K, V> next;
+
+    /**
+     * @param source          entries to sort, consumed by constructor
+     * @param comparator      key comparator, null for natural ordering
+     * @param keySerializer   serializer used for keys in temporary files
+     * @param valueSerializer serializer used for values in temporary files
+     * @param chunkSize       number of entries sorted in memory
+     */
+    ExternalSort(Iterator<? extends Map.Entry<K, V>> source, Comparator<K> comparator,
+                 Serializer<K> keySerializer, Serializer<V> valueSerializer, int chunkSize) throws IOException {
+        this(source, comparator, keySerializer, valueSerializer, chunkSize, MERGE_RUNS);
+    }
+
+    /**
+     * @param source          entries to sort, consumed by constructor
+     * @param comparator      key comparator, null for natural ordering
+     * @param keySerializer   serializer used for keys in temporary files
+     * @param valueSerializer serializer used for values in temporary files
+     * @param chunkSize       number of entries sorted in memory
+     * @param mergeRuns       maximal number of runs merged at once
+     */
+    ExternalSort(Iterator<? extends Map.Entry<K, V>> source, Comparator<K> comparator,
+                 Serializer<K> keySerializer, Serializer<V> valueSerializer, int chunkSize, int mergeRuns) throws IOException {
+        if (mergeRuns < 2) throw new IllegalArgumentException("Can not merge less than two runs: " + mergeRuns);
+        this.comparator = comparator != null ? comparator : (Comparator<K>) Utils.COMPARABLE_COMPARATOR;
+        this.keySerializer = keySerializer;
+        this.valueSerializer = valueSerializer;
+
+        final Comparator<Map.Entry<K, V>> entryComparator = new Comparator<Map.Entry<K, V>>() {
+            public int compare(Map.Entry<K, V> e1, Map.Entry<K, V> e2) {
+                return ExternalSort.this.comparator.compare(e1.getKey(), e2.getKey());
+            }
+        };
+
+        //all created runs, closed if sort fails
+        final List<Run> created = new ArrayList<Run>();
+        List<Run> runs = new ArrayList<Run>();
+        List<Map.Entry<K, V>> chunk = new ArrayList<Map.Entry<K, V>>();
+        boolean ok = false;
+        try {
+            while (source.hasNext()) {
+                Map.Entry<K, V> e = source.next();
+                //copy entry, source may reuse its instances
+                chunk.add(new AbstractMap.SimpleImmutableEntry<K, V>(e.getKey(), e.getValue()));
+                if (chunk.size() == chunkSize) {
+                    //stable sort, so order of duplicate keys is preserved
+                    Collections.sort(chunk, entryComparator);
+                    runs.add(new FileRun(chunk.iterator()));
+                    created.add(runs.get(runs.size() - 1));
+                    chunk.clear();
+                }
+            }
+            if (!chunk.isEmpty()) {
+                Collections.sort(chunk, entryComparator);
+                runs.add(new MemoryRun(chunk));
+            }
+
+            //merge groups of consecutive runs, so later run still wins for duplicate keys
+            while (runs.size() > mergeRuns) {
+                final List<Run> merged = new ArrayList<Run>();
+                for (int i = 0; i < runs.size(); i += mergeRuns) {
+                    final List<Run> group = runs.subList(i, Math.min(runs.size(), i + mergeRuns));
+                    if (group.size() == 1) {
+                        merged.add(group.get(0));
+                    } else {
+                        final Run r = new FileRun(new Merge(group));
+                        created.add(r);
+                        merged.add(r);
+                    }
+                }
+                runs = merged;
+            }
+
+            merge = new Merge(runs);
+            ok = true;
+        } finally {
+            if (!ok) {
+                for (Run r : created)
+                    r.close();
+            }
+        }
+        next = merge.take();
+    }
+
+    public boolean hasNext() {
+        return next != null;
+    }
+
+    public Map.Entry<K, V> next() {
+        if (next == null)
+            throw new NoSuchElementException();
+        Map.Entry<K, V> ret = next;
+        try {
+            next = merge.take();
+        } catch (IOException e) {
+            throw new IOError(e);
+        }
+        return ret;
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+
+    /**
+     * Merges sorted runs. If key is in multiple runs, entry from run with highest index wins.
+     */
+    private final class Merge {
+
+        /** sorted runs ordered by their current entry */
+        private final PriorityQueue<Run> queue;
+
+        Merge(List<Run> runs) throws IOException {
+            queue = new PriorityQueue<Run>(Math.max(1, runs.size()), new Comparator<Run>() {
+                public int compare(Run r1, Run r2) {
+                    int c = comparator.compare(r1.head.getKey(), r2.head.getKey());
+                    //later run wins for duplicate keys, so it must go last
+                    return c != 0 ? c : r1.index - r2.index;
+                }
+            });
+            for (int i = 0; i < runs.size(); i++) {
+                final Run r = runs.get(i);
+                r.index = i;
+                if (r.advance())
+                    queue.add(r);
+            }
+        }
+
+        /**
+         * Returns smallest entry, skipping older entries with the same key, null if there are no more entries
+         */
+        Map.Entry<K, V> take() throws IOException {
+            Map.Entry<K, V> ret = poll();
+            while (ret != null && !queue.isEmpty() && comparator.compare(ret.getKey(), queue.peek().head.getKey()) == 0) {
+                ret = poll();
+            }
+            return ret;
+        }
+
+        private Map.Entry<K, V> poll() throws IOException {
+            Run r = queue.poll();
+            if (r == null)
+                return null;
+            Map.Entry<K, V> ret = r.head;
+            if (r.advance())
+                queue.add(r);
+            return ret;
+        }
+    }
+
+
+    /**
+     * Sorted sequence of entries
+     */
+    private abstract class Run {
+        /** position of run in current merge */
+        int index;
+        Map.Entry<K, V> head;
+
+        /**
+         * Moves to next entry, returns false and releases resources if there are no more entries
+         */
+        abstract boolean advance() throws IOException;
+
+        abstract void close();
+    }
+
+
+    private final class MemoryRun extends Run {
+        final Iterator<Map.Entry<K, V>> iter;
+
+        MemoryRun(List<Map.Entry<K, V>> entries) {
+            iter = entries.iterator();
+        }
+
+        boolean advance() {
+            head = iter.hasNext() ? iter.next() : null;
+            return head != null;
+        }
+
+        void close() {
+        }
+    }
+
+
+    /**
+     * Run stored in temporary file. Each entry is stored as packed size followed by serialized key and value.
+     * File is only opened for reading when merge reaches it.
+     */
+    private final class FileRun extends Run {
+        final File file;
+        int remaining;
+        DataInputStream in;
+
+        /** writes sorted entries into new temporary file */
+        FileRun(Iterator<Map.Entry<K, V>> entries) throws IOException {
+            file = File.createTempFile("jdbm", ".sort");
+            file.deleteOnExit();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            try {
+                DataInputOutput buf = new DataInputOutput();
+                while (entries.hasNext()) {
+                    Map.Entry<K, V> e = entries.next();
+                    buf.reset();
+                    keySerializer.serialize(buf, e.getKey());
+                    valueSerializer.serialize(buf, e.getValue());
+                    LongPacker.packInt(out, buf.getPos());
+                    out.write(buf.getBuf(), 0, buf.getPos());
+                    remaining++;
+                }
+            } finally {
+                out.close();
+            }
+        }
+
+        /** writes result of merge into new temporary file, merged runs are consumed */
+        FileRun(final Merge merge) throws IOException {
+            this(new Iterator<Map.Entry<K, V>>() {
+                Map.Entry<K, V> next = merge.take();
+
+                public boolean hasNext() {
+                    return next != null;
+                }
+
+                public Map.Entry<K, V> next() {
+                    Map.Entry<K, V> ret = next;
+                    try {
+                        next = merge.take();
+                    } catch (IOException e) {
+                        throw new IOError(e);
+                    }
+                    return ret;
+                }
+
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            });
+        }
+
+        boolean advance() throws IOException {
+            if (remaining == 0) {
+                close();
+                return false;
+            }
+            if (in == null)
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            remaining--;
+            byte[] b = new byte[LongPacker.unpackInt(in)];
+            in.readFully(b);
+            DataInputOutput buf = new DataInputOutput(b);
+            try {
+                head = new AbstractMap.SimpleImmutableEntry<K, V>(keySerializer.deserialize(buf), valueSerializer.deserialize(buf));
+            } catch (ClassNotFoundException e) {
+                throw new IOError(e);
+            }
+            return true;
+        }
+
+        void close() {
+            head = null;
+            if (in != null) try {
+                in.close();
+            } catch (IOException e) {
+                //ignore, file is deleted anyway
+            }
+            in = null;
+            file.delete();
+        }
+    }
+
+}
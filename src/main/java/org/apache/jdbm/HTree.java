@@ -32,7 +32,16 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  */
 class HTree<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V> {
 
-    final Serializer SERIALIZER = new Serializer<Object>() {
+    final Serializer SERIALIZER = new NodeSerializer();
+
+    /**
+     * Serializer for buckets and directories of this tree
+     */
+    final class NodeSerializer implements Serializer<Object>, CacheRegion.Owner {
+
+        public CacheRegion getCacheRegion() {
+            return cacheRegion;
+        }
 
         public Object deserialize(DataInput ds2) throws IOException {
             DataInputOutput ds = (DataInputOutput) ds2;
@@ -72,7 +81,7 @@ class HTree<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V> {
                 n.writeExternal(out);
             }
         }
-    };
+    }
 
     final protected ReadWriteLock lock = new ReentrantReadWriteLock();
 
@@ -94,6 +103,8 @@ class HTree<K, V> extends AbstractMap<K, V> implements ConcurrentMap<K, V> {
     protected boolean readonly = false;
     final long rootRecid;
     DBAbstract db;
+    /** dedicated cache region for buckets and directories, null if they use shared cache */
+    CacheRegion cacheRegion;
     /** if false map contains only keys, used for set*/
     boolean hasValues = true;
 
@@ -0,0 +1,64 @@
+/*******************************************************************************
+ * Copyright 2010 Cees De Groot, Alex Boisvert, Jan Kotek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.apache.jdbm;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of operation latencies. Buckets have power of two upper bounds in microseconds,
+ * from 1 microsecond up to about 16 seconds, last bucket holds everything slower.
+ */
+final class LatencyHistogram {
+
+    static final int BUCKETS = 25;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final StripedCounter count = new StripedCounter();
+    private final StripedCounter totalMicros = new StripedCounter();
+
+    void record(long nanos) {
+        final long micros = Math.max(0, nanos / 1000);
+        //bucket i contains latencies up to 2^i microseconds
+        int bucket = micros <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(micros - 1);
+        buckets.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+        count.increment();
+        totalMicros.add(micros);
+    }
+
+    /** returns upper bound of bucket in microseconds, last bucket has no bound */
+    static long bucketBound(int bucket) {
+        return bucket == BUCKETS - 1 ? Long.MAX_VALUE : 1L << bucket;
+    }
+
+    long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Puts count, total time and cumulative number of operations up to each bucket bound into metrics
+     */
+    void collect(String prefix, Map<String, Long> metrics) {
+        metrics.put(prefix + ".count", count.get());
+        metrics.put(prefix + ".totalMicros", totalMicros.get());
+        long sum = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            sum += buckets.get(i);
+            final String bound = i == BUCKETS - 1 ? "inf" : String.valueOf(bucketBound(i));
+            metrics.put(prefix + ".le." + bound + "us", sum);
+        }
+    }
+}
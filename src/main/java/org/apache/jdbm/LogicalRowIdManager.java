@@ -26,17 +26,23 @@ final class LogicalRowIdManager {
     // our record file and associated page manager
     private final PageFile file;
     private final PageManager pageman;
-    static final short ELEMS_PER_PAGE = (short) ((Storage.PAGE_SIZE - Magic.PAGE_HEADER_SIZE) / Magic.PhysicalRowId_SIZE);
+    /** number of translations per page, depends on page size */
+    final short ELEMS_PER_PAGE;
 
     private long[] freeRecordsInTransRowid = new long[4];
     private int freeRecordsInTransSize = 0;
 
+    /** returns number of recids freed in current transaction, which are not in free list yet */
+    int getFreeInTransactionCount() {
+        return freeRecordsInTransSize;
+    }
+
 
     /** number of free logical rowids on logical free page, is SHORT*/
     static final int OFFSET_FREE_COUNT = Magic.PAGE_HEADER_SIZE;
     static final int FREE_HEADER_SIZE = Magic.PAGE_HEADER_SIZE + Magic.SZ_SHORT;
     /** maximal number of free logical per page */
-    static final int FREE_RECORDS_PER_PAGE = (Storage.PAGE_SIZE -FREE_HEADER_SIZE)/6;
+    final int FREE_RECORDS_PER_PAGE;
 
 
     /**
@@ -45,6 +51,8 @@ final class LogicalRowIdManager {
     LogicalRowIdManager(PageFile file, PageManager pageman) throws IOException {
         this.file = file;
         this.pageman = pageman;
+        ELEMS_PER_PAGE = (short) ((file.pageSize - Magic.PAGE_HEADER_SIZE) / Magic.PhysicalRowId_SIZE);
+        FREE_RECORDS_PER_PAGE = (file.pageSize -FREE_HEADER_SIZE)/6;
     }
 
     /**
@@ -62,7 +70,7 @@ final class LogicalRowIdManager {
             long firstPage = pageman.allocate(Magic.TRANSLATION_PAGE);
             short curOffset = Magic.PAGE_HEADER_SIZE;
             for (int i = 0; i < ELEMS_PER_PAGE; i++) {
-                putFreeSlot(((-firstPage) << Storage.PAGE_SIZE_SHIFT) + (long) curOffset);
+                putFreeSlot(((-firstPage) << file.pageShift) + (long) curOffset);
 
                 curOffset += Magic.PhysicalRowId_SIZE;
             }
@@ -97,9 +105,9 @@ final class LogicalRowIdManager {
      */
     void delete(final long logicalrowid) throws IOException {
         //zero out old location, is needed for defragmentation
-        final long pageId = -(logicalrowid>>> Storage.PAGE_SIZE_SHIFT);
+        final long pageId = -(logicalrowid>>> file.pageShift);
         final PageIo xlatPage = file.get(pageId);
-        xlatPage.pageHeaderSetLocation((short) (logicalrowid & Storage.OFFSET_MASK), 0);
+        xlatPage.pageHeaderSetLocation((short) (logicalrowid & file.offsetMask), 0);
         file.release(pageId, true);
         putFreeSlot(logicalrowid);
     }
@@ -112,9 +120,9 @@ final class LogicalRowIdManager {
      */
     void update(final long logicalrowid, final long physloc) throws IOException {
 
-        final long pageId =  -(logicalrowid>>> Storage.PAGE_SIZE_SHIFT);
+        final long pageId =  -(logicalrowid>>> file.pageShift);
         final PageIo xlatPage = file.get(pageId);
-        xlatPage.pageHeaderSetLocation((short) (logicalrowid & Storage.OFFSET_MASK), physloc);
+        xlatPage.pageHeaderSetLocation((short) (logicalrowid & file.offsetMask), physloc);
         file.release(pageId, true);
     }
 
@@ -125,18 +133,18 @@ final class LogicalRowIdManager {
      * @return The physical rowid, 0 if does not exist
      */
     long fetch(long logicalrowid) throws IOException {
-        final long pageId = -(logicalrowid>>> Storage.PAGE_SIZE_SHIFT);
+        final long pageId = -(logicalrowid>>> file.pageShift);
         final long last = pageman.getLast(Magic.TRANSLATION_PAGE);
         if (last - 1 > pageId)
             return 0;
 
-        final short offset = (short) (logicalrowid & Storage.OFFSET_MASK);
+        final short offset = (short) (logicalrowid & file.offsetMask);
 
-        final PageIo xlatPage = file.get(pageId);
+        final PageIo xlatPage = file.pin(pageId);
         final long ret =  xlatPage.pageHeaderGetLocation(offset);
 
 
-        file.release(pageId, false);
+        file.unpin(xlatPage);
         return ret;
     }
 
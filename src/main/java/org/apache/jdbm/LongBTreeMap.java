@@ -0,0 +1,54 @@
+/*******************************************************************************
+ * Copyright 2010 Cees De Groot, Alex Boisvert, Jan Kotek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.apache.jdbm;
+
+import java.io.IOError;
+import java.io.IOException;
+
+/**
+ * BTreeMap over tree with primitive long keys, see {@link BTree#KEYS_LONG}
+ *
+ * @author Jan Kotek
+ */
+class LongBTreeMap<V> extends BTreeMap<Long, V> implements LongNavigableMap<V> {
+
+    public LongBTreeMap(BTree<Long, V> tree, boolean readonly) {
+        super(tree, readonly);
+        if (tree.keyType != BTree.KEYS_LONG)
+            throw new IllegalArgumentException("Tree does not have long keys");
+    }
+
+    public V get(long key) {
+        try {
+            return tree.get(key);
+        } catch (IOException e) {
+            throw new IOError(e);
+        }
+    }
+
+    public boolean containsKey(long key) {
+        return get(key) != null;
+    }
+
+    public V put(long key, V value) {
+        return put(Long.valueOf(key), value);
+    }
+
+    public V remove(long key) {
+        return remove(Long.valueOf(key));
+    }
+
+}
@@ -26,143 +26,93 @@ import java.util.NoSuchElementException;
  * Hash Map which uses primitive long as key.
  * Main advantage is new instanceof of Long does not have to be created for each lookup.
  * <p/>
- * This code comes from Android, which in turns comes from Apache Harmony.
- * This class was modified to use primitive longs and stripped down to consume less space.
+ * Map uses open addressing with linear probing. Keys and values are stored in parallel arrays,
+ * so there is no allocation per entry and lookup does not chase pointers.
+ * Removal shifts following entries back, so table never contains deleted markers.
+ * Null values are not supported, putting null value removes key.
+ * <p/>
+ * Original chained implementation came from Android and Apache Harmony.
  * <p/>
  * Author of JDBM modifications: Jan Kotek
  */
 class LongHashMap<V> implements Serializable {
-    private static final long serialVersionUID = 362499999763181265L;
+    private static final long serialVersionUID = 362499999763181266L;
+
+    /** maximal ratio of used slots, linear probing degrades quickly with higher load */
+    private static final float LOAD_FACTOR = 0.5f;
 
     private int elementCount;
 
-    private Entry<V>[] elementData;
+    private long[] keys;
 
-    private final float loadFactor;
+    /** null value marks empty slot */
+    private Object[] values;
 
     private int threshold;
 
-    private int defaultSize = 16;
-
-    private transient Entry<V> reuseAfterDelete = null;
-
-    static final class Entry<V> implements  Serializable{
-        private static final long serialVersionUID = 362445231113181265L;
+    /** 64 minus bit length of table size, top bits of hash product select slot */
+    private int shift;
 
-        Entry<V> next;
-
-        V value;
-
-        long key;
-
-        Entry(long theKey) {
-            this.key = theKey;
-            this.value = null;
-        }
-
-
-    }
+    private final int defaultSize;
 
 
+    /**
+     * Iterator over values. It does not allocate anything while iterating.
+     * <p/>
+     * Iteration starts after empty slot and goes around table. Remove shifts following entries back,
+     * but never over empty slot, so shifted entries were not visited yet and are returned later.
+     */
     static class HashMapIterator<V> implements Iterator<V> {
-        private int position = 0;
 
+        final LongHashMap<V> associatedMap;
 
-        boolean canRemove = false;
-
-        Entry<V> entry;
+        /** empty slot where iteration starts and ends */
+        private final int start;
 
-        Entry<V> lastEntry;
+        /** offset of next slot to check from start */
+        private int offset = 1;
 
-        final LongHashMap<V> associatedMap;
+        /** offset of last returned value, -1 if there is nothing to remove */
+        private int lastOffset = -1;
 
         HashMapIterator(LongHashMap<V> hm) {
             associatedMap = hm;
+            int i = 0;
+            while (hm.values[i] != null)
+                i++;
+            start = i;
         }
 
         public boolean hasNext() {
-            if (entry != null) {
-                return true;
-            }
-
-            Entry<V>[] elementData = associatedMap.elementData;
-            int length = elementData.length;
-            int newPosition = position;
-            boolean result = false;
-
-            while (newPosition < length) {
-                if (elementData[newPosition] == null) {
-                    newPosition++;
-                } else {
-                    result = true;
-                    break;
-                }
-            }
-
-            position = newPosition;
-            return result;
+            final Object[] values = associatedMap.values;
+            final int mask = values.length - 1;
+            while (offset < values.length && values[(start + offset) & mask] == null)
+                offset++;
+            return offset < values.length;
         }
 
+        @SuppressWarnings("unchecked")
         public V next() {
-
-            if (!hasNext()) {
+            if (!hasNext())
                 throw new NoSuchElementException();
-            }
-
-            Entry<V> result;
-            Entry<V> _entry = entry;
-            if (_entry == null) {
-                result = lastEntry = associatedMap.elementData[position++];
-                entry = lastEntry.next;
-            } else {
-                if (lastEntry.next != _entry) {
-                    lastEntry = lastEntry.next;
-                }
-                result = _entry;
-                entry = _entry.next;
-            }
-            canRemove = true;
-            return result.value;
+            lastOffset = offset++;
+            final Object[] values = associatedMap.values;
+            return (V) values[(start + lastOffset) & (values.length - 1)];
         }
 
         public void remove() {
-            if (!canRemove) {
+            if (lastOffset < 0)
                 throw new IllegalStateException();
-            }
-
-            canRemove = false;
-
-            if (lastEntry.next == entry) {
-                while (associatedMap.elementData[--position] == null) {
-                    // Do nothing
-                }
-                associatedMap.elementData[position] = associatedMap.elementData[position].next;
-                entry = null;
-            } else {
-                lastEntry.next = entry;
-            }
-            if (lastEntry != null) {
-                Entry<V> reuse = lastEntry;
-                lastEntry = null;
-                reuse.key = Long.MIN_VALUE;
-                reuse.value = null;
-                associatedMap.reuseAfterDelete = reuse;
-            }
-
-            associatedMap.elementCount--;
+            associatedMap.removeSlot((start + lastOffset) & (associatedMap.values.length - 1));
+            //following entry may have been shifted into removed slot
+            offset = lastOffset;
+            lastOffset = -1;
         }
     }
 
 
-    @SuppressWarnings("unchecked")
-    private Entry<V>[] newElementArray(int s) {
-        return new Entry[s];
-    }
-
     /**
      * Constructs a new empty {@code HashMap} instance.
-     *
-     * @since Android 1.0
      */
     public LongHashMap() {
         this(16);
@@ -173,53 +123,39 @@ class LongHashMap<V> implements Serializable {
      *
      * @param capacity the initial capacity of this hash map.
      * @throws IllegalArgumentException when the capacity is less than zero.
-     * @since Android 1.0
      */
     public LongHashMap(int capacity) {
-        defaultSize = capacity;
-        if (capacity >= 0) {
-            elementCount = 0;
-            elementData = newElementArray(capacity == 0 ? 1 : capacity);
-            loadFactor = 0.75f; // Default load factor of 0.75
-            computeMaxSize();
-        } else {
+        if (capacity < 0)
             throw new IllegalArgumentException();
-        }
+        defaultSize = tableSize(capacity);
+        allocate(defaultSize);
+    }
+
+    /** returns power of two table size which has at least given number of slots */
+    private static int tableSize(int capacity) {
+        int size = 2;
+        while (size < capacity && size < (1 << 30))
+            size <<= 1;
+        return size;
     }
 
+    private void allocate(int size) {
+        keys = new long[size];
+        values = new Object[size];
+        threshold = (int) (size * LOAD_FACTOR);
+        shift = 64 - Integer.numberOfTrailingZeros(size);
+    }
 
-    // BEGIN android-changed
 
     /**
      * Removes all mappings from this hash map, leaving it empty.
-     *
-     * @see #isEmpty
-     * @see #size
-     * @since Android 1.0
      */
-
     public void clear() {
-        if (elementCount > 0) {            
-            elementCount = 0;            
-        }
-        if(elementData.length>1024 && elementData.length>defaultSize)
-            elementData = new Entry[defaultSize];
+        elementCount = 0;
+        if (values.length > 1024 && values.length > defaultSize)
+            allocate(defaultSize);
         else
-            Arrays.fill(elementData, null);
-        computeMaxSize();
-    }
-    // END android-changed
-
-    /**
-     * Returns a shallow copy of this map.
-     *
-     * @return a shallow copy of this map.
-     * @since Android 1.0
-     */
-
-
-    private void computeMaxSize() {
-        threshold = (int) (elementData.length * loadFactor);
+            Arrays.fill(values, null);
     }
 
 
@@ -229,24 +165,17 @@ class LongHashMap<V> implements Serializable {
      * @param key the key.
      * @return the value of the mapping with the specified key, or {@code null}
      *         if no mapping for the specified key is found.
-     * @since Android 1.0
      */
-
+    @SuppressWarnings("unchecked")
     public V get(final long key) {
-
-        final int hash = powerHash(key);
-        final int index = (hash & 0x7FFFFFFF) % elementData.length;
-
-        //find non null entry
-        Entry<V> m = elementData[index];
-        while (m != null) {
-            if (key == m.key)
-                return m.value;
-            m = m.next;
+        final long[] keys = this.keys;
+        final Object[] values = this.values;
+        final int mask = values.length - 1;
+        for (int i = hash(key); ; i = (i + 1) & mask) {
+            final Object value = values[i];
+            if (value == null || keys[i] == key)
+                return (V) value;
         }
-
-        return null;
-
     }
 
 
@@ -256,101 +185,59 @@ class LongHashMap<V> implements Serializable {
      * @return {@code true} if this map has no elements, {@code false}
      *         otherwise.
      * @see #size()
-     * @since Android 1.0
      */
-
     public boolean isEmpty() {
         return elementCount == 0;
     }
 
-    /**
-     * @return iterator over keys
-     */
-
-//      public Iterator<K> keyIterator(){
-//                 return new HashMapIterator<K, K, V>(
-//                            new MapEntry.Type<K, K, V>() {
-//                                public K get(Entry<K, V> entry) {
-//                                    return entry.key;
-//                                }
-//                            }, HashMap.this);
-//
-//     }
 
     /**
      * Maps the specified key to the specified value.
      *
      * @param key   the key.
-     * @param value the value.
+     * @param value the value, null removes mapping.
      * @return the value of any previous mapping with the specified key or
      *         {@code null} if there was no such mapping.
-     * @since Android 1.0
      */
-
-
+    @SuppressWarnings("unchecked")
     public V put(final long key, final V value) {
-
-        int hash = powerHash(key);
-        int index = (hash & 0x7FFFFFFF) % elementData.length;
-
-        //find non null entry
-        Entry<V> entry = elementData[index];
-        while (entry != null && key != entry.key) {
-            entry = entry.next;
-        }
-
-        if (entry == null) {
-            if (++elementCount > threshold) {
-                rehash();
-                index = (hash & 0x7FFFFFFF) % elementData.length;
+        if (value == null)
+            return remove(key);
+        final long[] keys = this.keys;
+        final Object[] values = this.values;
+        final int mask = values.length - 1;
+        int i = hash(key);
+        for (; values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                final V old = (V) values[i];
+                values[i] = value;
+                return old;
             }
-            entry = createHashedEntry(key, index);
-        }
-
-
-        V result = entry.value;
-        entry.value = value;
-        return result;
-    }
-
-
-    Entry<V> createHashedEntry(final long key, final int index) {
-        Entry<V> entry = reuseAfterDelete;
-        if (entry == null) {
-            entry = new Entry<V>(key);
-        } else {
-            reuseAfterDelete = null;
-            entry.key = key;
-            entry.value = null;
         }
-
-        entry.next = elementData[index];
-        elementData[index] = entry;
-        return entry;
+        keys[i] = key;
+        values[i] = value;
+        if (++elementCount > threshold)
+            rehash(values.length << 1);
+        return null;
     }
 
 
-    void rehash(final int capacity) {
-        int length = (capacity == 0 ? 1 : capacity << 1);
-
-        Entry<V>[] newData = newElementArray(length);
-        for (int i = 0; i < elementData.length; i++) {
-            Entry<V> entry = elementData[i];
-            while (entry != null) {
-                int index = ((int) powerHash(entry.key) & 0x7FFFFFFF) % length;
-                Entry<V> next = entry.next;
-                entry.next = newData[index];
-                newData[index] = entry;
-                entry = next;
-            }
+    private void rehash(final int size) {
+        final long[] oldKeys = keys;
+        final Object[] oldValues = values;
+        allocate(size);
+        final int mask = size - 1;
+        for (int j = 0; j < oldValues.length; j++) {
+            if (oldValues[j] == null)
+                continue;
+            int i = hash(oldKeys[j]);
+            while (values[i] != null)
+                i = (i + 1) & mask;
+            keys[i] = oldKeys[j];
+            values[i] = oldValues[j];
         }
-        elementData = newData;
-        computeMaxSize();
     }
 
-    void rehash() {
-        rehash(elementData.length);
-    }
 
     /**
      * Removes the mapping with the specified key from this map.
@@ -358,45 +245,40 @@ class LongHashMap<V> implements Serializable {
      * @param key the key of the mapping to remove.
      * @return the value of the removed mapping or {@code null} if no mapping
      *         for the specified key was found.
-     * @since Android 1.0
      */
-
+    @SuppressWarnings("unchecked")
     public V remove(final long key) {
-        Entry<V> entry = removeEntry(key);
-        if (entry == null)
-            return null;
-        V ret = entry.value;
-        entry.value = null;
-        entry.key = Long.MIN_VALUE;
-        reuseAfterDelete = entry;
-
-        return ret;
-    }
-
-    Entry<V> removeEntry(final long key) {
-        Entry<V> last = null;
-
-        final int hash = powerHash(key);
-        final int index = (hash & 0x7FFFFFFF) % elementData.length;
-        Entry<V> entry = elementData[index];
-
-        while (true) {
-            if (entry == null) {
-                return null;
+        final long[] keys = this.keys;
+        final Object[] values = this.values;
+        final int mask = values.length - 1;
+        for (int i = hash(key); values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                final V old = (V) values[i];
+                removeSlot(i);
+                return old;
             }
+        }
+        return null;
+    }
 
-            if (key == entry.key) {
-                if (last == null) {
-                    elementData[index] = entry.next;
-                } else {
-                    last.next = entry.next;
-                }
-                elementCount--;
-                return entry;
+    /**
+     * Empties slot and shifts back following entries of the same probe sequence.
+     */
+    private void removeSlot(int gap) {
+        final long[] keys = this.keys;
+        final Object[] values = this.values;
+        final int mask = values.length - 1;
+        values[gap] = null;
+        elementCount--;
+        for (int i = (gap + 1) & mask; values[i] != null; i = (i + 1) & mask) {
+            final int home = hash(keys[i]);
+            //entry can move into gap if gap lies on its probe sequence from home slot
+            if (((i - home) & mask) >= ((i - gap) & mask)) {
+                keys[gap] = keys[i];
+                values[gap] = values[i];
+                values[i] = null;
+                gap = i;
             }
-
-            last = entry;
-            entry = entry.next;
         }
     }
 
@@ -404,9 +286,7 @@ class LongHashMap<V> implements Serializable {
      * Returns the number of elements in this map.
      *
      * @return the number of elements in this map.
-     * @since Android 1.0
      */
-
     public int size() {
         return elementCount;
     }
@@ -416,17 +296,16 @@ class LongHashMap<V> implements Serializable {
      */
     public Iterator<V> valuesIterator() {
         return new HashMapIterator<V>(this);
-
     }
-    
-    static final private int powerHash(final long key){
-        int h = (int)(key ^ (key >>> 32));
-        h ^= (h >>> 20) ^ (h >>> 12);
-        return h ^ (h >>> 7) ^ (h >>> 4);
+
+    /**
+     * Fibonacci hashing, top bits of product select slot, so all bits of key affect it.
+     * Consecutive keys (such as page ids) are spread over table,
+     * so they do not form long clusters which slow down linear probing.
+     */
+    private int hash(final long key){
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> shift);
     }
 
 
 }
-
-
-
@@ -0,0 +1,36 @@
+/*******************************************************************************
+ * Copyright 2010 Cees De Groot, Alex Boisvert, Jan Kotek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.apache.jdbm;
+
+import java.util.concurrent.ConcurrentNavigableMap;
+
+/**
+ * Map with <code>Long</code> keys, created by {@link DB#createTreeMapLong(String)}.
+ * Tree nodes store keys in primitive arrays and compare them without boxing.
+ * Methods with primitive key do not allocate Long for lookups,
+ * modifications box the key only for the duration of call.
+ */
+public interface LongNavigableMap<V> extends ConcurrentNavigableMap<Long, V> {
+
+    V get(long key);
+
+    boolean containsKey(long key);
+
+    V put(long key, V value);
+
+    V remove(long key);
+
+}
@@ -50,6 +50,16 @@ interface Magic {
      */
     short LOGFILE_HEADER = 0x1360;
 
+    /**
+     * Magic for transaction file with checksummed records
+     */
+    short LOGFILE_HEADER2 = 0x1361;
+
+    /**
+     * Marker written after each complete transaction in log file
+     */
+    int LOGFILE_COMMIT = 0x13621362;
+
     /**
      * Size of an externalized byte
      */
@@ -82,6 +92,10 @@ interface Magic {
      * The number of "root" rowids available in the file.
      */
     int FILE_HEADER_NROOTS = 16;
+    /** byte page size shift, zero for stores created with default page size */
+    int FILE_HEADER_O_PAGE_SHIFT = FILE_HEADER_O_ROOTS + FILE_HEADER_NROOTS * Magic.SZ_LONG;
+    /** byte segment file size shift, zero for stores created with default 1GB segments */
+    int FILE_HEADER_O_SEGMENT_SHIFT = FILE_HEADER_O_PAGE_SHIFT + Magic.SZ_BYTE;
 
 
     short PAGE_HEADER_O_MAGIC = 0; // short magic
@@ -95,7 +109,6 @@ interface Magic {
     
     short DATA_PAGE_O_FIRST = PAGE_HEADER_SIZE; // short firstrowid
     short DATA_PAGE_O_DATA = (short) (DATA_PAGE_O_FIRST + Magic.SZ_SHORT);
-    short DATA_PER_PAGE = (short) (Storage.PAGE_SIZE - DATA_PAGE_O_DATA);
 
 
 
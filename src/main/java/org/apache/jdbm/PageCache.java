@@ -0,0 +1,331 @@
+/*******************************************************************************
+ * Copyright 2010 Cees De Groot, Alex Boisvert, Jan Kotek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.apache.jdbm;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Size bounded cache of pages between {@link PageFile} and {@link Storage}.
+ * It holds decrypted page content in direct (off-heap) memory, so it does not add to GC pressure.
+ * Is useful with {@link StorageDisk} and with encrypted stores, where each page read
+ * otherwise goes to OS and is decrypted again.
+ * <p/>
+ * Slots are split into stripes selected by page id, each stripe has its own lock,
+ * index and CLOCK hand, so concurrent readers rarely wait for each other.
+ * Index maps page id to slot number in primitive arrays, lookup does not allocate.
+ * <p/>
+ * Pages are evicted using CLOCK algorithm: each slot has reference bit which is set on hit,
+ * hand sweeps slots, clears reference bits and evicts first slot which was not referenced since last sweep.
+ * <p/>
+ * Cache contains only content which is already written in storage,
+ * so {@link PageFile} must update it whenever page is written into storage.
+ */
+final class PageCache {
+
+    /** bite shift of maximal size of single direct buffer, it is 1GB */
+    static final int CHUNK_SHIFT = 30;
+
+    /** maximal number of stripes, must be power of two */
+    static final int MAX_STRIPES = 16;
+
+    /** minimal number of slots in stripe, small caches use single stripe so CLOCK sees all pages */
+    static final int MIN_STRIPE_SLOTS = 64;
+
+    /** golden ratio multiplier used to spread page ids */
+    private static final long PHI = 0x9E3779B97F4A7C15L;
+
+    private final int pageSize;
+    private final int pageShift;
+    /** number of slots in single chunk is 1<<slotsPerChunkShift */
+    private final int slotsPerChunkShift;
+
+    private final ByteBuffer[] chunks;
+    private final Stripe[] stripes;
+
+    final StripedCounter hits = new StripedCounter();
+    final StripedCounter misses = new StripedCounter();
+    final StripedCounter evictions = new StripedCounter();
+
+    /**
+     * @param size cache size in bytes, rounded down to whole pages
+     * @param pageShift bite shift of page size
+     */
+    PageCache(long size, int pageShift) {
+        this.pageShift = pageShift;
+        this.pageSize = 1 << pageShift;
+        final long slots = size >> pageShift;
+        if (slots <= 0 || slots > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Page cache size out of range: " + size);
+        slotsPerChunkShift = CHUNK_SHIFT - pageShift;
+        final int slotsPerChunk = 1 << slotsPerChunkShift;
+
+        chunks = new ByteBuffer[(int) ((slots + slotsPerChunk - 1) >> slotsPerChunkShift)];
+        for (int i = 0; i < chunks.length; i++) {
+            final long chunkSlots = Math.min(slotsPerChunk, slots - ((long) i << slotsPerChunkShift));
+            chunks[i] = ByteBuffer.allocateDirect((int) (chunkSlots << pageShift));
+        }
+
+        int stripeCount = 1;
+        while (stripeCount < MAX_STRIPES && slots / (stripeCount * 2) >= MIN_STRIPE_SLOTS)
+            stripeCount *= 2;
+        stripes = new Stripe[stripeCount];
+        final int perStripe = (int) (slots / stripeCount);
+        for (int i = 0; i < stripeCount; i++) {
+            final int first = i * perStripe;
+            final int count = i == stripeCount - 1 ? (int) (slots - first) : perStripe;
+            stripes[i] = new Stripe(first, count);
+        }
+    }
+
+    private Stripe stripe(long pageId) {
+        long h = pageId * PHI;
+        h ^= h >>> 32;
+        return stripes[(int) h & (stripes.length - 1)];
+    }
+
+    /**
+     * Copies cached page into given array.
+     *
+     * @param dest array of page size, content is undefined if page is not in cache
+     * @return true if page was in cache
+     */
+    boolean get(long pageId, byte[] dest) {
+        final Stripe s = stripe(pageId);
+        synchronized (s) {
+            final int slot = s.find(pageId);
+            if (slot < 0) {
+                misses.increment();
+                return false;
+            }
+            s.referenced[slot] = true;
+            s.view(slot).get(dest, 0, pageSize);
+        }
+        hits.increment();
+        return true;
+    }
+
+    /**
+     * Puts page content into cache, it may evict other page.
+     */
+    void put(long pageId, ByteBuffer data) {
+        final Stripe s = stripe(pageId);
+        synchronized (s) {
+            if (s.closed)
+                return;
+            int slot = s.find(pageId);
+            if (slot < 0) {
+                slot = s.evict();
+                s.slotPages[slot] = pageId;
+                s.insert(pageId, slot);
+            }
+            s.copy(slot, data);
+        }
+    }
+
+    /**
+     * Updates page content if page is in cache, page is not added otherwise.
+     * Called when page is written into storage.
+     */
+    void update(long pageId, ByteBuffer data) {
+        final Stripe s = stripe(pageId);
+        synchronized (s) {
+            final int slot = s.find(pageId);
+            if (slot >= 0)
+                s.copy(slot, data);
+        }
+    }
+
+    void clear() {
+        for (Stripe s : stripes) {
+            synchronized (s) {
+                s.clear();
+            }
+        }
+    }
+
+    /** releases off-heap memory, cache can not be used after close */
+    void close() {
+        for (Stripe s : stripes) {
+            synchronized (s) {
+                s.clear();
+                s.closed = true;
+            }
+        }
+        for (int i = 0; i < chunks.length; i++) {
+            StorageDiskMapped.unmap(chunks[i]);
+            chunks[i] = null;
+        }
+    }
+
+    long getHitCount() {
+        return hits.get();
+    }
+
+    long getMissCount() {
+        return misses.get();
+    }
+
+    long getEvictionCount() {
+        return evictions.get();
+    }
+
+    int size() {
+        int size = 0;
+        for (Stripe s : stripes) {
+            synchronized (s) {
+                size += s.count;
+            }
+        }
+        return size;
+    }
+
+
+    /**
+     * Range of slots with its own index and CLOCK hand, guarded by its own monitor.
+     * Slot numbers in stripe are relative to its first slot.
+     */
+    private final class Stripe {
+
+        final int firstSlot;
+        /** page id in each slot */
+        final long[] slotPages;
+        /** CLOCK reference bits */
+        final boolean[] referenced;
+
+        /** open addressing index with linear probing, maps page id to slot, slot -1 marks empty entry */
+        final long[] keys;
+        final int[] vals;
+        final int indexShift;
+
+        /** duplicates of chunks, their position is only changed while holding stripe lock */
+        final ByteBuffer[] views;
+
+        /** number of slots in use, unused slots are filled before any eviction */
+        int used = 0;
+        int hand = 0;
+        /** number of cached pages */
+        int count = 0;
+        boolean closed = false;
+
+        Stripe(int firstSlot, int slots) {
+            this.firstSlot = firstSlot;
+            slotPages = new long[slots];
+            referenced = new boolean[slots];
+            //load factor is at most 0.5
+            int bits = 1;
+            while ((1 << bits) < slots * 2)
+                bits++;
+            keys = new long[1 << bits];
+            vals = new int[1 << bits];
+            Arrays.fill(vals, -1);
+            indexShift = 64 - bits;
+            views = new ByteBuffer[chunks.length];
+            for (int i = 0; i < views.length; i++)
+                views[i] = chunks[i].duplicate();
+        }
+
+        /** returns chunk view positioned at slot start with limit at slot end */
+        ByteBuffer view(int slot) {
+            final int globalSlot = firstSlot + slot;
+            final ByteBuffer b = views[globalSlot >>> slotsPerChunkShift];
+            final int pos = (globalSlot & ((1 << slotsPerChunkShift) - 1)) << pageShift;
+            b.limit(pos + pageSize);
+            b.position(pos);
+            return b;
+        }
+
+        void copy(int slot, ByteBuffer data) {
+            final ByteBuffer src = data.duplicate();
+            src.limit(pageSize);
+            src.position(0);
+            view(slot).put(src);
+        }
+
+        private int pos(long pageId) {
+            return (int) ((pageId * PHI) >>> indexShift);
+        }
+
+        /** returns slot of page or -1 */
+        int find(long pageId) {
+            final int mask = vals.length - 1;
+            for (int i = pos(pageId); vals[i] >= 0; i = (i + 1) & mask) {
+                if (keys[i] == pageId)
+                    return vals[i];
+            }
+            return -1;
+        }
+
+        void insert(long pageId, int slot) {
+            final int mask = vals.length - 1;
+            int i = pos(pageId);
+            while (vals[i] >= 0)
+                i = (i + 1) & mask;
+            keys[i] = pageId;
+            vals[i] = slot;
+            count++;
+        }
+
+        void remove(long pageId) {
+            final int mask = vals.length - 1;
+            int i = pos(pageId);
+            for (; ; i = (i + 1) & mask) {
+                if (vals[i] < 0)
+                    return;
+                if (keys[i] == pageId)
+                    break;
+            }
+            count--;
+            //shift following entries back, so probe sequences stay unbroken
+            for (int j = (i + 1) & mask; vals[j] >= 0; j = (j + 1) & mask) {
+                final int home = pos(keys[j]);
+                //move entry if its home is not cyclically in (i, j]
+                if (i <= j ? (home <= i || home > j) : (home <= i && home > j)) {
+                    keys[i] = keys[j];
+                    vals[i] = vals[j];
+                    i = j;
+                }
+            }
+            vals[i] = -1;
+        }
+
+        /** finds free slot or evicts page which was not referenced recently */
+        int evict() {
+            if (used < slotPages.length)
+                return used++;
+            for (; ; ) {
+                final int slot = hand;
+                hand = hand + 1 == slotPages.length ? 0 : hand + 1;
+                if (referenced[slot]) {
+                    referenced[slot] = false;
+                } else {
+                    remove(slotPages[slot]);
+                    evictions.increment();
+                    return slot;
+                }
+            }
+        }
+
+        void clear() {
+            Arrays.fill(vals, -1);
+            Arrays.fill(referenced, false);
+            used = 0;
+            hand = 0;
+            count = 0;
+        }
+    }
+
+}
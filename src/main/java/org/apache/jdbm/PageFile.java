@@ -20,9 +20,11 @@ package org.apache.jdbm;
 import javax.crypto.Cipher;
 import java.io.IOError;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * This class represents a random access file as a set of fixed size
@@ -47,6 +49,30 @@ final class PageFile {
      */
     private final LongHashMap<PageIo> inUse = new LongHashMap<PageIo>();
 
+    /**
+     * Pages which are being read from storage by some thread. Storage is read without holding monitor,
+     * other threads wait until page is loaded, so single page is never read twice concurrently.
+     */
+    private final LongHashMap<Thread> loading = new LongHashMap<Thread>();
+
+    /**
+     * Number of threads waiting until page held by other thread is released.
+     * Page in use is latched by thread which got it, other threads block in {@link #get(long)}.
+     * Volatile, so {@link #unpin(PageIo)} can check it without taking monitor.
+     */
+    private volatile int latchWaiters = 0;
+
+    static final int POOL_SIZE = 1024;
+
+    /**
+     * Buffer pool used by readers. Direct mapped by page id, each slot holds recently used page.
+     * Lookups in {@link #pin(long)} are lock-free, so concurrent readers of the same hot page
+     * do not block each other and share single PageIo instance.
+     * Pool contains only pages which are consistent with other lists,
+     * it is cleared before data are written into storage, so no page holds remapped buffer.
+     */
+    private final AtomicReferenceArray<PageIo> pool = new AtomicReferenceArray<PageIo>(POOL_SIZE);
+
     /**
      * Pages whose state is dirty.
      */
@@ -62,15 +88,35 @@ final class PageFile {
     final boolean transactionsDisabled;
 
     /**
-     * A array of clean data to wipe clean pages.
+     * A array of clean data to wipe clean pages. It is large enough for biggest page size.
      */
-    static final byte[] CLEAN_DATA = new byte[Storage.PAGE_SIZE];
+    static final byte[] CLEAN_DATA = new byte[1<<Storage.PAGE_SIZE_SHIFT_MAX];
 
 
     final Storage storage;
+
+    /** size of pages in this store, it is chosen when store is created and recorded in file header */
+    final int pageSize;
+    /** bite shift used to calculate page size */
+    final int pageShift;
+    /** use 'val & offsetMask' to quickly get offset within the page */
+    final long offsetMask;
+    /** bite shift used to calculate size of segment files, also recorded in file header */
+    final int segmentShift;
     private Cipher cipherOut;
     private Cipher cipherIn;
 
+    /** cache of decrypted pages read from storage, null if disabled */
+    final PageCache pageCache;
+
+    /** StorageMemory is not thread safe, it is read under monitor. It does no I/O, so readers do not wait long */
+    private final boolean readUnderLock;
+
+    /** number of pages read from storage */
+    final StripedCounter pageReads = new StripedCounter();
+    /** number of pages written into storage */
+    final StripedCounter pageWrites = new StripedCounter();
+
 
     /**
      * Creates a new object on the indicated filename. The file is
@@ -78,35 +124,135 @@ final class PageFile {
      *
      * @param fileName the name of the file to open or create, without
      *                 an extension.
+     * @param groupCommitWait how long group commit waits for other committers in nanoseconds, -1 to disable group commit
+     * @param backgroundCheckpoint if true transaction log is written into data file by background thread
+     * @param pageShift bite shift of page size used if new store is created,
+     *                  existing store always uses page size recorded in its header
+     * @param segmentShift bite shift of segment file size used if new store is created,
+     *                  existing store always uses segment size recorded in its header
+     * @param pageCacheSize size of off-heap page cache in bytes, 0 to disable it.
+     *                  Cache is not used for in-memory store and for unencrypted memory mapped files,
+     *                  whose pages are already in memory
      * @throws IOException whenever the creation of the underlying
      *                     RandomAccessFile throws it.
      */
-    PageFile(String fileName, boolean readonly, boolean transactionsDisabled, Cipher cipherIn, Cipher cipherOut, boolean useRandomAccessFile, boolean lockingDisabled) throws IOException {
+    PageFile(String fileName, boolean readonly, boolean transactionsDisabled, Cipher cipherIn, Cipher cipherOut, boolean useRandomAccessFile, boolean lockingDisabled,
+             long groupCommitWait, boolean backgroundCheckpoint, int pageShift, int segmentShift, long pageCacheSize) throws IOException {
         this.cipherIn = cipherIn;
         this.cipherOut = cipherOut;
         this.transactionsDisabled = transactionsDisabled;
-        if(fileName == null){
-            this.storage = new StorageMemory(transactionsDisabled);
-        }else if(DBMaker.isZipFileLocation(fileName)!=null)
-                this.storage = new StorageZip(DBMaker.isZipFileLocation(fileName));
-//        }else if (fileName.contains("!/"))
-//            this.storage = new StorageZip(fileName);
-        else if(useRandomAccessFile)
-            this.storage = new StorageDisk(fileName,readonly,lockingDisabled);
-        else
-            this.storage = new StorageDiskMapped(fileName,readonly,transactionsDisabled,lockingDisabled);
+        if(pageShift<Storage.PAGE_SIZE_SHIFT || pageShift>Storage.PAGE_SIZE_SHIFT_MAX)
+            throw new IllegalArgumentException("Page size out of range: "+(1<<pageShift));
+        if(segmentShift<StorageDiskMapped.SEGMENT_SIZE_SHIFT_MIN || segmentShift>StorageDiskMapped.SEGMENT_SIZE_SHIFT_MAX)
+            throw new IllegalArgumentException("Segment size out of range: "+(1L<<segmentShift));
+
+        //file header can be read with default sizes, reopen storage if store uses different sizes
+        Storage storage = openStorage(fileName, readonly, transactionsDisabled, useRandomAccessFile, lockingDisabled,
+                Storage.PAGE_SIZE_SHIFT, StorageDiskMapped.SEGMENT_SIZE_SHIFT);
+        final boolean isNew = isNewStore(storage);
+        if(!isNew){
+            final byte[] header = readHeader(storage);
+            pageShift = readShift(header, Magic.FILE_HEADER_O_PAGE_SHIFT,
+                    Storage.PAGE_SIZE_SHIFT, Storage.PAGE_SIZE_SHIFT, Storage.PAGE_SIZE_SHIFT_MAX);
+            segmentShift = readShift(header, Magic.FILE_HEADER_O_SEGMENT_SHIFT,
+                    StorageDiskMapped.SEGMENT_SIZE_SHIFT, StorageDiskMapped.SEGMENT_SIZE_SHIFT_MIN, StorageDiskMapped.SEGMENT_SIZE_SHIFT_MAX);
+        }
+        final boolean defaultSizes = pageShift==Storage.PAGE_SIZE_SHIFT && segmentShift==StorageDiskMapped.SEGMENT_SIZE_SHIFT;
+        if(!defaultSizes){
+            storage.forceClose();
+            storage = openStorage(fileName, readonly, transactionsDisabled, useRandomAccessFile, lockingDisabled, pageShift, segmentShift);
+        }
+        this.storage = storage;
+        this.pageShift = pageShift;
+        this.pageSize = 1<<pageShift;
+        this.offsetMask = 0xFFFFFFFFFFFFFFFFL >>> (64-pageShift);
+        this.segmentShift = segmentShift;
 
         if (this.storage.isReadonly() && !readonly)
             throw new IllegalArgumentException("This type of storage is readonly, you should call readonly() on DBMaker");
+        if(isNew && !readonly && !defaultSizes)
+            writeHeader();
+        final boolean pagesInMemory = storage instanceof StorageMemory ||
+                (storage instanceof StorageDiskMapped && cipherOut == null);
+        pageCache = pageCacheSize>0 && !pagesInMemory ? new PageCache(pageCacheSize, pageShift) : null;
+        readUnderLock = storage instanceof StorageMemory;
         if (!readonly && !transactionsDisabled) {
-            txnMgr = new PageTransactionManager(this, storage, cipherIn, cipherOut);
+            txnMgr = new PageTransactionManager(this, storage, cipherIn, cipherOut, groupCommitWait, backgroundCheckpoint);
         } else {
             txnMgr = null;
         }
     }
 
+    private static Storage openStorage(String fileName, boolean readonly, boolean transactionsDisabled, boolean useRandomAccessFile,
+                                       boolean lockingDisabled, int pageShift, int segmentShift) throws IOException {
+        if(fileName == null)
+            return new StorageMemory(transactionsDisabled, pageShift);
+        else if(DBMaker.isZipFileLocation(fileName)!=null)
+            return new StorageZip(DBMaker.isZipFileLocation(fileName), pageShift);
+        else if(useRandomAccessFile)
+            return new StorageDisk(fileName,readonly,lockingDisabled, pageShift, segmentShift);
+        else
+            return new StorageDiskMapped(fileName,readonly,transactionsDisabled,lockingDisabled, pageShift, segmentShift);
+    }
+
+    /**
+     * Store is new if its header is empty and there is no transaction log
+     * which could contain header not written into storage yet.
+     */
+    private static boolean isNewStore(Storage storage) throws IOException {
+        return Utils.allZeros(readRawHeader(storage)) && storage.getTransactionLogSegments().length == 0;
+    }
+
+    private static byte[] readRawHeader(Storage storage) throws IOException {
+        final ByteBuffer b = storage.read(0).duplicate();
+        final byte[] header = new byte[Storage.PAGE_SIZE];
+        b.rewind();
+        b.get(header, 0, Storage.PAGE_SIZE);
+        return header;
+    }
+
+    /**
+     * Reads file header with default page size.
+     * CBC cipher decrypts its beginning correctly even if page is bigger.
+     */
+    private byte[] readHeader(Storage storage) throws IOException {
+        byte[] header = readRawHeader(storage);
+        if(cipherOut!=null && !Utils.allZeros(header)) try {
+            header = cipherOut.doFinal(header);
+        } catch (Exception e) {
+            throw new IOError(e);
+        }
+        return header;
+    }
+
+    /**
+     * Reads size shift from file header, zero means store was created with default size.
+     */
+    private static int readShift(byte[] header, int offset, int defaultShift, int min, int max){
+        final int shift = header[offset];
+        if(shift == 0)
+            return defaultShift;
+        if(shift<min || shift>max)
+            throw new Error("CRITICAL: size in file header not OK " + shift);
+        return shift;
+    }
+
+    /**
+     * Writes page and segment size into header of new store. It goes directly into storage,
+     * so header can be read before transaction log is replayed.
+     */
+    private void writeHeader() throws IOException {
+        final byte[] header = new byte[pageSize];
+        if(pageShift != Storage.PAGE_SIZE_SHIFT)
+            header[Magic.FILE_HEADER_O_PAGE_SHIFT] = (byte) pageShift;
+        if(segmentShift != StorageDiskMapped.SEGMENT_SIZE_SHIFT)
+            header[Magic.FILE_HEADER_O_SEGMENT_SHIFT] = (byte) segmentShift;
+        storage.write(0, ByteBuffer.wrap(Utils.encrypt(cipherIn, header)));
+        storage.sync();
+    }
+
     public PageFile(String filename) throws IOException {
-        this(filename, false, false, null, null,false,false);
+        this(filename, false, false, null, null,false,false,-1,false,Storage.PAGE_SIZE_SHIFT,StorageDiskMapped.SEGMENT_SIZE_SHIFT,0);
     }
 
 
@@ -117,60 +263,269 @@ final class PageFile {
      * write the page back). If transactions are disabled, changes
      * may be written directly
      *
+     * Page is latched exclusively. If page is currently held by other thread
+     * or pinned by readers, this method blocks until page is released.
+     *
      * @param pageId The record number to retrieve.
      */
     PageIo get(long pageId) throws IOException {
+        for(;;){
+            synchronized (this){
+                // wait until other threads release this page,
+                // sanity check: can't be on in use list by current thread
+                waitUntilNotInUse(pageId);
+
+                final PageIo node = lookup(pageId);
+                if(node == null){
+                    loading.put(pageId, Thread.currentThread());
+                }else if(node.tryLatch()){
+                    latched(node);
+                    return node;
+                }else{
+                    // readers still have this page pinned, wait until they are done
+                    awaitNotify(pageId);
+                    continue;
+                }
+            }
+            final PageIo node = load(pageId);
+            synchronized (this){
+                loaded(pageId);
+                // page was not published yet, so nobody else could pin it
+                node.tryLatch();
+                latched(node);
+                return node;
+            }
+        }
+    }
 
-        // try in transaction list, dirty list, free list
-        PageIo node = inTxn.get(pageId);
-        if (node != null) {
-            inTxn.remove(pageId);
-            inUse.put(pageId, node);
+    private void latched(PageIo node){
+        final long pageId = node.getPageId();
+        // take it from transaction or dirty list, it is returned there on release
+        inTxn.remove(pageId);
+        dirty.remove(pageId);
+        node.latchOwner = Thread.currentThread();
+        inUse.put(pageId, node);
+    }
+
+    /**
+     * Pins page for reading. Multiple threads can pin the same page concurrently,
+     * returned page must not be modified and must be released with {@link #unpin(PageIo)}.
+     * <p>
+     * Pages are looked up in buffer pool first without any locking.
+     * Page which is not in memory is read from storage without holding monitor,
+     * so readers of different pages do not wait for each other's I/O.
+     *
+     * @param pageId The record number to retrieve.
+     */
+    PageIo pin(long pageId) throws IOException {
+        final PageIo node = pool.get(poolSlot(pageId));
+        if(node!=null && node.getPageId() == pageId && node.tryPin()){
+            //recheck it was not evicted or replaced meanwhile
+            if(pool.get(poolSlot(pageId)) == node)
+                return node;
+            unpin(node);
+        }
+        return pinSlow(pageId);
+    }
+
+    private PageIo pinSlow(long pageId) throws IOException {
+        for(;;){
+            synchronized (this){
+                waitUntilNotInUse(pageId);
+                final PageIo node = lookup(pageId);
+                if(node == null){
+                    loading.put(pageId, Thread.currentThread());
+                }else if(node.tryPin()){
+                    pool.set(poolSlot(pageId), node);
+                    return node;
+                }else{
+                    awaitNotify(pageId);
+                    continue;
+                }
+            }
+            final PageIo node = load(pageId);
+            synchronized (this){
+                loaded(pageId);
+                node.tryPin();
+                pool.set(poolSlot(pageId), node);
+                return node;
+            }
+        }
+    }
+
+    /**
+     * Reads page registered in {@link #loading} without holding monitor.
+     * If read fails, page is unregistered so waiting threads can retry.
+     */
+    private PageIo load(long pageId) throws IOException {
+        PageIo node = null;
+        try{
+            node = read(pageId);
             return node;
+        }finally {
+            if(node == null){
+                synchronized (this){
+                    loaded(pageId);
+                }
+            }
         }
+    }
+
+    private void loaded(long pageId){
+        loading.remove(pageId);
+        if(latchWaiters!=0)
+            notifyAll();
+    }
+
+    /**
+     * Releases page pinned by {@link #pin(long)}
+     */
+    void unpin(PageIo page){
+        if(page.unpin() == 0 && latchWaiters!=0){
+            synchronized (this){
+                notifyAll();
+            }
+        }
+    }
+
+    private static int poolSlot(long pageId){
+        int h = (int)(pageId ^ (pageId >>> 32));
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return h & (POOL_SIZE-1);
+    }
+
+    private void clearPool(){
+        for(int i=0;i<POOL_SIZE;i++)
+            pool.set(i,null);
+    }
+
+    private void waitUntilNotInUse(long pageId) throws InterruptedIOException {
+        for(PageIo held = inUse.get(pageId); held!=null; held = inUse.get(pageId)){
+            if(held.latchOwner == Thread.currentThread())
+                throw new Error("double get for page " + pageId);
+            awaitNotify(pageId);
+        }
+        while(loading.get(pageId)!=null)
+            awaitNotify(pageId);
+    }
+
+    private void awaitNotify(long pageId) throws InterruptedIOException {
+        latchWaiters++;
+        try{
+            wait();
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for page "+pageId);
+        }finally {
+            latchWaiters--;
+        }
+    }
+
+    /**
+     * Finds page in transaction list, dirty list or buffer pool.
+     * Page is not removed from lists.
+     *
+     * @return page or null if it must be read from storage
+     */
+    private PageIo lookup(long pageId) {
+        // try in transaction list, dirty list, pool
+        PageIo node = inTxn.get(pageId);
+        if (node != null)
+            return node;
         node = dirty.get(pageId);
-        if (node != null) {
-            dirty.remove(pageId);
-            inUse.put(pageId, node);
+        if (node != null)
             return node;
-        }
+        node = pool.get(poolSlot(pageId));
+        if(node!=null && node.getPageId() == pageId)
+            return node;
+        return null;
+    }
 
+    /**
+     * Reads page from checkpoint snapshot, page cache or file. It is called without holding monitor.
+     */
+    private PageIo read(long pageId) throws IOException {
+        PageIo node;
+        final boolean backgroundCheckpoint = txnMgr!=null && txnMgr.backgroundCheckpoint;
+        if(backgroundCheckpoint){
+            // committed page may not be written into storage yet
+            byte[] snapshot = txnMgr.getCheckpointSnapshot(pageId);
+            if(snapshot!=null){
+                node = new PageIo(pageId, ByteBuffer.wrap(snapshot).asReadOnlyBuffer());
+                node.setClean();
+                return node;
+            }
+        }
 
-        // sanity check: can't be on in use list
-        if (inUse.get(pageId) != null) {
-            throw new Error("double get for page " + pageId);
+        if(pageCache!=null){
+            //page owns its buffer while it is in use, so cached content is copied into new array
+            final byte[] cached = new byte[pageSize];
+            if(pageCache.get(pageId, cached)){
+                node = new PageIo(pageId, ByteBuffer.wrap(cached));
+                node.setClean();
+                return node;
+            }
         }
 
         //read node from file
+        pageReads.increment();
         if (cipherOut == null) {
-            node = new PageIo(pageId,storage.read(pageId));
+            node = new PageIo(pageId,readStorage(pageId));
         } else {
             //decrypt if needed
-            ByteBuffer b = storage.read(pageId);
+            ByteBuffer b = readStorage(pageId);
             byte[] bb;
             if(b.hasArray()){
                 bb = b.array();
             }else{
-                bb = new byte[Storage.PAGE_SIZE];
+                bb = new byte[pageSize];
                 b.position(0);
-                b.get(bb, 0, Storage.PAGE_SIZE);
+                b.get(bb, 0, pageSize);
             }
             if (!Utils.allZeros(bb)) try {
-                bb = cipherOut.doFinal(bb);
+                //cipher is not thread safe
+                synchronized (cipherOut){
+                    bb = cipherOut.doFinal(bb);
+                }
                 node = new PageIo(pageId, ByteBuffer.wrap(bb));
                 } catch (Exception e) {
                 throw new IOError(e);
             }else {
-                node = new PageIo(pageId, ByteBuffer.wrap(PageFile.CLEAN_DATA).asReadOnlyBuffer());
+                node = new PageIo(pageId, ByteBuffer.wrap(PageFile.CLEAN_DATA, 0, pageSize).asReadOnlyBuffer());
             }
         }
 
-
-        inUse.put(pageId, node);
+        if(backgroundCheckpoint){
+            // storage may be remapped by checkpointer while page is in use, so do not keep mapped buffer
+            node.ensureHeapBuffer();
+        }
+        if(pageCache!=null)
+            pageCache.put(pageId, node.getData());
         node.setClean();
         return node;
     }
 
+    private ByteBuffer readStorage(long pageId) throws IOException {
+        if(readUnderLock){
+            synchronized (this){
+                return storage.read(pageId);
+            }
+        }
+        return storage.read(pageId);
+    }
+
+    private PageIo unlatch(long pageId){
+        final PageIo page = inUse.remove(pageId);
+        if(page!=null){
+            page.latchOwner = null;
+            page.unlatch();
+        }
+        if(latchWaiters!=0)
+            notifyAll();
+        return page;
+    }
+
 
     /**
      * Releases a page.
@@ -178,9 +533,9 @@ final class PageFile {
      * @param pageId The record number to release.
      * @param isDirty If true, the page was modified since the get().
      */
-    void release(final long pageId, final boolean isDirty) throws IOException {
+    synchronized void release(final long pageId, final boolean isDirty) throws IOException {
 
-        final PageIo page = inUse.remove(pageId);
+        final PageIo page = unlatch(pageId);
         if (!page.isDirty() && isDirty)
             page.setDirty();
 
@@ -196,9 +551,9 @@ final class PageFile {
      *
      * @param page The page to release.
      */
-    void release(final PageIo page) throws IOException {
+    synchronized void release(final PageIo page) throws IOException {
         final long key = page.getPageId();
-        inUse.remove(key);
+        unlatch(key);
         if (page.isDirty()) {
             // System.out.println( "Dirty: " + key + page );
             dirty.put(key, page);
@@ -212,9 +567,11 @@ final class PageFile {
      *
      * @param page The page to discard.
      */
-    void discard(PageIo page) {
+    synchronized void discard(PageIo page) {
         long key = page.getPageId();
-        inUse.remove(key);
+        //page content is not valid anymore, so remove it from pool
+        pool.compareAndSet(poolSlot(key), page, null);
+        unlatch(key);
     }
 
     /**
@@ -236,6 +593,10 @@ final class PageFile {
             return;
         }
 
+        // storage may be remapped while writing, do not keep old buffers around
+        if(txnMgr == null || !txnMgr.backgroundCheckpoint)
+            clearPool();
+
         if (!transactionsDisabled) {
             txnMgr.start();
         }
@@ -249,19 +610,28 @@ final class PageFile {
         }
         Arrays.sort(pageIds);
 
-        for (long pageId : pageIds) {
-            PageIo node = dirty.get(pageId);
-
-            // System.out.println("node " + node + " map size now " + dirty.size());
-            if (transactionsDisabled) {
-                if(cipherIn !=null)                    
-                   storage.write(node.getPageId(), ByteBuffer.wrap(Utils.encrypt(cipherIn, node.getData())));
+        if (transactionsDisabled) {
+            //pages are passed to storage together, so consecutive pages can be written at once
+            final ByteBuffer[] data = new ByteBuffer[pageIds.length];
+            for (int i = 0; i < pageIds.length; i++) {
+                PageIo node = dirty.get(pageIds[i]);
+                if(pageCache!=null)
+                    pageCache.update(pageIds[i], node.getData());
+                if(cipherIn !=null)
+                   data[i] = ByteBuffer.wrap(Utils.encrypt(cipherIn, node.getData()));
                 else
-                   storage.write(node.getPageId(),node.getData());
-                node.setClean();
-            } else {
+                   data[i] = node.getData();
+            }
+            storage.write(pageIds, data);
+            pageWrites.add(pageIds.length);
+            for (long pageId : pageIds)
+                dirty.get(pageId).setClean();
+        } else {
+            for (long pageId : pageIds) {
+                PageIo node = dirty.get(pageId);
                 txnMgr.add(node);
-                inTxn.put(node.getPageId(), node);
+                if(!txnMgr.backgroundCheckpoint)
+                    inTxn.put(node.getPageId(), node);
             }
         }
         dirty.clear();
@@ -271,6 +641,27 @@ final class PageFile {
     }
 
 
+    /**
+     * Waits until committed transactions are durable in transaction log.
+     * Only has effect with group commit, must be called without holding DB lock.
+     */
+    void awaitDurable() throws IOException {
+        if(txnMgr!=null)
+            txnMgr.awaitDurable();
+    }
+
+    /** registers committer for group commit, see {@link PageTransactionManager#enterCommit()} */
+    void enterCommit(){
+        if(txnMgr!=null)
+            txnMgr.enterCommit();
+    }
+
+    /** unregisters committer for group commit, see {@link PageTransactionManager#exitCommit()} */
+    void exitCommit(){
+        if(txnMgr!=null)
+            txnMgr.exitCommit();
+    }
+
     /**
      * Rollback the current transaction by discarding all dirty buffers
      */
@@ -283,6 +674,10 @@ final class PageFile {
         }
         //  System.out.println("rollback...");
         dirty.clear();
+        clearPool();
+        //log replay writes committed pages directly into storage, cached pages may be older
+        if(pageCache!=null)
+            pageCache.clear();
 
         txnMgr.synchronizeLogFromDisk();
 
@@ -301,6 +696,7 @@ final class PageFile {
         if (!dirty.isEmpty()) {
             commit();
         }
+        clearPool();
 
         if(!transactionsDisabled && txnMgr!=null){
             txnMgr.shutdown();
@@ -325,6 +721,8 @@ final class PageFile {
 
         storage.sync();
         storage.forceClose();
+        if(pageCache!=null)
+            pageCache.close();
     }
 
 
@@ -337,6 +735,8 @@ final class PageFile {
             txnMgr.forceClose();
         }
         storage.forceClose();
+        if(pageCache!=null)
+            pageCache.close();
     }
 
     /**
@@ -351,17 +751,41 @@ final class PageFile {
     }
 
     /**
-     * Synchs a node to disk. This is called by the transaction manager's
-     * synchronization code.
+     * Synchs nodes to disk. This is called by the transaction manager's
+     * synchronization code. Nodes must be sorted by page id,
+     * so storage can write consecutive pages at once.
      */
-    void synch(PageIo node) throws IOException {
-        ByteBuffer data = node.getData();
-        if (data != null) {
+    void synch(PageIo[] nodes, int start, int end) throws IOException {
+        long[] pageIds = new long[end - start];
+        ByteBuffer[] data = new ByteBuffer[end - start];
+        int count = 0;
+        for (int i = start; i < end; i++) {
+            final ByteBuffer b = nodes[i].getData();
+            if (b == null)
+                continue;
+            pageIds[count] = nodes[i].getPageId();
+            if(pageCache!=null)
+                pageCache.update(pageIds[count], b);
             if(cipherIn!=null)
-                storage.write(node.getPageId(), ByteBuffer.wrap(Utils.encrypt(cipherIn, data)));
+                data[count] = ByteBuffer.wrap(Utils.encrypt(cipherIn, b));
             else
-                storage.write(node.getPageId(),  data);
+                data[count] = b;
+            count++;
+        }
+        if (count != pageIds.length) {
+            pageIds = Arrays.copyOf(pageIds, count);
+            data = Arrays.copyOf(data, count);
         }
+        storage.write(pageIds, data);
+        pageWrites.add(count);
+    }
+
+    /**
+     * Writes pages from log segment into storage. Called by background checkpointer,
+     * so storage is not accessed by other thread meanwhile.
+     */
+    synchronized void writeCheckpoint(PageIo[] nodes, int start, int end) throws IOException {
+        synch(nodes, start, end);
     }
 
     /**
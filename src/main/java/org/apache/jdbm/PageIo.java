@@ -20,6 +20,8 @@ package org.apache.jdbm;
 import javax.crypto.Cipher;
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
 import static org.apache.jdbm.Magic.*;
 
 /**
@@ -45,6 +47,18 @@ final class PageIo {
 
     private int transactionCount = 0;
 
+    /** thread which currently holds this page in {@link PageFile}, null if page is not in use */
+    Thread latchOwner;
+
+    /**
+     * Number of readers which pinned this page with {@link PageFile#pin(long)}.
+     * Value -1 means page is exclusively latched for update and can not be pinned.
+     */
+    private volatile int pins = 0;
+
+    private static final AtomicIntegerFieldUpdater<PageIo> PINS =
+            AtomicIntegerFieldUpdater.newUpdater(PageIo.class, "pins");
+
     /**
      * Default constructor for serialization
      */
@@ -66,13 +80,48 @@ final class PageIo {
         this.data = data;
     }
 
+    /**
+     * Adds shared read pin, fails if page is exclusively latched
+     * @return true if page was pinned
+     */
+    boolean tryPin(){
+        for(;;){
+            final int p = pins;
+            if(p<0) return false;
+            if(PINS.compareAndSet(this, p, p+1)) return true;
+        }
+    }
+
+    /**
+     * Removes shared read pin
+     * @return number of pins remaining
+     */
+    int unpin(){
+        final int p = PINS.decrementAndGet(this);
+        if(p<0) throw new InternalError("page "+pageId+" unpinned too many times");
+        return p;
+    }
+
+    /**
+     * Takes exclusive latch, fails if page is pinned by readers
+     * @return true if latch was taken
+     */
+    boolean tryLatch(){
+        return PINS.compareAndSet(this, 0, -1);
+    }
+
+    /** releases exclusive latch taken by {@link #tryLatch()}*/
+    void unlatch(){
+        pins = 0;
+    }
+
     /** Frequent reads on direct buffer may be slower then on heap buffer.
      * This method converts native direct to heap buffer
      */
     void ensureHeapBuffer(){
         if(data.isDirect()){
-            final byte[] bb = new byte[Storage.PAGE_SIZE];
-            data.get(bb,0,Storage.PAGE_SIZE);
+            final byte[] bb = new byte[getPageSize()];
+            copyTo(bb);
             data = ByteBuffer.wrap(bb);
             if(data.isReadOnly()) throw new InternalError();
         }
@@ -86,6 +135,13 @@ final class PageIo {
         return data;
     }
 
+    /**
+     * Returns size of this page, it is chosen per store and may differ from default {@link Storage#PAGE_SIZE}
+     */
+    int getPageSize() {
+        return data.limit();
+    }
+
     /**
      * Returns the page number.
      */
@@ -101,8 +157,8 @@ final class PageIo {
         
         if(data.isReadOnly()){
             // make copy if needed, so we can write into buffer
-            byte[] buf = new byte[Storage.PAGE_SIZE];
-            data.get(buf,0,Storage.PAGE_SIZE);
+            byte[] buf = new byte[getPageSize()];
+            copyTo(buf);
             data = ByteBuffer.wrap(buf);
         }
     }
@@ -284,12 +340,30 @@ final class PageIo {
     public byte[] getByteArray() {
         if ( data.hasArray())
             return data.array();
-        byte[] d= new byte[Storage.PAGE_SIZE];
-        data.rewind();
-        data.get(d,0,Storage.PAGE_SIZE);
+        byte[] d= new byte[getPageSize()];
+        copyTo(d);
         return d;
     }
 
+    /**
+     * Returns copy of page content, which is not shared with this page.
+     */
+    byte[] getByteArrayCopy() {
+        byte[] d = new byte[getPageSize()];
+        copyTo(d);
+        return d;
+    }
+
+    /**
+     * Copies page content into array. Buffer position is not modified,
+     * so it is safe to call on page shared by multiple readers.
+     */
+    private void copyTo(byte[] d){
+        final ByteBuffer b = data.duplicate();
+        b.rewind();
+        b.get(d,0,d.length);
+    }
+
     public void writeByteArray(byte[] buf, int srcOffset, int offset, int length) {
         setDirty();
         data.rewind();
@@ -89,7 +89,7 @@ final class PageManager {
         long oldLast = headerBuf.fileHeaderGetLastOf(type);
 
         // Clean data.
-        pageHdr.writeByteArray(PageFile.CLEAN_DATA, 0, 0, Storage.PAGE_SIZE);
+        pageHdr.writeByteArray(PageFile.CLEAN_DATA, 0, 0, file.pageSize);
 
         pageHdr.pageHeaderSetType(type);
         pageHdr.pageHeaderSetPrev(oldLast);
@@ -160,10 +160,11 @@ final class PageManager {
      * Returns the page following the indicated page
      */
     long getNext(long page) throws IOException {
+        final PageIo io = file.pin(page);
         try {
-            return file.get(page).pageHeaderGetNext();
+            return io.pageHeaderGetNext();
         } finally {
-            file.release(page, false);
+            file.unpin(io);
         }
     }
 
@@ -171,10 +172,11 @@ final class PageManager {
      * Returns the page before the indicated page
      */
     long getPrev(long page) throws IOException {
+        final PageIo io = file.pin(page);
         try {
-            return file.get(page).pageHeaderGetPrev();
+            return io.pageHeaderGetPrev();
         } finally {
-            file.release(page, false);
+            file.unpin(io);
         }
     }
 
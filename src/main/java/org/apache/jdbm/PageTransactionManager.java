@@ -19,12 +19,20 @@ package org.apache.jdbm;
 
 import javax.crypto.Cipher;
 import java.io.DataInputStream;
+import java.io.DataOutput;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
 import java.util.TreeSet;
+import java.util.zip.CRC32;
 
 /**
  * This class manages the transaction log that belongs to every
@@ -49,12 +57,105 @@ final class PageTransactionManager {
      * of hassle.
      */
     private ArrayList<PageIo> txn = new ArrayList<PageIo>();
+    /** index of first page of current transaction in {@link #txn} */
+    private int txnStart = 0;
     private int curTxn = -1;
 
+    /** size of single page in log record: page id and page data */
+    final int logPageSize;
+
+    /** number of bytes written into transaction log */
+    final StripedCounter logBytes = new StripedCounter();
+
+    /** maximal number of pages passed to storage in single write */
+    static final int WRITE_BATCH_PAGES = 256;
+
     private Storage storage;
     private Cipher cipherIn;
     private Cipher cipherOut;
 
+    /**
+     * Max number of transactions kept in log when group commit is enabled.
+     * After that log is synchronized into data file and new log is started.
+     */
+    static final int GROUP_COMMIT_MAX_TXNS = 64;
+
+    /**
+     * How long group commit leader waits for other committers (in nanoseconds),
+     * -1 if group commit is disabled and each commit is synced immediately.
+     */
+    private final long groupCommitWait;
+
+    /** number of transactions which can be in log before it is synchronized into data file */
+    private final int maxTxns;
+
+    /**
+     * Guards {@link #pending} buffer and group commit counters.
+     * Commits append into pending buffer, single leader thread writes and syncs it into log.
+     */
+    private final Object logLock = new Object();
+
+    /** log records which were committed, but not yet written and synced into log file */
+    private final DataInputOutput pending = new DataInputOutput();
+
+    /** number of transactions appended to log */
+    private long writtenTxn = 0;
+
+    /** number of transactions synced in log file */
+    private long durableTxn = 0;
+
+    /** true if some thread is writing pending log records */
+    private boolean flushing = false;
+
+    /**
+     * Number of committers between {@link #enterCommit()} and {@link #exitCommit()}.
+     * Leader only waits while some of them did not append their transaction yet.
+     */
+    private int committers = 0;
+
+    /** set if log could not be written, all following commits will fail */
+    private IOException flushError;
+
+    /**
+     * Max number of transactions in single log segment when background checkpoint is enabled.
+     */
+    static final int CHECKPOINT_SEGMENT_TXNS = 256;
+
+    /**
+     * Max number of full log segments waiting for checkpoint.
+     * If background checkpointer falls behind, commit blocks until it catches up.
+     */
+    static final int CHECKPOINT_MAX_QUEUED = 4;
+
+    /** number of log segment currently written */
+    private int segment = 0;
+
+    /** true if log segments are written into data file by background thread */
+    final boolean backgroundCheckpoint;
+
+    /** background thread which writes full log segments into data file, null if disabled */
+    private final Checkpointer checkpointer;
+
+    /**
+     * Guards {@link #snapshots} and {@link #checkpointQueue}.
+     */
+    private final Object checkpointLock = new Object();
+
+    /**
+     * Pages committed into current log segment. Contains copy of page made at commit time,
+     * latest committed version is used for reads until segment is checkpointed.
+     */
+    private LongHashMap<PageIo> snapshots = new LongHashMap<PageIo>();
+
+    /** full log segments waiting for checkpoint, oldest first */
+    private final ArrayList<LogSegment> checkpointQueue = new ArrayList<LogSegment>();
+
+    private boolean checkpointerStop = false;
+    private volatile boolean checkpointerAbort = false;
+
+    /** set if checkpoint failed, following commits will fail */
+    private IOException checkpointError;
+
     /**
      * Instantiates a transaction manager instance. If recovery
      * needs to be performed, it is done.
@@ -63,14 +164,30 @@ final class PageTransactionManager {
      * @param storage
      * @param cipherIn
      * @param cipherOut
+     * @param groupCommitWait how long group commit leader waits for other committers in nanoseconds, -1 to disable group commit
+     * @param backgroundCheckpoint if true, log segments are written into data file by background thread
      */
-    PageTransactionManager(PageFile owner, Storage storage, Cipher cipherIn, Cipher cipherOut) throws IOException {
+    PageTransactionManager(PageFile owner, Storage storage, Cipher cipherIn, Cipher cipherOut, long groupCommitWait,
+                           boolean backgroundCheckpoint) throws IOException {
         this.owner = owner;
+        this.logPageSize = Magic.SZ_LONG + owner.pageSize;
         this.storage = storage;
         this.cipherIn = cipherIn;
         this.cipherOut = cipherOut;
+        this.groupCommitWait = groupCommitWait;
+        this.backgroundCheckpoint = backgroundCheckpoint;
+        if(backgroundCheckpoint)
+            this.maxTxns = CHECKPOINT_SEGMENT_TXNS;
+        else
+            this.maxTxns = groupCommitWait<0 ? 1 : GROUP_COMMIT_MAX_TXNS;
         recover();
         open();
+        if(backgroundCheckpoint){
+            checkpointer = new Checkpointer();
+            checkpointer.start();
+        }else{
+            checkpointer = null;
+        }
     }
 
 
@@ -115,6 +232,7 @@ final class PageTransactionManager {
             }
 
             txn = null;
+            txnStart = 0;
         }
 
         // Write the page from the pageList to disk
@@ -130,8 +248,8 @@ final class PageTransactionManager {
      */
     private void open() throws IOException {
 
-        oos = storage.openTransactionLog();
-        oos.writeShort(Magic.LOGFILE_HEADER);
+        oos = storage.openTransactionLog(segment);
+        oos.writeShort(Magic.LOGFILE_HEADER2);
         oos.flush();
         curTxn = -1;
     }
@@ -140,12 +258,48 @@ final class PageTransactionManager {
      * Startup recovery on all files
      */
     private void recover() throws IOException {
-
-        DataInputStream ois = storage.readTransactionLog();
+        final int[] segments = storage.getTransactionLogSegments();
 
         // if transaction log is empty, or does not exist
-        if (ois == null) return;
+        if (segments.length == 0) return;
+
+        for(int seg:segments){
+            DataInputStream ois = storage.readTransactionLog(seg);
+            if(ois == null) continue;
+            final short magic;
+            try{
+                magic = ois.readShort();
+            }catch(IOException e){
+                // corrupted/empty logfile
+                ois.close();
+                continue;
+            }
+
+            if(magic == Magic.LOGFILE_HEADER){
+                recoverLegacy(ois);
+            }else if(magic == Magic.LOGFILE_HEADER2){
+                //first pass finds last complete transaction, second pass replays them
+                final int txns = countCompleteTxns(ois);
+                ois.close();
+                ois = storage.readTransactionLog(seg);
+                ois.readShort();
+                replay(ois, txns);
+            }else{
+                ois.close();
+                throw new Error("Bad magic on log file");
+            }
+            ois.close();
+        }
+        owner.sync();
+        for(int seg:segments)
+            storage.deleteTransactionLog(seg);
+        segment = 0;
+    }
 
+    /**
+     * Replays log written by older versions, which has no checksums.
+     */
+    private void recoverLegacy(DataInputStream ois) throws IOException {
         while (true) {
             ArrayList<PageIo> pages = null;
             try {
@@ -161,21 +315,96 @@ final class PageTransactionManager {
                 break;
             }
             synchronizePages(pages, false);
+        }
+    }
 
+    /**
+     * Scans log and returns number of complete transactions.
+     * Transaction is complete if its length, checksum and commit marker are valid,
+     * scan stops at first incomplete transaction.
+     */
+    private int countCompleteTxns(DataInputStream in) throws IOException {
+        final byte[] buf = new byte[logPageSize];
+        int count = 0;
+        try{
+            for(;;){
+                final int length = in.readInt();
+                if(length < 0 || length % logPageSize != 0)
+                    return count;
+                final CRC32 crc = new CRC32();
+                updateInt(crc, length);
+                for(int i = 0; i<length; i+=logPageSize){
+                    in.readFully(buf);
+                    crc.update(buf);
+                }
+                if(in.readInt() != (int) crc.getValue())
+                    return count;
+                if(in.readInt() != Magic.LOGFILE_COMMIT)
+                    return count;
+                count++;
+            }
+        }catch(EOFException e){
+            // torn write at end of log
+            return count;
         }
-        owner.sync();
-        ois.close();
-        storage.deleteTransactionLog();
+    }
+
+    /**
+     * Writes pages from given number of transactions into data file.
+     * Pages are stored in log in the same form as in data file (encrypted), so they are copied without decryption.
+     */
+    private void replay(DataInputStream in, int txns) throws IOException {
+        //pages are collected into batch, which is written when it is full or page ids stop ascending
+        final long[] pageIds = new long[WRITE_BATCH_PAGES];
+        final ByteBuffer[] data = new ByteBuffer[WRITE_BATCH_PAGES];
+        for(int i = 0; i<data.length; i++)
+            data[i] = ByteBuffer.allocate(owner.pageSize);
+        int count = 0;
+        for(int t = 0; t<txns; t++){
+            final int length = in.readInt();
+            for(int i = 0; i<length; i+=logPageSize){
+                final long pageId = in.readLong();
+                if(count == WRITE_BATCH_PAGES || (count>0 && pageIds[count-1]>=pageId)){
+                    writeBatch(pageIds, data, count);
+                    count = 0;
+                }
+                pageIds[count] = pageId;
+                in.readFully(data[count].array());
+                count++;
+            }
+            in.readInt(); //checksum
+            in.readInt(); //commit marker
+        }
+        writeBatch(pageIds, data, count);
+    }
+
+    private void writeBatch(long[] pageIds, ByteBuffer[] data, int count) throws IOException {
+        if(count == 0) return;
+        if(count == pageIds.length){
+            storage.write(pageIds, data);
+        }else{
+            storage.write(Arrays.copyOf(pageIds, count), Arrays.copyOf(data, count));
+        }
+    }
+
+    private static void updateInt(CRC32 crc, int v){
+        crc.update(v >>> 24);
+        crc.update(v >>> 16);
+        crc.update(v >>> 8);
+        crc.update(v);
     }
 
     /**
      * Synchronizes the indicated pages with the owner.
      */
-    private void synchronizePages(Iterable<PageIo> pages, boolean fromCore)
+    private void synchronizePages(Collection<PageIo> pages, boolean fromCore)
             throws IOException {
-        // write pages vector elements to the data file.
+        // write pages vector elements to the data file, sorted so consecutive pages are written together
+        final PageIo[] sorted = pages.toArray(new PageIo[pages.size()]);
+        Arrays.sort(sorted, PAGE_IO_COMPARTOR);
+        for(int i = 0; i<sorted.length; i+=WRITE_BATCH_PAGES)
+            owner.synch(sorted, i, Math.min(sorted.length, i + WRITE_BATCH_PAGES));
         for (PageIo cur : pages) {
-            owner.synch(cur);
             if (fromCore) {
                 cur.decrementTransactionCount();
                 if (!cur.isInTransaction()) {
@@ -189,7 +418,7 @@ final class PageTransactionManager {
     /**
      * Set clean flag on the pages.
      */
-    private void setClean(ArrayList<PageIo> pages)
+    private void setClean(Iterable<PageIo> pages)
             throws IOException {
         for (PageIo cur : pages) {
             cur.setClean();
@@ -217,41 +446,215 @@ final class PageTransactionManager {
      */
     void start() throws IOException {
         curTxn++;
-        if (curTxn == 1) {
-            synchronizeLogFromMemory();
+        if (curTxn == maxTxns) {
+            if(backgroundCheckpoint)
+                rotateLog();
+            else
+                synchronizeLogFromMemory();
             curTxn = 0;
         }
-        txn = new ArrayList();
+        if(txn == null)
+            txn = new ArrayList<PageIo>();
+        else if(backgroundCheckpoint)
+            txn.clear(); //pages are kept in snapshots
+        txnStart = txn.size();
     }
 
     /**
      * Indicates the page is part of the transaction.
+     * With background checkpoint page is copied at commit, so it is not held in transaction.
      */
     void add(PageIo page) throws IOException {
-        page.incrementTransactionCount();
+        if(!backgroundCheckpoint)
+            page.incrementTransactionCount();
         txn.add(page);
     }
 
     /**
      * Commits the transaction to the log file.
+     * <p/>
+     * If group commit is enabled, transaction is only appended to pending buffer
+     * and {@link #awaitDurable()} must be called to make it durable.
      */
     void commit() throws IOException {
-        LongPacker.packInt(oos, txn.size());
-        for (PageIo page : txn) {
-            page.writeExternal(oos, cipherIn);
+        final List<PageIo> pages = txn.subList(txnStart, txn.size());
+        if(groupCommitWait<0){
+            final int start = oos.size();
+            writeTxn(oos, pages);
+            logBytes.add(oos.size() - start);
+            sync();
+        }else synchronized (logLock){
+            if(flushError!=null)
+                throw new IOException("Transaction log could not be written", flushError);
+            writeTxn(pending, pages);
+            writtenTxn++;
+            //wake up leader, batch may be complete now
+            logLock.notifyAll();
         }
 
-
-        sync();
+        if(backgroundCheckpoint) synchronized (checkpointLock){
+            if(checkpointError!=null)
+                throw new IOException("Checkpoint failed", checkpointError);
+            for(PageIo page:pages)
+                snapshots.put(page.getPageId(), new PageIo(page.getPageId(), page.getByteArrayCopy()));
+        }
 
         // set clean flag to indicate pages have been written to log
-        setClean(txn);
+        setClean(pages);
 
         // open a new ObjectOutputStream in order to store
         // newer states of PageIo
 //        oos = new DataOutputStream(new BufferedOutputStream(fos));
     }
 
+    /**
+     * Writes transaction record into log. Record starts with length of page data
+     * and ends with CRC32 checksum and commit marker, so incomplete records are detected on recovery.
+     */
+    private void writeTxn(DataOutput out, List<PageIo> pages) throws IOException {
+        final int length = pages.size() * logPageSize;
+        final CRC32 crc = new CRC32();
+        final byte[] pageId = new byte[Magic.SZ_LONG];
+        out.writeInt(length);
+        updateInt(crc, length);
+        for (PageIo page : pages) {
+            final long id = page.getPageId();
+            for(int i = 0; i<Magic.SZ_LONG; i++)
+                pageId[i] = (byte) (id >>> (56 - 8*i));
+            final byte[] data = Utils.encrypt(cipherIn, page.getData().array());
+            out.write(pageId);
+            out.write(data);
+            crc.update(pageId);
+            crc.update(data);
+        }
+        out.writeInt((int) crc.getValue());
+        out.writeInt(Magic.LOGFILE_COMMIT);
+    }
+
+    /**
+     * Registers thread which is about to commit, called before DB lock is taken.
+     * Group commit leader waits for registered committers, so it does not wait when it is alone.
+     */
+    void enterCommit(){
+        if(groupCommitWait<0) return;
+        synchronized (logLock){
+            committers++;
+        }
+    }
+
+    /**
+     * Unregisters committer after its commit is durable or failed.
+     */
+    void exitCommit(){
+        if(groupCommitWait<0) return;
+        synchronized (logLock){
+            committers--;
+            //leader may be waiting for this committer
+            logLock.notifyAll();
+        }
+    }
+
+    /**
+     * Blocks until all transactions committed so far are synced in log file.
+     * Does nothing if group commit is disabled, in that case commit is synced immediately.
+     * <p/>
+     * First thread which comes becomes leader, it waits for other committers
+     * and writes all pending transactions with single sync.
+     * Leader stops waiting once all registered committers appended their transaction,
+     * batch is full or group commit wait expires. Leader which is alone flushes immediately.
+     * Other threads wait until leader is done. This must be called without holding DB lock,
+     * so other threads can commit while leader waits and syncs.
+     */
+    void awaitDurable() throws IOException {
+        if(groupCommitWait<0) return;
+        final byte[] batch;
+        final int batchSize;
+        final long batchTxn;
+        synchronized (logLock){
+            final long target = writtenTxn;
+            for(;;){
+                if(flushError!=null)
+                    throw new IOException("Transaction log could not be written", flushError);
+                if(durableTxn>=target)
+                    return;
+                if(!flushing)
+                    break;
+                waitOnLog(0);
+            }
+            //this thread is leader now, wait for other committers
+            flushing = true;
+            try{
+                final long deadline = System.nanoTime() + groupCommitWait;
+                for(long wait = groupCommitWait; wait>0; wait = deadline - System.nanoTime()){
+                    final long batchTxns = writtenTxn - durableTxn;
+                    if(batchTxns >= committers || batchTxns >= GROUP_COMMIT_MAX_TXNS)
+                        break;
+                    waitOnLog(wait);
+                }
+            }catch(InterruptedIOException e){
+                flushing = false;
+                logLock.notifyAll();
+                throw e;
+            }
+            batch = pending.getBuf();
+            batchSize = pending.getPos();
+            batchTxn = writtenTxn;
+            pending.reset(new byte[Math.max(batch.length,256)]);
+        }
+
+        IOException error = null;
+        try{
+            // write outside of lock, so others can append into new pending buffer
+            oos.write(batch, 0, batchSize);
+            logBytes.add(batchSize);
+            sync();
+        }catch(IOException e){
+            error = e;
+        }finally {
+            synchronized (logLock){
+                flushing = false;
+                if(error==null)
+                    durableTxn = batchTxn;
+                else
+                    flushError = error;
+                logLock.notifyAll();
+            }
+        }
+        if(error!=null)
+            throw error;
+    }
+
+    private void waitOnLog(long nanos) throws InterruptedIOException {
+        try{
+            if(nanos == 0)
+                logLock.wait();
+            else
+                logLock.wait(nanos / 1000000, (int) (nanos % 1000000));
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for group commit");
+        }
+    }
+
+    /**
+     * Writes pending transactions into log file and syncs it.
+     * Waits until group commit leader finishes.
+     */
+    private void flushPending() throws IOException {
+        synchronized (logLock){
+            while(flushing)
+                waitOnLog(0);
+            if(flushError!=null)
+                throw new IOException("Transaction log could not be written", flushError);
+            oos.write(pending.getBuf(), 0, pending.getPos());
+            logBytes.add(pending.getPos());
+            pending.reset();
+            sync();
+            durableTxn = writtenTxn;
+            logLock.notifyAll();
+        }
+    }
+
     /**
      * Flushes and syncs
      */
@@ -259,20 +662,110 @@ final class PageTransactionManager {
         oos.flush();
     }
 
+    /**
+     * Closes current log segment, passes it to background checkpointer and opens new segment.
+     * Blocks if checkpointer is too far behind.
+     */
+    private void rotateLog() throws IOException {
+        close();
+        synchronized (checkpointLock){
+            while(checkpointQueue.size()>=CHECKPOINT_MAX_QUEUED && checkpointError==null)
+                waitOnCheckpoint();
+            if(checkpointError!=null)
+                throw new IOException("Checkpoint failed", checkpointError);
+            checkpointQueue.add(new LogSegment(segment, snapshots));
+            snapshots = new LongHashMap<PageIo>();
+            checkpointLock.notifyAll();
+        }
+        segment++;
+        open();
+    }
+
+    /**
+     * Returns latest committed version of page, which was not written into data file yet.
+     *
+     * @return page data or null if page is not waiting for checkpoint
+     */
+    byte[] getCheckpointSnapshot(long pageId){
+        synchronized (checkpointLock){
+            PageIo page = snapshots.get(pageId);
+            for(int i = checkpointQueue.size()-1; page == null && i>=0; i--)
+                page = checkpointQueue.get(i).pages.get(pageId);
+            return page == null ? null : page.getByteArray();
+        }
+    }
+
+    private void waitOnCheckpoint() throws InterruptedIOException {
+        try{
+            checkpointLock.wait();
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for checkpoint");
+        }
+    }
+
+    /**
+     * Writes pages from log segment into data file and deletes segment.
+     */
+    private void checkpoint(LogSegment seg) throws IOException {
+        long[] pageIds = new long[seg.pages.size()];
+        int c = 0;
+        for(Iterator<PageIo> i = seg.pages.valuesIterator(); i.hasNext();)
+            pageIds[c++] = i.next().getPageId();
+        Arrays.sort(pageIds);
+
+        final PageIo[] pages = new PageIo[pageIds.length];
+        for(int i = 0; i<pageIds.length; i++)
+            pages[i] = seg.pages.get(pageIds[i]);
+
+        //write in batches, so foreground threads can access PageFile meanwhile
+        for(int i = 0; i<pages.length; i+=WRITE_BATCH_PAGES){
+            if(checkpointerAbort) return;
+            owner.writeCheckpoint(pages, i, Math.min(pages.length, i + WRITE_BATCH_PAGES));
+        }
+        owner.sync();
+        storage.deleteTransactionLog(seg.number);
+    }
+
     /**
      * Shutdowns the transaction manager. Resynchronizes outstanding
      * logs.
      */
     void shutdown() throws IOException {
+        if(backgroundCheckpoint){
+            close();
+            synchronized (checkpointLock){
+                checkpointQueue.add(new LogSegment(segment, snapshots));
+                snapshots = new LongHashMap<PageIo>();
+                checkpointerStop = true;
+                checkpointLock.notifyAll();
+            }
+            joinCheckpointer();
+            if(checkpointError!=null)
+                throw new IOException("Checkpoint failed", checkpointError);
+            return;
+        }
         synchronizeLogFromMemory();
         close();
     }
 
+    private void joinCheckpointer() throws InterruptedIOException {
+        try {
+            checkpointer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for checkpoint");
+        }
+    }
+
     /**
      * Closes open files.
      */
     private void close() throws IOException {
-        sync();
+        if(groupCommitWait<0)
+            sync();
+        else
+            flushPending();
         oos.close();
         oos = null;
     }
@@ -282,6 +775,14 @@ final class PageTransactionManager {
      * Used for testing purposes only.
      */
     void forceClose() throws IOException {
+        if(backgroundCheckpoint){
+            checkpointerAbort = true;
+            synchronized (checkpointLock){
+                checkpointerStop = true;
+                checkpointLock.notifyAll();
+            }
+            joinCheckpointer();
+        }
         oos.close();
         oos = null;
     }
@@ -292,12 +793,19 @@ final class PageTransactionManager {
      * to be inconsistent.
      */
     void synchronizeLogFromDisk() throws IOException {
+        if(backgroundCheckpoint){
+            // committed pages are kept in snapshots and were not modified, nothing to discard
+            txn = null;
+            txnStart = 0;
+            return;
+        }
         close();
 
 
         if (txn != null){
             discardPages(txn);
             txn = null;
+            txnStart = 0;
         }
 
         recover();
@@ -326,4 +834,64 @@ final class PageTransactionManager {
 
     };
 
+
+    /**
+     * Full log segment waiting for checkpoint.
+     */
+    private static final class LogSegment{
+        final int number;
+        final LongHashMap<PageIo> pages;
+
+        LogSegment(int number, LongHashMap<PageIo> pages) {
+            this.number = number;
+            this.pages = pages;
+        }
+    }
+
+    /**
+     * Background thread which writes full log segments into data file.
+     * It exits after all queued segments are written and shutdown was requested.
+     */
+    private final class Checkpointer extends Thread{
+
+        Checkpointer() {
+            super("JDBM checkpointer");
+            setDaemon(true);
+        }
+
+        public void run() {
+            for(;;){
+                final LogSegment seg;
+                synchronized (checkpointLock){
+                    while(checkpointQueue.isEmpty() && !checkpointerStop){
+                        try {
+                            checkpointLock.wait();
+                        } catch (InterruptedException e) {
+                            //ignore, shutdown is signalled by flag
+                        }
+                    }
+                    if(checkpointQueue.isEmpty() || checkpointerAbort)
+                        return;
+                    seg = checkpointQueue.get(0);
+                }
+                try{
+                    checkpoint(seg);
+                }catch(Throwable e){
+                    synchronized (checkpointLock){
+                        checkpointError = e instanceof IOException ? (IOException) e :
+                                new IOException("Checkpoint failed", e);
+                        checkpointLock.notifyAll();
+                    }
+                    return;
+                }
+                synchronized (checkpointLock){
+                    if(checkpointerAbort)
+                        return;
+                    checkpointQueue.remove(0);
+                    checkpointLock.notifyAll();
+                }
+            }
+        }
+    }
+
 }
@@ -26,7 +26,7 @@ import java.util.Arrays;
 final class PhysicalFreeRowIdManager {
 
     /** maximal record size which can be hold. If record crosses multiple pages, it is trimmed before added to free list */
-    static final int MAX_REC_SIZE = Storage.PAGE_SIZE *2;
+    final int MAX_REC_SIZE;
 
     /** where data on root page starts, there are no extra data in page header */
     static final int ROOT_HEADER_SIZE = Magic.PAGE_HEADER_SIZE;
@@ -37,16 +37,16 @@ final class PhysicalFreeRowIdManager {
     /**  number of recids on slot page */
     static final int OFFSET_SLOT_PAGE_REC_COUNT = Magic.PAGE_HEADER_SIZE;
 
-    static final int SLOT_PAGE_REC_NUM = (Storage.PAGE_SIZE - SLOT_PAGE_HEADER_SIZE)/6;
+    final int SLOT_PAGE_REC_NUM;
 
     /** pointer to next slo page in slot page header */
     static final int OFFSET_SLOT_PAGE_NEXT = Magic.PAGE_HEADER_SIZE + Magic.SZ_SHORT;
 
     /** number of size slots held in root page */
-    static final int MAX_RECIDS_PER_PAGE = (Storage.PAGE_SIZE -ROOT_HEADER_SIZE-6) / 6; //6 is size of page pointer
+    final int MAX_RECIDS_PER_PAGE;
 
     /** free records are grouped into slots by record size. Here is max diff in record size per group */
-    static final int ROOT_SLOT_SIZE = 1+MAX_REC_SIZE/ MAX_RECIDS_PER_PAGE;
+    final int ROOT_SLOT_SIZE;
 
 
     protected final PageFile file;
@@ -57,12 +57,21 @@ final class PhysicalFreeRowIdManager {
     private long[] inTrans = new long[8];
     private int inTransSize = 0;
 
+    /** returns number of records freed in current transaction, which are not in free list yet */
+    int getFreeInTransactionCount() {
+        return inTransSize;
+    }
+
     /**
      * Creates a new instance using the indicated record file and page manager.
      */
     PhysicalFreeRowIdManager(PageFile file, PageManager pageman) throws IOException {
         this.file = file;
         this.pageman = pageman;
+        MAX_REC_SIZE = file.pageSize *2;
+        SLOT_PAGE_REC_NUM = (file.pageSize - SLOT_PAGE_HEADER_SIZE)/6;
+        MAX_RECIDS_PER_PAGE = (file.pageSize -ROOT_HEADER_SIZE-6) / 6; //6 is size of page pointer
+        ROOT_SLOT_SIZE = 1+MAX_REC_SIZE/ MAX_RECIDS_PER_PAGE;
     }
 
     long getFreeRecord(final int size) throws IOException {
@@ -109,7 +118,7 @@ final class PhysicalFreeRowIdManager {
         return recid;
     }
 
-    static final  int sizeToRootOffset(int size) {
+    final  int sizeToRootOffset(int size) {
         return ROOT_HEADER_SIZE + 6 * (size/ROOT_SLOT_SIZE);
     }
 
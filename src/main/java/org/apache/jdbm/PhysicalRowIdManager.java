@@ -18,8 +18,6 @@ package org.apache.jdbm;
 
 import java.io.IOException;
 
-import static org.apache.jdbm.Storage.*;
-
 /**
  * This class manages physical row ids, and their data.
  */
@@ -29,7 +27,8 @@ final class PhysicalRowIdManager {
     final private PageFile file;
     final private PageManager pageman;
     final PhysicalFreeRowIdManager freeman;
-    static final private short DATA_PER_PAGE = (short) (PAGE_SIZE - Magic.DATA_PAGE_O_DATA);
+    final private int pageSize;
+    final private short DATA_PER_PAGE;
     //caches offset after last allocation. So we dont have to iterate throw page every allocation
     private long cachedLastAllocatedRecordPage = Long.MIN_VALUE;
     private short cachedLastAllocatedRecordOffset = Short.MIN_VALUE;
@@ -41,6 +40,8 @@ final class PhysicalRowIdManager {
         this.file = file;
         this.pageman = pageManager;
         this.freeman = new PhysicalFreeRowIdManager(file, pageManager);
+        this.pageSize = file.pageSize;
+        this.DATA_PER_PAGE = (short) (pageSize - Magic.DATA_PAGE_O_DATA);
 
     }
 
@@ -64,8 +65,8 @@ final class PhysicalRowIdManager {
      */
     long update(long rowid, final byte[] data, final int start, final int length) throws IOException {
         // fetch the record header
-        PageIo page = file.get(rowid>>> Storage.PAGE_SIZE_SHIFT);
-        short head =  (short) (rowid & Storage.OFFSET_MASK);
+        PageIo page = file.get(rowid>>> file.pageShift);
+        short head =  (short) (rowid & file.offsetMask);
         int availSize = RecordHeader.getAvailableSize(page, head);
         if (length > availSize ||
                 //difference between free and available space can be only 254.
@@ -88,15 +89,15 @@ final class PhysicalRowIdManager {
 
     void fetch(final DataInputOutput out, final long rowid) throws IOException {
         // fetch the record header
-        long current = rowid >>> Storage.PAGE_SIZE_SHIFT;
-        PageIo page = file.get(current);
-        final short head =  (short) (rowid & Storage.OFFSET_MASK);
+        long current = rowid >>> file.pageShift;
+        PageIo page = file.pin(current);
+        final short head =  (short) (rowid & file.offsetMask);
 
         // allocate a return buffer
         // byte[] retval = new byte[ head.getCurrentSize() ];
         final int size = RecordHeader.getCurrentSize(page, head);
         if (size == 0) {
-            file.release(current, false);
+            file.unpin(page);
             return;
         }
 
@@ -105,7 +106,7 @@ final class PhysicalRowIdManager {
         short dataOffset = (short) ( head + RecordHeader.SIZE);
         while (leftToRead > 0) {
             // copy current page's data to return buffer
-            int toCopy = PAGE_SIZE - dataOffset;
+            int toCopy = pageSize - dataOffset;
             if (leftToRead < toCopy) {
                 toCopy = leftToRead;
             }
@@ -115,11 +116,11 @@ final class PhysicalRowIdManager {
             // Go to the next page
             leftToRead -= toCopy;
             // out.flush();
-            file.release(page);
+            file.unpin(page);
 
             if (leftToRead > 0) {
                 current = pageman.getNext(current);
-                page = file.get(current);
+                page = file.pin(current);
                 dataOffset = Magic.DATA_PAGE_O_DATA;
             }
 
@@ -148,7 +149,7 @@ final class PhysicalRowIdManager {
         PageIo curPage;
         if (start == 0 ||
                 //last page was completely filled?
-                cachedLastAllocatedRecordPage == start && cachedLastAllocatedRecordOffset == PAGE_SIZE
+                cachedLastAllocatedRecordPage == start && cachedLastAllocatedRecordOffset == pageSize
                 ) {
             // we need to create a new page.
             start = pageman.allocate(Magic.USED_PAGE);
@@ -177,9 +178,9 @@ final class PhysicalRowIdManager {
         if (cachedLastAllocatedRecordPage != curPage.getPageId() ) {
             //position was not cached, have to find it again
             int availSize = RecordHeader.getAvailableSize(curPage, hdr);
-            while (availSize != 0 && pos < PAGE_SIZE) {
+            while (availSize != 0 && pos < pageSize) {
                 pos += availSize + RecordHeader.SIZE;
-                if (pos == PAGE_SIZE) {
+                if (pos == pageSize) {
                     // Again, a filled page.
                     file.release(curPage);
                     return allocNew(size, 0);
@@ -199,7 +200,7 @@ final class PhysicalRowIdManager {
             file.release(curPage);
         }
         
-        if(hdr>Storage.PAGE_SIZE - 16){
+        if(hdr>pageSize - 16){
             file.release(curPage);
             //there is not enought space on current page, so force new page
             return allocNew(size,0);
@@ -207,8 +208,8 @@ final class PhysicalRowIdManager {
 
         // we have the position, now tack on extra pages until we've got
         // enough space.
-        long retval =(start << Storage.PAGE_SIZE_SHIFT) + (long) pos;
-        int freeHere = PAGE_SIZE - pos - RecordHeader.SIZE;
+        long retval =(start << file.pageShift) + (long) pos;
+        int freeHere = pageSize - pos - RecordHeader.SIZE;
         if (freeHere < size) {
             // check whether the last page would have only a small bit left.
             // if yes, increase the allocation. A small bit is a record
@@ -261,18 +262,18 @@ final class PhysicalRowIdManager {
 
     void free(final long id) throws IOException {
         // get the rowid, and write a zero current size into it.
-        final long curPageId = id >>> Storage.PAGE_SIZE_SHIFT;
+        final long curPageId = id >>> file.pageShift;
         final PageIo curPage = file.get(curPageId);
-        final short offset =  (short) (id & Storage.OFFSET_MASK);
+        final short offset =  (short) (id & file.offsetMask);
         RecordHeader.setCurrentSize(curPage, offset, 0);
         int size = RecordHeader.getAvailableSize(curPage, offset);
 
         //trim size if spreads across multiple pages
-        if(offset + RecordHeader.SIZE + size >PAGE_SIZE + (PAGE_SIZE-Magic.DATA_PAGE_O_DATA)){
+        if(offset + RecordHeader.SIZE + size >pageSize + (pageSize-Magic.DATA_PAGE_O_DATA)){
             int numOfPagesToSkip = (size -
-                    (Storage.PAGE_SIZE-(offset - RecordHeader.SIZE))  //minus data remaining on this page
-                    )/(PAGE_SIZE-Magic.DATA_PAGE_O_DATA);
-            size = size - numOfPagesToSkip * (PAGE_SIZE-Magic.DATA_PAGE_O_DATA);
+                    (pageSize-(offset - RecordHeader.SIZE))  //minus data remaining on this page
+                    )/(pageSize-Magic.DATA_PAGE_O_DATA);
+            size = size - numOfPagesToSkip * (pageSize-Magic.DATA_PAGE_O_DATA);
             RecordHeader.setAvailableSize(curPage, offset,size);
             
             //get next page 
@@ -305,9 +306,9 @@ final class PhysicalRowIdManager {
      * Writes out data to a rowid. Assumes that any resizing has been done.
      */
     private void write(final long rowid, final  byte[] data,final  int start, final  int length) throws IOException {
-        long current =  rowid >>> Storage.PAGE_SIZE_SHIFT;
+        long current =  rowid >>> file.pageShift;
         PageIo page = file.get(current);
-        final short hdr =  (short) (rowid & Storage.OFFSET_MASK);
+        final short hdr =  (short) (rowid & file.offsetMask);
         RecordHeader.setCurrentSize(page, hdr, length);
         if (length == 0) {
             file.release(current, true);
@@ -320,7 +321,7 @@ final class PhysicalRowIdManager {
         short dataOffset = (short) (hdr + RecordHeader.SIZE);
         while (leftToWrite > 0) {
             // copy current page's data to return buffer
-            int toCopy = PAGE_SIZE - dataOffset;
+            int toCopy = pageSize - dataOffset;
 
             if (leftToWrite < toCopy) {
                 toCopy = leftToWrite;
@@ -0,0 +1,163 @@
+/*******************************************************************************
+ * Copyright 2010 Cees De Groot, Alex Boisvert, Jan Kotek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.apache.jdbm;
+
+/**
+ * Cache of serialized records keyed by logical recid, used by {@link DBStore#fetch(long, Serializer)}.
+ * <p/>
+ * It sits below instance caches. Records fetched with cache disabled
+ * (such as lazy BTree values) skip physical record lookup, only deserialization is done.
+ * Serialized form is usually much smaller than deserialized objects,
+ * so the same heap holds more records.
+ * <p/>
+ * Cache is limited by total size of records in bytes, least recently used records are evicted.
+ * Store must remove record from cache whenever record is updated or deleted.
+ */
+final class RecordCache {
+
+    /** estimated memory overhead of single entry */
+    static final int ENTRY_OVERHEAD = 64;
+
+    static final class Entry {
+        final long recid;
+        final byte[] data;
+        Entry previous;
+        Entry next;
+
+        Entry(long recid, byte[] data) {
+            this.recid = recid;
+            this.data = data;
+        }
+    }
+
+    private final LongHashMap<Entry> map = new LongHashMap<Entry>();
+
+    /** least recently used entry */
+    private Entry first;
+    /** most recently used entry */
+    private Entry last;
+
+    private final long maxSize;
+    private long size = 0;
+
+    private final StripedCounter hits = new StripedCounter();
+    private final StripedCounter misses = new StripedCounter();
+    private final StripedCounter evictions = new StripedCounter();
+
+    RecordCache(long maxSize) {
+        if (maxSize <= 0)
+            throw new IllegalArgumentException("Record cache size must be positive");
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns serialized record, or null if it is not in cache.
+     * Returned array must not be modified.
+     */
+    synchronized byte[] get(long recid) {
+        final Entry e = map.get(recid);
+        if (e == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        if (e != last) {
+            unlink(e);
+            link(e);
+        }
+        return e.data;
+    }
+
+    /**
+     * Puts copy of serialized record into cache.
+     */
+    synchronized void put(long recid, byte[] buf, int len) {
+        final long weight = len + ENTRY_OVERHEAD;
+        if (weight > maxSize)
+            return;
+        remove(recid);
+        while (size + weight > maxSize) {
+            remove(first.recid);
+            evictions.increment();
+        }
+        final byte[] data = new byte[len];
+        System.arraycopy(buf, 0, data, 0, len);
+        final Entry e = new Entry(recid, data);
+        map.put(recid, e);
+        link(e);
+        size += weight;
+    }
+
+    synchronized void remove(long recid) {
+        final Entry e = map.remove(recid);
+        if (e == null)
+            return;
+        unlink(e);
+        size -= e.data.length + ENTRY_OVERHEAD;
+    }
+
+    synchronized void clear() {
+        map.clear();
+        first = null;
+        last = null;
+        size = 0;
+    }
+
+    private void link(Entry e) {
+        if (first == null) {
+            first = e;
+        } else {
+            last.next = e;
+            e.previous = last;
+        }
+        last = e;
+    }
+
+    private void unlink(Entry e) {
+        if (e == first)
+            first = e.next;
+        if (e == last)
+            last = e.previous;
+        if (e.previous != null)
+            e.previous.next = e.next;
+        if (e.next != null)
+            e.next.previous = e.previous;
+        e.previous = null;
+        e.next = null;
+    }
+
+    long getHitCount() {
+        return hits.get();
+    }
+
+    long getMissCount() {
+        return misses.get();
+    }
+
+    /** returns number of records removed from cache to make space for other records */
+    long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /** returns total size of cached records including overhead */
+    synchronized long getSize() {
+        return size;
+    }
+
+    synchronized int getCount() {
+        return map.size();
+    }
+}
@@ -268,7 +268,7 @@ public class Serialization extends SerialClassInfo implements Serializer {
             serializeUUID(out,(UUID) obj);
             return;
         } else if (clazz == BTree.class) {
-            out.write(BTREE);
+            out.write(((BTree) obj).hasCustomOptions() ? BTREE_OPTIONS : BTREE);
             ((BTree) obj).writeExternal(out);
             return;
         } else if (clazz == HTree.class) {
@@ -882,7 +882,10 @@ public class Serialization extends SerialClassInfo implements Serializer {
                 ret = HTree.deserialize(is,this);
                 break;
             case BTREE:
-                ret = BTree.readExternal(is,this);
+                ret = BTree.readExternal(is,this,false);
+                break;
+            case BTREE_OPTIONS:
+                ret = BTree.readExternal(is,this,true);
                 break;
             case BTREE_NODE_LEAF:
                 throw new InternalError("BPage header, wrong serializer used");
@@ -136,6 +136,10 @@ final class SerializationHeader {
      * used for reference to already serialized object in object graph
      */
     static final int OBJECT_STACK = 166;
+    /**
+     * BTree with non-default node size or other options
+     */
+    static final int BTREE_OPTIONS = 167;
     static final int JAVA_SERIALIZATION = 172;
 
 
@@ -9,8 +9,9 @@ import java.nio.ByteBuffer;
 interface Storage {
 
     /**
-     * Bite shift used to calculate page size.
-     * If you want to modify page size, do it here.
+     * Bite shift used to calculate default page size.
+     * Page size is chosen per store when it is created and recorded in file header,
+     * stores created without explicit page size use this one.
      *
      *  1<<9 = 512
      *  1<<10 = 1024
@@ -18,9 +19,15 @@ interface Storage {
      *  1<<12 = 4096
      */
     int PAGE_SIZE_SHIFT = 12;
-    
+
     /**
-     * the lenght of single page.
+     * Maximal page size shift. Offsets within page are stored as signed short
+     * and must also hold offset just after end of page, so page can not be bigger than 16KB.
+     */
+    int PAGE_SIZE_SHIFT_MAX = 14;
+
+    /**
+     * the lenght of default page.
      * <p>
      *!!! DO NOT MODIFY THI DIRECTLY !!!
 
@@ -29,26 +36,38 @@ interface Storage {
 
 
     /**
-     * use 'val & OFFSET_MASK' to quickly get offset within the page;
+     * use 'val & OFFSET_MASK' to quickly get offset within the default page;
      */
     long OFFSET_MASK = 0xFFFFFFFFFFFFFFFFL >>> (64-Storage.PAGE_SIZE_SHIFT);
 
 
     void write(long pageNumber, ByteBuffer data) throws IOException;
 
+    /**
+     * Writes multiple pages. Page numbers are sorted in ascending order,
+     * so storage may write pages with consecutive numbers in single operation.
+     */
+    void write(long[] pageNumbers, ByteBuffer[] data) throws IOException;
+
     ByteBuffer read(long pageNumber) throws IOException;
 
     void forceClose() throws IOException;
 
     boolean isReadonly();
 
-    DataInputStream readTransactionLog();
+    /**
+     * Transaction log may be split into more segments, which are replayed in order of their numbers.
+     * @return numbers of existing transaction log segments in ascending order
+     */
+    int[] getTransactionLogSegments();
+
+    DataInputStream readTransactionLog(int segment);
 
-    void deleteTransactionLog();
+    void deleteTransactionLog(int segment);
 
     void sync() throws IOException;
 
-    DataOutputStream openTransactionLog() throws IOException;
+    DataOutputStream openTransactionLog(int segment) throws IOException;
 
     void deleteAllFiles() throws IOException;
 }
@@ -2,36 +2,56 @@ package org.apache.jdbm;
 
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.OverlappingFileLockException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
 import static org.apache.jdbm.StorageDiskMapped.*;
 
 /**
- * Storage which used files on disk to store data
+ * Storage which used files on disk to store data.
+ * <p/>
+ * Pages are accessed with positional reads and writes on {@link FileChannel},
+ * so there is no shared file position and concurrent reads are safe.
  */
 class StorageDisk implements Storage {
 
+    /** maximal size of single write, pages with consecutive numbers are written together up to this size */
+    static final int WRITE_BUFFER_SIZE = 1024 * 1024;
+
+    private ArrayList<FileChannel> channels = new ArrayList<FileChannel>();
+    private ArrayList<FileChannel> channelsTranslation = new ArrayList<FileChannel>();
 
+    /** direct buffers used to write multiple pages at once */
+    private final ConcurrentLinkedQueue<ByteBuffer> writeBuffers = new ConcurrentLinkedQueue<ByteBuffer>();
 
-    private ArrayList<RandomAccessFile> rafs = new ArrayList<RandomAccessFile>();
-    private ArrayList<RandomAccessFile> rafsTranslation = new ArrayList<RandomAccessFile>();
+    /** direct buffers of page size used to read single page */
+    private final ConcurrentLinkedQueue<ByteBuffer> readBuffers = new ConcurrentLinkedQueue<ByteBuffer>();
 
     private String fileName;
 
-    private long lastPageNumber = Long.MIN_VALUE;
     private boolean readonly;
     private boolean lockingDisabled;
 
-    public StorageDisk(String fileName,boolean readonly, boolean lockingDisabled) throws IOException {
+    private final int pageSize;
+    private final long segmentSize;
+    /** maximal number of pages in single file */
+    private final long pagesPerFile;
+
+    public StorageDisk(String fileName,boolean readonly, boolean lockingDisabled, int pageShift, int segmentShift) throws IOException {
         this.fileName = fileName;
+        this.pageSize = 1 << pageShift;
+        this.segmentSize = 1L << segmentShift;
+        this.pagesPerFile = segmentSize >>> pageShift;
         this.readonly = readonly;
         this.lockingDisabled = lockingDisabled;
         //make sure first file can be opened
         //lock it
         try {
             if(!readonly && !lockingDisabled)
-                getRaf(0).getChannel().tryLock();
+                getChannel(0).tryLock();
         } catch (IOException e) {
             throw new IOException("Could not lock DB file: " + fileName, e);
         } catch (OverlappingFileLockException e) {
@@ -40,87 +60,130 @@ class StorageDisk implements Storage {
 
     }
 
-    RandomAccessFile getRaf(long pageNumber) throws IOException {
+    FileChannel getChannel(long pageNumber) throws IOException {
 
-        int fileNumber = (int) (Math.abs(pageNumber)/PAGES_PER_FILE );
+        int fileNumber = (int) (Math.abs(pageNumber)/pagesPerFile );
 
-        List<RandomAccessFile> c = pageNumber>=0 ? rafs : rafsTranslation;
+        List<FileChannel> c = pageNumber>=0 ? channels : channelsTranslation;
 
-        //increase capacity of array lists if needed
-        for (int i = c.size(); i <= fileNumber; i++) {
-            c.add(null);
-        }
+        //list is also accessed by sync from background checkpointer
+        synchronized (c){
+            //increase capacity of array lists if needed
+            for (int i = c.size(); i <= fileNumber; i++) {
+                c.add(null);
+            }
 
-        RandomAccessFile ret = c.get(fileNumber);
-        if (ret == null) {
-            String name = StorageDiskMapped.makeFileName(fileName, pageNumber, fileNumber);
-            ret = new RandomAccessFile(name, readonly?"r":"rw");
-            c.set(fileNumber, ret);
+            FileChannel ret = c.get(fileNumber);
+            if (ret == null) {
+                String name = StorageDiskMapped.makeFileName(fileName, pageNumber, fileNumber);
+                ret = new RandomAccessFile(name, readonly?"r":"rw").getChannel();
+                c.set(fileNumber, ret);
+            }
+            return ret;
         }
-        return ret;
 
     }
 
+    private long offsetInFile(long pageNumber){
+        return Math.abs(pageNumber * pageSize % segmentSize);
+    }
+
 
     public void write(long pageNumber, ByteBuffer data) throws IOException {
-        if (data.capacity() != PAGE_SIZE) throw new IllegalArgumentException();
-        
-        long offset = pageNumber * PAGE_SIZE;
+        if (data.limit() != pageSize) throw new IllegalArgumentException();
 
-        RandomAccessFile file = getRaf(pageNumber);
+        final ByteBuffer b = data.duplicate();
+        b.rewind();
+        writeFully(getChannel(pageNumber), b, offsetInFile(pageNumber));
+    }
 
-//        if (lastPageNumber + 1 != pageNumber)      //TODO cache position again, so seek is not necessary
-            file.seek(Math.abs(offset % (PAGES_PER_FILE* PAGE_SIZE)));
+    /**
+     * Pages with consecutive numbers are copied into direct buffer and written with single call.
+     * Translation pages have negative numbers, so their order in file is reversed.
+     */
+    public void write(long[] pageNumbers, ByteBuffer[] data) throws IOException {
+        final int maxPages = WRITE_BUFFER_SIZE / pageSize;
+        int i = 0;
+        while(i<pageNumbers.length){
+            //find run of pages which are next to each other in the same file
+            final long fileNumber = Math.abs(pageNumbers[i]) / pagesPerFile;
+            int end = i + 1;
+            while(end < pageNumbers.length && end - i < maxPages
+                    && pageNumbers[end] == pageNumbers[end-1] + 1
+                    && (pageNumbers[end] >= 0) == (pageNumbers[i] >= 0)
+                    && Math.abs(pageNumbers[end]) / pagesPerFile == fileNumber)
+                end++;
+
+            if(end - i == 1){
+                write(pageNumbers[i], data[i]);
+            }else{
+                final boolean translation = pageNumbers[i] < 0;
+                ByteBuffer buf = writeBuffers.poll();
+                if(buf == null)
+                    buf = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+                buf.clear();
+                for(int j = i; j<end; j++){
+                    final ByteBuffer page = data[translation ? end - 1 - (j - i) : j].duplicate();
+                    if (page.limit() != pageSize) throw new IllegalArgumentException();
+                    page.rewind();
+                    buf.put(page);
+                }
+                buf.flip();
+                final long first = translation ? pageNumbers[end - 1] : pageNumbers[i];
+                writeFully(getChannel(first), buf, offsetInFile(first));
+                writeBuffers.offer(buf);
+            }
+            i = end;
+        }
+    }
 
-        file.write(data.array());
-        lastPageNumber = pageNumber;
+    private static void writeFully(FileChannel channel, ByteBuffer b, long offset) throws IOException {
+        while(b.hasRemaining()){
+            offset += channel.write(b, offset);
+        }
     }
 
 
+    /**
+     * Page is read into pooled direct buffer and copied into new heap buffer.
+     * Returned buffer is owned by page until it is garbage collected, so it can not come from pool.
+     */
     public ByteBuffer read(long pageNumber) throws IOException {
-        
-        long offset = pageNumber * PAGE_SIZE;
-        ByteBuffer buffer = ByteBuffer.allocate(PAGE_SIZE);
-        
-        RandomAccessFile file = getRaf(pageNumber);
-//        if (lastPageNumber + 1 != pageNumber) //TODO cache position again, so seek is not necessary
-            file.seek(Math.abs(offset % (PAGES_PER_FILE* PAGE_SIZE)));
-        int remaining = buffer.limit();
-        int pos = 0;
-        while (remaining > 0) {
-            int read = file.read(buffer.array(), pos, remaining);
-            if (read == -1) {
-                System.arraycopy(PageFile.CLEAN_DATA, 0, buffer.array(), pos, remaining);
-                break;
+        ByteBuffer buffer = readBuffers.poll();
+        if(buffer == null)
+            buffer = ByteBuffer.allocateDirect(pageSize);
+        try{
+            buffer.clear();
+            final FileChannel channel = getChannel(pageNumber);
+            final long offset = offsetInFile(pageNumber);
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, offset + buffer.position());
+                if (read == -1) {
+                    //rest of page is beyond end of file, fill it with zeros
+                    while(buffer.hasRemaining())
+                        buffer.put((byte) 0);
+                }
             }
-            remaining -= read;
-            pos += read;
+            buffer.flip();
+            final byte[] data = new byte[pageSize];
+            buffer.get(data);
+            return ByteBuffer.wrap(data);
+        }finally {
+            readBuffers.offer(buffer);
         }
-        lastPageNumber = pageNumber;
-        return buffer;
     }
 
 
     static final String transaction_log_file_extension = ".t";
 
 
-    public DataOutputStream openTransactionLog() throws IOException {
-        String logName = fileName + transaction_log_file_extension;
-        final FileOutputStream fileOut = new FileOutputStream(logName);
-        return new DataOutputStream(new BufferedOutputStream(fileOut)) {
-
-            //default implementation of flush on FileOutputStream does nothing,
-            //so we use little workaround to make sure that data were really flushed
-            public void flush() throws IOException {
-                super.flush();
-                fileOut.flush();
-                fileOut.getFD().sync();
-            }
-        };
+    public DataOutputStream openTransactionLog(int segment) throws IOException {
+        return StorageDiskMapped.openLogFile(fileName, segment);
     }
 
     public void deleteAllFiles() {
-        deleteTransactionLog();
+        for(int segment:getTransactionLogSegments())
+            deleteTransactionLog(segment);
         StorageDiskMapped.deleteFiles(fileName);
     }
 
@@ -129,59 +192,46 @@ class StorageDisk implements Storage {
      * Synchronizes the file.
      */
     public void sync() throws IOException {
-        for (RandomAccessFile file : rafs)
-            if (file != null)
-                file.getFD().sync();
-        for (RandomAccessFile file : rafsTranslation)
+        sync(channels);
+        sync(channelsTranslation);
+    }
+
+    private static void sync(List<FileChannel> c) throws IOException {
+        final FileChannel[] files;
+        synchronized (c){
+            files = c.toArray(new FileChannel[c.size()]);
+        }
+        for (FileChannel file : files)
             if (file != null)
-                file.getFD().sync();
+                file.force(true);
     }
 
     public void forceClose() throws IOException {
-        for (RandomAccessFile f : rafs) {
+        for (FileChannel f : channels) {
             if (f != null)
                 f.close();
         }
-        rafs = null;
-        for (RandomAccessFile f : rafsTranslation) {
+        channels = null;
+        for (FileChannel f : channelsTranslation) {
             if (f != null)
                 f.close();
         }
-        rafsTranslation = null;
+        channelsTranslation = null;
+        writeBuffers.clear();
+        readBuffers.clear();
     }
 
 
-    public DataInputStream readTransactionLog() {
-
-        File logFile = new File(fileName + transaction_log_file_extension);
-        if (!logFile.exists())
-            return null;
-        if (logFile.length() == 0) {
-            logFile.delete();
-            return null;
-        }
-
-        DataInputStream ois = null;
-        try {
-            ois = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile)));
-        } catch (FileNotFoundException e) {
-            //file should exists, we check for its presents just a miliseconds yearlier, anyway move on
-            return null;
-        }
+    public int[] getTransactionLogSegments() {
+        return StorageDiskMapped.logSegments(fileName);
+    }
 
-        try {
-            if (ois.readShort() != Magic.LOGFILE_HEADER)
-                throw new Error("Bad magic on log file");
-        } catch (IOException e) {
-            // corrupted/empty logfile
-            logFile.delete();
-            return null;
-        }
-        return ois;
+    public DataInputStream readTransactionLog(int segment) {
+        return StorageDiskMapped.readLogFile(fileName, segment);
     }
 
-    public void deleteTransactionLog() {
-        File logFile = new File(fileName + transaction_log_file_extension);
+    public void deleteTransactionLog(int segment) {
+        File logFile = new File(StorageDiskMapped.logFileName(fileName, segment));
         if (logFile.exists())
             logFile.delete();
     }
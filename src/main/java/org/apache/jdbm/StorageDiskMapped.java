@@ -1,18 +1,21 @@
 package org.apache.jdbm;
 
-import sun.misc.Cleaner;
-
 import java.io.*;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.OverlappingFileLockException;
 import java.util.ArrayList;
-import java.util.IdentityHashMap;
+import java.util.Arrays;
 import java.util.List;
 
 /**
- * Disk storage which uses mapped buffers
+ * Disk storage which uses mapped buffers.
+ * <p/>
+ * Store is split into segment files. Each file is mapped as list of regions,
+ * file grows by adding new regions, so existing regions are never remapped.
  */
 class StorageDiskMapped implements Storage {
 
@@ -21,27 +24,50 @@ class StorageDiskMapped implements Storage {
     static final String DBR = ".d";
 
 
+    /**
+     * Bite shift used to calculate default size of segment file, 1 GB.
+     * Segment size is chosen when store is created and recorded in file header.
+     */
+    static final int SEGMENT_SIZE_SHIFT = 30;
+
+    static final int SEGMENT_SIZE_SHIFT_MIN = 20;
+
+    static final int SEGMENT_SIZE_SHIFT_MAX = 48;
 
     /**
-     * Maximal number of pages in single file.
-     * Calculated so that each file will have 1 GB
+     * Size of first region mapped in file, following regions double its size until they reach
+     * {@link #MAX_REGION_SIZE}. Small store does not preallocate too much space,
+     * while big store has reasonable number of mapped regions.
      */
-    final static long PAGES_PER_FILE = (1024*1024*1024)>>>Storage.PAGE_SIZE_SHIFT;
+    static final long INITIAL_REGION_SIZE = 1L << SEGMENT_SIZE_SHIFT_MIN;
+
+    /** Maximal size of mapped region, single mapped buffer can not be bigger than 2 GB */
+    static final long MAX_REGION_SIZE = 1L << 30;
 
+    /** number of regions before regions reach maximal size */
+    private static final int GROWING_REGIONS = Long.numberOfTrailingZeros(MAX_REGION_SIZE / INITIAL_REGION_SIZE);
 
 
-    private ArrayList<FileChannel> channels = new ArrayList<FileChannel>();
-    private ArrayList<FileChannel> channelsTranslation = new ArrayList<FileChannel>();
-    private IdentityHashMap<FileChannel, MappedByteBuffer> buffers = new IdentityHashMap<FileChannel, MappedByteBuffer>();
+    private ArrayList<MappedFile> files = new ArrayList<MappedFile>();
+    private ArrayList<MappedFile> filesTranslation = new ArrayList<MappedFile>();
 
     private String fileName;
     private boolean transactionsDisabled;
     private boolean readonly;
     private boolean lockingDisabled;
 
+    private final int pageSize;
+    private final long segmentSize;
+    /** maximal number of pages in single file */
+    private final long pagesPerFile;
+
 
-    public StorageDiskMapped(String fileName, boolean readonly, boolean transactionsDisabled, boolean lockingDisabled) throws IOException {
+    public StorageDiskMapped(String fileName, boolean readonly, boolean transactionsDisabled, boolean lockingDisabled,
+                             int pageShift, int segmentShift) throws IOException {
         this.fileName = fileName;
+        this.pageSize = 1 << pageShift;
+        this.segmentSize = 1L << segmentShift;
+        this.pagesPerFile = segmentSize >>> pageShift;
         this.transactionsDisabled = transactionsDisabled;
         this.readonly = readonly;
         this.lockingDisabled = lockingDisabled;
@@ -49,7 +75,7 @@ class StorageDiskMapped implements Storage {
         //lock it
         try {
             if(!lockingDisabled)
-                getChannel(0).lock();
+                getFile(0).channel.lock();
         } catch (IOException e) {
             throw new IOException("Could not lock DB file: " + fileName, e);
         } catch (OverlappingFileLockException e) {
@@ -58,30 +84,46 @@ class StorageDiskMapped implements Storage {
 
     }
 
-    private FileChannel getChannel(long pageNumber) throws IOException {
-        int fileNumber = (int) (Math.abs(pageNumber)/PAGES_PER_FILE );
+    private MappedFile getFile(long pageNumber) throws IOException {
+        int fileNumber = (int) (Math.abs(pageNumber)/pagesPerFile );
 
-        List<FileChannel> c = pageNumber>=0 ? channels : channelsTranslation;
+        List<MappedFile> c = pageNumber>=0 ? files : filesTranslation;
 
-        //increase capacity of array lists if needed
-        for (int i = c.size(); i <= fileNumber; i++) {
-            c.add(null);
-        }
+        //list is also accessed by sync from background checkpointer
+        synchronized (c){
+            //increase capacity of array lists if needed
+            for (int i = c.size(); i <= fileNumber; i++) {
+                c.add(null);
+            }
 
-        FileChannel ret = c.get(fileNumber);
-        if (ret == null) {
-            String name = makeFileName(fileName, pageNumber, fileNumber);
-            ret = new RandomAccessFile(name, "rw").getChannel();
-            c.set(fileNumber, ret);
-            buffers.put(ret, ret.map(FileChannel.MapMode.READ_WRITE, 0, ret.size()));
+            MappedFile ret = c.get(fileNumber);
+            if (ret == null) {
+                String name = makeFileName(fileName, pageNumber, fileNumber);
+                ret = new MappedFile(new RandomAccessFile(name, "rw").getChannel());
+                c.set(fileNumber, ret);
+            }
+            return ret;
         }
-        return ret;
     }
 
     static String makeFileName(String fileName, long pageNumber, int fileNumber) {
         return fileName + (pageNumber>=0 ? DBR : IDR) + "." + fileNumber;
     }
 
+    /** returns index of region which contains given offset in file */
+    static int regionIndex(long offset){
+        if(offset < MAX_REGION_SIZE - INITIAL_REGION_SIZE)
+            return 63 - Long.numberOfLeadingZeros(offset / INITIAL_REGION_SIZE + 1);
+        return GROWING_REGIONS + (int) ((offset - MAX_REGION_SIZE + INITIAL_REGION_SIZE) / MAX_REGION_SIZE);
+    }
+
+    /** returns offset in file where region starts */
+    static long regionStart(int index){
+        if(index <= GROWING_REGIONS)
+            return INITIAL_REGION_SIZE * ((1L << index) - 1);
+        return MAX_REGION_SIZE - INITIAL_REGION_SIZE + (index - GROWING_REGIONS) * MAX_REGION_SIZE;
+    }
+
 
     public void write(long pageNumber, ByteBuffer data) throws IOException {
         if(transactionsDisabled && data.isDirect()){
@@ -90,62 +132,56 @@ class StorageDiskMapped implements Storage {
             //so there is no need to write buffer second time
             return;
         }
-        
-        FileChannel f = getChannel(pageNumber);
-        int offsetInFile = (int) ((Math.abs(pageNumber) % PAGES_PER_FILE)* PAGE_SIZE);
-        MappedByteBuffer b = buffers.get(f);
-        if( b.limit()<=offsetInFile){
-
-            //remapping buffer for each newly added page would be slow,
-            //so allocate new size in chunks
-            int increment = Math.min(PAGE_SIZE * 1024,offsetInFile/10);
-            increment  -= increment% PAGE_SIZE;
-
-            long newFileSize = offsetInFile+ PAGE_SIZE + increment;
-            newFileSize = Math.min(PAGES_PER_FILE * PAGE_SIZE, newFileSize);
-
-            //expand file size
-            f.position(newFileSize - 1);
-            f.write(ByteBuffer.allocate(1));
-            //unmap old buffer
-            unmapBuffer(b);
-            //remap buffer
-            b = f.map(FileChannel.MapMode.READ_WRITE, 0,newFileSize);
-            buffers.put(f, b);
-        }
+
+        final long offsetInFile = (Math.abs(pageNumber) % pagesPerFile)* pageSize;
+        final int index = regionIndex(offsetInFile);
+        final ByteBuffer b = getFile(pageNumber).region(index, offsetInFile, true).duplicate();
 
         //write into buffer
-        b.position(offsetInFile);
+        b.position((int) (offsetInFile - regionStart(index)));
         data.rewind();
         b.put(data);
     }
 
-    private void unmapBuffer(MappedByteBuffer b) {
-        if(b!=null){
-            Cleaner cleaner = ((sun.nio.ch.DirectBuffer) b).cleaner();
-            if(cleaner!=null)
-                cleaner.clean();
+    public void write(long[] pageNumbers, ByteBuffer[] data) throws IOException {
+        //consecutive pages in the same region are put sequentially into single duplicate of region buffer
+        ByteBuffer b = null;
+        long prevPage = 0;
+        int prevIndex = -1;
+        for(int i = 0; i<pageNumbers.length; i++){
+            if(transactionsDisabled && data[i].isDirect())
+                continue; //already reflected in file, see write(long,ByteBuffer)
+            final long pageNumber = pageNumbers[i];
+            final long offsetInFile = (Math.abs(pageNumber) % pagesPerFile)* pageSize;
+            final int index = regionIndex(offsetInFile);
+            if(b == null || pageNumber != prevPage + 1 || index != prevIndex || pageNumber<0 || offsetInFile == 0){
+                b = getFile(pageNumber).region(index, offsetInFile, true).duplicate();
+                b.position((int) (offsetInFile - regionStart(index)));
+            }
+            data[i].rewind();
+            b.put(data[i]);
+            prevPage = pageNumber;
+            prevIndex = index;
         }
     }
 
     public ByteBuffer read(long pageNumber) throws IOException {
-        FileChannel f = getChannel(pageNumber);
-        int offsetInFile = (int) ((Math.abs(pageNumber) % PAGES_PER_FILE)* PAGE_SIZE);
-        MappedByteBuffer b = buffers.get(f);
-        
-        if(b == null){ //not mapped yet
-            b = f.map(FileChannel.MapMode.READ_WRITE, 0, f.size());
-        }
-        
+        final long offsetInFile = (Math.abs(pageNumber) % pagesPerFile)* pageSize;
+        final int index = regionIndex(offsetInFile);
+        final MappedByteBuffer b = getFile(pageNumber).region(index, offsetInFile, false);
+        final int offsetInRegion = (int) (offsetInFile - regionStart(index));
+
         //check buffers size
-        if(b.limit()<=offsetInFile){
-                //file is smaller, return empty data
-                return ByteBuffer.wrap(PageFile.CLEAN_DATA).asReadOnlyBuffer();
-            }
+        if(b == null || b.limit()<=offsetInRegion){
+            //file is smaller, return empty data
+            return ByteBuffer.wrap(PageFile.CLEAN_DATA, 0, pageSize).asReadOnlyBuffer();
+        }
 
-        b.position(offsetInFile);
-        ByteBuffer ret = b.slice();
-        ret.limit(PAGE_SIZE);
+        //duplicate, so concurrent readers do not share buffer position
+        ByteBuffer ret = b.duplicate();
+        ret.position(offsetInRegion);
+        ret = ret.slice();
+        ret.limit(pageSize);
         if(!transactionsDisabled||readonly){
             // changes written into buffer will be directly written into file
             // so we need to protect buffer from modifications
@@ -155,31 +191,186 @@ class StorageDiskMapped implements Storage {
     }
 
     public void forceClose() throws IOException {
-        for(FileChannel f: channels){
-            if(f==null) continue;
-            f.close();
-            unmapBuffer(buffers.get(f));
+        for(MappedFile f: files){
+            if(f!=null) f.close();
         }
-        for(FileChannel f: channelsTranslation){
-            if(f==null) continue;
-            f.close();
-            unmapBuffer(buffers.get(f));
+        for(MappedFile f: filesTranslation){
+            if(f!=null) f.close();
         }
 
-        channels = null;
-        channelsTranslation = null;
-        buffers = null;
+        files = null;
+        filesTranslation = null;
     }
 
     public void sync() throws IOException {
-        for(MappedByteBuffer b: buffers.values()){
-            b.force();
+        //files may be opened by other thread while background checkpointer syncs
+        final List<MappedFile> all = new ArrayList<MappedFile>();
+        synchronized (files){
+            all.addAll(files);
+        }
+        synchronized (filesTranslation){
+            all.addAll(filesTranslation);
+        }
+        for(MappedFile f: all){
+            if(f!=null) f.force();
+        }
+    }
+
+    /**
+     * Single segment file mapped into memory as list of regions.
+     */
+    private final class MappedFile{
+
+        final FileChannel channel;
+        private MappedByteBuffer[] regions = new MappedByteBuffer[0];
+        /** file size, it is expanded to end of region when region is mapped */
+        private long size;
+
+        MappedFile(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.size = channel.size();
+        }
+
+        /**
+         * Returns mapped region with given index, maps it if needed.
+         *
+         * @param offset offset in file which should be inside region
+         * @param grow if true file is expanded to contain offset, otherwise null is returned if offset is beyond end of file
+         */
+        synchronized MappedByteBuffer region(int index, long offset, boolean grow) throws IOException {
+            if(index < regions.length && regions[index]!=null)
+                return regions[index];
+            if(!grow && size <= offset)
+                return null;
+
+            final long start = regionStart(index);
+            long end = Math.min(regionStart(index+1), segmentSize);
+            if(size < end){
+                if(readonly){
+                    //can not preallocate, so map only existing part of file
+                    end = size;
+                }else{
+                    //preallocate whole region
+                    channel.write(ByteBuffer.allocate(1), end - 1);
+                    size = end;
+                }
+            }
+
+            if(index >= regions.length)
+                regions = Arrays.copyOf(regions, index + 1);
+            regions[index] = channel.map(FileChannel.MapMode.READ_WRITE, start, end - start);
+            return regions[index];
+        }
+
+        synchronized void force(){
+            for(MappedByteBuffer b:regions){
+                if(b!=null) b.force();
+            }
+        }
+
+        synchronized void close() throws IOException {
+            channel.close();
+            for(MappedByteBuffer b:regions){
+                unmap(b);
+            }
+            regions = null;
         }
     }
 
+    /** Unsafe.invokeCleaner(ByteBuffer) available since Java 9 */
+    private static final Object UNSAFE;
+    private static final Method UNSAFE_INVOKE_CLEANER;
+    /** DirectBuffer.cleaner() and Cleaner.clean() used on older JVMs */
+    private static final Method DIRECT_BUFFER_CLEANER;
+    private static final Method CLEANER_CLEAN;
+
+    static{
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        Method cleaner = null;
+        Method clean = null;
+        try{
+            Class<?> c = Class.forName("sun.misc.Unsafe");
+            invokeCleaner = c.getMethod("invokeCleaner", ByteBuffer.class);
+            Field f = c.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            unsafe = f.get(null);
+        }catch(Throwable e){
+            invokeCleaner = null;
+            try{
+                cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+                clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+            }catch(Throwable e2){
+                //unmapping is not supported on this JVM
+                cleaner = null;
+                clean = null;
+            }
+        }
+        UNSAFE = unsafe;
+        UNSAFE_INVOKE_CLEANER = invokeCleaner;
+        DIRECT_BUFFER_CLEANER = cleaner;
+        CLEANER_CLEAN = clean;
+    }
 
-    public DataOutputStream openTransactionLog() throws IOException {
+    /**
+     * Unmaps buffer, so file can be deleted immediately. There is no public API for it,
+     * so JVM internals are called by reflection. If they are not accessible,
+     * buffer is unmapped later by garbage collector.
+     * Also used to release memory of direct buffers allocated by {@link PageCache}.
+     */
+    static void unmap(ByteBuffer b){
+        if(b==null) return;
+        try{
+            if(UNSAFE_INVOKE_CLEANER!=null){
+                UNSAFE_INVOKE_CLEANER.invoke(UNSAFE, b);
+            }else if(DIRECT_BUFFER_CLEANER!=null){
+                Object cleaner = DIRECT_BUFFER_CLEANER.invoke(b);
+                if(cleaner!=null)
+                    CLEANER_CLEAN.invoke(cleaner);
+            }
+        }catch(Exception e){
+            //leave it to garbage collector
+        }
+    }
+
+
+    public DataOutputStream openTransactionLog(int segment) throws IOException {
+        return openLogFile(fileName, segment);
+    }
+
+    /**
+     * Returns name of transaction log segment. First segment has no number,
+     * so it is compatible with log written by older versions.
+     */
+    static String logFileName(String fileName, int segment) {
         String logName = fileName + StorageDisk.transaction_log_file_extension;
+        return segment == 0 ? logName : logName + "." + segment;
+    }
+
+    static int[] logSegments(String fileName) {
+        final File log = new File(logFileName(fileName, 0));
+        File dir = log.getAbsoluteFile().getParentFile();
+        String[] names = dir==null? null : dir.list();
+        if(names == null) return new int[0];
+        final String prefix = log.getName() + ".";
+        int[] ret = new int[names.length];
+        int count = 0;
+        for(String name:names){
+            if(name.equals(log.getName())){
+                ret[count++] = 0;
+            }else if(name.startsWith(prefix)) try{
+                ret[count++] = Integer.parseInt(name.substring(prefix.length()));
+            }catch(NumberFormatException e){
+                //not a log segment
+            }
+        }
+        ret = Arrays.copyOf(ret, count);
+        Arrays.sort(ret);
+        return ret;
+    }
+
+    static DataOutputStream openLogFile(String fileName, int segment) throws IOException {
+        String logName = logFileName(fileName, segment);
         final FileOutputStream fileOut = new FileOutputStream(logName);
         return new DataOutputStream(new BufferedOutputStream(fileOut)) {
 
@@ -193,8 +384,30 @@ class StorageDiskMapped implements Storage {
         };
     }
 
+    static DataInputStream readLogFile(String fileName, int segment) {
+
+        File logFile = new File(logFileName(fileName, segment));
+        if (!logFile.exists())
+            return null;
+        if (logFile.length() == 0) {
+            logFile.delete();
+            return null;
+        }
+
+        DataInputStream ois = null;
+        try {
+            ois = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile)));
+        } catch (FileNotFoundException e) {
+            //file should exists, we check for its presents just a miliseconds yearlier, anyway move on
+            return null;
+        }
+
+        return ois;
+    }
+
     public void deleteAllFiles() throws IOException {
-        deleteTransactionLog();
+        for(int segment:getTransactionLogSegments())
+            deleteTransactionLog(segment);
         deleteFiles(fileName);
     }
 
@@ -216,37 +429,16 @@ class StorageDiskMapped implements Storage {
     }
 
 
-    public DataInputStream readTransactionLog() {
-
-        File logFile = new File(fileName + StorageDisk.transaction_log_file_extension);
-        if (!logFile.exists())
-            return null;
-        if (logFile.length() == 0) {
-            logFile.delete();
-            return null;
-        }
-
-        DataInputStream ois = null;
-        try {
-            ois = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile)));
-        } catch (FileNotFoundException e) {
-            //file should exists, we check for its presents just a miliseconds yearlier, anyway move on
-            return null;
-        }
+    public int[] getTransactionLogSegments() {
+        return logSegments(fileName);
+    }
 
-        try {
-            if (ois.readShort() != Magic.LOGFILE_HEADER)
-                throw new Error("Bad magic on log file");
-        } catch (IOException e) {
-            // corrupted/empty logfile
-            logFile.delete();
-            return null;
-        }
-        return ois;
+    public DataInputStream readTransactionLog(int segment) {
+        return readLogFile(fileName, segment);
     }
 
-    public void deleteTransactionLog() {
-        File logFile = new File(fileName + StorageDisk.transaction_log_file_extension);
+    public void deleteTransactionLog(int segment) {
+        File logFile = new File(logFileName(fileName, segment));
         if (logFile.exists())
             logFile.delete();
     }
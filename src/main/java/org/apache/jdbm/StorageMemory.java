@@ -2,6 +2,7 @@ package org.apache.jdbm;
 
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.util.TreeMap;
 
 /**
  * Storage which keeps all data in memory.
@@ -11,9 +12,11 @@ class StorageMemory implements Storage {
 
     private LongHashMap<byte[]> pages = new LongHashMap<byte[]>();
     private boolean transactionsDisabled;
+    private final int pageSize;
 
-    StorageMemory(boolean transactionsDisabled){
+    StorageMemory(boolean transactionsDisabled, int pageShift){
         this.transactionsDisabled = transactionsDisabled;
+        this.pageSize = 1 << pageShift;
     }
 
 
@@ -22,7 +25,7 @@ class StorageMemory implements Storage {
         byte[] data = pages.get(pageNumber);
         if (data == null) {
             //out of bounds, so just return empty data
-            return ByteBuffer.wrap(PageFile.CLEAN_DATA).asReadOnlyBuffer();
+            return ByteBuffer.wrap(PageFile.CLEAN_DATA, 0, pageSize).asReadOnlyBuffer();
         }else{
             ByteBuffer b = ByteBuffer.wrap(data);
             if(!transactionsDisabled)
@@ -35,7 +38,7 @@ class StorageMemory implements Storage {
     }
 
     public void write(long pageNumber, ByteBuffer data) throws IOException {
-        if (data.capacity() != PAGE_SIZE) throw new IllegalArgumentException();
+        if (data.limit() != pageSize) throw new IllegalArgumentException();
 
         byte[] b = pages.get(pageNumber);
 
@@ -46,13 +49,18 @@ class StorageMemory implements Storage {
 
         
         if(b == null)
-            b = new byte[PAGE_SIZE];
+            b = new byte[pageSize];
         
         data.position(0);
-        data.get(b,0, PAGE_SIZE);
+        data.get(b,0, pageSize);
         pages.put(pageNumber,b);
     }
 
+    public void write(long[] pageNumbers, ByteBuffer[] data) throws IOException {
+        for(int i = 0; i<pageNumbers.length; i++)
+            write(pageNumbers[i], data[i]);
+    }
+
     public void sync() throws IOException {
     }
 
@@ -61,29 +69,35 @@ class StorageMemory implements Storage {
         pages = null;
     }
 
-    private ByteArrayOutputStream transLog;
+    /** transaction log segments, log may be accessed by background checkpointer so access is synchronized */
+    private final TreeMap<Integer,ByteArrayOutputStream> transLogs = new TreeMap<Integer, ByteArrayOutputStream>();
+
+    public synchronized int[] getTransactionLogSegments() {
+        int[] ret = new int[transLogs.size()];
+        int i = 0;
+        for(Integer segment:transLogs.keySet())
+            ret[i++] = segment;
+        return ret;
+    }
 
-    public DataInputStream readTransactionLog() {
+    public synchronized DataInputStream readTransactionLog(int segment) {
+        ByteArrayOutputStream transLog = transLogs.get(segment);
         if (transLog == null)
             return null;
-        DataInputStream ret =  new DataInputStream(
+        return new DataInputStream(
                 new ByteArrayInputStream(transLog.toByteArray()));
-        //read stream header
-        try {
-            ret.readShort();
-        } catch (IOException e) {
-            throw new IOError(e);
-        }
-        return ret;
     }
 
-    public void deleteTransactionLog() {
-        transLog = null;
+    public synchronized void deleteTransactionLog(int segment) {
+        transLogs.remove(segment);
     }
 
-    public DataOutputStream openTransactionLog() throws IOException {
-        if (transLog == null)
+    public synchronized DataOutputStream openTransactionLog(int segment) throws IOException {
+        ByteArrayOutputStream transLog = transLogs.get(segment);
+        if (transLog == null){
             transLog = new ByteArrayOutputStream();
+            transLogs.put(segment, transLog);
+        }
         return new DataOutputStream(transLog);
     }
 
@@ -18,8 +18,11 @@ class StorageZip implements Storage {
     private String zip2;
     private ZipFile z;
 
-    StorageZip(String zipFile) throws IOException {
+    private final int pageSize;
+
+    StorageZip(String zipFile, int pageShift) throws IOException {
         zip = zipFile;
+        pageSize = 1 << pageShift;
         z = new ZipFile(zip);
         zip2 = "db";
     }
@@ -28,12 +31,16 @@ class StorageZip implements Storage {
         throw new UnsupportedOperationException("readonly");
     }
 
+    public void write(long[] pageNumbers, ByteBuffer[] data) throws IOException {
+        throw new UnsupportedOperationException("readonly");
+    }
+
     public ByteBuffer read(long pageNumber) throws IOException {
-        ByteBuffer data = ByteBuffer.allocate(PAGE_SIZE);
+        ByteBuffer data = ByteBuffer.allocate(pageSize);
 
         ZipEntry e = z.getEntry(zip2 + pageNumber);
         if(e == null)
-            return ByteBuffer.wrap(PageFile.CLEAN_DATA).asReadOnlyBuffer();
+            return ByteBuffer.wrap(PageFile.CLEAN_DATA, 0, pageSize).asReadOnlyBuffer();
 
         InputStream i = z.getInputStream(e);
         new DataInputStream(i).readFully(data.array());
@@ -46,11 +53,15 @@ class StorageZip implements Storage {
         z = null;
     }
 
-    public DataInputStream readTransactionLog() {
+    public int[] getTransactionLogSegments() {
+        return new int[0];
+    }
+
+    public DataInputStream readTransactionLog(int segment) {
         throw new UnsupportedOperationException("readonly");
     }
 
-    public void deleteTransactionLog() {
+    public void deleteTransactionLog(int segment) {
         throw new UnsupportedOperationException("readonly");
     }
 
@@ -58,7 +69,7 @@ class StorageZip implements Storage {
         throw new UnsupportedOperationException("readonly");
     }
 
-    public DataOutputStream openTransactionLog() throws IOException {
+    public DataOutputStream openTransactionLog(int segment) throws IOException {
         throw new UnsupportedOperationException("readonly");
     }
 
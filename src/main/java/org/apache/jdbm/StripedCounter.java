@@ -0,0 +1,55 @@
+/*******************************************************************************
+ * Copyright 2010 Cees De Groot, Alex Boisvert, Jan Kotek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.apache.jdbm;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter which is cheap to update from many threads.
+ * Each thread updates one of several cells selected by thread id,
+ * cells are padded so they do not share cache line. Value is sum of all cells.
+ */
+final class StripedCounter {
+
+    /** number of cells, must be power of two */
+    static final int STRIPES = 16;
+
+    /** distance between cells in array, 8 longs is 64 bytes cache line */
+    static final int PADDING = 8;
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+    private static int cell() {
+        final long id = Thread.currentThread().getId();
+        return (int) ((id ^ (id >>> 4)) & (STRIPES - 1)) * PADDING;
+    }
+
+    void increment() {
+        cells.incrementAndGet(cell());
+    }
+
+    void add(long value) {
+        cells.addAndGet(cell(), value);
+    }
+
+    /** returns sum of all cells, it is not atomic snapshot if counter is updated concurrently */
+    long get() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++)
+            sum += cells.get(i * PADDING);
+        return sum;
+    }
+}
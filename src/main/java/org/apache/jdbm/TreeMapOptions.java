@@ -0,0 +1,95 @@
+/*******************************************************************************
+ * Copyright 2010 Cees De Groot, Alex Boisvert, Jan Kotek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.apache.jdbm;
+
+import java.util.Comparator;
+
+/**
+ * Options of TreeMap, used by {@link DB#createTreeMap(String, TreeMapOptions)} and its variants.
+ * Unset options have default values, so only options which differ from defaults need to be set:
+ * <pre>
+ *  db.createTreeMap("test", new TreeMapOptions&lt;Integer, String&gt;().nodeSize(128).optimisticReads());
+ * </pre>
+ * All options are stored in DB and can not be changed after map is created.
+ *
+ * @param <K> Key type
+ * @param <V> Value type
+ */
+public final class TreeMapOptions<K, V> {
+
+    Comparator<K> keyComparator;
+    Serializer<K> keySerializer;
+    Serializer<V> valueSerializer;
+    CachePolicy cachePolicy = CachePolicy.shared();
+    int nodeSize = BTree.DEFAULT_SIZE;
+    boolean optimisticReads = false;
+
+    /**
+     * Comparator used to sort keys. Not supported by maps with primitive or compact keys.
+     */
+    public TreeMapOptions<K, V> keyComparator(Comparator<K> keyComparator) {
+        this.keyComparator = keyComparator;
+        return this;
+    }
+
+    /**
+     * Serializer used for keys. This may reduce disk space usage.
+     * Not supported by maps with primitive or compact keys.
+     */
+    public TreeMapOptions<K, V> keySerializer(Serializer<K> keySerializer) {
+        this.keySerializer = keySerializer;
+        return this;
+    }
+
+    /**
+     * Serializer used for values. This may reduce disk space usage.
+     */
+    public TreeMapOptions<K, V> valueSerializer(Serializer<V> valueSerializer) {
+        this.valueSerializer = valueSerializer;
+        return this;
+    }
+
+    /**
+     * Cache policy for nodes of this tree, default is {@link CachePolicy#shared()}.
+     * Policy is used again when map is loaded by {@link DB#getTreeMap(String)}.
+     */
+    public TreeMapOptions<K, V> cachePolicy(CachePolicy cachePolicy) {
+        if (cachePolicy == null)
+            throw new IllegalArgumentException("Cache policy is null");
+        this.cachePolicy = cachePolicy;
+        return this;
+    }
+
+    /**
+     * Number of entries per tree node, even number between 4 and 1024, default is 32.
+     * Large nodes (128-512) speed up sequential scans over small keys, small nodes make updates cheaper.
+     */
+    public TreeMapOptions<K, V> nodeSize(int nodeSize) {
+        this.nodeSize = nodeSize;
+        return this;
+    }
+
+    /**
+     * Lookups do not take the tree read lock. They traverse the tree and
+     * are validated against version which writers increment, lookup is retried if writer modified
+     * the tree meanwhile. Readers then do not wait for writers, this helps read-mostly maps
+     * with concurrent writer. Writers are still serialized.
+     */
+    public TreeMapOptions<K, V> optimisticReads() {
+        this.optimisticReads = true;
+        return this;
+    }
+}
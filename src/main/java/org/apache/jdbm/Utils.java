@@ -23,9 +23,9 @@ class Utils {
     public static byte[] encrypt(Cipher cipherIn, ByteBuffer b) {
         if(cipherIn==null && b.hasArray())
             return b.array();
-        byte[] bb = new byte[Storage.PAGE_SIZE];
+        byte[] bb = new byte[b.limit()];
         b.rewind();
-        b.get(bb,0,Storage.PAGE_SIZE);
+        b.get(bb,0,bb.length);
         return encrypt(cipherIn,bb);
     }
     
@@ -52,6 +52,31 @@ class Utils {
     };
 
 
+    /**
+     * Compares byte arrays as unsigned bytes, shorter array is smaller if it is prefix of longer one.
+     */
+    static final Comparator<byte[]> BYTE_ARRAY_COMPARATOR = new Comparator<byte[]>() {
+        public int compare(byte[] b1, byte[] b2) {
+            return compareBytes(b1, 0, b1.length, b2, 0, b2.length);
+        }
+    };
+
+
+    /**
+     * Compares two ranges of byte arrays as unsigned bytes
+     */
+    static int compareBytes(byte[] b1, int from1, int to1, byte[] b2, int from2, int to2) {
+        final int len = Math.min(to1 - from1, to2 - from2);
+        for (int i = 0; i < len; i++) {
+            final int c = (b1[from1 + i] & 0xFF) - (b2[from2 + i] & 0xFF);
+            if (c != 0)
+                return c < 0 ? -1 : 1;
+        }
+        final int c = (to1 - from1) - (to2 - from2);
+        return c < 0 ? -1 : (c == 0 ? 0 : 1);
+    }
+
+
     static String formatSpaceUsage(long size) {
         if (size < 1e4)
             return size + "B";
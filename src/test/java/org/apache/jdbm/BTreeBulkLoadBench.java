@@ -0,0 +1,71 @@
+/*******************************************************************************
+ * Copyright 2010 Cees De Groot, Alex Boisvert, Jan Kotek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.apache.jdbm;
+
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Compares bulk load of sorted keys with inserting them one by one.
+ * Number of keys is set by 'keys' system property, default is 1000000.
+ */
+public class BTreeBulkLoadBench extends TestCaseWithTestFile {
+
+    static Iterator<Map.Entry<Long, Long>> source(final int keys) {
+        return new Iterator<Map.Entry<Long, Long>>() {
+            long i = 0;
+
+            public boolean hasNext() {
+                return i < keys;
+            }
+
+            public Map.Entry<Long, Long> next() {
+                i++;
+                return new AbstractMap.SimpleEntry<Long, Long>(i, i);
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    public void test_bulk_load() throws Exception {
+        final int keys = Integer.getInteger("keys", 1000000);
+
+        DB db = DBMaker.openFile(newTestFile()).disableTransactions().make();
+        Map<Long, Long> map = db.createTreeMap("test");
+        long start = System.currentTimeMillis();
+        for (Iterator<Map.Entry<Long, Long>> i = source(keys); i.hasNext(); ) {
+            Map.Entry<Long, Long> e = i.next();
+            map.put(e.getKey(), e.getValue());
+        }
+        db.commit();
+        long time = System.currentTimeMillis() - start;
+        db.close();
+        System.out.println("insert: " + keys * 1000L / Math.max(1, time) + " keys/s");
+
+        db = DBMaker.openFile(newTestFile()).disableTransactions().make();
+        start = System.currentTimeMillis();
+        db.bulkLoadTreeMap("test", source(keys), true);
+        db.commit();
+        time = System.currentTimeMillis() - start;
+        db.close();
+        System.out.println("bulk load: " + keys * 1000L / Math.max(1, time) + " keys/s");
+    }
+
+}
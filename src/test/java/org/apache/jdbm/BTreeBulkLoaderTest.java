@@ -0,0 +1,149 @@
+package org.apache.jdbm;
+
+import java.io.IOException;
+import java.util.*;
+
+public class BTreeBulkLoaderTest extends TestCaseWithTestFile {
+
+    static TreeMap<Integer, String> entries(int count) {
+        TreeMap<Integer, String> ret = new TreeMap<Integer, String>();
+        for (int i = 0; i < count; i++)
+            ret.put(i * 3, "v" + i);
+        return ret;
+    }
+
+    public void testSizes() throws IOException {
+        DB db = newDBNoCache();
+        for (int nodeSize : new int[]{4, 6, 32}) {
+            for (int count = 0; count < 300; count++) {
+                TreeMap<Integer, String> expected = entries(count);
+                Map<Integer, String> map = db.bulkLoadTreeMap("test" + nodeSize + "_" + count,
+                        expected.entrySet().iterator(), true, new TreeMapOptions<Integer, String>().nodeSize(nodeSize));
+                assertEquals(expected, map);
+                assertEquals(new ArrayList<Map.Entry<Integer, String>>(expected.entrySet()),
+                        new ArrayList<Map.Entry<Integer, String>>(map.entrySet()));
+            }
+        }
+        db.close();
+    }
+
+    public void testOptions() throws IOException {
+        DBAbstract db = newDBCache();
+        TreeMap<Integer, String> expected = entries(1000);
+        BTreeMap<Integer, String> map = (BTreeMap<Integer, String>) db.bulkLoadTreeMap("test",
+                expected.entrySet().iterator(), false, new TreeMapOptions<Integer, String>()
+                .cachePolicy(CachePolicy.pinnedInnerNodes()).nodeSize(8).optimisticReads());
+        assertEquals(expected, map);
+        assertEquals(8, map.tree.nodeSize);
+        assertTrue(map.tree.optimisticReads);
+        assertEquals(CachePolicy.pinnedInnerNodes(), db.getCachePolicy("test"));
+        db.close();
+    }
+
+    public void testModifyAfterLoad() throws IOException {
+        DB db = newDBCache();
+        for (int nodeSize : new int[]{4, 6, 32}) {
+            TreeMap<Integer, String> expected = entries(5000);
+            NavigableMap<Integer, String> map = db.bulkLoadTreeMap("test" + nodeSize,
+                    expected.entrySet().iterator(), true, new TreeMapOptions<Integer, String>().nodeSize(nodeSize));
+
+            Random r = new Random(0);
+            for (int i = 0; i < 20000; i++) {
+                Integer key = r.nextInt(20000);
+                if (r.nextBoolean())
+                    assertEquals(expected.remove(key), map.remove(key));
+                else
+                    assertEquals(expected.put(key, "x" + i), map.put(key, "x" + i));
+            }
+            assertEquals(expected, map);
+            assertEquals(expected.lastKey(), map.lastKey());
+            assertEquals(expected.floorKey(7777), map.floorKey(7777));
+            assertEquals(expected.subMap(100, 3000), map.subMap(100, 3000));
+        }
+        db.close();
+    }
+
+    public void testReopen() throws IOException {
+        String file = newTestFile();
+        DB db = DBMaker.openFile(file).make();
+        TreeMap<Integer, String> expected = entries(10000);
+        db.bulkLoadTreeMap("test", expected.entrySet().iterator(), true);
+        db.commit();
+        db.close();
+
+        db = DBMaker.openFile(file).make();
+        Map<Integer, String> map = db.getTreeMap("test");
+        assertEquals(expected, map);
+        assertEquals(expected.size(), map.size());
+        db.close();
+    }
+
+    public void testNodesAreFull() throws IOException {
+        DBStore db = newDBNoCache();
+        TreeMap<Integer, String> expected = entries(10000);
+        db.bulkLoadTreeMap("test", expected.entrySet().iterator(), true);
+        BTree tree = ((BTreeMap) db.getTreeMap("test")).tree;
+        BTreeNode node = tree.getRoot();
+        while (!node._isLeaf)
+            node = tree.fetchNode(node._children[node._first]);
+
+        // all leaves but last two are full, last two are at least half full
+        int leaves = 1;
+        while (node._next != 0) {
+            BTreeNode next = tree.fetchNode(node._next);
+            if (next._next != 0)
+                assertEquals(0, node._first);
+            assertTrue(node._first <= BTree.DEFAULT_SIZE / 2);
+            assertEquals(node._recid, next._previous);
+            node = next;
+            leaves++;
+        }
+        assertTrue(node._first <= BTree.DEFAULT_SIZE / 2);
+        // 10000 entries and 'infinite' key
+        assertEquals((10000 + 1 + BTree.DEFAULT_SIZE - 1) / BTree.DEFAULT_SIZE, leaves);
+        db.close();
+    }
+
+    public void testUnsorted() throws IOException {
+        DB db = newDBNoCache();
+        TreeMap<Integer, String> expected = new TreeMap<Integer, String>();
+        List<Map.Entry<Integer, String>> entries = new ArrayList<Map.Entry<Integer, String>>();
+        Random r = new Random(0);
+        for (int i = 0; i < 10000; i++) {
+            Integer key = r.nextInt(5000);
+            expected.put(key, "v" + i);
+            entries.add(new AbstractMap.SimpleEntry<Integer, String>(key, "v" + i));
+        }
+        Map<Integer, String> map = db.bulkLoadTreeMap("test", entries.iterator(), false);
+        assertEquals(expected, map);
+        db.close();
+    }
+
+    public void testNotSorted() throws IOException {
+        DB db = newDBNoCache();
+        List<Map.Entry<Integer, String>> entries = new ArrayList<Map.Entry<Integer, String>>();
+        entries.add(new AbstractMap.SimpleEntry<Integer, String>(2, "a"));
+        entries.add(new AbstractMap.SimpleEntry<Integer, String>(1, "b"));
+        try {
+            db.bulkLoadTreeMap("test", entries.iterator(), true);
+            fail();
+        } catch (IllegalArgumentException e) {
+            //expected
+        }
+        db.close();
+    }
+
+    public void testNotEmpty() throws IOException {
+        DBAbstract db = newDBNoCache();
+        BTree<Integer, String> tree = BTree.createInstance(db);
+        tree.insert(1, "a", false);
+        try {
+            tree.bulkLoad(entries(10).entrySet().iterator());
+            fail();
+        } catch (IllegalStateException e) {
+            //expected
+        }
+        db.close();
+    }
+
+}
@@ -0,0 +1,93 @@
+/*******************************************************************************
+ * Copyright 2010 Cees De Groot, Alex Boisvert, Jan Kotek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.apache.jdbm;
+
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Compares TreeMap with String keys against map created by {@link DB#createTreeMapString(String)},
+ * which keeps keys in compact form. Keys are long URLs with common prefix.
+ * Number of keys is set by 'keys' system property, default is 200000.
+ */
+public class BTreeCompactKeysBench extends TestCaseWithTestFile {
+
+    static String key(int i) {
+        return "http://www.example.com/some/long/path/to/resource/" + i;
+    }
+
+    public void test_string_keys() throws Exception {
+        final int keys = Integer.getInteger("keys", 200000);
+
+        DB db = DBMaker.openFile(newTestFile()).disableTransactions().setMRUCacheSize(100000).make();
+        Map<String, String> objects = db.createTreeMap("objects");
+        Map<String, String> compact = db.createTreeMapString("compact");
+        for (int i = 0; i < keys; i++) {
+            objects.put(key(i), "");
+            compact.put(key(i), "");
+        }
+        db.commit();
+
+        String[] lookups = new String[keys];
+        Random r = new Random(0);
+        for (int i = 0; i < keys; i++)
+            lookups[i] = key(r.nextInt(keys));
+
+        for (int round = 0; round < 3; round++) {
+            bench("objects", objects, lookups);
+            bench("compact", compact, lookups);
+        }
+
+        System.out.println("heap with objects: " + heap(db, "objects") / 1024 + " KB, compact: " +
+                heap(db, "compact") / 1024 + " KB");
+        db.close();
+    }
+
+    private static void bench(String name, Map<String, String> map, String[] lookups) {
+        long start = System.currentTimeMillis();
+        for (String key : lookups) {
+            if (map.get(key) == null)
+                throw new InternalError();
+        }
+        long time = System.currentTimeMillis() - start;
+        System.out.println(name + ": " + lookups.length * 1000L / Math.max(1, time) + " gets/s");
+    }
+
+    /**
+     * Approximate heap used by all leaf keys of tree, leaves are loaded into cache
+     */
+    private static long heap(DB db, String name) throws Exception {
+        BTree tree = ((BTreeMap) db.getTreeMap(name)).tree;
+        BTreeNode node = tree.getRoot();
+        while (!node._isLeaf)
+            node = tree.fetchNode(node._children[node._first]);
+        long size = 0;
+        while (node != null) {
+            if (node._keys != null) {
+                size += 16 + 4 * node._keys.length;
+                for (Object key : node._keys) {
+                    if (key != null)
+                        size += 24 + 16 + 2 * ((String) key).length();
+                }
+            } else {
+                size += 16 + node._keyBytes.length + 16 + 4 * node._keyOffsets.length;
+            }
+            node = node._next == 0 ? null : tree.fetchNode(node._next);
+        }
+        return size;
+    }
+
+}
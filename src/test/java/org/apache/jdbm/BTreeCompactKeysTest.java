@@ -0,0 +1,148 @@
+package org.apache.jdbm;
+
+import java.io.IOException;
+import java.util.*;
+
+public class BTreeCompactKeysTest extends TestCaseWithTestFile {
+
+    static final String[] PREFIXES = {"", "a", "http://www.example.com/", "\u0000", "été", "中文",
+            "😀", "￿", ""};
+
+    static String randomString(Random r) {
+        StringBuilder b = new StringBuilder(PREFIXES[r.nextInt(PREFIXES.length)]);
+        int len = r.nextInt(6);
+        for (int i = 0; i < len; i++)
+            b.append(PREFIXES[r.nextInt(PREFIXES.length)].isEmpty() ? 'x' : (char) ('a' + r.nextInt(5)));
+        if (r.nextInt(5) == 0)
+            b.append(PREFIXES[r.nextInt(PREFIXES.length)]);
+        return b.toString();
+    }
+
+    public void testStringKeys() throws IOException {
+        DB db = newDBNoCache();
+        for (int nodeSize : new int[]{4, 6, 32}) {
+            Map<String, Integer> map = db.createTreeMapString("test" + nodeSize, new TreeMapOptions<String, Integer>().nodeSize(nodeSize));
+            TreeMap<String, Integer> expected = new TreeMap<String, Integer>();
+            Random r = new Random(0);
+            for (int i = 0; i < 20000; i++) {
+                String key = randomString(r);
+                switch (r.nextInt(3)) {
+                    case 0:
+                        assertEquals(expected.remove(key), map.remove(key));
+                        break;
+                    case 1:
+                        assertEquals(expected.get(key), map.get(key));
+                        break;
+                    default:
+                        assertEquals(expected.put(key, i), map.put(key, i));
+                }
+            }
+            assertEquals(new ArrayList<Map.Entry<String, Integer>>(expected.entrySet()),
+                    new ArrayList<Map.Entry<String, Integer>>(map.entrySet()));
+            NavigableMap<String, Integer> nav = (NavigableMap<String, Integer>) map;
+            assertEquals(expected.firstKey(), nav.firstKey());
+            assertEquals(expected.lastKey(), nav.lastKey());
+            assertEquals(expected.floorKey("http://www.example.com/b"), nav.floorKey("http://www.example.com/b"));
+            assertEquals(expected.higherKey("a"), nav.higherKey("a"));
+            assertEquals(expected.subMap("a", "中"), nav.subMap("a", "中"));
+        }
+        db.close();
+    }
+
+    public void testByteArrayKeys() throws IOException {
+        DB db = newDBCache();
+        Map<byte[], Integer> map = db.createTreeMapByteArray("test", new TreeMapOptions<byte[], Integer>().nodeSize(6));
+        TreeMap<byte[], Integer> expected = new TreeMap<byte[], Integer>(Utils.BYTE_ARRAY_COMPARATOR);
+        Random r = new Random(0);
+        for (int i = 0; i < 20000; i++) {
+            byte[] key = new byte[r.nextInt(4) + (r.nextBoolean() ? 10 : 0)];
+            r.nextBytes(key);
+            if (key.length > 3)
+                key[0] = key[1] = key[2] = (byte) 0xF0;
+            if (r.nextInt(3) == 0)
+                assertEquals(expected.remove(key), map.remove(key));
+            else
+                assertEquals(expected.put(key, i), map.put(key, i));
+        }
+        Iterator<Map.Entry<byte[], Integer>> iter = map.entrySet().iterator();
+        for (Map.Entry<byte[], Integer> e : expected.entrySet()) {
+            Map.Entry<byte[], Integer> e2 = iter.next();
+            assertTrue(Arrays.equals(e.getKey(), e2.getKey()));
+            assertEquals(e.getValue(), e2.getValue());
+            assertEquals(e.getValue(), map.get(e.getKey()));
+        }
+        assertFalse(iter.hasNext());
+        db.close();
+    }
+
+    public void testReopen() throws IOException {
+        String file = newTestFile();
+        DB db = DBMaker.openFile(file).make();
+        Map<String, Long> map = db.createTreeMapString("test");
+        Map<byte[], Long> map2 = db.createTreeMapByteArray("test2");
+        for (long i = 0; i < 10000; i++) {
+            map.put("key" + i, i);
+            map2.put(("key" + i).getBytes(), i);
+        }
+        db.commit();
+        db.close();
+
+        db = DBMaker.openFile(file).make();
+        map = db.getTreeMap("test");
+        map2 = db.getTreeMap("test2");
+        assertEquals(BTree.KEYS_STRING, ((BTreeMap) map).tree.keyType);
+        assertEquals(BTree.KEYS_BYTE_ARRAY, ((BTreeMap) map2).tree.keyType);
+        assertEquals(10000, map.size());
+        for (long i = 0; i < 10000; i++) {
+            assertEquals(Long.valueOf(i), map.get("key" + i));
+            assertEquals(Long.valueOf(i), map2.get(("key" + i).getBytes()));
+        }
+        assertNull(map.get("key"));
+        assertNull(map2.get("key".getBytes()));
+        db.close();
+    }
+
+    public void testNodeIsCompact() throws IOException {
+        DBAbstract db = newDBNoCache();
+        BTree<String, String> tree = BTree.createInstance(db, null, null, null, true, 32, false, BTree.KEYS_STRING);
+        for (int i = 0; i < 1000; i++)
+            tree.insert("http://www.example.com/" + (10000 + i), "v" + i, true);
+        BTreeNode<String, String> leaf = tree.fetchNode(tree.getRoot()._children[tree.nodeSize - 2]);
+        assertNull(leaf._keys);
+        assertNull(leaf._expandedKeys);
+        assertTrue(leaf._keyPrefix >= "http://www.example.com/1".length());
+        assertTrue(leaf._keyBytes.length < (tree.nodeSize - leaf._first) * 8);
+        assertEquals("v500", tree.get("http://www.example.com/10500"));
+        assertNull(tree.get("http://www.example.com/"));
+        assertNull(tree.get("zzz"));
+    }
+
+    public void testBulkLoad() throws IOException {
+        DBAbstract db = newDBNoCache();
+        for (int count : new int[]{0, 1, 3, 100, 5000}) {
+            TreeMap<String, Integer> expected = new TreeMap<String, Integer>();
+            for (int i = 0; i < count; i++)
+                expected.put("key" + i, i);
+            BTree<String, Integer> tree = BTree.createInstance(db, null, null, null, true, 6, false, BTree.KEYS_STRING);
+            tree.bulkLoad(expected.entrySet().iterator());
+            Map<String, Integer> map = new BTreeMap<String, Integer>(tree, false);
+            assertEquals(new ArrayList<Map.Entry<String, Integer>>(expected.entrySet()),
+                    new ArrayList<Map.Entry<String, Integer>>(map.entrySet()));
+            for (int i = 0; i < count; i++)
+                assertEquals(Integer.valueOf(i), map.get("key" + i));
+        }
+    }
+
+    public void testWrongKeyType() throws IOException {
+        DB db = newDBNoCache();
+        Map map = db.createTreeMapString("test");
+        try {
+            map.put(1L, "b");
+            fail();
+        } catch (ClassCastException e) {
+            //expected
+        }
+        assertNull(map.get(1L));
+    }
+
+}
@@ -0,0 +1,70 @@
+/*******************************************************************************
+ * Copyright 2010 Cees De Groot, Alex Boisvert, Jan Kotek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.apache.jdbm;
+
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Sweeps BTree node size against insert, get and range scan throughput.
+ * Number of keys is set by 'keys' system property, default is 200000.
+ */
+public class BTreeNodeSizeBench extends TestCaseWithTestFile {
+
+    static final int[] NODE_SIZES = {8, 16, 32, 64, 128, 256, 512};
+
+    public void test_node_sizes() throws Exception {
+        final int keys = Integer.getInteger("keys", 200000);
+        for (int nodeSize : NODE_SIZES) {
+            DB db = DBMaker.openFile(newTestFile()).disableTransactions().make();
+            Map<Long, Long> map = db.createTreeMap("test", new TreeMapOptions<Long, Long>().nodeSize(nodeSize));
+
+            Random r = new Random(0);
+            long start = System.currentTimeMillis();
+            for (int i = 0; i < keys; i++) {
+                long key = r.nextInt(keys * 4);
+                map.put(key, key);
+            }
+            db.commit();
+            long insertTime = System.currentTimeMillis() - start;
+
+            r = new Random(0);
+            start = System.currentTimeMillis();
+            for (int i = 0; i < keys; i++) {
+                long key = r.nextInt(keys * 4);
+                if (map.get(key) == null)
+                    throw new InternalError();
+            }
+            long getTime = System.currentTimeMillis() - start;
+
+            start = System.currentTimeMillis();
+            long sum = 0;
+            for (int i = 0; i < 10; i++)
+                for (Long v : map.values())
+                    sum += v;
+            long scanTime = System.currentTimeMillis() - start;
+            if (sum == 0)
+                throw new InternalError();
+
+            System.out.println("node size " + nodeSize + ": " +
+                    keys * 1000L / Math.max(1, insertTime) + " inserts/s, " +
+                    keys * 1000L / Math.max(1, getTime) + " gets/s, " +
+                    map.size() * 10000L / Math.max(1, scanTime) + " scanned/s");
+            db.close();
+        }
+    }
+
+}
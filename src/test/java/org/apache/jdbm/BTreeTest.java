@@ -791,6 +791,68 @@ public class BTreeTest
 
     } // ObjectTT
     
+    public void testNodeSize() throws IOException {
+        String file = newTestFile();
+        DB db = DBMaker.openFile(file).disableCache().make();
+        int[] sizes = {4, 6, 128, 512};
+        Random r = new Random(0);
+        List<TreeMap<Integer, String>> expected = new ArrayList<TreeMap<Integer, String>>();
+        for (int size : sizes) {
+            Map<Integer, String> map = db.createTreeMap("tree" + size, new TreeMapOptions<Integer, String>().nodeSize(size));
+            TreeMap<Integer, String> t = new TreeMap<Integer, String>();
+            for (int i = 0; i < 20000; i++) {
+                Integer key = r.nextInt(5000);
+                if (r.nextInt(3) == 0) {
+                    assertEquals(t.remove(key), map.remove(key));
+                } else {
+                    assertEquals(t.put(key, "v" + i), map.put(key, "v" + i));
+                }
+            }
+            expected.add(t);
+        }
+        db.commit();
+        db.close();
+
+        db = DBMaker.openFile(file).disableCache().make();
+        for (int i = 0; i < sizes.length; i++) {
+            Map<Integer, String> map = db.getTreeMap("tree" + sizes[i]);
+            assertEquals(sizes[i], ((BTreeMap) map).tree.nodeSize);
+            assertEquals(new ArrayList<Map.Entry<Integer, String>>(expected.get(i).entrySet()),
+                    new ArrayList<Map.Entry<Integer, String>>(map.entrySet()));
+        }
+        db.close();
+    }
+
+    public void testDefaultNodeSizeFormat() throws IOException {
+        DBAbstract db = newDBNoCache();
+        BTree tree = BTree.createInstance(db);
+        byte[] data = ((DBStore) db).fetchRaw(tree.getRecid());
+        assertEquals(SerializationHeader.BTREE, data[0] & 0xFF);
+
+        tree = BTree.createInstance(db, null, null, null, true, 64);
+        data = ((DBStore) db).fetchRaw(tree.getRecid());
+        assertEquals(SerializationHeader.BTREE_OPTIONS, data[0] & 0xFF);
+
+        tree = BTree.createInstance(db, null, null, null, true, BTree.DEFAULT_SIZE, true);
+        data = ((DBStore) db).fetchRaw(tree.getRecid());
+        assertEquals(SerializationHeader.BTREE_OPTIONS, data[0] & 0xFF);
+        assertTrue(BTree.load(db, tree.getRecid()).optimisticReads);
+        db.close();
+    }
+
+    public void testWrongNodeSize() throws IOException {
+        DBAbstract db = newDBNoCache();
+        for (int size : new int[]{0, 2, 7, BTree.MAX_SIZE + 2}) {
+            try {
+                BTree.createInstance(db, null, null, null, true, size);
+                fail();
+            } catch (IllegalArgumentException e) {
+                //expected
+            }
+        }
+        db.close();
+    }
+
     public void testIssue2(){
         //this causes stack overflow
         // https://github.com/jankotek/JDBM3/issues/2
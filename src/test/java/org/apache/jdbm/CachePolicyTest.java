@@ -0,0 +1,167 @@
+package org.apache.jdbm;
+
+import java.util.Map;
+import java.util.Random;
+
+
+public class CachePolicyTest extends TestCaseWithTestFile {
+
+    public void testEncode() {
+        CachePolicy[] policies = {CachePolicy.shared(), CachePolicy.noCache(), CachePolicy.pinned(), CachePolicy.lru(1234)};
+        for (CachePolicy p : policies)
+            assertEquals(p, CachePolicy.decode(p.encode()));
+        assertFalse(CachePolicy.lru(10).equals(CachePolicy.lru(11)));
+    }
+
+    public void testRegion() {
+        CacheRegion lru = new CacheRegion(CachePolicy.lru(3));
+        for (long i = 1; i <= 3; i++)
+            lru.put(i, "aa" + i);
+        //touch first record, so second is evicted
+        assertEquals("aa1", lru.get(1));
+        lru.put(4, "aa4");
+        assertEquals(3, lru.size());
+        assertNull(lru.get(2));
+        assertEquals("aa1", lru.get(1));
+
+        CacheRegion none = new CacheRegion(CachePolicy.noCache());
+        none.put(1, "aa");
+        assertNull(none.get(1));
+
+        CacheRegion pinned = new CacheRegion(CachePolicy.pinned());
+        for (long i = 0; i < 10000; i++)
+            pinned.put(i, "aa");
+        assertEquals(10000, pinned.size());
+    }
+
+    public void testTreeMapPolicy() {
+        String file = newTestFile();
+        DB d = DBMaker.openFile(file).setMRUCacheSize(100).make();
+        Map<Integer, String> pinned = d.createTreeMap("pinned", new TreeMapOptions<Integer, String>().cachePolicy(CachePolicy.pinned()));
+        Map<Integer, String> shared = d.createTreeMap("shared");
+        for (int i = 0; i < 10000; i++) {
+            pinned.put(i, "aa" + i);
+            shared.put(i, "aa" + i);
+        }
+        d.commit();
+        for (int i = 0; i < 10000; i++) {
+            assertEquals("aa" + i, pinned.get(i));
+            assertEquals("aa" + i, shared.get(i));
+        }
+        //all nodes of pinned tree stay in its region, shared cache is limited
+        CacheRegion region = ((BTreeMap) pinned).tree.cacheRegion;
+        assertEquals(CachePolicy.pinned(), region.policy);
+        assertTrue(region.size() > 100);
+        assertNull(((BTreeMap) shared).tree.cacheRegion);
+
+        //updates and rollback are visible through region
+        pinned.put(1, "bb");
+        assertEquals("bb", pinned.get(1));
+        d.rollback();
+        assertEquals("aa1", pinned.get(1));
+        pinned.remove(2);
+        d.commit();
+        assertNull(pinned.get(2));
+        d.close();
+
+        d = DBMaker.openFile(file).setMRUCacheSize(100).make();
+        assertEquals(CachePolicy.pinned(), d.getCachePolicy("pinned"));
+        assertEquals(CachePolicy.shared(), d.getCachePolicy("shared"));
+        pinned = d.getTreeMap("pinned");
+        assertEquals("aa3", pinned.get(3));
+        assertEquals(CachePolicy.pinned(), ((BTreeMap) pinned).tree.cacheRegion.policy);
+
+        d.deleteCollection("pinned");
+        assertEquals(CachePolicy.shared(), d.getCachePolicy("pinned"));
+        d.close();
+    }
+
+    public void testHashMapPolicy() {
+        String file = newTestFile();
+        DB d = DBMaker.openFile(file).make();
+        Map<Integer, String> m = d.createHashMap("lru", null, null, CachePolicy.lru(10));
+        for (int i = 0; i < 1000; i++)
+            m.put(i, "aa" + i);
+        d.commit();
+        for (int i = 0; i < 1000; i++)
+            assertEquals("aa" + i, m.get(i));
+        assertTrue(((HTree) m).cacheRegion.size() <= 10);
+
+        Map<Integer, String> none = d.createHashMap("none", null, null, CachePolicy.noCache());
+        none.put(1, "aa");
+        d.commit();
+        assertEquals("aa", none.get(1));
+        d.close();
+
+        d = DBMaker.openFile(file).make();
+        assertEquals(CachePolicy.lru(10), d.getCachePolicy("lru"));
+        assertEquals(CachePolicy.noCache(), d.getCachePolicy("none"));
+        m = d.getHashMap("lru");
+        assertEquals("aa5", m.get(5));
+        d.close();
+    }
+
+    public void testPinnedInnerNodes() {
+        String file = newTestFile();
+        DB d = DBMaker.openFile(file).setMRUCacheSize(10).make();
+        Map<Integer, String> m = d.createTreeMap("test", new TreeMapOptions<Integer, String>().cachePolicy(CachePolicy.pinnedInnerNodes()));
+        final int size = 100000;
+        for (int i = 0; i < size; i++)
+            m.put(i, "aa" + i);
+        d.commit();
+
+        for (int i = 0; i < size; i += 4)
+            assertEquals("aa" + i, m.get(i));
+        Random r = new Random(0);
+        //inner nodes are loaded now, each lookup needs at most one leaf fetch
+        long fetches = d.getMetrics().get("store.fetches");
+        for (int i = 0; i < 1000; i++) {
+            int key = r.nextInt(size);
+            assertEquals("aa" + key, m.get(key));
+        }
+        assertTrue(d.getMetrics().get("store.fetches") - fetches <= 1000);
+
+        CacheRegion region = ((BTreeMap) m).tree.cacheRegion;
+        assertTrue(region.size() > 0);
+        for (long recid = 1; recid < 100000; recid++) {
+            BTreeNode node = (BTreeNode) region.get(recid);
+            assertTrue(node == null || !node._isLeaf);
+        }
+
+        //updates which split and merge inner nodes
+        for (int i = 0; i < size; i += 2)
+            m.remove(i);
+        for (int i = size; i < size * 2; i++)
+            m.put(i, "bb" + i);
+        d.commit();
+        for (int i = 0; i < size * 2; i++)
+            assertEquals(i % 2 == 0 && i < size ? null : (i < size ? "aa" : "bb") + i, m.get(i));
+        d.close();
+
+        d = DBMaker.openFile(file).make();
+        assertEquals(CachePolicy.pinnedInnerNodes(), d.getCachePolicy("test"));
+        d.close();
+    }
+
+    public void testPinnedInnerNodesNotForHashMap() {
+        DB d = DBMaker.openFile(newTestFile()).make();
+        try {
+            d.createHashMap("test", null, null, CachePolicy.pinnedInnerNodes());
+            fail();
+        } catch (IllegalArgumentException e) {
+            //expected
+        }
+        assertNull(d.getHashMap("test"));
+        d.close();
+    }
+
+    public void testPolicyWithoutCache() {
+        DB d = DBMaker.openFile(newTestFile()).disableCache().make();
+        Map<Integer, String> m = d.createTreeMap("pinned", new TreeMapOptions<Integer, String>().cachePolicy(CachePolicy.pinned()));
+        m.put(1, "aa");
+        d.commit();
+        assertEquals("aa", m.get(1));
+        assertEquals(CachePolicy.pinned(), d.getCachePolicy("pinned"));
+        d.close();
+    }
+}
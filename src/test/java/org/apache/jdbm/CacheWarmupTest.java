@@ -0,0 +1,127 @@
+package org.apache.jdbm;
+
+import java.io.File;
+import java.io.IOError;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+
+
+public class CacheWarmupTest extends TestCaseWithTestFile {
+
+    public void testHotRecids() throws IOException {
+        DBCacheMRU d = (DBCacheMRU) DBMaker.openFile(newTestFile()).setMRUCacheSize(100).make();
+        long[] recids = new long[10];
+        for (int i = 0; i < recids.length; i++)
+            recids[i] = d.insert("aa" + i);
+        d.commit();
+        for (int i = 0; i < recids.length; i++)
+            d.fetch(recids[i]);
+        //most recently used first
+        d.fetch(recids[3]);
+        long[] hot = d.hotRecids();
+        assertEquals(recids[3], hot[0]);
+        assertEquals(recids[9], hot[1]);
+        d.close();
+    }
+
+    public void testWarmup() throws IOException {
+        String file = newTestFile();
+        DB d = DBMaker.openFile(file).setMRUCacheSize(1000).enableCacheWarmup().make();
+        Map<Integer, String> m = d.createTreeMap("test");
+        for (int i = 0; i < 10000; i++)
+            m.put(i, "aa" + i);
+        d.commit();
+        for (int i = 0; i < 10000; i++)
+            assertEquals("aa" + i, m.get(i));
+        d.close();
+        assertTrue(new File(file + DBStore.WARMUP_FILE_EXTENSION).exists());
+
+        d = DBMaker.openFile(file).setMRUCacheSize(1000).enableRecordCache(1 << 24).enableCacheWarmup().make();
+        RecordCache recordCache = ((DBStore) d).getRecordCache();
+        assertTrue(recordCache.getCount() > 100);
+        assertEquals(0, recordCache.getHitCount());
+        m = d.getTreeMap("test");
+        for (int i = 0; i < 10000; i++)
+            assertEquals("aa" + i, m.get(i));
+        assertTrue(recordCache.getHitCount() > 100);
+        d.close();
+    }
+
+    public void testWarmupEnablesRecordCache() throws IOException {
+        String file = newTestFile();
+        DB d = DBMaker.openFile(file).enableCacheWarmup().make();
+        Map<Integer, String> m = d.createTreeMap("test");
+        for (int i = 0; i < 10000; i++)
+            m.put(i, "aa" + i);
+        d.commit();
+        for (int i = 0; i < 10000; i++)
+            assertEquals("aa" + i, m.get(i));
+        d.close();
+
+        //only MRU cache is configured, preloaded records must still be kept
+        d = DBMaker.openFile(file).enableCacheWarmup().make();
+        RecordCache recordCache = ((DBStore) d).getRecordCache();
+        assertNotNull(recordCache);
+        assertTrue(recordCache.getCount() > 100);
+        m = d.getTreeMap("test");
+        for (int i = 0; i < 10000; i++)
+            assertEquals("aa" + i, m.get(i));
+        assertTrue(recordCache.getHitCount() > 100);
+        d.close();
+    }
+
+    public void testWarmupRequiresMRUCache() {
+        try {
+            DBMaker.openFile(newTestFile()).enableSoftCache().enableCacheWarmup().make();
+            fail();
+        } catch (IllegalArgumentException e) {
+            //expected
+        }
+    }
+
+    public void testPreloadInterrupted() throws IOException {
+        DBStore d = (DBStore) DBMaker.openFile(newTestFile()).disableCache().enableRecordCache(1 << 24).make();
+        long[] recids = new long[20000];
+        for (int i = 0; i < recids.length; i++)
+            recids[i] = d.insert("aa" + i);
+        d.commit();
+        Thread.currentThread().interrupt();
+        try {
+            d.preloadRecords(recids);
+            fail();
+        } catch (IOError e) {
+            assertTrue(e.getCause() instanceof InterruptedIOException);
+        }
+        assertTrue(Thread.interrupted());
+        //workers are finished and lock released, so store can be modified
+        d.update(recids[0], "bb");
+        d.commit();
+        assertEquals("bb", d.fetch(recids[0]));
+        d.close();
+    }
+
+    public void testPreloadSkipsDeletedRecords() throws IOException {
+        String file = newTestFile();
+        DBStore d = (DBStore) DBMaker.openFile(file).disableCache().enableRecordCache(1 << 20).make();
+        long[] recids = new long[5000];
+        for (int i = 0; i < recids.length; i++)
+            recids[i] = d.insert("aa" + i);
+        d.delete(recids[0]);
+        d.commit();
+        final int cached = d.getRecordCache().getCount();
+        assertEquals(recids.length - 1, d.preloadRecords(recids));
+        assertEquals(cached + recids.length - 1, d.getRecordCache().getCount());
+        assertEquals("aa10", d.fetch(recids[10]));
+        d.close();
+    }
+
+    public void testNoWarmupFileForDeletedStore() {
+        String file = newTestFile();
+        DB d = DBMaker.openFile(file).enableCacheWarmup().deleteFilesAfterClose().make();
+        d.createHashMap("test").put(1, 2);
+        d.commit();
+        d.close();
+        assertFalse(new File(file + DBStore.WARMUP_FILE_EXTENSION).exists());
+    }
+}
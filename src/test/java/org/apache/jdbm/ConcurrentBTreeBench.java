@@ -0,0 +1,115 @@
+/*******************************************************************************
+ * Copyright 2010 Cees De Groot, Alex Boisvert, Jan Kotek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.apache.jdbm;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Multi-threaded read/write throughput benchmark for BTreeMap.
+ * Prints number of operations per second for increasing number of reader threads,
+ * with and without concurrent writer.
+ */
+public class ConcurrentBTreeBench extends TestCaseWithTestFile {
+
+    static final int ENTRIES = 100000;
+    static final long DURATION = 2000;
+
+    public void test_no_cache() throws Exception {
+        DB db = DBMaker.openFile(newTestFile()).disableCache().make();
+        bench("no cache", db);
+        db.close();
+    }
+
+    public void test_mru_cache() throws Exception {
+        DB db = DBMaker.openFile(newTestFile()).make();
+        bench("MRU cache", db);
+        db.close();
+    }
+
+    public void test_mru_cache_optimistic() throws Exception {
+        DB db = DBMaker.openFile(newTestFile()).make();
+        bench("MRU cache, optimistic reads", db, db.createTreeMap("test",
+                new TreeMapOptions<Integer, String>().optimisticReads()));
+        db.close();
+    }
+
+    static void bench(String name, DB db) throws Exception {
+        bench(name, db, db.<Integer, String>createTreeMap("test"));
+    }
+
+    static void bench(String name, DB db, Map<Integer, String> map) throws Exception {
+        for (int i = 0; i < ENTRIES; i++) {
+            map.put(i, "value" + i);
+            if (i % 10000 == 0)
+                db.commit();
+        }
+        db.commit();
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; threads <= cores * 2; threads *= 2) {
+            long reads = run(db, map, threads, false);
+            long readsWithWriter = run(db, map, threads, true);
+            System.out.println(name + ": " + threads + " readers: " + reads * 1000 / DURATION + " reads/s, " +
+                    "with writer: " + readsWithWriter * 1000 / DURATION + " reads/s");
+        }
+    }
+
+    static long run(final DB db, final Map<Integer, String> map, int threads, boolean writer) throws Exception {
+        final AtomicBoolean stop = new AtomicBoolean(false);
+        final AtomicLong counter = new AtomicLong();
+        Thread[] t = new Thread[threads + (writer ? 1 : 0)];
+        for (int i = 0; i < threads; i++) {
+            t[i] = new Thread() {
+                public void run() {
+                    Random r = new Random();
+                    long count = 0;
+                    while (!stop.get()) {
+                        Integer key = r.nextInt(ENTRIES);
+                        if (!("value" + key).equals(map.get(key)))
+                            throw new InternalError("wrong value for key " + key);
+                        count++;
+                    }
+                    counter.addAndGet(count);
+                }
+            };
+        }
+        if (writer) {
+            t[threads] = new Thread() {
+                public void run() {
+                    Random r = new Random();
+                    int count = 0;
+                    while (!stop.get()) {
+                        Integer key = r.nextInt(ENTRIES);
+                        map.put(key, "value" + key);
+                        if (++count % 1000 == 0)
+                            db.commit();
+                    }
+                    db.commit();
+                }
+            };
+        }
+
+        for (Thread tt : t) tt.start();
+        Thread.sleep(DURATION);
+        stop.set(true);
+        for (Thread tt : t) tt.join();
+        return counter.get();
+    }
+
+}
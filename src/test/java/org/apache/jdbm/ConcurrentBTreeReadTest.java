@@ -19,7 +19,10 @@ import java.io.IOException;
 import java.io.Serializable;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class ConcurrentBTreeReadTest extends TestCaseWithTestFile {
 
@@ -109,6 +112,73 @@ public class ConcurrentBTreeReadTest extends TestCaseWithTestFile {
         System.err.println("done " + (end - start) + "ms");
     }
 
+    public void testConcurrentReadWrite() throws Exception {
+        DB db = newDBNoCache();
+        checkConcurrentReadWrite(db, db.<Integer, String>createTreeMap("test"));
+        db = newDBCache();
+        checkConcurrentReadWrite(db, db.<Integer, String>createTreeMap("test"));
+    }
+
+    public void testOptimisticReadWrite() throws Exception {
+        DB db = newDBNoCache();
+        checkConcurrentReadWrite(db, db.createTreeMap("test", new TreeMapOptions<Integer, String>().nodeSize(8).optimisticReads()));
+        db = newDBCache();
+        checkConcurrentReadWrite(db, db.createTreeMap("test", new TreeMapOptions<Integer, String>().nodeSize(8).optimisticReads()));
+        db = newDBCache();
+        checkConcurrentReadWrite(db, db.createTreeMap("test", new TreeMapOptions<Integer, String>()
+                .cachePolicy(CachePolicy.pinnedInnerNodes()).nodeSize(8).optimisticReads()));
+    }
+
+    private void checkConcurrentReadWrite(final DB db, final Map<Integer, String> map) throws Exception {
+        for (int i = 0; i < 1000; i++) {
+            map.put(i, "value" + i);
+        }
+        db.commit();
+
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        final AtomicBoolean stop = new AtomicBoolean(false);
+        Thread[] t = new Thread[readers + 1];
+        for (int i = 0; i < readers; i++) {
+            t[i] = new Thread() {
+                public void run() {
+                    try {
+                        Random r = new Random();
+                        while (!stop.get()) {
+                            Integer key = r.nextInt(1000);
+                            assertEquals("value" + key, map.get(key));
+                        }
+                    } catch (Throwable e) {
+                        error.set(e);
+                    }
+                }
+            };
+        }
+        t[readers] = new Thread() {
+            public void run() {
+                try {
+                    Random r = new Random();
+                    for (int i = 0; i < 10000; i++) {
+                        Integer key = 1000 + r.nextInt(1000);
+                        if (r.nextBoolean())
+                            map.put(key, "value" + key);
+                        else
+                            map.remove(key);
+                        if (i % 100 == 0) db.commit();
+                    }
+                } catch (Throwable e) {
+                    error.set(e);
+                } finally {
+                    stop.set(true);
+                }
+            }
+        };
+        for (Thread tt : t) tt.start();
+        for (Thread tt : t) tt.join();
+        if (error.get() != null)
+            throw new AssertionError(error.get());
+        db.close();
+    }
+
     private Object fetch(Long id) throws IOException {
         try {
             return btree.get(id);
@@ -44,4 +44,66 @@ public class DBCacheMRUTest extends TestCaseWithTestFile {
 
 
     }
+
+    public void testCacheMemoryLimit() throws IOException {
+
+        DBCacheMRU d = (DBCacheMRU) DBMaker
+                .openFile(newTestFile())
+                .setMRUCacheMemoryLimit(100000)
+                .make();
+
+        ArrayList<Long> small = new ArrayList<Long>();
+        for(int i = 0;i<1000;i++){
+            small.add(d.insert("aa"+i));
+        }
+        ArrayList<Long> large = new ArrayList<Long>();
+        for(int i = 0;i<100;i++){
+            large.add(d.insert(new byte[10000]));
+        }
+        d.commit();
+
+        for(int i = 0;i<1000;i++){
+            assertEquals("aa"+i, d.fetch(small.get(i)));
+        }
+        //small records fit into cache
+        assertEquals(1000, d._hash.size());
+        assertTrue(d._weight<=100000);
+
+        for(int i = 0;i<100;i++){
+            assertEquals(10000, ((byte[])d.fetch(large.get(i))).length);
+        }
+        //large records evicted small ones, only few of them fit
+        assertTrue(d._hash.size()<10);
+        assertTrue(d._weight<=100000);
+
+        //record larger than whole cache is not cached
+        long huge = d.insert(new byte[200000]);
+        d.commit();
+        d.fetch(huge);
+        assertNull(d._hash.get(huge));
+
+        //weight is released when records are removed
+        d.rollback();
+        assertEquals(0, d._weight);
+        d.close();
+    }
+
+    public void testCacheWeightUpdateDelete() throws IOException {
+        DBCacheMRU d = (DBCacheMRU) DBMaker
+                .openFile(newTestFile())
+                .setMRUCacheMemoryLimit(100000)
+                .make();
+        long recid = d.insert(new byte[1000]);
+        d.commit();
+        d.fetch(recid);
+        assertTrue(d._weight>=1000);
+        d.update(recid, new byte[2000]);
+        assertEquals(0, d._weight);
+        d.commit();
+        d.fetch(recid);
+        assertTrue(d._weight>=2000);
+        d.delete(recid);
+        assertEquals(0, d._weight);
+        d.close();
+    }
 }
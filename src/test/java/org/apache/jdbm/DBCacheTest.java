@@ -1,7 +1,12 @@
 package org.apache.jdbm;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOError;
+import java.io.IOException;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
 
 
 public class DBCacheTest extends TestCaseWithTestFile {
@@ -63,4 +68,205 @@ public class DBCacheTest extends TestCaseWithTestFile {
 //
 
     }
+
+    public void testReclaimFraction(){
+        assertEquals(0D, CacheReclaimer.reclaimFraction(0.5));
+        assertEquals(CacheReclaimer.MIN_RECLAIM_FRACTION, CacheReclaimer.reclaimFraction(CacheReclaimer.USAGE_THRESHOLD));
+        double prev = 0;
+        for(double usage = CacheReclaimer.USAGE_THRESHOLD; usage<=1; usage+=0.01){
+            double fraction = CacheReclaimer.reclaimFraction(usage);
+            assertTrue(fraction>=prev);
+            assertTrue(fraction<=1);
+            prev = fraction;
+        }
+        assertEquals(1D, CacheReclaimer.reclaimFraction(1));
+    }
+
+    public void testReclaim() throws Exception {
+        checkReclaim(DBMaker.openFile(newTestFile()).enableHardCache(), true);
+        checkReclaim(DBMaker.openFile(newTestFile()).enableSoftCache(), true);
+        checkReclaim(DBMaker.openFile(newTestFile()).enableHardCache().disableCacheAutoClear(), false);
+    }
+
+    private void checkReclaim(DBMaker maker, boolean reclaimed) throws Exception {
+        DBCacheRef d = (DBCacheRef) maker.make();
+        long[] recids = new long[1000];
+        for(int i = 0;i<recids.length;i++)
+            recids[i] = d.insert("aa"+i);
+        d.commit();
+        for(int i = 0;i<recids.length;i++)
+            assertEquals("aa"+i, d.fetch(recids[i]));
+        assertEquals(1000, d._softHash.size());
+
+        d.reclaim(0.25);
+        assertEquals(reclaimed? 750 : 1000, d._softHash.size());
+
+        //records are still readable after reclaim
+        for(int i = 0;i<recids.length;i++)
+            assertEquals("aa"+i, d.fetch(recids[i]));
+        d.close();
+    }
+
+    public void testSingleReclaimerThread(){
+        DB[] dbs = new DB[5];
+        for(int i = 0;i<dbs.length;i++)
+            dbs[i] = DBMaker.openFile(newTestFile()).enableSoftCache().make();
+
+        int threads = 0;
+        for(Thread t:Thread.getAllStackTraces().keySet()){
+            if(t.getName().startsWith("JDBM Cache Reclaimer"))
+                threads++;
+        }
+        assertEquals(1, threads);
+
+        for(DB db:dbs)
+            db.close();
+    }
+
+    public void testClearedReferencesRemoved() throws Exception {
+        DBCacheRef d = (DBCacheRef) DBMaker.openFile(newTestFile()).enableWeakCache().make();
+        long[] recids = new long[1000];
+        for(int i = 0;i<recids.length;i++)
+            recids[i] = d.insert("aa"+i);
+        d.commit();
+        for(int i = 0;i<recids.length;i++)
+            d.fetch(recids[i]);
+
+        //nothing references fetched records, so they are collected and removed from cache
+        for(int i = 0; i<100 && d._softHash.size()>0; i++){
+            System.gc();
+            Thread.sleep(100);
+        }
+        assertEquals(0, d._softHash.size());
+        d.close();
+    }
+
+    public void testWriteBehind() throws Exception {
+        checkWriteBehind(DBMaker.openFile(newTestFile()));
+        checkWriteBehind(DBMaker.openFile(newTestFile()).enableSoftCache());
+        checkWriteBehind(DBMaker.openFile(newTestFile()).enableTinyLfuCache(1000));
+    }
+
+    private void checkWriteBehind(DBMaker maker) throws Exception {
+        maker.disableTransactions().enableWriteBehind(1000);
+        DBCache d = (DBCache) maker.make();
+        long[] recids = new long[100000];
+        for(int i = 0;i<recids.length;i++){
+            recids[i] = d.insert("aa"+i);
+            assertTrue(d._hashDirties.size()<=1000);
+        }
+        for(int i = 0;i<recids.length;i++){
+            d.update(recids[i], "bb"+i);
+            assertTrue(d._hashDirties.size()<=1000);
+        }
+
+        //background thread writes dirty records
+        for(int i = 0;i<100 && d._hashDirties.size()>250;i++)
+            Thread.sleep(100);
+        assertTrue(d._hashDirties.size()<=250);
+
+        for(int i = 0;i<recids.length;i++)
+            assertEquals("bb"+i, d.fetch(recids[i]));
+        d.close();
+
+        d = (DBCache) maker.make();
+        for(int i = 0;i<recids.length;i++)
+            assertEquals("bb"+i, d.fetch(recids[i]));
+        d.close();
+    }
+
+    public void testWriteBehindRequiresNoTransactions(){
+        DBCache d = (DBCache) DBMaker.openFile(newTestFile()).enableWriteBehind(1000).make();
+        //option is ignored if transactions are enabled
+        try{
+            d.enableWriteBehind(1000);
+            fail();
+        }catch(IllegalStateException e){
+            //expected
+        }
+        d.close();
+    }
+
+    public void testWriteBehindFailureIsRethrown() throws Exception {
+        DBCache d = (DBCache) DBMaker.openFile(newTestFile()).disableTransactions().enableWriteBehind(100).make();
+        Serializer<String> failing = new Serializer<String>() {
+            public void serialize(DataOutput out, String obj) throws IOException {
+                throw new IOException("write failed");
+            }
+
+            public String deserialize(DataInput in) throws IOException, ClassNotFoundException {
+                return in.readUTF();
+            }
+        };
+        //background thread fails, one of next updates must report it
+        IOError error = null;
+        for(int i = 0;i<200 && error==null;i++){
+            try{
+                if(i<60)
+                    d.insert("aa"+i, failing, false);
+                else{
+                    Thread.sleep(100);
+                    d.update(d.insert("bb"), "cc");
+                }
+            }catch(IOError e){
+                error = e;
+            }
+        }
+        assertNotNull(error);
+        assertEquals("write failed", error.getCause().getMessage());
+        assertFalse(writeBehindThreadAlive());
+
+        //records with failing serializer can not be written on close
+        d._hashDirties.clear();
+        d.close();
+    }
+
+    public void testCloseStopsWriteBehindThread() throws IOException {
+        DBCache d = (DBCache) DBMaker.openFile(newTestFile()).disableTransactions().enableWriteBehind(1000).make();
+        assertTrue(writeBehindThreadAlive());
+        for(int i = 0;i<10000;i++)
+            d.insert("aa"+i);
+        d.close();
+        assertFalse(writeBehindThreadAlive());
+    }
+
+    public void testFetchWhileClosing() throws Exception {
+        checkFetchWhileClosing(DBMaker.openFile(newTestFile()).make());
+        checkFetchWhileClosing(DBMaker.openFile(newTestFile()).enableSoftCache().make());
+        checkFetchWhileClosing(DBMaker.openFile(newTestFile()).enableHardCache().make());
+    }
+
+    private void checkFetchWhileClosing(final DB d) throws Exception {
+        final long recid = ((DBAbstract) d).insert("aa");
+        d.commit();
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        Thread[] t = new Thread[4];
+        for(int i = 0;i<t.length;i++){
+            t[i] = new Thread(){
+                public void run() {
+                    try{
+                        while(true)
+                            assertEquals("aa", ((DBAbstract) d).fetch(recid));
+                    }catch(IllegalStateException e){
+                        //expected after close
+                    }catch(Throwable e){
+                        error.set(e);
+                    }
+                }
+            };
+            t[i].start();
+        }
+        Thread.sleep(50);
+        d.close();
+        for(Thread tt:t) tt.join();
+        if(error.get()!=null)
+            throw new AssertionError(error.get());
+    }
+
+    private static boolean writeBehindThreadAlive(){
+        for(Thread t:Thread.getAllStackTraces().keySet())
+            if("JDBM Write Behind".equals(t.getName()) && t.isAlive())
+                return true;
+        return false;
+    }
 }
@@ -0,0 +1,135 @@
+package org.apache.jdbm;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+public class DBCacheTinyLfuTest extends TestCaseWithTestFile {
+
+    public void testCacheMaxSize() throws IOException {
+
+        DBCacheTinyLfu d = (DBCacheTinyLfu) DBMaker
+                .openFile(newTestFile())
+                .enableTinyLfuCache(100)
+                .make();
+
+        ArrayList<Long> recids = new ArrayList<Long>();
+        for(int i = 0;i<1e5;i++){
+            recids.add(d.insert("aa"+i));
+        }
+        d.commit();
+        for(int i = 0;i<1e5;i++){
+            assertEquals("aa"+i, d.fetch(recids.get(i)));
+        }
+
+        int size = 0;
+        for(DBCacheTinyLfu.Stripe s:d._stripes)
+            size+=s.size();
+        assertTrue(size<=100);
+        d.close();
+    }
+
+    public void testStriped() throws IOException {
+        DBCacheTinyLfu d = (DBCacheTinyLfu) DBMaker
+                .openFile(newTestFile())
+                .enableTinyLfuCache(10000)
+                .make();
+        assertEquals(DBCacheTinyLfu.STRIPES, d._stripes.length);
+        int capacity = 0;
+        for(DBCacheTinyLfu.Stripe s:d._stripes)
+            capacity += s.windowMax + s.mainMax;
+        assertEquals(10000, capacity);
+        d.close();
+    }
+
+    public void testFetchRecordsAccessOnce() throws IOException {
+        DBCacheTinyLfu d = (DBCacheTinyLfu) DBMaker
+                .openFile(newTestFile())
+                .enableTinyLfuCache(10000)
+                .make();
+        long recid = d.insert("aa");
+        d.commit();
+        //miss looks into cache twice, but access must be counted only once
+        assertEquals("aa", d.fetch(recid));
+        assertEquals(1, d.stripe(recid).sketch.frequency(recid));
+        assertEquals("aa", d.fetch(recid));
+        assertEquals(2, d.stripe(recid).sketch.frequency(recid));
+        d.close();
+
+        //cache is cleared, but stripes are kept after close
+        assertEquals(0, d.cacheSize());
+        d.clearCache();
+    }
+
+    public void testScanResistance(){
+        DBCacheTinyLfu.Stripe s = new DBCacheTinyLfu.Stripe(1000);
+        //hot set is accessed repeatedly
+        for(int round = 0; round<10; round++){
+            for(long i = 0; i<500; i++){
+                if(s.get(i)==null)
+                    s.put(i, i);
+            }
+        }
+        //scan over large collection, each record is accessed once
+        for(long i = 1000000; i<1100000; i++){
+            if(s.get(i)==null)
+                s.put(i, i);
+        }
+        int hits = 0;
+        for(long i = 0; i<500; i++){
+            if(s.get(i)!=null)
+                hits++;
+        }
+        assertTrue("hot set was evicted by scan, hits: "+hits, hits>=490);
+        assertTrue(s.size()<=1000);
+    }
+
+    public void testTinyCache(){
+        DBCacheTinyLfu.Stripe s = new DBCacheTinyLfu.Stripe(1);
+        for(long i = 0; i<100; i++){
+            s.put(i, i);
+            assertTrue(s.size()<=1);
+        }
+    }
+
+    public void testRemove(){
+        DBCacheTinyLfu.Stripe s = new DBCacheTinyLfu.Stripe(100);
+        for(long i = 0; i<1000; i++){
+            s.get(i);
+            s.put(i, i);
+        }
+        for(long i = 0; i<1000; i++)
+            s.remove(i);
+        assertEquals(0, s.size());
+        assertEquals(0, s.window.size + s.probation.size + s.protect.size);
+    }
+
+    public void testSketch(){
+        DBCacheTinyLfu.FrequencySketch sketch = new DBCacheTinyLfu.FrequencySketch(1000);
+        for(int i = 0; i<10; i++)
+            sketch.increment(1);
+        sketch.increment(2);
+        assertEquals(10, sketch.frequency(1));
+        assertTrue(sketch.frequency(2)>=1);
+        assertTrue(sketch.frequency(1)>sketch.frequency(2));
+
+        //counters are aged after sample size is reached
+        for(long i = 100; i<100+sketch.sampleSize; i++)
+            sketch.increment(i);
+        assertTrue(sketch.frequency(1)<10);
+    }
+
+    public void testUpdateDeleteRollback() throws IOException {
+        DBAbstract d = (DBAbstract) DBMaker.openFile(newTestFile()).enableTinyLfuCache(100).make();
+        long recid = d.insert("aa");
+        d.commit();
+        assertEquals("aa", d.fetch(recid));
+        d.update(recid, "bb");
+        assertEquals("bb", d.fetch(recid));
+        d.rollback();
+        assertEquals("aa", d.fetch(recid));
+        d.delete(recid);
+        d.commit();
+        assertNull(d.fetch(recid));
+        d.close();
+    }
+}
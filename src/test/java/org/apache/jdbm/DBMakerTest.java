@@ -1,6 +1,7 @@
 package org.apache.jdbm;
 
 import java.io.IOException;
+import java.util.Map;
 import java.util.Set;
 
 public class DBMakerTest extends TestCaseWithTestFile {
@@ -71,8 +72,52 @@ public class DBMakerTest extends TestCaseWithTestFile {
        
     }
 
+    public void testPageSize() throws IOException {
+        checkPageSize(DBMaker.openFile(newTestFile()));
+        checkPageSize(DBMaker.openFile(newTestFile()).useRandomAccessFile());
+        checkPageSize(DBMaker.openFile(newTestFile()).enableEncryption("password",false));
+        checkPageSize(DBMaker.openFile(newTestFile()).disableTransactions());
+    }
 
+    private void checkPageSize(DBMaker maker) throws IOException {
+        DBStore db = (DBStore) maker.disableCache().setPageSize(16*1024).make();
+        assertEquals(16*1024, db.getPageSize());
+        Map<Integer,byte[]> m = db.createHashMap("test");
+        for(int i = 0;i<100;i++){
+            m.put(i, new byte[i*1000]);
+        }
+        db.commit();
+        db.close();
 
+        //page size from header is used, option is ignored for existing store
+        db = (DBStore) maker.setPageSize(4*1024).make();
+        assertEquals(16*1024, db.getPageSize());
+        m = db.getHashMap("test");
+        for(int i = 0;i<100;i++){
+            assertEquals(i*1000, m.get(i).length);
+        }
+        db.close();
+    }
 
-}
+    public void testPageSizeOutOfRange(){
+        try{
+            DBMaker.openMemory().setPageSize(1024);
+            fail();
+        }catch(IllegalArgumentException e){
+            //expected
+        }
+        try{
+            DBMaker.openMemory().setPageSize(5000);
+            fail();
+        }catch(IllegalArgumentException e){
+            //expected
+        }
+        try{
+            DBMaker.openMemory().setPageSize(64*1024);
+            fail();
+        }catch(IllegalArgumentException e){
+            //expected
+        }
+    }
 
+}
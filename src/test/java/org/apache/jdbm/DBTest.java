@@ -393,15 +393,29 @@ public class DBTest extends TestCaseWithTestFile {
     }
 
 
-    public void testCompressRecid(){
+    public void testCompressRecid() throws IOException {
+        DBStore d = newDBNoCache();
         for(long l = Magic.PAGE_HEADER_SIZE;l<Storage.PAGE_SIZE;l+=6){
-            assertEquals(l, DBStore.decompressRecid(DBStore.compressRecid(l)));
+            assertEquals(l, d.decompressRecid(d.compressRecid(l)));
         }
 
         for(long l = Magic.PAGE_HEADER_SIZE+Storage.PAGE_SIZE *5;l<Storage.PAGE_SIZE *6;l+=6){
-            assertEquals(l,DBStore.decompressRecid(DBStore.compressRecid(l)));
+            assertEquals(l,d.decompressRecid(d.compressRecid(l)));
         }
+        d.close();
+    }
 
+    public void testCompressRecidBigPage() throws IOException {
+        DBStore d = (DBStore) DBMaker.openFile(newTestFile()).disableCache().setPageSize(16*1024).make();
+        final int pageSize = 16*1024;
+        for(long l = Magic.PAGE_HEADER_SIZE;l<pageSize;l+=6){
+            assertEquals(l, d.decompressRecid(d.compressRecid(l)));
+        }
+
+        for(long l = Magic.PAGE_HEADER_SIZE+pageSize *5L;l<pageSize *6L;l+=6){
+            assertEquals(l,d.decompressRecid(d.compressRecid(l)));
+        }
+        d.close();
     }
 
 
@@ -0,0 +1,72 @@
+package org.apache.jdbm;
+
+import java.io.IOException;
+import java.util.*;
+
+public class ExternalSortTest extends TestCaseWithTestFile {
+
+    public void testSort() throws IOException {
+        DBAbstract db = newDBNoCache();
+        for (int chunkSize : new int[]{1, 7, 100, 100000}) {
+            TreeMap<Long, String> expected = new TreeMap<Long, String>();
+            List<Map.Entry<Long, String>> entries = new ArrayList<Map.Entry<Long, String>>();
+            Random r = new Random(0);
+            for (int i = 0; i < 2000; i++) {
+                Long key = (long) r.nextInt(1000);
+                expected.put(key, "v" + i);
+                entries.add(new AbstractMap.SimpleEntry<Long, String>(key, "v" + i));
+            }
+            Iterator<Map.Entry<Long, String>> iter = new ExternalSort<Long, String>(entries.iterator(), null,
+                    db.defaultSerializer(), db.defaultSerializer(), chunkSize);
+            List<Map.Entry<Long, String>> sorted = new ArrayList<Map.Entry<Long, String>>();
+            while (iter.hasNext())
+                sorted.add(iter.next());
+            assertEquals(new ArrayList<Map.Entry<Long, String>>(expected.entrySet()), sorted);
+        }
+        db.close();
+    }
+
+    public void testMultiplePasses() throws IOException {
+        DBAbstract db = newDBNoCache();
+        for (int mergeRuns : new int[]{2, 3, 64}) {
+            TreeMap<Long, String> expected = new TreeMap<Long, String>();
+            List<Map.Entry<Long, String>> entries = new ArrayList<Map.Entry<Long, String>>();
+            Random r = new Random(0);
+            for (int i = 0; i < 2000; i++) {
+                Long key = (long) r.nextInt(500);
+                expected.put(key, "v" + i);
+                entries.add(new AbstractMap.SimpleEntry<Long, String>(key, "v" + i));
+            }
+            //chunk size 3 gives hundreds of runs, so there are many merge passes
+            Iterator<Map.Entry<Long, String>> iter = new ExternalSort<Long, String>(entries.iterator(), null,
+                    db.defaultSerializer(), db.defaultSerializer(), 3, mergeRuns);
+            List<Map.Entry<Long, String>> sorted = new ArrayList<Map.Entry<Long, String>>();
+            while (iter.hasNext())
+                sorted.add(iter.next());
+            assertEquals(new ArrayList<Map.Entry<Long, String>>(expected.entrySet()), sorted);
+        }
+        db.close();
+    }
+
+    public void testComparator() throws IOException {
+        DBAbstract db = newDBNoCache();
+        List<Map.Entry<String, String>> entries = new ArrayList<Map.Entry<String, String>>();
+        for (String s : new String[]{"b", "c", "a", "d"})
+            entries.add(new AbstractMap.SimpleEntry<String, String>(s, s));
+        Iterator<Map.Entry<String, String>> iter = new ExternalSort<String, String>(entries.iterator(),
+                Collections.<String>reverseOrder(), db.defaultSerializer(), db.defaultSerializer(), 2);
+        String ret = "";
+        while (iter.hasNext())
+            ret += iter.next().getKey();
+        assertEquals("dcba", ret);
+        db.close();
+    }
+
+    public void testEmpty() throws IOException {
+        DBAbstract db = newDBNoCache();
+        Iterator<Map.Entry<Long, String>> iter = new ExternalSort<Long, String>(
+                new ArrayList<Map.Entry<Long, String>>().iterator(), null, db.defaultSerializer(), db.defaultSerializer(), 10);
+        assertFalse(iter.hasNext());
+        db.close();
+    }
+}
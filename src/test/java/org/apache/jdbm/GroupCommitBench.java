@@ -0,0 +1,72 @@
+/*******************************************************************************
+ * Copyright 2010 Cees De Groot, Alex Boisvert, Jan Kotek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.apache.jdbm;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures number of small commits per second with and without group commit,
+ * for increasing number of committing threads.
+ */
+public class GroupCommitBench extends TestCaseWithTestFile {
+
+    static final long DURATION = 2000;
+
+    public void test_no_group_commit() throws Exception {
+        bench("no group commit", DBMaker.openFile(newTestFile()).make());
+    }
+
+    public void test_group_commit() throws Exception {
+        bench("group commit", DBMaker.openFile(newTestFile()).enableGroupCommit(200).make());
+    }
+
+    static void bench(String name, DB db) throws Exception {
+        Map<Integer, String> map = db.createTreeMap("test");
+        for (int threads = 1; threads <= 16; threads *= 2) {
+            System.out.println(name + ": " + threads + " threads: " + run(db, map, threads) * 1000 / DURATION + " commits/s");
+        }
+        db.close();
+    }
+
+    static long run(final DB db, final Map<Integer, String> map, int threads) throws Exception {
+        final AtomicBoolean stop = new AtomicBoolean(false);
+        final AtomicLong counter = new AtomicLong();
+        Thread[] t = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final int key = i;
+            t[i] = new Thread() {
+                public void run() {
+                    long count = 0;
+                    while (!stop.get()) {
+                        map.put(key, "value" + count);
+                        db.commit();
+                        count++;
+                    }
+                    counter.addAndGet(count);
+                }
+            };
+        }
+
+        for (Thread tt : t) tt.start();
+        Thread.sleep(DURATION);
+        stop.set(true);
+        for (Thread tt : t) tt.join();
+        return counter.get();
+    }
+
+}
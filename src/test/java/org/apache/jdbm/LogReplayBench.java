@@ -0,0 +1,53 @@
+/*******************************************************************************
+ * Copyright 2010 Cees De Groot, Alex Boisvert, Jan Kotek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.apache.jdbm;
+
+import java.io.File;
+
+/**
+ * Measures how fast transaction log is replayed on recovery.
+ * Log size in MB is set by 'logSize' system property, use -DlogSize=1024 for 1GB log.
+ */
+public class LogReplayBench extends TestCaseWithTestFile {
+
+    public void test_replay() throws Exception {
+        final int logSize = Integer.getInteger("logSize", 64);
+        final int txns = PageTransactionManager.GROUP_COMMIT_MAX_TXNS - 1;
+        final int pagesPerTxn = (int) Math.max(1, ((long) logSize << 20) / txns / (Magic.SZ_LONG + Storage.PAGE_SIZE));
+
+        String file = newTestFile();
+        PageFile f = new PageFile(file, false, false, null, null, true, false, 0, false, Storage.PAGE_SIZE_SHIFT, StorageDiskMapped.SEGMENT_SIZE_SHIFT, 0);
+        for (int t = 0; t < txns; t++) {
+            for (int i = 0; i < pagesPerTxn; i++) {
+                PageIo page = f.get(i);
+                page.writeInt(100, t);
+                f.release(i, true);
+            }
+            f.commit();
+            f.awaitDurable();
+        }
+        f.forceClose();
+
+        long size = new File(file + StorageDisk.transaction_log_file_extension).length();
+        long start = System.currentTimeMillis();
+        f = new PageFile(file);
+        long time = System.currentTimeMillis() - start;
+        System.out.println("Replayed " + (size >> 20) + " MB log in " + time + " ms, " +
+                (size >> 20) * 1000 / Math.max(1, time) + " MB/s");
+        f.close();
+    }
+
+}
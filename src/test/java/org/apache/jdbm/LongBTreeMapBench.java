@@ -0,0 +1,76 @@
+/*******************************************************************************
+ * Copyright 2010 Cees De Groot, Alex Boisvert, Jan Kotek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.apache.jdbm;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Compares TreeMap with boxed Long keys against map created by {@link DB#createTreeMapLong(String)}.
+ * Number of keys is set by 'keys' system property, default is 200000.
+ * Allocation is measured with HotSpot specific thread MXBean.
+ */
+public class LongBTreeMapBench extends TestCaseWithTestFile {
+
+    public void test_long_keys() throws Exception {
+        final int keys = Integer.getInteger("keys", 200000);
+
+        DB db = DBMaker.openFile(newTestFile()).disableTransactions().make();
+        Map<Long, String> boxed = db.createTreeMap("boxed");
+        LongNavigableMap<String> primitive = db.createTreeMapLong("primitive");
+        Random r = new Random(0);
+        for (int i = 0; i < keys; i++) {
+            long key = r.nextInt(keys * 4);
+            boxed.put(key, "");
+            primitive.put(key, "");
+        }
+        db.commit();
+
+        for (int round = 0; round < 3; round++) {
+            r = new Random(0);
+            long alloc = allocatedBytes();
+            long start = System.currentTimeMillis();
+            for (int i = 0; i < keys; i++) {
+                if (boxed.get((long) r.nextInt(keys * 4)) == null)
+                    throw new InternalError();
+            }
+            print("boxed", keys, start, alloc);
+
+            r = new Random(0);
+            alloc = allocatedBytes();
+            start = System.currentTimeMillis();
+            for (int i = 0; i < keys; i++) {
+                if (primitive.get((long) r.nextInt(keys * 4)) == null)
+                    throw new InternalError();
+            }
+            print("primitive", keys, start, alloc);
+        }
+        db.close();
+    }
+
+    private static void print(String name, int keys, long start, long alloc) {
+        long time = System.currentTimeMillis() - start;
+        System.out.println(name + ": " + keys * 1000L / Math.max(1, time) + " gets/s, " +
+                (allocatedBytes() - alloc) / keys + " bytes allocated per get");
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+}
@@ -0,0 +1,163 @@
+package org.apache.jdbm;
+
+import java.io.IOException;
+import java.util.*;
+
+public class LongBTreeMapTest extends TestCaseWithTestFile {
+
+    public void testPutGetRemove() throws IOException {
+        DB db = newDBCache();
+        LongNavigableMap<String> map = db.createTreeMapLong("test");
+        assertNull(map.get(1L));
+        assertNull(map.put(1L, "one"));
+        assertNull(map.put(-2L, "minus two"));
+        assertEquals("one", map.put(1L, "ONE"));
+        assertEquals("ONE", map.get(1L));
+        assertEquals("ONE", map.get(Long.valueOf(1)));
+        assertEquals("minus two", map.get(-2L));
+        assertTrue(map.containsKey(-2L));
+        assertFalse(map.containsKey(3L));
+        assertNull(map.get("not a long"));
+        assertEquals("minus two", map.remove(-2L));
+        assertNull(map.remove(-2L));
+        assertEquals(1, map.size());
+        db.close();
+    }
+
+    public void testRandom() throws IOException {
+        DB db = newDBNoCache();
+        for (int nodeSize : new int[]{4, 6, 32, 128}) {
+            LongNavigableMap<String> map = db.createTreeMapLong("test" + nodeSize, new TreeMapOptions<Long, String>().nodeSize(nodeSize));
+            TreeMap<Long, String> expected = new TreeMap<Long, String>();
+            Random r = new Random(0);
+            for (int i = 0; i < 20000; i++) {
+                long key = r.nextInt(5000) - 2500;
+                switch (r.nextInt(3)) {
+                    case 0:
+                        assertEquals(expected.remove(key), map.remove(key));
+                        break;
+                    case 1:
+                        assertEquals(expected.get(key), map.get(key));
+                        break;
+                    default:
+                        assertEquals(expected.put(key, "v" + i), map.put(key, "v" + i));
+                }
+            }
+            assertEquals(new ArrayList<Map.Entry<Long, String>>(expected.entrySet()),
+                    new ArrayList<Map.Entry<Long, String>>(map.entrySet()));
+            assertEquals(expected.firstKey(), map.firstKey());
+            assertEquals(expected.lastKey(), map.lastKey());
+            assertEquals(expected.floorKey(77L), map.floorKey(77L));
+            assertEquals(expected.higherKey(-1000L), map.higherKey(-1000L));
+            assertEquals(expected.subMap(-100L, 1000L), map.subMap(-100L, 1000L));
+            assertEquals(expected.headMap(0L, true), map.headMap(0L, true));
+        }
+        db.close();
+    }
+
+    public void testExtremeKeys() throws IOException {
+        String file = newTestFile();
+        DB db = DBMaker.openFile(file).disableCache().make();
+        LongNavigableMap<String> map = db.createTreeMapLong("test", new TreeMapOptions<Long, String>().nodeSize(4));
+        long[] keys = {Long.MIN_VALUE, Long.MIN_VALUE + 1, -1, 0, 1, Long.MAX_VALUE - 1, Long.MAX_VALUE};
+        for (long key : keys)
+            map.put(key, "v" + key);
+        db.commit();
+        db.close();
+
+        db = DBMaker.openFile(file).disableCache().make();
+        map = db.getTreeMapLong("test");
+        assertEquals(keys.length, map.size());
+        int i = 0;
+        for (Long key : map.keySet())
+            assertEquals(keys[i++], key.longValue());
+        for (long key : keys)
+            assertEquals("v" + key, map.get(key));
+        db.close();
+    }
+
+    public void testReopen() throws IOException {
+        String file = newTestFile();
+        DB db = DBMaker.openFile(file).make();
+        LongNavigableMap<Long> map = db.createTreeMapLong("test");
+        for (long i = 0; i < 10000; i++)
+            map.put(i * 1000, Long.valueOf(i));
+        db.commit();
+        db.close();
+
+        db = DBMaker.openFile(file).make();
+        assertTrue(db.getTreeMap("test") instanceof LongNavigableMap);
+        map = db.getTreeMapLong("test");
+        assertEquals(BTree.KEYS_LONG, ((BTreeMap) map).tree.keyType);
+        assertEquals(10000, map.size());
+        for (long i = 0; i < 10000; i++) {
+            assertEquals(Long.valueOf(i), map.get(i * 1000));
+            assertNull(map.get(i * 1000 + 1));
+        }
+        db.close();
+    }
+
+    public void testNodeStoresPrimitives() throws IOException {
+        DBAbstract db = newDBNoCache();
+        BTree<Long, String> tree = BTree.createInstance(db, null, null, null, true, 32, false, BTree.KEYS_LONG);
+        for (long i = 0; i < 1000; i++)
+            tree.insert(i, "v" + i, true);
+        BTreeNode<Long, String> root = tree.getRoot();
+        assertNull(root._keys);
+        assertNotNull(root._longKeys);
+        assertNull(root.getLargestKey());
+        assertEquals("v500", tree.get(500L));
+        assertNull(tree.get(5000L));
+    }
+
+    public void testBulkLoad() throws IOException {
+        DBAbstract db = newDBNoCache();
+        for (int count : new int[]{0, 1, 3, 100, 5000}) {
+            TreeMap<Long, String> expected = new TreeMap<Long, String>();
+            for (long i = 0; i < count; i++)
+                expected.put(i * 7 - 1000, "v" + i);
+            BTree<Long, String> tree = BTree.createInstance(db, null, null, null, true, 6, false, BTree.KEYS_LONG);
+            tree.bulkLoad(expected.entrySet().iterator());
+            LongNavigableMap<String> map = new LongBTreeMap<String>(tree, false);
+            assertEquals(new ArrayList<Map.Entry<Long, String>>(expected.entrySet()),
+                    new ArrayList<Map.Entry<Long, String>>(map.entrySet()));
+            for (long i = 0; i < count; i++)
+                assertEquals("v" + i, map.get(i * 7 - 1000));
+            map.put(Long.MAX_VALUE, "max");
+            assertEquals("max", map.get(Long.MAX_VALUE));
+        }
+    }
+
+    public void testNotLongMap() throws IOException {
+        DB db = newDBNoCache();
+        db.createTreeMap("test");
+        try {
+            db.getTreeMapLong("test");
+            fail();
+        } catch (ClassCastException e) {
+            //expected
+        }
+        assertNull(db.getTreeMapLong("notExist"));
+    }
+
+    public void testWrongKeyType() throws IOException {
+        DB db = newDBNoCache();
+        Map map = db.createTreeMapLong("test");
+        try {
+            map.put("a", "b");
+            fail();
+        } catch (ClassCastException e) {
+            //expected
+        }
+    }
+
+    public void testComparatorNotAllowed() throws IOException {
+        try {
+            BTree.createInstance(newDBNoCache(), Utils.COMPARABLE_COMPARATOR, null, null, true, 32, false, BTree.KEYS_LONG);
+            fail();
+        } catch (IllegalArgumentException e) {
+            //expected
+        }
+    }
+
+}
@@ -0,0 +1,103 @@
+/*******************************************************************************
+ * Copyright 2010 Cees De Groot, Alex Boisvert, Jan Kotek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.apache.jdbm;
+
+import junit.framework.TestCase;
+
+import java.util.Iterator;
+import java.util.Random;
+
+/**
+ * Compares open addressing LongHashMap with previous chained implementation
+ * ({@link ChainedLongHashMap}) on operation mixes seen in PageFile:
+ * short lived 'inUse' entries (put, get, remove) and 'dirty' map which is filled,
+ * iterated and cleared on each commit.
+ */
+public class LongHashMapBench extends TestCase {
+
+    static final int ROUNDS = 200;
+    static final int PAGES = 10000;
+
+    public void test_in_use() {
+        for (int run = 0; run < 6; run++) {
+            Random r = new Random(0);
+            LongHashMap<Object> m = new LongHashMap<Object>();
+            long start = System.nanoTime();
+            for (int round = 0; round < ROUNDS; round++) {
+                final long base = r.nextInt(1 << 20);
+                for (long i = 0; i < PAGES; i++)
+                    m.put(base + i, this);
+                for (long i = 0; i < PAGES; i++)
+                    if (m.get(base + i) == null) throw new InternalError();
+                for (long i = 0; i < PAGES; i++)
+                    m.remove(base + i);
+            }
+            long time1 = System.nanoTime() - start;
+
+            r = new Random(0);
+            ChainedLongHashMap<Object> h = new ChainedLongHashMap<Object>();
+            start = System.nanoTime();
+            for (int round = 0; round < ROUNDS; round++) {
+                final long base = r.nextInt(1 << 20);
+                for (long i = 0; i < PAGES; i++)
+                    h.put(base + i, this);
+                for (long i = 0; i < PAGES; i++)
+                    if (h.get(base + i) == null) throw new InternalError();
+                for (long i = 0; i < PAGES; i++)
+                    h.remove(base + i);
+            }
+            long time2 = System.nanoTime() - start;
+            print("in use", time1, time2);
+        }
+    }
+
+    public void test_dirty() {
+        for (int run = 0; run < 6; run++) {
+            Random r = new Random(0);
+            LongHashMap<Object> m = new LongHashMap<Object>();
+            long start = System.nanoTime();
+            for (int round = 0; round < ROUNDS; round++) {
+                for (int i = 0; i < PAGES; i++)
+                    m.put(r.nextInt(1 << 24), this);
+                for (Iterator<Object> it = m.valuesIterator(); it.hasNext(); ) {
+                    it.next();
+                    it.remove();
+                }
+            }
+            long time1 = System.nanoTime() - start;
+
+            r = new Random(0);
+            ChainedLongHashMap<Object> h = new ChainedLongHashMap<Object>();
+            start = System.nanoTime();
+            for (int round = 0; round < ROUNDS; round++) {
+                for (int i = 0; i < PAGES; i++)
+                    h.put(r.nextInt(1 << 24), this);
+                for (Iterator<Object> it = h.valuesIterator(); it.hasNext(); ) {
+                    it.next();
+                    it.remove();
+                }
+            }
+            long time2 = System.nanoTime() - start;
+            print("dirty", time1, time2);
+        }
+    }
+
+    static void print(String name, long time1, long time2) {
+        final long ops = (long) ROUNDS * PAGES * 3;
+        System.out.println(name + ": LongHashMap " + ops * 1000 / Math.max(1, time1) + " Mops/s, " +
+                "chained " + ops * 1000 / Math.max(1, time2) + " Mops/s");
+    }
+}
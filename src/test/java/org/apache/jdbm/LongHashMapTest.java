@@ -101,6 +101,68 @@ public class LongHashMapTest extends TestCase {
     }
 
 
+    public void testIteratorRemove() {
+        LongHashMap<String> v1 = new LongHashMap<String>();
+        TreeMap<Long, String> v2 = new TreeMap<Long, String>();
+        Random d = new Random(0);
+        //keys with the same low bits form long probe sequences
+        for (int i = 0; i < 10000; i++) {
+            long key = d.nextBoolean() ? (long) d.nextInt(100) << 32 : d.nextInt(100000);
+            v1.put(key, "" + key);
+            v2.put(key, "" + key);
+        }
+        checkEquals(v1, v2);
+
+        //remove every other visited value, each value must be visited once
+        Iterator<String> it = v1.valuesIterator();
+        int counter = 0;
+        TreeMap<Long, String> visited = new TreeMap<Long, String>();
+        while (it.hasNext()) {
+            String v = it.next();
+            assertNull(visited.put(Long.valueOf(v), v));
+            if (counter++ % 2 == 0) {
+                it.remove();
+                v2.remove(Long.valueOf(v));
+            }
+        }
+        assertEquals(visited.size(), counter);
+        checkEquals(v1, v2);
+
+        for (it = v1.valuesIterator(); it.hasNext(); ) {
+            it.next();
+            it.remove();
+        }
+        assertTrue(v1.isEmpty());
+        assertFalse(v1.valuesIterator().hasNext());
+    }
+
+    public void testKeysDifferInHighBits() {
+        //such keys would all land in single slot if low bits of hash product were used
+        LongHashMap<Long> t = new LongHashMap<Long>();
+        for (long i = 0; i < 50000; i++)
+            t.put(i << 40, i);
+        assertEquals(50000, t.size());
+        for (long i = 0; i < 50000; i++)
+            assertEquals(Long.valueOf(i), t.get(i << 40));
+        for (long i = 0; i < 50000; i += 2)
+            t.remove(i << 40);
+        for (long i = 0; i < 50000; i++)
+            assertEquals(i % 2 == 0 ? null : Long.valueOf(i), t.get(i << 40));
+    }
+
+    public void testRehash() {
+        LongHashMap<String> v1 = new LongHashMap<String>(2);
+        for (long i = -1000; i < 1000; i++)
+            v1.put(i * 4096, "" + i);
+        assertEquals(2000, v1.size());
+        for (long i = -1000; i < 1000; i++)
+            assertEquals("" + i, v1.get(i * 4096));
+        assertNull(v1.get(1));
+        v1.clear();
+        assertEquals(0, v1.size());
+        assertNull(v1.get(4096));
+    }
+
     public void test2() {
         LongHashMap<String> v1 = new LongHashMap<String>();
         v1.put(1611, "1611");
@@ -0,0 +1,133 @@
+package org.apache.jdbm;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+
+
+public class MetricsTest extends TestCaseWithTestFile {
+
+    public void testStripedCounter() throws InterruptedException {
+        final StripedCounter c = new StripedCounter();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                public void run() {
+                    for (int i = 0; i < 10000; i++)
+                        c.increment();
+                    c.add(5);
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        assertEquals(8 * 10005, c.get());
+    }
+
+    public void testHistogram() {
+        LatencyHistogram h = new LatencyHistogram();
+        h.record(500);          //under 1us
+        h.record(3000);         //3us
+        h.record(1000000);      //1ms
+        h.record(Long.MAX_VALUE);
+        Map<String, Long> m = new HashMap<String, Long>();
+        h.collect("x", m);
+        assertEquals(Long.valueOf(4), m.get("x.count"));
+        assertEquals(Long.valueOf(1), m.get("x.le.1us"));
+        assertEquals(Long.valueOf(1), m.get("x.le.2us"));
+        assertEquals(Long.valueOf(2), m.get("x.le.4us"));
+        assertEquals(Long.valueOf(2), m.get("x.le.512us"));
+        assertEquals(Long.valueOf(3), m.get("x.le.1024us"));
+        assertEquals(Long.valueOf(4), m.get("x.le.infus"));
+    }
+
+    public void testStoreMetrics() throws IOException {
+        DBStore d = (DBStore) DBMaker.openFile(newTestFile()).disableCache().make();
+        //first insert also creates internal serializer record
+        d.insert("aa");
+        d.commit();
+        final Map<String, Long> m0 = d.getMetrics();
+        long[] recids = new long[100];
+        for (int i = 0; i < recids.length; i++)
+            recids[i] = d.insert("aa" + i);
+        Map<String, Long> m = d.getMetrics();
+        assertTrue(m.get("page.dirty") > 0);
+        d.commit();
+        for (long recid : recids)
+            d.fetch(recid);
+        d.update(recids[0], "bb");
+        d.delete(recids[1]);
+        assertEquals(Long.valueOf(1), d.getMetrics().get("freelist.logical.inTransaction"));
+        d.commit();
+
+        m = d.getMetrics();
+        assertEquals(100, m.get("store.inserts") - m0.get("store.inserts"));
+        assertTrue(m.get("store.fetches") - m0.get("store.fetches") >= 100);
+        assertEquals(1, m.get("store.updates") - m0.get("store.updates"));
+        assertEquals(1, m.get("store.deletes") - m0.get("store.deletes"));
+        assertEquals(2, m.get("commit.count") - m0.get("commit.count"));
+        assertEquals(m.get("commit.count"), m.get("commit.le.infus"));
+        assertEquals(Long.valueOf(0), m.get("page.dirty"));
+        assertEquals(Long.valueOf(0), m.get("freelist.logical.inTransaction"));
+        assertTrue(m.get("page.writes") > 0);
+        assertTrue(m.get("log.bytesWritten") > 0);
+        assertNull(m.get("cache.hits"));
+        d.close();
+    }
+
+    public void testCacheMetrics() throws IOException {
+        DBAbstract d = (DBAbstract) DBMaker.openFile(newTestFile()).setMRUCacheSize(100).make();
+        d.commit();
+        final long commits = d.getMetrics().get("commit.count");
+        long[] recids = new long[200];
+        for (int i = 0; i < recids.length; i++)
+            recids[i] = d.insert("aa" + i);
+        d.commit();
+        for (int round = 0; round < 2; round++)
+            for (int i = 0; i < 50; i++)
+                d.fetch(recids[i]);
+        Map<String, Long> m = d.getMetrics();
+        assertTrue(m.get("cache.hits") >= 50);
+        assertTrue(m.get("cache.size") <= 100);
+        assertEquals(Long.valueOf(0), m.get("cache.dirty"));
+        //nested commit from cache is counted once
+        assertEquals(commits + 1, (long) m.get("commit.count"));
+        d.close();
+    }
+
+    public void testPageAndRecordCacheMetrics() throws IOException {
+        DBAbstract d = (DBAbstract) DBMaker.openFile(newTestFile()).useRandomAccessFile().disableCache()
+                .enablePageCache(16 * Storage.PAGE_SIZE).enableRecordCache(10000).make();
+        long[] recids = new long[1000];
+        for (int i = 0; i < recids.length; i++)
+            recids[i] = d.insert(new byte[500]);
+        d.commit();
+        for (int i = 0; i < recids.length; i++)
+            d.fetch(recids[i]);
+        Map<String, Long> m = d.getMetrics();
+        assertTrue(m.get("recordCache.evictions") > 0);
+        assertTrue(m.get("recordCache.misses") > 0);
+        //records use more pages than page cache holds
+        assertTrue(m.get("pageCache.evictions") > 0);
+        assertEquals(Long.valueOf(16), m.get("pageCache.pages"));
+        d.close();
+    }
+
+    public void testJmx() throws Exception {
+        String file = newTestFile();
+        DB d = DBMaker.openFile(file).enableJmx().make();
+        d.createHashMap("test").put(1, 2);
+        d.commit();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("org.apache.jdbm:type=DB,name=" + ObjectName.quote(file));
+        assertTrue(server.isRegistered(name));
+        assertEquals(d.getMetrics().get("commit.count"), server.getAttribute(name, "commit.count"));
+        assertTrue(server.getMBeanInfo(name).getAttributes().length > 10);
+        d.close();
+        assertFalse(server.isRegistered(name));
+    }
+}
@@ -0,0 +1,194 @@
+package org.apache.jdbm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+
+public class PageCacheTest extends TestCaseWithTestFile {
+
+    /** returns cached page or null */
+    static ByteBuffer get(PageCache c, long pageId){
+        byte[] b = new byte[Storage.PAGE_SIZE];
+        return c.get(pageId, b) ? ByteBuffer.wrap(b) : null;
+    }
+
+    public void testGetPut(){
+        PageCache c = new PageCache(10 * Storage.PAGE_SIZE, Storage.PAGE_SIZE_SHIFT);
+        assertNull(get(c, 1));
+        c.put(1, StorageDiskTest.page(1));
+        ByteBuffer b = get(c, 1);
+        assertEquals(1, b.getLong(0));
+        assertEquals(1, b.getLong(Storage.PAGE_SIZE - 8));
+        assertEquals(1, c.getHitCount());
+        assertEquals(1, c.getMissCount());
+
+        //returned buffer is a copy
+        b.putLong(0, 2);
+        assertEquals(1, get(c, 1).getLong(0));
+        c.close();
+    }
+
+    public void testUpdate(){
+        PageCache c = new PageCache(10 * Storage.PAGE_SIZE, Storage.PAGE_SIZE_SHIFT);
+        //page which is not cached is not added
+        c.update(1, StorageDiskTest.page(1));
+        assertNull(get(c, 1));
+
+        c.put(2, StorageDiskTest.page(2));
+        c.update(2, StorageDiskTest.page(3));
+        assertEquals(3, get(c, 2).getLong(0));
+        c.close();
+    }
+
+    public void testClockEviction(){
+        PageCache c = new PageCache(10 * Storage.PAGE_SIZE, Storage.PAGE_SIZE_SHIFT);
+        for(long i = 0; i<10; i++)
+            c.put(i, StorageDiskTest.page(i));
+        assertEquals(10, c.size());
+        //reference half of pages, they should survive eviction
+        for(long i = 0; i<10; i+=2)
+            assertNotNull(get(c, i));
+        for(long i = 10; i<15; i++)
+            c.put(i, StorageDiskTest.page(i));
+        assertEquals(10, c.size());
+        assertEquals(5, c.getEvictionCount());
+        for(long i = 0; i<10; i++){
+            if(i % 2 == 0)
+                assertEquals(i, get(c, i).getLong(0));
+            else
+                assertNull(get(c, i));
+        }
+        c.close();
+    }
+
+    public void testStripes(){
+        //large cache is split into stripes, each with its own index and CLOCK hand
+        PageCache c = new PageCache(4096L * Storage.PAGE_SIZE, Storage.PAGE_SIZE_SHIFT);
+        Random r = new Random(0);
+        Map<Long, Long> expected = new HashMap<Long, Long>();
+        for(int i = 0; i<100000; i++){
+            //negative ids are translation pages
+            long pageId = r.nextInt(6000) - 1000;
+            if(r.nextBoolean()){
+                c.put(pageId, StorageDiskTest.page(i));
+                expected.put(pageId, (long) i);
+            }else{
+                ByteBuffer b = get(c, pageId);
+                if(b!=null)
+                    assertEquals(expected.get(pageId).longValue(), b.getLong(0));
+            }
+            assertTrue(c.size()<=4096);
+        }
+        assertEquals(4096, c.size());
+        c.clear();
+        assertEquals(0, c.size());
+        c.close();
+    }
+
+    public void testCacheInPageFile() throws IOException {
+        String file = newTestFile();
+        PageFile f = new PageFile(file, false, false, null, null, true, false, -1, false,
+                Storage.PAGE_SIZE_SHIFT, StorageDiskMapped.SEGMENT_SIZE_SHIFT, 1 << 20);
+        for(long i = 1; i<100; i++){
+            PageIo page = f.get(i);
+            page.writeLong(100, i);
+            f.release(i, true);
+        }
+        f.commit();
+        f.close();
+
+        f = new PageFile(file, false, false, null, null, true, false, -1, false,
+                Storage.PAGE_SIZE_SHIFT, StorageDiskMapped.SEGMENT_SIZE_SHIFT, 1 << 20);
+        for(int pass = 0; pass<2; pass++){
+            for(long i = 1; i<100; i++){
+                PageIo page = f.pin(i);
+                assertEquals(i, page.readLong(100));
+                f.unpin(page);
+            }
+            //commit clears buffer pool, so pages are read again
+            f.get(200);
+            f.release(200, true);
+            f.commit();
+        }
+        assertEquals(99, f.pageCache.getHitCount());
+
+        for(int round = 0; round<3; round++){
+            for(long i = 1; i<100; i++){
+                PageIo page = f.pin(i);
+                assertEquals(i, page.readLong(100));
+                f.unpin(page);
+            }
+            //modify pages, cache must be updated when log is written into file
+            for(long i = 1; i<100; i++){
+                PageIo page = f.get(i);
+                page.writeLong(100, i + round);
+                f.release(i, true);
+            }
+            f.commit();
+            for(long i = 1; i<100; i++){
+                PageIo page = f.get(i);
+                page.writeLong(100, i);
+                f.release(i, true);
+            }
+            f.commit();
+        }
+        f.close();
+    }
+
+    public void testCacheInStore() throws IOException {
+        checkCacheInStore(DBMaker.openFile(newTestFile()).useRandomAccessFile());
+        checkCacheInStore(DBMaker.openFile(newTestFile()).enableEncryption("password",false));
+        checkCacheInStore(DBMaker.openFile(newTestFile()).useRandomAccessFile().disableTransactions());
+        checkCacheInStore(DBMaker.openFile(newTestFile()).useRandomAccessFile().enableBackgroundCheckpoint());
+    }
+
+    private void checkCacheInStore(DBMaker maker) throws IOException {
+        DBStore db = (DBStore) maker.disableCache().enablePageCache(1 << 20).make();
+        Map<Integer,String> m = db.createHashMap("test");
+        for(int i = 0; i<1000; i++){
+            m.put(i, "aa"+i);
+            if(i % 100 == 0)
+                db.commit();
+        }
+        db.commit();
+        for(int i = 0; i<1000; i++){
+            m.put(i, "bb"+i);
+        }
+        db.commit();
+        for(int i = 0; i<1000; i++){
+            assertEquals("bb"+i, m.get(i));
+        }
+        db.close();
+
+        db = (DBStore) maker.make();
+        m = db.getHashMap("test");
+        for(int i = 0; i<1000; i++){
+            assertEquals("bb"+i, m.get(i));
+        }
+        db.close();
+    }
+
+    public void testRollbackWithCache() throws IOException {
+        String file = newTestFile();
+        DBMaker maker = DBMaker.openFile(file).useRandomAccessFile().enablePageCache(1 << 20).disableCache();
+        DB db = maker.make();
+        Map<Integer,String> m = db.createHashMap("test");
+        m.put(1, "v0");
+        db.commit();
+        db.close();
+
+        db = maker.make();
+        m = db.getHashMap("test");
+        m.put(1, "v1");
+        db.commit();
+        m.put(2, "x");
+        db.rollback();
+        assertEquals("v1", m.get(1));
+        assertNull(m.get(2));
+        db.close();
+    }
+
+}
@@ -17,6 +17,7 @@
 package org.apache.jdbm;
 
 import java.io.File;
+import java.util.Random;
 
 /**
  * This class contains all Unit tests for {@link PageFile}.
@@ -142,4 +143,98 @@ final public class PageFileTest
     }
 
 
+    /**
+     * Test that readers share pinned page and writer waits until it is unpinned
+     */
+    public void testPinSharedByReaders()
+            throws Exception {
+        final PageFile file = newRecordFile();
+        PageIo data = file.get(3);
+        data.writeByte(3, (byte) 'd');
+        file.release(3, true);
+        file.commit();
+
+        PageIo pin1 = file.pin(3);
+        PageIo pin2 = file.pin(3);
+        assertSame(pin1, pin2);
+        assertEquals((byte) 'd', pin1.readByte(3));
+
+        final PageIo[] got = new PageIo[1];
+        Thread writer = new Thread() {
+            public void run() {
+                try {
+                    got[0] = file.get(3);
+                    file.release(3, false);
+                } catch (Exception e) {
+                    throw new Error(e);
+                }
+            }
+        };
+        writer.start();
+        writer.join(200);
+        assertNull("writer must wait for readers", got[0]);
+        file.unpin(pin1);
+        writer.join(200);
+        assertNull("writer must wait for readers", got[0]);
+        file.unpin(pin2);
+        writer.join();
+        assertSame(pin1, got[0]);
+
+        file.close();
+    }
+
+
+    /**
+     * Test that pages read from storage concurrently by readers and writers are loaded consistently
+     */
+    public void testConcurrentLoad()
+            throws Exception {
+        final String f = newTestFile();
+        PageFile file = new PageFile(f, false, false, null, null, true, false, -1, false,
+                Storage.PAGE_SIZE_SHIFT, StorageDiskMapped.SEGMENT_SIZE_SHIFT, 0);
+        final int pages = PageFile.POOL_SIZE * 3;
+        for (int i = 0; i < pages; i++) {
+            PageIo data = file.get(i);
+            data.writeLong(8, i * 7L);
+            file.release(i, true);
+        }
+        file.commit();
+        file.close();
+
+        final PageFile file2 = new PageFile(f, false, false, null, null, true, false, -1, false,
+                Storage.PAGE_SIZE_SHIFT, StorageDiskMapped.SEGMENT_SIZE_SHIFT, 0);
+        final Throwable[] failure = new Throwable[1];
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final long seed = t;
+            threads[t] = new Thread() {
+                public void run() {
+                    try {
+                        Random r = new Random(seed);
+                        for (int i = 0; i < 20000; i++) {
+                            long pageId = r.nextInt(pages);
+                            if (r.nextInt(10) == 0) {
+                                PageIo data = file2.get(pageId);
+                                assertEquals(pageId * 7L, data.readLong(8));
+                                file2.release(pageId, false);
+                            } else {
+                                PageIo data = file2.pin(pageId);
+                                assertEquals(pageId * 7L, data.readLong(8));
+                                file2.unpin(data);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure[0] = e;
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        if (failure[0] != null)
+            throw new AssertionError(failure[0]);
+        file2.close();
+    }
+
 }
@@ -0,0 +1,55 @@
+/*******************************************************************************
+ * Copyright 2010 Cees De Groot, Alex Boisvert, Jan Kotek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.apache.jdbm;
+
+import java.util.Random;
+
+/**
+ * Measures fetches of large records for each supported page size.
+ * Record size in KB is set by 'recordSize' system property, default is 64KB.
+ */
+public class PageSizeBench extends TestCaseWithTestFile {
+
+    static final int RECORDS = 1000;
+    static final int FETCHES = 20000;
+
+    public void test_page_sizes() throws Exception {
+        final int recordSize = Integer.getInteger("recordSize", 64) * 1024;
+        for (int shift = Storage.PAGE_SIZE_SHIFT; shift <= Storage.PAGE_SIZE_SHIFT_MAX; shift++) {
+            DBStore db = (DBStore) DBMaker.openFile(newTestFile()).disableCache().setPageSize(1 << shift).make();
+            long[] recids = new long[RECORDS];
+            for (int i = 0; i < RECORDS; i++) {
+                recids[i] = db.insert(new byte[recordSize]);
+                if (i % 100 == 0)
+                    db.commit();
+            }
+            db.commit();
+
+            Random r = new Random(0);
+            long start = System.currentTimeMillis();
+            for (int i = 0; i < FETCHES; i++) {
+                byte[] b = db.fetch(recids[r.nextInt(RECORDS)]);
+                if (b.length != recordSize)
+                    throw new InternalError();
+            }
+            long time = System.currentTimeMillis() - start;
+            System.out.println("page size " + (1 << shift) + ": " + FETCHES * 1000L / Math.max(1, time) + " fetches/s, " +
+                    ((long) FETCHES * recordSize >> 20) * 1000 / Math.max(1, time) + " MB/s");
+            db.close();
+        }
+    }
+
+}
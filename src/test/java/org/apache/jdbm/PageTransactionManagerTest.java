@@ -17,6 +17,8 @@
 package org.apache.jdbm;
 
 import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Map;
 
 /**
  * This class contains all Unit tests for {@link PageTransactionManager}.
@@ -100,6 +102,212 @@ public class PageTransactionManagerTest extends TestCaseWithTestFile {
         file2.forceClose();
     }
 
+    /**
+     * Test that transactions committed with group commit are recovered after crash
+     */
+    public void testGroupCommitRecovery() throws Exception {
+        PageFile file1 = new PageFile(file, false, false, null, null, true, false, 0, false, Storage.PAGE_SIZE_SHIFT, StorageDiskMapped.SEGMENT_SIZE_SHIFT, 0);
+
+        for (int i = 1; i < 4; i++) {
+            PageIo node = file1.get(i);
+            node.writeByte(i, (byte) i);
+            file1.release(node.getPageId(), true);
+            file1.commit();
+            file1.awaitDurable();
+        }
+        assertLogSizeNotZero("len1");
+
+        file1.forceClose();
+
+        PageFile file2 = new PageFile(file, false, false, null, null, true, false, -1, false, Storage.PAGE_SIZE_SHIFT, StorageDiskMapped.SEGMENT_SIZE_SHIFT, 0);
+        for (int i = 1; i < 4; i++) {
+            PageIo node = file2.get(i);
+            assertEquals((byte) i, node.readByte(i));
+            file2.release(i, false);
+        }
+        file2.close();
+    }
+
+    /**
+     * Test concurrent commits with group commit enabled
+     */
+    public void testGroupCommitConcurrent() throws Exception {
+        final DB db = DBMaker.openFile(file).enableGroupCommit(100).make();
+        final Map<Integer, Integer> map = db.createHashMap("test");
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int offset = t * 1000;
+            threads[t] = new Thread() {
+                public void run() {
+                    for (int i = offset; i < offset + 200; i++) {
+                        map.put(i, i);
+                        db.commit();
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread t : threads) t.join();
+        db.close();
+
+        DB db2 = DBMaker.openFile(file).make();
+        Map<Integer, Integer> map2 = db2.getHashMap("test");
+        assertEquals(threads.length * 200, map2.size());
+        for (int t = 0; t < threads.length; t++)
+            for (int i = t * 1000; i < t * 1000 + 200; i++)
+                assertEquals(Integer.valueOf(i), map2.get(i));
+        db2.close();
+    }
+
+    /**
+     * Test that single committer does not wait for group commit window
+     */
+    public void testGroupCommitSingleCommitterDoesNotWait() throws Exception {
+        //one second window, each commit would take at least second if leader waited for whole window
+        final DB db = DBMaker.openFile(file).enableGroupCommit(1000000).make();
+        final Map<Integer, Integer> map = db.createHashMap("test");
+        final long start = System.currentTimeMillis();
+        for (int i = 0; i < 20; i++) {
+            map.put(i, i);
+            db.commit();
+        }
+        assertTrue(System.currentTimeMillis() - start < 10000);
+        db.close();
+    }
+
+    /**
+     * Test that pages are readable while log segments are checkpointed in background,
+     * and that multiple log segments are recovered after crash
+     */
+    public void testBackgroundCheckpointRecovery() throws Exception {
+        PageFile file1 = new PageFile(file, false, false, null, null, true, false, -1, true, Storage.PAGE_SIZE_SHIFT, StorageDiskMapped.SEGMENT_SIZE_SHIFT, 0);
+
+        int txns = PageTransactionManager.CHECKPOINT_SEGMENT_TXNS * 3 + 10;
+        for (int i = 0; i < txns; i++) {
+            PageIo node = file1.get(1 + i % 10);
+            node.writeInt(100, i);
+            file1.release(node.getPageId(), true);
+            file1.commit();
+
+            node = file1.pin(1 + i % 10);
+            assertEquals(i, node.readInt(100));
+            file1.unpin(node);
+        }
+
+        file1.forceClose();
+
+        PageFile file2 = new PageFile(file, false, false, null, null, true, false, -1, false, Storage.PAGE_SIZE_SHIFT, StorageDiskMapped.SEGMENT_SIZE_SHIFT, 0);
+        for (int i = txns - 10; i < txns; i++) {
+            PageIo node = file2.get(1 + i % 10);
+            assertEquals(i, node.readInt(100));
+            file2.release(node.getPageId(), false);
+        }
+        file2.close();
+    }
+
+    /**
+     * Test that all segments are written into data file when store with background checkpoint is closed
+     */
+    public void testBackgroundCheckpointClose() throws Exception {
+        DB db = DBMaker.openFile(file).enableBackgroundCheckpoint().make();
+        Map<Integer, Integer> map = db.createTreeMap("test");
+        for (int i = 0; i < 1000; i++) {
+            map.put(i, i);
+            db.commit();
+            assertEquals(Integer.valueOf(i), map.get(i));
+        }
+        for (int i = 0; i < 1000; i += 2) {
+            map.remove(i);
+        }
+        db.rollback();
+        assertEquals(1000, map.size());
+        db.close();
+
+        assertEquals(0, StorageDiskMapped.logSegments(file).length);
+
+        DB db2 = DBMaker.openFile(file).make();
+        Map<Integer, Integer> map2 = db2.getTreeMap("test");
+        assertEquals(1000, map2.size());
+        for (int i = 0; i < 1000; i++)
+            assertEquals(Integer.valueOf(i), map2.get(i));
+        db2.close();
+    }
+
+    /**
+     * Test that recovery stops at last transaction with valid checksum
+     */
+    public void testCorruptedLogRecord() throws Exception {
+        PageFile file1 = new PageFile(file, false, false, null, null, true, false, 0, false, Storage.PAGE_SIZE_SHIFT, StorageDiskMapped.SEGMENT_SIZE_SHIFT, 0);
+        for (int i = 0; i < 3; i++) {
+            PageIo node = file1.get(1);
+            node.writeInt(100, i);
+            file1.release(1, true);
+            file1.commit();
+            file1.awaitDurable();
+        }
+        file1.forceClose();
+
+        //damage page data in last transaction
+        RandomAccessFile raf = new RandomAccessFile(file + StorageDisk.transaction_log_file_extension, "rw");
+        raf.seek(raf.length() - 100);
+        raf.write(0xFF);
+        raf.close();
+
+        PageFile file2 = new PageFile(file);
+        PageIo node = file2.get(1);
+        assertEquals(1, node.readInt(100));
+        file2.release(1, false);
+        file2.close();
+    }
+
+    /**
+     * Test that recovery ignores transaction without commit marker
+     */
+    public void testTornLogRecord() throws Exception {
+        PageFile file1 = new PageFile(file, false, false, null, null, true, false, 0, false, Storage.PAGE_SIZE_SHIFT, StorageDiskMapped.SEGMENT_SIZE_SHIFT, 0);
+        for (int i = 0; i < 3; i++) {
+            PageIo node = file1.get(1);
+            node.writeInt(100, i);
+            file1.release(1, true);
+            file1.commit();
+            file1.awaitDurable();
+        }
+        file1.forceClose();
+
+        //cut commit marker of last transaction
+        RandomAccessFile raf = new RandomAccessFile(file + StorageDisk.transaction_log_file_extension, "rw");
+        raf.setLength(raf.length() - 2);
+        raf.close();
+
+        PageFile file2 = new PageFile(file);
+        PageIo node = file2.get(1);
+        assertEquals(1, node.readInt(100));
+        file2.release(1, false);
+        file2.close();
+    }
+
+    /**
+     * Test that log of store with bigger pages is replayed with page size from file header
+     */
+    public void testPageSizeRecovery() throws Exception {
+        PageFile file1 = new PageFile(file, false, false, null, null, true, false, 0, false, Storage.PAGE_SIZE_SHIFT_MAX, StorageDiskMapped.SEGMENT_SIZE_SHIFT, 0);
+        for (int i = 0; i < 3; i++) {
+            PageIo node = file1.get(1);
+            node.writeInt(10000, i);
+            file1.release(1, true);
+            file1.commit();
+            file1.awaitDurable();
+        }
+        file1.forceClose();
+
+        PageFile file2 = new PageFile(file);
+        assertEquals(1 << Storage.PAGE_SIZE_SHIFT_MAX, file2.pageSize);
+        PageIo node = file2.get(1);
+        assertEquals(2, node.readInt(10000));
+        file2.release(1, false);
+        file2.close();
+    }
+
     //  Helpers
 
     void assertDataSizeEquals(String msg, long size) {
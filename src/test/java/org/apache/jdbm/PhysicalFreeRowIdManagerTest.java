@@ -70,9 +70,11 @@ public class PhysicalFreeRowIdManagerTest extends TestCaseWithTestFile {
 
     }
 
-    public void test_size_to_root_offset(){
-        for(int i = 1;i<PhysicalFreeRowIdManager.MAX_REC_SIZE;i++){
-            int offset = PhysicalFreeRowIdManager.sizeToRootOffset(i);
+    public void test_size_to_root_offset() throws IOException {
+        PageFile f = newRecordFile();
+        PhysicalFreeRowIdManager freeMgr = new PhysicalFreeRowIdManager(f, new PageManager(f));
+        for(int i = 1;i<freeMgr.MAX_REC_SIZE;i++){
+            int offset = freeMgr.sizeToRootOffset(i);
 
             assertTrue(offset<=Storage.PAGE_SIZE);
         }
@@ -87,8 +89,8 @@ public class PhysicalFreeRowIdManagerTest extends TestCaseWithTestFile {
         freeMgr.putFreeRecord(1000,100);
         freeMgr.commit();
 
-        assertEquals(1000,freeMgr.getFreeRecord(100-PhysicalFreeRowIdManager.ROOT_SLOT_SIZE));
-        assertEquals(0,freeMgr.getFreeRecord(100-PhysicalFreeRowIdManager.ROOT_SLOT_SIZE));
+        assertEquals(1000,freeMgr.getFreeRecord(100-freeMgr.ROOT_SLOT_SIZE));
+        assertEquals(0,freeMgr.getFreeRecord(100-freeMgr.ROOT_SLOT_SIZE));
 
     }
 
@@ -98,14 +100,14 @@ public class PhysicalFreeRowIdManagerTest extends TestCaseWithTestFile {
         PageManager pm = new PageManager(f);
         PhysicalFreeRowIdManager freeMgr = new PhysicalFreeRowIdManager(f, pm);
 
-        for(int i = 1; i<PhysicalFreeRowIdManager.MAX_REC_SIZE; i++){
+        for(int i = 1; i<freeMgr.MAX_REC_SIZE; i++){
 
 
             freeMgr.putFreeRecord(1000,i);
             freeMgr.commit();
 
-            assertEquals(1000,freeMgr.getFreeRecord(i-PhysicalFreeRowIdManager.ROOT_SLOT_SIZE));
-            assertEquals(0,freeMgr.getFreeRecord(i-PhysicalFreeRowIdManager.ROOT_SLOT_SIZE));
+            assertEquals(1000,freeMgr.getFreeRecord(i-freeMgr.ROOT_SLOT_SIZE));
+            assertEquals(0,freeMgr.getFreeRecord(i-freeMgr.ROOT_SLOT_SIZE));
         }
         pm.close();
         f.close();
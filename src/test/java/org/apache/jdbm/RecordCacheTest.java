@@ -0,0 +1,88 @@
+package org.apache.jdbm;
+
+import java.io.IOException;
+import java.util.Map;
+
+
+public class RecordCacheTest extends TestCaseWithTestFile {
+
+    public void testGetPut(){
+        RecordCache c = new RecordCache(10000);
+        assertNull(c.get(1));
+        c.put(1, new byte[]{1,2,3,4}, 3);
+        byte[] b = c.get(1);
+        assertEquals(3, b.length);
+        assertEquals(3, b[2]);
+        assertEquals(1, c.getHitCount());
+        assertEquals(1, c.getMissCount());
+        assertEquals(3 + RecordCache.ENTRY_OVERHEAD, c.getSize());
+
+        c.remove(1);
+        assertNull(c.get(1));
+        assertEquals(0, c.getSize());
+    }
+
+    public void testSizeLimit(){
+        RecordCache c = new RecordCache(10 * (100 + RecordCache.ENTRY_OVERHEAD));
+        for(long i = 0; i<10; i++)
+            c.put(i, new byte[100], 100);
+        assertEquals(10, c.getCount());
+        //touch first record, so it is not evicted
+        assertNotNull(c.get(0));
+        c.put(10, new byte[100], 100);
+        assertEquals(10, c.getCount());
+        assertNotNull(c.get(0));
+        assertNull(c.get(1));
+        assertEquals(1, c.getEvictionCount());
+
+        //large record evicts several small ones
+        c.put(11, new byte[500], 500);
+        assertTrue(c.getSize() <= 10 * (100 + RecordCache.ENTRY_OVERHEAD));
+        assertNotNull(c.get(11));
+
+        //record larger than whole cache is not cached
+        c.put(12, new byte[10000], 10000);
+        assertNull(c.get(12));
+    }
+
+    public void testRecordCacheInStore() throws IOException {
+        DBStore d = (DBStore) DBMaker.openFile(newTestFile()).disableCache().enableRecordCache(1 << 20).make();
+        long[] recids = new long[100];
+        for(int i = 0; i<recids.length; i++)
+            recids[i] = d.insert("aa"+i);
+        d.commit();
+        for(int round = 0; round<2; round++){
+            for(int i = 0; i<recids.length; i++)
+                assertEquals("aa"+i, d.fetch(recids[i]));
+        }
+        assertTrue(d.getRecordCache().getHitCount() >= 100);
+
+        //update and delete invalidate cached records
+        d.update(recids[0], "bb");
+        assertEquals("bb", d.fetch(recids[0]));
+        d.delete(recids[1]);
+        assertNull(d.fetch(recids[1]));
+        d.rollback();
+        assertEquals("aa0", d.fetch(recids[0]));
+        assertEquals("aa1", d.fetch(recids[1]));
+        d.close();
+    }
+
+    public void testRecordCacheWithInstanceCache() throws IOException {
+        DB d = DBMaker.openFile(newTestFile()).enableRecordCache(1 << 20).make();
+        Map<Integer,String> m = d.createTreeMap("test");
+        for(int i = 0; i<1000; i++)
+            m.put(i, "aa"+i);
+        d.commit();
+        for(int i = 0; i<1000; i++)
+            m.put(i, "bb"+i);
+        d.commit();
+        for(int i = 0; i<1000; i++)
+            assertEquals("bb"+i, m.get(i));
+        d.defrag(true);
+        m = d.getTreeMap("test");
+        for(int i = 0; i<1000; i++)
+            assertEquals("bb"+i, m.get(i));
+        d.close();
+    }
+}
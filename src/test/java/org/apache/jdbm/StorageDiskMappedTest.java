@@ -1,13 +1,91 @@
 package org.apache.jdbm;
 
-import junit.framework.TestCase;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 
 
-public class StorageDiskMappedTest extends TestCase {
-    
+public class StorageDiskMappedTest extends TestCaseWithTestFile {
+
     public void testNumberOfPages(){
 
-        assertTrue(StorageDiskMapped.PAGES_PER_FILE * Storage.PAGE_SIZE <Integer.MAX_VALUE);
-        
+        assertTrue(StorageDiskMapped.MAX_REGION_SIZE <Integer.MAX_VALUE);
+
+    }
+
+    public void testRegions(){
+        assertEquals(0, StorageDiskMapped.regionIndex(0));
+        assertEquals(0, StorageDiskMapped.regionStart(0));
+        long prevEnd = 0;
+        for(int i = 0; i<100; i++){
+            long start = StorageDiskMapped.regionStart(i);
+            long end = StorageDiskMapped.regionStart(i+1);
+            assertEquals(prevEnd, start);
+            assertTrue(end - start <= StorageDiskMapped.MAX_REGION_SIZE);
+            assertEquals(0, start % (1 << Storage.PAGE_SIZE_SHIFT_MAX));
+            assertEquals(i, StorageDiskMapped.regionIndex(start));
+            assertEquals(i, StorageDiskMapped.regionIndex(end - 1));
+            prevEnd = end;
+        }
+    }
+
+    public void testSmallSegments() throws IOException {
+        checkSegments(DBMaker.openFile(newTestFile()));
+    }
+
+    public void testSmallSegmentsRAF() throws IOException {
+        checkSegments(DBMaker.openFile(newTestFile()).useRandomAccessFile());
+    }
+
+    private void checkSegments(DBMaker maker) throws IOException {
+        DBStore db = (DBStore) maker.disableCache().setSegmentSize(1L << 20).make();
+        long[] recids = new long[100];
+        for(int i = 0; i<recids.length; i++){
+            recids[i] = db.insert(new byte[50000 + i]);
+        }
+        db.commit();
+        db.close();
+
+        //segment size from header is used, option is ignored for existing store
+        db = (DBStore) maker.setSegmentSize(1L << 30).make();
+        for(int i = 0; i<recids.length; i++){
+            assertEquals(50000 + i, ((byte[]) db.fetch(recids[i])).length);
+        }
+        db.close();
+    }
+
+    public void testWriteMultiplePages() throws IOException {
+        String file = newTestFile();
+        StorageDiskMapped s = new StorageDiskMapped(file, false, false, false, Storage.PAGE_SIZE_SHIFT, (StorageDiskMapped.SEGMENT_SIZE_SHIFT_MIN + 2));
+        final long pagesPerFile = 1L << ((StorageDiskMapped.SEGMENT_SIZE_SHIFT_MIN + 2) - Storage.PAGE_SIZE_SHIFT);
+        //runs of translation and data pages crossing file boundaries, and run crossing region boundary
+        final long regionEnd = StorageDiskMapped.regionStart(1) / Storage.PAGE_SIZE;
+        long[] pageNumbers = new long[]{-pagesPerFile - 1, -pagesPerFile, -pagesPerFile + 1, -3, -2, -1,
+                1, 2, 3, 10, pagesPerFile - 1, pagesPerFile, pagesPerFile + 1,
+                2 * pagesPerFile + regionEnd - 1, 2 * pagesPerFile + regionEnd, 2 * pagesPerFile + regionEnd + 1};
+        ByteBuffer[] data = new ByteBuffer[pageNumbers.length];
+        for (int i = 0; i < pageNumbers.length; i++)
+            data[i] = StorageDiskTest.page(pageNumbers[i]);
+        s.write(pageNumbers, data);
+        s.sync();
+        s.forceClose();
+
+        s = new StorageDiskMapped(file, false, false, false, Storage.PAGE_SIZE_SHIFT, (StorageDiskMapped.SEGMENT_SIZE_SHIFT_MIN + 2));
+        for (long pageNumber : pageNumbers)
+            StorageDiskTest.checkPage(s, pageNumber);
+        assertEquals(0, s.read(4).getLong(0));
+        s.forceClose();
+    }
+
+    public void testSegmentFiles() throws IOException {
+        String file = newTestFile();
+        DBStore db = (DBStore) DBMaker.openFile(file).disableCache().setSegmentSize(1L << 20).make();
+        for(int i = 0; i<100; i++){
+            db.insert(new byte[50000]);
+        }
+        db.commit();
+        db.close();
+        assertTrue(new File(StorageDiskMapped.makeFileName(file, 1, 3)).exists());
+        assertEquals(1L << 20, new File(StorageDiskMapped.makeFileName(file, 1, 0)).length());
     }
 }
@@ -0,0 +1,81 @@
+package org.apache.jdbm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReference;
+
+
+public class StorageDiskTest extends TestCaseWithTestFile {
+
+    static ByteBuffer page(long pageNumber){
+        ByteBuffer b = ByteBuffer.allocate(Storage.PAGE_SIZE);
+        b.putLong(0, pageNumber);
+        b.putLong(Storage.PAGE_SIZE - 8, pageNumber);
+        return b;
+    }
+
+    static void checkPage(Storage s, long pageNumber) throws IOException {
+        ByteBuffer b = s.read(pageNumber);
+        assertEquals(pageNumber, b.getLong(0));
+        assertEquals(pageNumber, b.getLong(Storage.PAGE_SIZE - 8));
+    }
+
+    public void testWriteMultiplePages() throws IOException {
+        String file = newTestFile();
+        StorageDisk s = new StorageDisk(file, false, false, Storage.PAGE_SIZE_SHIFT, StorageDiskMapped.SEGMENT_SIZE_SHIFT_MIN);
+        final long pagesPerFile = 1L << (StorageDiskMapped.SEGMENT_SIZE_SHIFT_MIN - Storage.PAGE_SIZE_SHIFT);
+        //runs of translation and data pages, crossing file boundaries and longer than write buffer
+        long[] pageNumbers = new long[]{-pagesPerFile - 1, -pagesPerFile, -pagesPerFile + 1, -3, -2, -1,
+                1, 2, 3, 10, pagesPerFile - 1, pagesPerFile, pagesPerFile + 1};
+        ByteBuffer[] data = new ByteBuffer[pageNumbers.length];
+        for (int i = 0; i < pageNumbers.length; i++)
+            data[i] = page(pageNumbers[i]);
+        s.write(pageNumbers, data);
+
+        long[] longRun = new long[StorageDisk.WRITE_BUFFER_SIZE / Storage.PAGE_SIZE * 2 + 3];
+        data = new ByteBuffer[longRun.length];
+        for (int i = 0; i < longRun.length; i++) {
+            longRun[i] = 2 * pagesPerFile + i;
+            data[i] = page(longRun[i]);
+        }
+        s.write(longRun, data);
+        s.sync();
+        s.forceClose();
+
+        s = new StorageDisk(file, false, false, Storage.PAGE_SIZE_SHIFT, StorageDiskMapped.SEGMENT_SIZE_SHIFT_MIN);
+        for (long pageNumber : pageNumbers)
+            checkPage(s, pageNumber);
+        for (long pageNumber : longRun)
+            checkPage(s, pageNumber);
+        assertEquals(0, s.read(4).getLong(0));
+        s.forceClose();
+    }
+
+    public void testConcurrentReads() throws Exception {
+        final StorageDisk s = new StorageDisk(newTestFile(), false, false, Storage.PAGE_SIZE_SHIFT, StorageDiskMapped.SEGMENT_SIZE_SHIFT);
+        final int pages = 1000;
+        for (long i = 0; i < pages; i++)
+            s.write(i, page(i));
+
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < 10000; i++)
+                            checkPage(s, (long) (Math.random() * pages));
+                    } catch (Throwable e) {
+                        error.set(e);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        s.forceClose();
+        if (error.get() != null)
+            throw new AssertionError(error.get());
+    }
+}